@@ -0,0 +1,78 @@
+package com.champtitles.metabasereportexecutor.benchmarks;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.champtitles.metabasereportexecutor.notifier.App;
+import com.champtitles.metabasereportexecutor.notifier.NotifierSettings;
+import com.champtitles.metabasereportexecutor.notifier.RecipientGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and allocations of finding the report key and card in the S3 event of an SNS message. No recipient group
+ * accepts the card, so the handler returns once the event is parsed and nothing is read from S3 or sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx256m", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class AppBenchmark {
+
+    private static final String SNS_MESSAGE = """
+            {
+                "Records": [
+                    {
+                        "eventVersion": "2.1",
+                        "eventSource": "aws:s3",
+                        "awsRegion": "us-east-2",
+                        "eventTime": "2023-04-04T07:00:05.123Z",
+                        "eventName": "ObjectCreated:CompleteMultipartUpload",
+                        "s3": {
+                            "s3SchemaVersion": "1.0",
+                            "bucket": {
+                                "name": "metabase-report-bucket",
+                                "arn": "arn:aws:s3:::metabase-report-bucket"
+                            },
+                            "object": {
+                                "key": "2023/04/04/card12-2023-04-04T07-00-00.xlsx",
+                                "size": 10485760,
+                                "eTag": "d41d8cd98f00b204e9800998ecf8427e-2",
+                                "sequencer": "00642BCB35A4F1B1C3"
+                            }
+                        }
+                    }
+                ]
+            }
+            """;
+
+    private App app;
+    private SNSEvent snsEvent;
+
+    @Setup
+    public void setUp() {
+        // the reader and sender are never used as no report is sent
+        app = new App(null, null, NotifierSettings.of(List.of(new RecipientGroup("benchmark", List.of(), null, List.of("0")))));
+        SNSEvent.SNS sns = new SNSEvent.SNS();
+        sns.setMessage(SNS_MESSAGE);
+        SNSEvent.SNSRecord snsRecord = new SNSEvent.SNSRecord();
+        snsRecord.setSns(sns);
+        snsEvent = new SNSEvent().withRecords(List.of(snsRecord));
+    }
+
+    @Benchmark
+    public Void handleRequest() {
+        return app.handleRequest(snsEvent, null);
+    }
+}
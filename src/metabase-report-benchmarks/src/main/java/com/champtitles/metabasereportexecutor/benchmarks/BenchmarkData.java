@@ -0,0 +1,71 @@
+package com.champtitles.metabasereportexecutor.benchmarks;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Report data for benchmarks. Reports of any size are generated while they are read from a small block of
+ * CSV-like rows, so that a 200 MB report can be benchmarked in a heap the size of the Lambda without the
+ * benchmark itself holding the report in memory.
+ */
+public final class BenchmarkData {
+
+    public static final int MEGABYTE = 1024 * 1024;
+    private static final byte[] BLOCK = createBlock(64 * 1024);
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param size number of bytes in the report
+     * @return stream of the report
+     */
+    public static InputStream stream(long size) {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                if (position >= size) {
+                    return -1;
+                }
+                return BLOCK[(int) (position++ % BLOCK.length)];
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= size) {
+                    return -1;
+                }
+                int offset = (int) (position % BLOCK.length);
+                int count = (int) Math.min(Math.min(len, BLOCK.length - offset), size - position);
+                System.arraycopy(BLOCK, offset, b, off, count);
+                position += count;
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @param size number of bytes in the report
+     * @return the report
+     */
+    public static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i += BLOCK.length) {
+            System.arraycopy(BLOCK, 0, bytes, i, Math.min(BLOCK.length, size - i));
+        }
+        return bytes;
+    }
+
+    private static byte[] createBlock(int size) {
+        Random random = new Random(42);
+        StringBuilder rows = new StringBuilder(size + 64);
+        while (rows.length() < size) {
+            rows.append(random.nextInt(100_000)).append(",customer ").append(random.nextInt(1000)).append(',')
+                    .append(random.nextInt(10_000) / 100.0).append(",2023-04-0").append(1 + random.nextInt(9)).append('\n');
+        }
+        return rows.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
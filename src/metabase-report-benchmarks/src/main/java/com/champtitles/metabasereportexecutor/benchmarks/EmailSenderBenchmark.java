@@ -0,0 +1,106 @@
+package com.champtitles.metabasereportexecutor.benchmarks;
+
+import com.champtitles.metabasereportexecutor.notifier.EmailSender;
+import com.champtitles.metabasereportexecutor.notifier.EmailTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.activation.DataSource;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and allocations of building an email with a report attached and writing it out, which is when JavaMail
+ * base64 encodes the attachment. The message is sent through a transport which writes it to a stream that
+ * discards it rather than to an SMTP server, so no network time is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx256m", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class EmailSenderBenchmark {
+
+    private static final String HTML_BODY = "<html><p>Report attached</p></html>";
+    private static final String FILE_NAME = "card1-2023-04-04T07-00-00.xlsx";
+    private static final String CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    @Param({"1", "10", "50", "200"})
+    public int sizeMb;
+
+    private static final String[] RECIPIENTS = {"benchmark@example.com"};
+
+    private EmailSender emailSender;
+
+    @Setup
+    public void setUp() {
+        emailSender = new EmailSender("localhost", "25", "benchmark", () -> "password", "reports@example.com", new DiscardingEmailTransport());
+    }
+
+    @Benchmark
+    public void attachment() {
+        emailSender.sendEmail("benchmark", RECIPIENTS, HTML_BODY, FILE_NAME, new GeneratedDataSource((long) sizeMb * BenchmarkData.MEGABYTE));
+    }
+
+    @Benchmark
+    public void zipAttachment() {
+        emailSender.sendEmail("benchmark", RECIPIENTS, HTML_BODY, "card1.zip", List.of(new GeneratedDataSource((long) sizeMb * BenchmarkData.MEGABYTE)), 6);
+    }
+
+    /**
+     * Transport which writes each message out, as sending it over SMTP would, and discards it
+     */
+    private static class DiscardingEmailTransport extends EmailTransport {
+
+        @Override
+        public void send(Message message) throws MessagingException {
+            message.saveChanges();
+            try {
+                message.writeTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                throw new MessagingException("failed to write message", e);
+            }
+        }
+    }
+
+    /**
+     * Attachment which generates the report each time it is read, like a report streamed from S3
+     */
+    private record GeneratedDataSource(long size) implements DataSource {
+
+        @Override
+        public InputStream getInputStream() {
+            return BenchmarkData.stream(size);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("read only data source");
+        }
+
+        @Override
+        public String getContentType() {
+            return CONTENT_TYPE;
+        }
+
+        @Override
+        public String getName() {
+            return FILE_NAME;
+        }
+    }
+}
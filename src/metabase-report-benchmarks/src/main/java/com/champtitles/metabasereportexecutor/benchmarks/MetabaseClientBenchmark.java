@@ -0,0 +1,97 @@
+package com.champtitles.metabasereportexecutor.benchmarks;
+
+import com.champtitles.metabasereportexecutor.executor.ExportFormat;
+import com.champtitles.metabasereportexecutor.executor.HttpClientSettings;
+import com.champtitles.metabasereportexecutor.executor.MetabaseClient;
+import com.champtitles.metabasereportexecutor.executor.MetabaseClientSettings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and allocations of reading a card export from Metabase, against an in-process HTTP server so that only
+ * the client's handling of the response is measured. Buffered reads are only run up to 50 MB as larger exports
+ * do not fit in the heap of the Lambda.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx256m", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class MetabaseClientBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int sizeMb;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private MetabaseClient metabaseClient;
+
+    @Setup
+    public void setUp() throws IOException {
+        long size = (long) sizeMb * BenchmarkData.MEGABYTE;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(2);
+        server.setExecutor(serverExecutor);
+        server.createContext("/api/session", exchange -> respond(exchange, "{\"id\":\"benchmark-session\"}".getBytes(StandardCharsets.UTF_8)));
+        server.createContext("/api/card/", exchange -> {
+            exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+            exchange.sendResponseHeaders(200, size);
+            try (OutputStream body = exchange.getResponseBody(); InputStream data = BenchmarkData.stream(size)) {
+                data.transferTo(body);
+            }
+        });
+        server.start();
+
+        metabaseClient = new MetabaseClient(MetabaseClientSettings.of("http://localhost:" + server.getAddress().getPort(), "benchmark@example.com", () -> "password", "device"),
+                HttpClientSettings.defaults());
+        metabaseClient.loginAndGetSession();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public byte[] queryCardGetXlsx() {
+        return metabaseClient.queryCardGetXlsx("1");
+    }
+
+    @Benchmark
+    public long queryCardExportStream() throws IOException {
+        try (InputStream inputStream = metabaseClient.queryCardExportStream("1", ExportFormat.XLSX)) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.champtitles.metabasereportexecutor.benchmarks;
+
+import com.champtitles.metabasereportexecutor.executor.Compression;
+import com.champtitles.metabasereportexecutor.executor.ExportFormat;
+import com.champtitles.metabasereportexecutor.executor.MetricsLogger;
+import com.champtitles.metabasereportexecutor.executor.Priming;
+import com.champtitles.metabasereportexecutor.executor.RetryPolicy;
+import com.champtitles.metabasereportexecutor.executor.S3Writer;
+import com.champtitles.metabasereportexecutor.executor.S3WriterSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the first request in a new JVM, like a Lambda cold start, with and without priming during
+ * initialization. Each measurement is a single call in its own fork, so nothing is warmed by earlier calls.
+ * <p>
+ * firstRequest primes before the measurement and shows the latency the first invocation sees.
+ * initAndFirstRequest includes priming and shows whether the work is saved or only moved to initialization.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10, jvmArgsAppend = {"-Xmx256m", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class PrimingBenchmark {
+
+    private static final int PART_SIZE_BYTES = 8 * BenchmarkData.MEGABYTE;
+
+    @Param({"false", "true"})
+    public boolean prime;
+
+    @Benchmark
+    public String firstRequest(Initialized initialized) {
+        return request();
+    }
+
+    @Benchmark
+    public String initAndFirstRequest() {
+        if (prime) {
+            Priming.prime();
+        }
+        return request();
+    }
+
+    /**
+     * Upload of a 1 MB gzip CSV export followed by its metrics, the path every executor invocation takes
+     *
+     * @return s3 key of the upload
+     */
+    private static String request() {
+        S3Writer s3Writer = new S3Writer("benchmark", new S3WriterBenchmark.DiscardingS3Client(), S3WriterSettings.defaults()
+                .withParts(PART_SIZE_BYTES, 2)
+                .withRetryPolicy(RetryPolicy.none()));
+        String key = s3Writer.upload(BenchmarkData.stream(BenchmarkData.MEGABYTE), "card1", ExportFormat.CSV, Compression.GZIP);
+        new MetricsLogger("Benchmark", "benchmark", new PrintStream(OutputStream.nullOutputStream()))
+                .metrics("1")
+                .put("ExportBytes", BenchmarkData.MEGABYTE, MetricsLogger.Unit.BYTES)
+                .emit();
+        return key;
+    }
+
+    /**
+     * Initialization done before the first request is measured
+     */
+    @State(Scope.Benchmark)
+    public static class Initialized {
+
+        @Setup(Level.Trial)
+        public void setUp(PrimingBenchmark benchmark) {
+            if (benchmark.prime) {
+                Priming.prime();
+            }
+        }
+    }
+}
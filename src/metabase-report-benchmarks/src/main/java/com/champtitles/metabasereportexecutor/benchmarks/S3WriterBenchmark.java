@@ -0,0 +1,120 @@
+package com.champtitles.metabasereportexecutor.benchmarks;
+
+import com.champtitles.metabasereportexecutor.executor.Compression;
+import com.champtitles.metabasereportexecutor.executor.ExportFormat;
+import com.champtitles.metabasereportexecutor.executor.RetryPolicy;
+import com.champtitles.metabasereportexecutor.executor.S3Writer;
+import com.champtitles.metabasereportexecutor.executor.S3WriterSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and allocations of streaming an export into S3 upload requests, including compression and the buffering
+ * of parts. Requests go to an S3 client which reads and discards each body, so no network time is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx256m", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class S3WriterBenchmark {
+
+    private static final int PART_SIZE_BYTES = 8 * BenchmarkData.MEGABYTE;
+
+    @Param({"1", "10", "50", "200"})
+    public int sizeMb;
+
+    @Param({"NONE", "GZIP"})
+    public Compression compression;
+
+    private S3Writer s3Writer;
+
+    @Setup
+    public void setUp() {
+        s3Writer = new S3Writer("benchmark", new DiscardingS3Client(), S3WriterSettings.defaults()
+                .withParts(PART_SIZE_BYTES, 2)
+                .withRetryPolicy(RetryPolicy.none()));
+    }
+
+    @Benchmark
+    public String upload() {
+        return s3Writer.upload(BenchmarkData.stream((long) sizeMb * BenchmarkData.MEGABYTE), "card1", ExportFormat.CSV, compression);
+    }
+
+    /**
+     * S3 client which reads each request body, as the SDK would when sending it, and returns an empty response
+     */
+    static class DiscardingS3Client implements S3Client {
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest putObjectRequest, RequestBody requestBody) {
+            discard(requestBody);
+            return PutObjectResponse.builder().eTag("etag").build();
+        }
+
+        @Override
+        public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest createMultipartUploadRequest) {
+            return CreateMultipartUploadResponse.builder().uploadId("upload").build();
+        }
+
+        @Override
+        public UploadPartResponse uploadPart(UploadPartRequest uploadPartRequest, RequestBody requestBody) {
+            discard(requestBody);
+            return UploadPartResponse.builder().eTag("etag").build();
+        }
+
+        @Override
+        public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest completeMultipartUploadRequest) {
+            return CompleteMultipartUploadResponse.builder().build();
+        }
+
+        @Override
+        public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest abortMultipartUploadRequest) {
+            return AbortMultipartUploadResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private static void discard(RequestBody requestBody) {
+            try (InputStream inputStream = requestBody.contentStreamProvider().newStream()) {
+                inputStream.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
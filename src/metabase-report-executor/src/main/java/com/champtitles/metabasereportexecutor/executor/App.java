@@ -2,8 +2,20 @@ package com.champtitles.metabasereportexecutor.executor;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class App implements RequestHandler<Object, Object> {
 
@@ -14,27 +26,266 @@ public class App implements RequestHandler<Object, Object> {
     private static final String METABASE_USERNAME = System.getenv("METABASE_USERNAME");
     private static final String METABASE_PASSWORD_KMS = System.getenv("METABASE_PASSWORD_KMS");
     private static final String METABASE_CARD_ID = System.getenv("METABASE_CARD_ID");
+    private static final String METABASE_CARD_IDS = System.getenv().getOrDefault("METABASE_CARD_IDS", "");
+    private static final String METABASE_PARALLELISM = System.getenv().getOrDefault("METABASE_PARALLELISM", "4");
     private static final String METABASE_DEVICE_UUID = System.getenv("METABASE_DEVICE_UUID");
+    private static final String METABASE_SESSION_STORE = System.getenv().getOrDefault("METABASE_SESSION_STORE", "none");
+    private static final String METABASE_SESSION_KMS_KEY = System.getenv().getOrDefault("METABASE_SESSION_KMS_KEY", "");
+    private static final String METABASE_SESSION_TTL_MINUTES = System.getenv().getOrDefault("METABASE_SESSION_TTL_MINUTES", "720");
+    private static final String METABASE_HTTP_VERSION = System.getenv().getOrDefault("METABASE_HTTP_VERSION", "HTTP_1_1");
+    private static final String METABASE_CONNECT_TIMEOUT_SECONDS = System.getenv().getOrDefault("METABASE_CONNECT_TIMEOUT_SECONDS", "10");
+    private static final String METABASE_REQUEST_TIMEOUT_SECONDS = System.getenv().getOrDefault("METABASE_REQUEST_TIMEOUT_SECONDS", "0");
+    private static final String METABASE_HTTP_THREADS = System.getenv().getOrDefault("METABASE_HTTP_THREADS", "4");
+    private static final String EXPORT_FORMAT = System.getenv().getOrDefault("EXPORT_FORMAT", "xlsx");
+    private static final String EXPORT_COMPRESSION = System.getenv().getOrDefault("EXPORT_COMPRESSION", "none");
+    private static final String S3_PART_SIZE_MB = System.getenv().getOrDefault("S3_PART_SIZE_MB", "8");
+    private static final String S3_UPLOAD_CONCURRENCY = System.getenv().getOrDefault("S3_UPLOAD_CONCURRENCY", "2");
+    private static final String S3_KEY_LAYOUT = System.getenv().getOrDefault("S3_KEY_LAYOUT", "dated");
+    private static final String EXPORT_MODE = System.getenv().getOrDefault("EXPORT_MODE", "full");
+    private static final boolean SKIP_UNCHANGED_REPORTS = Boolean.parseBoolean(System.getenv().getOrDefault("SKIP_UNCHANGED_REPORTS", "false"));
+    private static final boolean TRANSCODE_XLSX_TO_CSV = Boolean.parseBoolean(System.getenv().getOrDefault("TRANSCODE_XLSX_TO_CSV", "false"));
+    private static final String METABASE_CARD_PARAMETERS = System.getenv().getOrDefault("METABASE_CARD_PARAMETERS", "");
+    private static final String RESULT_CACHE_TTL_MINUTES = System.getenv().getOrDefault("RESULT_CACHE_TTL_MINUTES", "0");
+    private static final String RETRY_MAX_ATTEMPTS = System.getenv().getOrDefault("RETRY_MAX_ATTEMPTS", "3");
+    private static final String RETRY_BASE_DELAY_MILLIS = System.getenv().getOrDefault("RETRY_BASE_DELAY_MILLIS", "200");
+    private static final Duration RETRY_MAX_DELAY = Duration.ofSeconds(10);
+    private static final double LOGIN_SHARE = 0.1;
+    private static final String METRICS_NAMESPACE = System.getenv().getOrDefault("METRICS_NAMESPACE", MetricsLogger.DEFAULT_NAMESPACE);
+    private static final String SECRETS_CACHE_TTL_MINUTES = System.getenv().getOrDefault("SECRETS_CACHE_TTL_MINUTES", "60");
+    private static final boolean PRIME_ON_INIT = Boolean.parseBoolean(System.getenv().getOrDefault("PRIME_ON_INIT", "false"));
+    private static final String SESSION_STORE_KEY = S3Writer.STATE_PREFIX + "session/metabase-session.json";
+    private static final String EVENT_CARD_IDS_FIELD = "cardIds";
+    private static final String EVENT_PARAMETERS_FIELD = "parameters";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
     private final MetabaseClient metabaseClient;
-    private final S3Writer s3Writer;
+    private final CardBatchExecutor cardBatchExecutor;
+    private final RetryPolicy retryPolicy;
+    private final MetricsLogger metricsLogger;
 
     public App() {
-        KmsDecrypt kmsDecrypt = new KmsDecrypt(AWS_REGION);
-        metabaseClient = new MetabaseClient(METABASE_URL, METABASE_USERNAME, kmsDecrypt.decrypt(METABASE_PASSWORD_KMS), METABASE_DEVICE_UUID);
-        s3Writer = new S3Writer(BUCKET);
+        SecretsProvider secretsProvider = new SecretsProvider(AWS_REGION, Duration.ofMinutes(Long.parseLong(SECRETS_CACHE_TTL_MINUTES)));
+        S3Client s3Client = S3Client.builder().overrideConfiguration(config -> config.retryPolicy(RetryPolicy.sdkRetryPolicy())).build();
+        HttpClientSettings httpClientSettings = HttpClientSettings.of(METABASE_HTTP_VERSION, Long.parseLong(METABASE_CONNECT_TIMEOUT_SECONDS),
+                Long.parseLong(METABASE_REQUEST_TIMEOUT_SECONDS), Integer.parseInt(METABASE_HTTP_THREADS));
+        metricsLogger = StringUtils.isBlank(METRICS_NAMESPACE) ? MetricsLogger.disabled() : new MetricsLogger(METRICS_NAMESPACE);
+        retryPolicy = new RetryPolicy(Integer.parseInt(RETRY_MAX_ATTEMPTS), Duration.ofMillis(Long.parseLong(RETRY_BASE_DELAY_MILLIS)), RETRY_MAX_DELAY);
+        metabaseClient = new MetabaseClient(MetabaseClientSettings.of(METABASE_URL, METABASE_USERNAME, secretsProvider.lazy(METABASE_PASSWORD_KMS), METABASE_DEVICE_UUID)
+                .withSessionStore(createSessionStore(s3Client), Duration.ofMinutes(Long.parseLong(METABASE_SESSION_TTL_MINUTES)))
+                .withRetryPolicy(retryPolicy), httpClientSettings);
+        int partSizeBytes = Math.max(5, Integer.parseInt(S3_PART_SIZE_MB)) * 1024 * 1024;
+        int uploadConcurrency = Integer.parseInt(S3_UPLOAD_CONCURRENCY);
+        ResultCache resultCache = new ResultCache(s3Client, BUCKET, Duration.ofMinutes(Long.parseLong(RESULT_CACHE_TTL_MINUTES)), partSizeBytes, retryPolicy);
+        long partBufferBytesPerCard = (long) (uploadConcurrency + 1 + resultCache.getPartBuffers()) * partSizeBytes;
+        ExportSettings exportSettings = ExportSettings.of(getParallelism(Integer.parseInt(METABASE_PARALLELISM), partBufferBytesPerCard, Runtime.getRuntime().maxMemory()))
+                .withFormat(ExportFormat.fromString(EXPORT_FORMAT), Compression.fromString(EXPORT_COMPRESSION))
+                .withMode(getExportMode())
+                .withTranscodeToCsv(TRANSCODE_XLSX_TO_CSV);
+        cardBatchExecutor = new CardBatchExecutor(metabaseClient, createS3Writer(s3Client, partSizeBytes, uploadConcurrency, retryPolicy), exportSettings,
+                resultCache, metricsLogger);
+        if (PRIME_ON_INIT) {
+            Priming.prime();
+        }
+    }
+
+    App(MetabaseClient metabaseClient, CardBatchExecutor cardBatchExecutor, RetryPolicy retryPolicy) {
+        this(metabaseClient, cardBatchExecutor, retryPolicy, MetricsLogger.disabled());
+    }
+
+    /**
+     * Create a handler from already configured clients, used to run the executor outside Lambda
+     *
+     * @param metabaseClient    client shared by all card exports
+     * @param cardBatchExecutor executor which exports and uploads the cards
+     * @param retryPolicy       policy shared by the clients, reset for each invocation
+     * @param metricsLogger     logger of the invocation metrics
+     */
+    public App(MetabaseClient metabaseClient, CardBatchExecutor cardBatchExecutor, RetryPolicy retryPolicy, MetricsLogger metricsLogger) {
+        this.metabaseClient = metabaseClient;
+        this.cardBatchExecutor = cardBatchExecutor;
+        this.retryPolicy = retryPolicy;
+        this.metricsLogger = metricsLogger;
     }
 
     @Override
-    public String handleRequest(Object event, Context context) {
-        LOGGER.info("logging in to metabase: {}", METABASE_URL);
-        metabaseClient.loginAndGetSession();
+    public List<CardResult> handleRequest(Object event, Context context) {
+        List<String> cardIds = getCardIds(event);
+        Map<String, Object> parameters = getParameters(event);
+        LOGGER.info("processing {} card(s): {} parameters: {}", cardIds.size(), cardIds, parameters);
+        ConnectionStats connectionStats = metabaseClient.getConnectionStats();
+        connectionStats.reset();
+        retryPolicy.resetRetries();
+        retryPolicy.setDeadline(getRetryDeadline(context.getRemainingTimeInMillis()));
+        Deadline deadline = Deadline.forInvocation(context);
+
+        LOGGER.info("getting metabase session: {}", METABASE_URL);
+        boolean coldStart = MetricsLogger.isColdStart();
+        long loginStart = System.currentTimeMillis();
+        metabaseClient.setDeadline(deadline.stage("login", LOGIN_SHARE));
+        metabaseClient.getSession();
+        metabaseClient.setDeadline(deadline);
+        long loginMs = System.currentTimeMillis() - loginStart;
+
+        List<CardResult> results = cardBatchExecutor.execute(cardIds, parameters, deadline);
+        long failures = results.stream().filter(result -> !result.success()).count();
+        for (CardResult result : results) {
+            LOGGER.info("card={} success={} unchanged={} key={} durationMs={} error={} delta={}", result.cardId(), result.success(), result.unchanged(), result.s3Key(), result.durationMs(), result.error(), result.delta());
+        }
+        LOGGER.info("metabase connections: {}", connectionStats);
+        metricsLogger.metrics()
+                .property("Cards", results.size())
+                .put("ColdStart", coldStart ? 1 : 0, MetricsLogger.Unit.COUNT)
+                .put("LoginDuration", loginMs, MetricsLogger.Unit.MILLISECONDS)
+                .put("Retries", retryPolicy.getRetries(), MetricsLogger.Unit.COUNT)
+                .put("NewHandshakes", connectionStats.getNewHandshakes(), MetricsLogger.Unit.COUNT)
+                .put("CardFailures", failures, MetricsLogger.Unit.COUNT)
+                .emit();
 
-        LOGGER.info("running query for card: {}", METABASE_CARD_ID);
-        byte[] xlsxBody = metabaseClient.queryCardGetXlsx(METABASE_CARD_ID);
-        s3Writer.uploadXlsx(xlsxBody, "card" + METABASE_CARD_ID);
+        // failing the invocation would make Lambda retry it and upload and send the cards which succeeded again,
+        // so failed cards are only reported and alarmed on through the CardFailures metric
+        if (failures > 0) {
+            List<String> failedCardIds = results.stream().filter(result -> !result.success()).map(CardResult::cardId).toList();
+            LOGGER.error("{} of {} card(s) failed, rerun only those cards with the event: {}", failures, results.size(), getRerunEvent(failedCardIds));
+        }
 
-        LOGGER.info("finished processing card {} and uploaded to bucket: {}", METABASE_CARD_ID, BUCKET);
-        return null;
+        LOGGER.info("finished processing {} card(s) and uploaded to bucket: {}", results.size(), BUCKET);
+        return results;
     }
 
-}
\ No newline at end of file
+    /**
+     * @param cardIds cards to run again
+     * @return invocation event which runs only the given cards (ex: {"cardIds":["12","14"]})
+     */
+    static String getRerunEvent(List<String> cardIds) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(Map.of(EVENT_CARD_IDS_FIELD, cardIds));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Create the writer used to upload reports. S3 requires every part except the last to be at least 5 MB.
+     * Each card holds up to concurrency + 1 parts in memory while it is uploading.
+     *
+     * @param s3Client          client used to access the report bucket
+     * @param partSizeBytes     size of each multipart upload part
+     * @param uploadConcurrency maximum number of parts of a report uploaded at the same time
+     * @param retryPolicy       policy used to retry each upload request
+     * @return S3 writer
+     */
+    private static S3Writer createS3Writer(S3Client s3Client, int partSizeBytes, int uploadConcurrency, RetryPolicy retryPolicy) {
+        return new S3Writer(BUCKET, s3Client, S3WriterSettings.defaults()
+                .withParts(partSizeBytes, uploadConcurrency)
+                .withRetryPolicy(retryPolicy)
+                .withKeyLayout(KeyLayout.fromString(S3_KEY_LAYOUT)));
+    }
+
+    /**
+     * Limit the number of cards exported at the same time so that the part buffers of all of them fit in half of
+     * the heap. Each card holds the parts of its report upload, and of its cached result when the cache is enabled.
+     *
+     * @param parallelism            configured number of cards to export at the same time
+     * @param partBufferBytesPerCard bytes of part buffers held by each card
+     * @param maxMemoryBytes         maximum heap size
+     * @return number of cards to export at the same time
+     */
+    static int getParallelism(int parallelism, long partBufferBytesPerCard, long maxMemoryBytes) {
+        int limit = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxMemoryBytes / 2 / Math.max(1, partBufferBytesPerCard)));
+        if (parallelism > limit) {
+            LOGGER.warn("exporting {} cards at a time instead of {} so that their {} bytes of part buffers each fit in memory",
+                    limit, parallelism, partBufferBytesPerCard);
+            return limit;
+        }
+        return parallelism;
+    }
+
+    /**
+     * Retries may only start during the first three quarters of the time the invocation has left, so that the
+     * last attempt still has time to finish before the Lambda times out
+     *
+     * @param remainingTimeMillis time left before the invocation times out
+     * @return time from now after which no retry is started
+     */
+    static Duration getRetryDeadline(long remainingTimeMillis) {
+        return Duration.ofMillis(Math.max(0, remainingTimeMillis) * 3 / 4);
+    }
+
+    /**
+     * Determine how much of each card is uploaded. EXPORT_MODE=delta uploads only new and changed rows, otherwise
+     * the full result is uploaded, unless SKIP_UNCHANGED_REPORTS is set and the result is the same as the last run.
+     *
+     * @return export mode
+     */
+    private static ExportMode getExportMode() {
+        if ("delta".equalsIgnoreCase(EXPORT_MODE)) {
+            return ExportMode.DELTA;
+        }
+        return SKIP_UNCHANGED_REPORTS ? ExportMode.SKIP_UNCHANGED : ExportMode.FULL;
+    }
+
+    /**
+     * Create the store used to share the metabase session with other executors. The client always keeps its
+     * own session between warm invocations, so by default nothing is shared. A session shared in S3 is kept
+     * under its own prefix and encrypted with METABASE_SESSION_KMS_KEY, which has to be set.
+     *
+     * @param s3Client client used to access the report bucket
+     * @return session store
+     */
+    private static SessionStore createSessionStore(S3Client s3Client) {
+        if ("s3".equalsIgnoreCase(METABASE_SESSION_STORE)) {
+            if (StringUtils.isBlank(METABASE_SESSION_KMS_KEY)) {
+                throw new IllegalStateException("METABASE_SESSION_KMS_KEY is required to share the metabase session in s3");
+            }
+            LOGGER.info("sharing metabase session using s3://{}/{}", BUCKET, SESSION_STORE_KEY);
+            return new S3SessionStore(s3Client, BUCKET, SESSION_STORE_KEY, METABASE_SESSION_KMS_KEY);
+        }
+        return SessionStore.none();
+    }
+
+    /**
+     * Determine which cards to run. A "cardIds" list in the invocation event takes priority, followed by the
+     * METABASE_CARD_IDS comma separated list and finally the single METABASE_CARD_ID.
+     *
+     * @param event lambda invocation event
+     * @return list of card ids to export
+     */
+    static List<String> getCardIds(Object event) {
+        if (event instanceof Map<?, ?> map && map.get(EVENT_CARD_IDS_FIELD) instanceof Collection<?> eventCardIds) {
+            return eventCardIds.stream().map(String::valueOf).map(String::trim).filter(StringUtils::isNotBlank).toList();
+        }
+
+        if (StringUtils.isNotBlank(METABASE_CARD_IDS)) {
+            return Arrays.stream(METABASE_CARD_IDS.split(",")).map(String::trim).filter(StringUtils::isNotBlank).toList();
+        }
+
+        return List.of(METABASE_CARD_ID);
+    }
+
+    /**
+     * Determine the template tag values to run the cards with. A "parameters" object in the invocation event
+     * takes priority over the METABASE_CARD_PARAMETERS JSON object.
+     *
+     * @param event lambda invocation event
+     * @return template tag names and values (ex: {"region":"CA"})
+     */
+    static Map<String, Object> getParameters(Object event) {
+        if (event instanceof Map<?, ?> map && map.get(EVENT_PARAMETERS_FIELD) instanceof Map<?, ?> eventParameters) {
+            Map<String, Object> parameters = new TreeMap<>();
+            eventParameters.forEach((name, value) -> parameters.put(String.valueOf(name), value));
+            return parameters;
+        }
+
+        if (StringUtils.isBlank(METABASE_CARD_PARAMETERS)) {
+            return Map.of();
+        }
+
+        try {
+            return OBJECT_MAPPER.readValue(METABASE_CARD_PARAMETERS, new TypeReference<>() {
+            });
+
+        } catch (JsonProcessingException e) {
+            LOGGER.error("failed to parse card parameters: {}", METABASE_CARD_PARAMETERS);
+            throw new RuntimeException(e);
+        }
+    }
+}
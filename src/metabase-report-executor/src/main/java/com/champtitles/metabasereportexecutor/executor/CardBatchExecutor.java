@@ -0,0 +1,312 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class CardBatchExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CardBatchExecutor.class.getName());
+    private static final double EXPORT_SHARE = 0.5;
+    private final MetabaseClient metabaseClient;
+    private final S3Writer s3Writer;
+    private final int parallelism;
+    private final ExportFormat exportFormat;
+    private final Compression compression;
+    private final ExportMode exportMode;
+    private final ResultCache resultCache;
+    private final MetricsLogger metricsLogger;
+    private final boolean transcodeToCsv;
+
+    /**
+     * @param metabaseClient logged in client shared by all card exports
+     * @param s3Writer       writer used to upload each report
+     * @param settings       parallelism, format, compression and mode of the exports
+     * @param resultCache    cache of query results shared by runs with the same parameters
+     * @param metricsLogger  logger of the latency and throughput of each card
+     */
+    public CardBatchExecutor(MetabaseClient metabaseClient, S3Writer s3Writer, ExportSettings settings, ResultCache resultCache,
+                             MetricsLogger metricsLogger) {
+        if (settings.exportMode() == ExportMode.DELTA && settings.exportFormat() == ExportFormat.XLSX) {
+            throw new IllegalArgumentException("delta exports require the csv or json export format");
+        }
+        this.metabaseClient = metabaseClient;
+        this.s3Writer = s3Writer;
+        this.parallelism = settings.parallelism();
+        this.exportFormat = settings.exportFormat();
+        this.compression = settings.compression();
+        this.exportMode = settings.exportMode();
+        this.resultCache = resultCache;
+        this.metricsLogger = metricsLogger;
+        this.transcodeToCsv = settings.transcodeToCsv() && settings.exportFormat() == ExportFormat.XLSX;
+    }
+
+    /**
+     * Export each card and upload it to S3, running up to the configured number of cards concurrently.
+     * A failing card does not stop the remaining cards from being processed.
+     *
+     * @param cardIds metabase cards to export
+     * @return result for each card in the same order as the given card ids
+     */
+    public List<CardResult> execute(List<String> cardIds) {
+        return execute(cardIds, Map.of());
+    }
+
+    /**
+     * Export each card with the given template tag values and upload it to S3, running up to the configured
+     * number of cards concurrently. A failing card does not stop the remaining cards from being processed.
+     *
+     * @param cardIds    metabase cards to export
+     * @param parameters template tag names and values applied to every card (ex: region=CA)
+     * @return result for each card in the same order as the given card ids
+     */
+    public List<CardResult> execute(List<String> cardIds, Map<String, Object> parameters) {
+        return execute(cardIds, parameters, Deadline.none());
+    }
+
+    /**
+     * Export each card with the given template tag values and upload it to S3 before the deadline. Metabase is
+     * given up to half of the time left when a card starts to begin returning its export, and the upload may use
+     * the rest. A card which cannot start or finish before the deadline fails without stopping the other cards.
+     *
+     * @param cardIds    metabase cards to export
+     * @param parameters template tag names and values applied to every card (ex: region=CA)
+     * @param deadline   deadline of the whole batch
+     * @return result for each card in the same order as the given card ids
+     */
+    public List<CardResult> execute(List<String> cardIds, Map<String, Object> parameters, Deadline deadline) {
+        if (cardIds.isEmpty()) {
+            return List.of();
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, cardIds.size()));
+        try {
+            List<Future<CardResult>> futures = new ArrayList<>();
+            for (String cardId : cardIds) {
+                futures.add(executorService.submit(() -> executeCard(cardId, parameters, deadline)));
+            }
+
+            List<CardResult> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                results.add(getResult(cardIds.get(i), futures.get(i)));
+            }
+            return results;
+
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Export a single card and upload it to S3, logging the time Metabase took to start returning the export,
+     * the time taken to stream it to S3 and the number of bytes exported as metrics
+     *
+     * @param cardId     metabase card to export
+     * @param parameters template tag names and values
+     * @param deadline   deadline of the whole batch
+     * @return result of the export
+     */
+    private CardResult executeCard(String cardId, Map<String, Object> parameters, Deadline deadline) {
+        long start = System.currentTimeMillis();
+        Path xlsxFile = null;
+        try {
+            deadline.check();
+            LOGGER.info("running query for card: {}", cardId);
+            Deadline exportDeadline = deadline.stage("export card " + cardId, EXPORT_SHARE);
+            Deadline uploadDeadline = deadline.stage("upload card " + cardId, 1);
+            CountingInputStream exportStream = new CountingInputStream(resultCache.getOrQuery(cardId, parameters, exportFormat, uploadDeadline,
+                    () -> metabaseClient.queryCardExportStream(cardId, exportFormat, parameters, exportDeadline)));
+            long queryMs = System.currentTimeMillis() - start;
+            String namePrefix = getNamePrefix(cardId, parameters);
+            CardResult result;
+            if (transcodeToCsv) {
+                // keep a local copy while uploading, as the workbook has to be read out of order to convert it
+                xlsxFile = Files.createTempFile(namePrefix + "-", "." + ExportFormat.XLSX.getExtension());
+                try (OutputStream xlsxCopy = new BufferedOutputStream(Files.newOutputStream(xlsxFile))) {
+                    result = upload(cardId, new ContentHash.TeeInputStream(exportStream, xlsxCopy), namePrefix, uploadDeadline);
+                }
+            } else {
+                result = upload(cardId, exportStream, namePrefix, uploadDeadline);
+            }
+            long durationMs = System.currentTimeMillis() - start;
+            long uploadMs = durationMs - queryMs;
+            LOGGER.info("finished processing card {} in {} ms", cardId, durationMs);
+            metricsLogger.metrics(cardId)
+                    .property("ExportMode", exportMode.name())
+                    .property("Unchanged", result.unchanged())
+                    .put("QueryLatency", queryMs, MetricsLogger.Unit.MILLISECONDS)
+                    .put("UploadDuration", uploadMs, MetricsLogger.Unit.MILLISECONDS)
+                    .put("ExportDuration", durationMs, MetricsLogger.Unit.MILLISECONDS)
+                    .put("ExportBytes", exportStream.getCount(), MetricsLogger.Unit.BYTES)
+                    .put("ExportThroughput", MetricsLogger.megabytesPerSecond(exportStream.getCount(), uploadMs), MetricsLogger.Unit.MEGABYTES_PER_SECOND)
+                    .put("ExportFailures", 0, MetricsLogger.Unit.COUNT)
+                    .emit();
+            if (xlsxFile != null && result.s3Key() != null) {
+                uploadCsvCopy(cardId, xlsxFile, result.s3Key(), uploadDeadline);
+            }
+            return result.withDurationMs(durationMs);
+
+        } catch (IOException e) {
+            return fail(cardId, start, new UncheckedIOException(e));
+
+        } catch (RuntimeException e) {
+            return fail(cardId, start, e);
+
+        } finally {
+            deleteQuietly(xlsxFile);
+        }
+    }
+
+    /**
+     * Upload an export according to the export mode
+     *
+     * @param cardId       metabase card being exported
+     * @param exportStream contents of the export
+     * @param namePrefix   file name prefix
+     * @param deadline     deadline of the upload
+     * @return result of the export, without its duration
+     */
+    private CardResult upload(String cardId, InputStream exportStream, String namePrefix, Deadline deadline) {
+        return switch (exportMode) {
+            case FULL -> CardResult.success(cardId, s3Writer.upload(exportStream, namePrefix, exportFormat, compression, deadline), 0);
+            case SKIP_UNCHANGED -> s3Writer.uploadIfChanged(exportStream, namePrefix, exportFormat, compression, deadline)
+                    .map(s3Key -> CardResult.success(cardId, s3Key, 0))
+                    .orElseGet(() -> CardResult.unchanged(cardId, 0));
+            case DELTA -> CardResult.delta(cardId, s3Writer.uploadDelta(exportStream, namePrefix, exportFormat, compression, deadline), 0);
+        };
+    }
+
+    /**
+     * Upload a CSV copy of an uploaded XLSX report. A failure is logged and counted but does not fail the card,
+     * as the report itself has already been uploaded and will be sent.
+     *
+     * @param cardId   metabase card being exported
+     * @param xlsxFile local copy of the report
+     * @param xlsxKey  s3 key of the report
+     * @param deadline deadline of the upload
+     */
+    private void uploadCsvCopy(String cardId, Path xlsxFile, String xlsxKey, Deadline deadline) {
+        long start = System.currentTimeMillis();
+        try {
+            String csvKey = s3Writer.uploadCsvCopy(xlsxFile, xlsxKey, compression, deadline);
+            long durationMs = System.currentTimeMillis() - start;
+            LOGGER.info("uploaded csv copy of card {} to {} in {} ms", cardId, csvKey, durationMs);
+            metricsLogger.metrics(cardId)
+                    .put("TranscodeDuration", durationMs, MetricsLogger.Unit.MILLISECONDS)
+                    .put("TranscodeFailures", 0, MetricsLogger.Unit.COUNT)
+                    .emit();
+
+        } catch (RuntimeException e) {
+            LOGGER.error("failed to upload csv copy of card {}", cardId, e);
+            metricsLogger.metrics(cardId)
+                    .property("Error", String.valueOf(e.getMessage()))
+                    .put("TranscodeFailures", 1, MetricsLogger.Unit.COUNT)
+                    .emit();
+        }
+    }
+
+    private CardResult fail(String cardId, long start, RuntimeException e) {
+        long durationMs = System.currentTimeMillis() - start;
+        LOGGER.error("failed to process card {} after {} ms", cardId, durationMs, e);
+        metricsLogger.metrics(cardId)
+                .property("Error", String.valueOf(e.getMessage()))
+                .put("ExportFailures", 1, MetricsLogger.Unit.COUNT)
+                .emit();
+        return CardResult.failure(cardId, durationMs, e);
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warn("unable to delete {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Reports run with parameters get a short hash of the parameters in their name, so that each set of
+     * parameters has its own reports and state
+     *
+     * @param cardId     metabase card to export
+     * @param parameters template tag names and values
+     * @return file name prefix (ex: card12 or card12-3a7bd3e2)
+     */
+    static String getNamePrefix(String cardId, Map<String, Object> parameters) {
+        if (parameters.isEmpty()) {
+            return "card" + cardId;
+        }
+        return "card" + cardId + "-" + ResultCache.hashParameters(parameters).substring(0, 8);
+    }
+
+    /**
+     * Wait for a card export to finish and return its result
+     *
+     * @param cardId metabase card being exported
+     * @param future pending export
+     * @return result of the export
+     */
+    private static CardResult getResult(String cardId, Future<CardResult> future) {
+        try {
+            return future.get();
+
+        } catch (ExecutionException e) {
+            return CardResult.failure(cardId, 0, e.getCause());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CardResult.failure(cardId, 0, e);
+        }
+    }
+
+    /**
+     * Counts the bytes read from an export
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
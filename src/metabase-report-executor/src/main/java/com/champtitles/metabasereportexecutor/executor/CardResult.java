@@ -0,0 +1,39 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+/**
+ * Outcome of exporting a single Metabase card
+ *
+ * @param cardId     metabase card which was queried
+ * @param success    whether the card was exported and uploaded
+ * @param unchanged  whether the upload was skipped because the data had not changed since the last run
+ * @param s3Key      key of the uploaded report (null on failure or when unchanged)
+ * @param durationMs time taken to export and upload the card
+ * @param error      failure message (null on success)
+ * @param delta      row counts when only changed rows were uploaded (null otherwise)
+ */
+public record CardResult(String cardId, boolean success, boolean unchanged, String s3Key, long durationMs, String error, DeltaSummary delta) {
+
+    public static CardResult success(String cardId, String s3Key, long durationMs) {
+        return new CardResult(cardId, true, false, s3Key, durationMs, null, null);
+    }
+
+    public static CardResult unchanged(String cardId, long durationMs) {
+        return new CardResult(cardId, true, true, null, durationMs, null, null);
+    }
+
+    public static CardResult delta(String cardId, DeltaSummary delta, long durationMs) {
+        return new CardResult(cardId, true, delta.s3Key() == null, delta.s3Key(), durationMs, null, delta);
+    }
+
+    public static CardResult failure(String cardId, long durationMs, Throwable error) {
+        return new CardResult(cardId, false, false, null, durationMs, String.valueOf(error.getMessage()), null);
+    }
+
+    /**
+     * @param durationMs time taken to export and upload the card
+     * @return copy of this result with the given duration
+     */
+    public CardResult withDurationMs(long durationMs) {
+        return new CardResult(cardId, success, unchanged, s3Key, durationMs, error, delta);
+    }
+}
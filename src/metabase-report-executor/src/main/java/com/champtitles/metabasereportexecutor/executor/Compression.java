@@ -0,0 +1,69 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression applied to an export while it is streamed to S3
+ */
+public enum Compression {
+    NONE("none", "", null),
+    GZIP("gzip", ".gz", "gzip"),
+    ZSTD("zstd", ".zst", "zstd");
+
+    private static final int GZIP_BUFFER_BYTES = 64 * 1024;
+    private final String value;
+    private final String extension;
+    private final String contentEncoding;
+
+    Compression(String value, String extension, String contentEncoding) {
+        this.value = value;
+        this.extension = extension;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return suffix added to the file extension (ex: .gz)
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return value of the Content-Encoding header (null when not compressed)
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Wrap a stream so that everything written to it is compressed. Closing the returned stream closes the
+     * given stream.
+     *
+     * @param outputStream stream receiving the compressed data
+     * @return stream to write uncompressed data to
+     * @throws IOException if the compressor could not be created
+     */
+    public OutputStream wrap(OutputStream outputStream) throws IOException {
+        return switch (this) {
+            case NONE -> outputStream;
+            case GZIP -> new GZIPOutputStream(outputStream, GZIP_BUFFER_BYTES);
+            case ZSTD -> new ZstdOutputStream(outputStream);
+        };
+    }
+
+    /**
+     * @param value compression name (ex: gzip)
+     * @return matching compression
+     */
+    public static Compression fromString(String value) {
+        return Arrays.stream(values())
+                .filter(compression -> compression.value.equalsIgnoreCase(value.trim()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("unsupported compression: " + value));
+    }
+}
@@ -0,0 +1,76 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import javax.net.ssl.SSLSession;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts HTTP requests and how many of them needed a new TLS handshake.
+ * <p>
+ * HttpClient does not expose its connection pool, so a request is counted as a new handshake when the TLS
+ * session of its response was created after the request was sent. Requests over plain HTTP are only counted
+ * as requests.
+ */
+public class ConnectionStats {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong newHandshakes = new AtomicLong();
+    private final AtomicLong reusedSessions = new AtomicLong();
+    private final AtomicLong http2Responses = new AtomicLong();
+
+    /**
+     * Record a completed request
+     *
+     * @param response     HTTP response
+     * @param sentAtMillis time the request was sent
+     */
+    public void record(HttpResponse<?> response, long sentAtMillis) {
+        requests.incrementAndGet();
+        if (response.version() == HttpClient.Version.HTTP_2) {
+            http2Responses.incrementAndGet();
+        }
+
+        Optional<SSLSession> sslSession = response.sslSession();
+        if (sslSession == null || sslSession.isEmpty()) {
+            return;
+        }
+        if (sslSession.get().getCreationTime() >= sentAtMillis) {
+            newHandshakes.incrementAndGet();
+        } else {
+            reusedSessions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reset all counters, for example at the start of each invocation
+     */
+    public void reset() {
+        requests.set(0);
+        newHandshakes.set(0);
+        reusedSessions.set(0);
+        http2Responses.set(0);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getNewHandshakes() {
+        return newHandshakes.get();
+    }
+
+    public long getReusedSessions() {
+        return reusedSessions.get();
+    }
+
+    public long getHttp2Responses() {
+        return http2Responses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getRequests() + " newHandshakes=" + getNewHandshakes() + " reusedSessions=" + getReusedSessions() + " http2Responses=" + getHttp2Responses();
+    }
+}
@@ -0,0 +1,140 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Hashes an export while it is being copied, so that a report whose data has not changed since the last run
+ * can be recognised without buffering it.
+ * <p>
+ * The hash is taken over the normalized content: CSV and JSON exports are hashed before compression, and for
+ * XLSX exports only the names and uncompressed contents of the workbook entries are hashed, skipping the
+ * document properties which hold the time the file was created.
+ */
+final class ContentHash {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentHash.class.getName());
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String XLSX_PROPERTIES_PREFIX = "docProps/";
+
+    private ContentHash() {
+    }
+
+    /**
+     * Copy an export to the given stream and hash its normalized content. Neither stream is closed.
+     *
+     * @param inputStream  contents of the export
+     * @param outputStream stream receiving an exact copy of the export
+     * @param exportFormat format of the export
+     * @return hex encoded SHA-256 hash, or null if the XLSX export could not be read as a workbook
+     * @throws IOException if the export could not be read or written
+     */
+    static String copy(InputStream inputStream, OutputStream outputStream, ExportFormat exportFormat) throws IOException {
+        MessageDigest messageDigest = createMessageDigest();
+        if (exportFormat != ExportFormat.XLSX) {
+            inputStream.transferTo(new DigestOutputStream(outputStream, messageDigest));
+            return HexFormat.of().formatHex(messageDigest.digest());
+        }
+
+        TeeInputStream teeInputStream = new TeeInputStream(inputStream, outputStream);
+        int entries;
+        try {
+            entries = hashZipEntries(new ZipInputStream(teeInputStream), messageDigest);
+        } catch (ZipException e) {
+            LOGGER.warn("unable to read xlsx entries, content will not be compared: {}", e.getMessage());
+            entries = 0;
+        }
+
+        // the central directory at the end of the file is not read by ZipInputStream but still has to be copied
+        teeInputStream.transferTo(OutputStream.nullOutputStream());
+        return entries > 0 ? HexFormat.of().formatHex(messageDigest.digest()) : null;
+    }
+
+    /**
+     * Hash the name and contents of each entry except the document properties
+     *
+     * @param zipInputStream workbook being read
+     * @param messageDigest  digest to update
+     * @return number of entries hashed
+     */
+    private static int hashZipEntries(ZipInputStream zipInputStream, MessageDigest messageDigest) throws IOException {
+        OutputStream digestOutputStream = new DigestOutputStream(OutputStream.nullOutputStream(), messageDigest);
+        int entries = 0;
+        ZipEntry zipEntry;
+        while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+            if (zipEntry.getName().startsWith(XLSX_PROPERTIES_PREFIX)) {
+                zipInputStream.transferTo(OutputStream.nullOutputStream());
+                continue;
+            }
+            messageDigest.update(zipEntry.getName().getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            zipInputStream.transferTo(digestOutputStream);
+            entries++;
+        }
+        return entries;
+    }
+
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * InputStream which writes every byte read from it to an OutputStream
+     */
+    static class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream outputStream;
+
+        TeeInputStream(InputStream inputStream, OutputStream outputStream) {
+            super(inputStream);
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                outputStream.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                outputStream.write(b, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int count = read(buffer, 0, buffer.length);
+            return Math.max(count, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
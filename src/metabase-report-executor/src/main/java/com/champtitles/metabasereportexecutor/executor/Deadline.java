@@ -0,0 +1,293 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of a stage of an invocation (ex: login, export, upload, email), used to derive the timeouts of
+ * the requests made during the stage and to stop work which can no longer finish in time.
+ * <p>
+ * An invocation deadline keeps back part of the time the Lambda has left, so that when a stage runs out of time
+ * there is still time to abort uploads and log what happened instead of being killed by the runtime.
+ */
+public final class Deadline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Deadline.class.getName());
+    private static final Deadline NONE = new Deadline("none", Instant.MIN, Instant.MAX, Instant.MAX);
+    private static final double INVOCATION_SHARE = 0.9;
+    private static final Duration MIN_TIMEOUT = Duration.ofMillis(1);
+    private static final ScheduledExecutorService TIMER = createTimer();
+    private final String stage;
+    private final Instant startedAt;
+    private final Instant expiresAt;
+    private final Instant reserveEndsAt;
+
+    private Deadline(String stage, Instant startedAt, Instant expiresAt, Instant reserveEndsAt) {
+        this.stage = stage;
+        this.startedAt = startedAt;
+        this.expiresAt = expiresAt;
+        this.reserveEndsAt = reserveEndsAt;
+    }
+
+    /**
+     * Create the single daemon thread which stops reads at their deadline, dropping cancelled timers at once
+     * so that streams which finish in time are not retained
+     *
+     * @return timer executor
+     */
+    private static ScheduledExecutorService createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "deadline-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * @return deadline which never expires
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * @param stage  name of the stage, for logging
+     * @param budget time from now the stage may take
+     * @return deadline of the stage
+     */
+    public static Deadline after(String stage, Duration budget) {
+        Instant now = Instant.now();
+        return new Deadline(stage, now, now.plus(budget), now.plus(budget));
+    }
+
+    /**
+     * Deadline of a Lambda invocation, keeping back a tenth of the time the invocation has left
+     *
+     * @param context lambda context (null when not running in Lambda)
+     * @return deadline of the invocation, or a deadline which never expires without a context
+     */
+    public static Deadline forInvocation(Context context) {
+        if (context == null) {
+            return NONE;
+        }
+        long remainingMillis = Math.max(0, context.getRemainingTimeInMillis());
+        Instant now = Instant.now();
+        return new Deadline("invocation", now, now.plusMillis((long) (remainingMillis * INVOCATION_SHARE)), now.plusMillis(remainingMillis));
+    }
+
+    /**
+     * Start a stage which may use a share of the time left before this deadline
+     *
+     * @param name  name of the stage, for logging
+     * @param share fraction of the remaining time given to the stage (0 to 1)
+     * @return deadline of the stage, never later than this deadline
+     */
+    public Deadline stage(String name, double share) {
+        if (!isBounded()) {
+            return new Deadline(name, Instant.now(), Instant.MAX, Instant.MAX);
+        }
+        Instant now = Instant.now();
+        return new Deadline(name, now, now.plusMillis((long) (remaining().toMillis() * share)), reserveEndsAt);
+    }
+
+    /**
+     * Deadline of cleaning up after this deadline has passed, such as aborting an upload. It ends with the time
+     * the invocation keeps back, rather than at this deadline.
+     *
+     * @param name name of the cleanup, for logging
+     * @return deadline of the cleanup, which is not bounded if this deadline is not
+     */
+    public Deadline reserve(String name) {
+        return new Deadline(name, Instant.now(), reserveEndsAt, reserveEndsAt);
+    }
+
+    /**
+     * @return false if this deadline never expires
+     */
+    public boolean isBounded() {
+        return !Instant.MAX.equals(expiresAt);
+    }
+
+    /**
+     * @return time left before the deadline, zero once it has passed
+     */
+    public Duration remaining() {
+        Instant now = Instant.now();
+        return now.isBefore(expiresAt) ? Duration.between(now, expiresAt) : Duration.ZERO;
+    }
+
+    /**
+     * @return true once the deadline has passed
+     */
+    public boolean isExpired() {
+        return !Instant.now().isBefore(expiresAt);
+    }
+
+    /**
+     * Limit a timeout to the time left before the deadline
+     *
+     * @param timeout configured timeout (null for no limit)
+     * @return the shorter of the timeout and the time left, at least one millisecond, or null if neither is limited
+     */
+    public Duration limit(Duration timeout) {
+        if (!isBounded()) {
+            return timeout;
+        }
+        Duration remaining = remaining();
+        Duration limited = timeout == null || remaining.compareTo(timeout) < 0 ? remaining : timeout;
+        return limited.compareTo(MIN_TIMEOUT) < 0 ? MIN_TIMEOUT : limited;
+    }
+
+    /**
+     * Throw if the deadline has passed, logging the stage, its budget and how far over it is
+     */
+    public void check() {
+        if (isExpired()) {
+            throw exceeded();
+        }
+    }
+
+    /**
+     * @return exception for this stage, after logging its budget and how far over it is
+     */
+    private DeadlineExceededException exceeded() {
+        long budgetMillis = Duration.between(startedAt, expiresAt).toMillis();
+        long overMillis = Math.max(0, Duration.between(expiresAt, Instant.now()).toMillis());
+        LOGGER.error("deadline exceeded stage={} budgetMs={} overMs={}", stage, budgetMillis, overMillis);
+        return new DeadlineExceededException(stage, budgetMillis);
+    }
+
+    /**
+     * Stop reading a stream at the deadline. The deadline is checked before each read, and a read which is still
+     * blocked when the deadline passes is stopped by closing the stream and interrupting the reading thread,
+     * so that a stalled download cannot outlast the deadline.
+     *
+     * @param inputStream stream to read
+     * @return stream which fails with {@link DeadlineExceededException} once the deadline has passed
+     */
+    public InputStream wrap(InputStream inputStream) {
+        if (!isBounded()) {
+            return inputStream;
+        }
+        return new DeadlineInputStream(inputStream);
+    }
+
+    /**
+     * @return name of the stage
+     */
+    public String getStage() {
+        return stage;
+    }
+
+    /**
+     * Stream which is closed by a timer when the deadline passes
+     */
+    private class DeadlineInputStream extends FilterInputStream {
+
+        private final Object lock = new Object();
+        private final ScheduledFuture<?> timer;
+        private Thread reader;
+        private volatile boolean expired;
+
+        DeadlineInputStream(InputStream inputStream) {
+            super(inputStream);
+            this.timer = TIMER.schedule(this::expire, remaining().toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int read() throws IOException {
+            beginRead();
+            try {
+                return checkAfterRead(super.read());
+            } catch (IOException e) {
+                throw checkAfterFailure(e);
+            } finally {
+                endRead();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            beginRead();
+            try {
+                return checkAfterRead(super.read(b, off, len));
+            } catch (IOException e) {
+                throw checkAfterFailure(e);
+            } finally {
+                endRead();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            timer.cancel(false);
+            super.close();
+        }
+
+        /**
+         * Close the stream underneath a blocked read. Closing unblocks S3 downloads, and the interrupt unblocks
+         * streams which only wait for more data, such as the HttpClient response body.
+         */
+        private void expire() {
+            synchronized (lock) {
+                expired = true;
+                if (reader != null) {
+                    reader.interrupt();
+                }
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOGGER.warn("unable to close stream at deadline of stage {}: {}", stage, e.getMessage());
+            }
+        }
+
+        private void beginRead() {
+            check();
+            synchronized (lock) {
+                reader = Thread.currentThread();
+            }
+        }
+
+        private void endRead() {
+            synchronized (lock) {
+                reader = null;
+                if (expired) {
+                    // clear the interrupt sent by the timer so that it does not affect later work on this thread
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        /**
+         * A stream closed by the timer can report the end of the data, which must not be mistaken for a
+         * complete export
+         */
+        private int checkAfterRead(int result) {
+            if (expired) {
+                throw exceeded();
+            }
+            return result;
+        }
+
+        private IOException checkAfterFailure(IOException e) {
+            if (expired) {
+                throw exceeded();
+            }
+            return e;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+/**
+ * Thrown when a stage of an invocation runs out of time, so that the work is stopped before the Lambda runtime
+ * kills the invocation
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    private final String stage;
+
+    /**
+     * @param stage        name of the stage which ran out of time
+     * @param budgetMillis time the stage was given
+     */
+    public DeadlineExceededException(String stage, long budgetMillis) {
+        super("deadline exceeded during " + stage + " after " + budgetMillis + " ms");
+        this.stage = stage;
+    }
+
+    /**
+     * @return name of the stage which ran out of time
+     */
+    public String getStage() {
+        return stage;
+    }
+}
@@ -0,0 +1,13 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+/**
+ * Outcome of uploading only the rows of a card which changed since the previous run
+ *
+ * @param s3Key     key of the uploaded delta (null when no rows were added or changed)
+ * @param rows      number of rows in the card result
+ * @param added     number of new or changed rows in the delta
+ * @param unchanged number of rows which were already in the previous run
+ * @param removed   number of rows from the previous run which are no longer in the card result
+ */
+public record DeltaSummary(String s3Key, long rows, long added, long unchanged, long removed) {
+}
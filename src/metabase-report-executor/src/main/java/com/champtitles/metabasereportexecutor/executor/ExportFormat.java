@@ -0,0 +1,47 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import java.util.Arrays;
+
+/**
+ * Formats which Metabase can export the results of a card in
+ * <p>
+ * metabase.com/docs/latest/api/card#post-apicardcard-idqueryexport-format
+ */
+public enum ExportFormat {
+    XLSX("xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"),
+    CSV("csv", "text/csv"),
+    JSON("json", "application/json");
+
+    private final String extension;
+    private final String contentType;
+
+    ExportFormat(String extension, String contentType) {
+        this.extension = extension;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return export format used in the Metabase API path, which is also used as the file extension
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return MIME type of the exported data
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @param value format name (ex: xlsx)
+     * @return matching export format
+     */
+    public static ExportFormat fromString(String value) {
+        return Arrays.stream(values())
+                .filter(format -> format.extension.equalsIgnoreCase(value.trim()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("unsupported export format: " + value));
+    }
+}
@@ -0,0 +1,19 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+/**
+ * How much of each card result is uploaded
+ */
+public enum ExportMode {
+    /**
+     * Upload the full result every run
+     */
+    FULL,
+    /**
+     * Upload the full result unless it is the same as the last run
+     */
+    SKIP_UNCHANGED,
+    /**
+     * Upload only the rows which are new or changed since the last run (CSV and JSON exports only)
+     */
+    DELTA
+}
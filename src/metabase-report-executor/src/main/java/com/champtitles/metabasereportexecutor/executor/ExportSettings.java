@@ -0,0 +1,50 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+/**
+ * Settings of how a {@link CardBatchExecutor} exports and uploads each card.
+ *
+ * @param parallelism    maximum number of cards to export at the same time (at least 1)
+ * @param exportFormat   format each card is exported in
+ * @param compression    compression applied to each export while it is uploaded
+ * @param exportMode     how much of each card result is uploaded
+ * @param transcodeToCsv whether to also upload a CSV copy of each XLSX report
+ */
+public record ExportSettings(int parallelism, ExportFormat exportFormat, Compression compression, ExportMode exportMode, boolean transcodeToCsv) {
+
+    public ExportSettings {
+        parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @param parallelism maximum number of cards to export at the same time
+     * @return settings which upload every card in full as an uncompressed XLSX report
+     */
+    public static ExportSettings of(int parallelism) {
+        return new ExportSettings(parallelism, ExportFormat.XLSX, Compression.NONE, ExportMode.FULL, false);
+    }
+
+    /**
+     * @param exportFormat format each card is exported in
+     * @param compression  compression applied to each export while it is uploaded
+     * @return copy of these settings with the given format and compression
+     */
+    public ExportSettings withFormat(ExportFormat exportFormat, Compression compression) {
+        return new ExportSettings(parallelism, exportFormat, compression, exportMode, transcodeToCsv);
+    }
+
+    /**
+     * @param exportMode how much of each card result is uploaded
+     * @return copy of these settings with the given mode
+     */
+    public ExportSettings withMode(ExportMode exportMode) {
+        return new ExportSettings(parallelism, exportFormat, compression, exportMode, transcodeToCsv);
+    }
+
+    /**
+     * @param transcodeToCsv whether to also upload a CSV copy of each XLSX report
+     * @return copy of these settings with the given transcoding
+     */
+    public ExportSettings withTranscodeToCsv(boolean transcodeToCsv) {
+        return new ExportSettings(parallelism, exportFormat, compression, exportMode, transcodeToCsv);
+    }
+}
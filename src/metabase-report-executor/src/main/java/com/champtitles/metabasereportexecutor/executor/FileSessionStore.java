@@ -0,0 +1,67 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.champtitles.metabasereportexecutor.executor.model.CachedSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * Stores the Metabase session as JSON in a local file
+ */
+public class FileSessionStore implements SessionStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSessionStore.class.getName());
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private final Path path;
+
+    /**
+     * @param path file used to store the session
+     */
+    public FileSessionStore(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public Optional<CachedSession> load() {
+        if (!Files.exists(path)) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(OBJECT_MAPPER.readValue(path.toFile(), CachedSession.class));
+
+        } catch (IOException e) {
+            LOGGER.warn("unable to read session from {}", path);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void save(CachedSession session) {
+        try {
+            // write to a temporary file first so readers never see a partially written session
+            Path tempFile = Files.createTempFile(path.toAbsolutePath().getParent(), "session", ".tmp");
+            OBJECT_MAPPER.writeValue(tempFile.toFile(), session);
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            LOGGER.warn("unable to write session to {}", path);
+        }
+    }
+
+    @Override
+    public void clear() {
+        try {
+            Files.deleteIfExists(path);
+
+        } catch (IOException e) {
+            LOGGER.warn("unable to delete session file {}", path);
+        }
+    }
+}
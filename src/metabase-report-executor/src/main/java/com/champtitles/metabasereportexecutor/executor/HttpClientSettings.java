@@ -0,0 +1,74 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Settings used to create the HttpClient which talks to Metabase.
+ * <p>
+ * Idle connections are kept open for the number of seconds in the jdk.httpclient.keepalive.timeout system
+ * property, which the JDK only reads once so it has to be set on the command line (JAVA_TOOL_OPTIONS).
+ *
+ * @param version         preferred HTTP protocol version (HTTP/2 falls back to HTTP/1.1 if the server does not support it)
+ * @param connectTimeout  maximum time to establish a connection (null for no limit)
+ * @param requestTimeout  maximum time to wait for the response headers of each request (null for no limit)
+ * @param executorThreads number of threads in the dedicated executor (0 to use the HttpClient default executor)
+ */
+public record HttpClientSettings(HttpClient.Version version, Duration connectTimeout, Duration requestTimeout, int executorThreads) {
+
+    /**
+     * @return settings matching the behaviour of a plain HTTP/1.1 HttpClient
+     */
+    public static HttpClientSettings defaults() {
+        return new HttpClientSettings(HttpClient.Version.HTTP_1_1, null, null, 0);
+    }
+
+    /**
+     * Create settings from configuration values
+     *
+     * @param version               HTTP_1_1 or HTTP_2
+     * @param connectTimeoutSeconds connect timeout in seconds (0 for no limit)
+     * @param requestTimeoutSeconds request timeout in seconds (0 for no limit)
+     * @param executorThreads       number of threads in the dedicated executor (0 to use the default executor)
+     * @return settings
+     */
+    public static HttpClientSettings of(String version, long connectTimeoutSeconds, long requestTimeoutSeconds, int executorThreads) {
+        return new HttpClientSettings(
+                HttpClient.Version.valueOf(version.trim().toUpperCase()),
+                connectTimeoutSeconds > 0 ? Duration.ofSeconds(connectTimeoutSeconds) : null,
+                requestTimeoutSeconds > 0 ? Duration.ofSeconds(requestTimeoutSeconds) : null,
+                Math.max(0, executorThreads));
+    }
+
+    /**
+     * @return a new HttpClient using these settings
+     */
+    public HttpClient createHttpClient() {
+        HttpClient.Builder builder = HttpClient.newBuilder().version(version);
+        if (connectTimeout != null) {
+            builder.connectTimeout(connectTimeout);
+        }
+        if (executorThreads > 0) {
+            builder.executor(createExecutor(executorThreads));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Create a fixed size executor of daemon threads so that it never keeps the JVM alive
+     *
+     * @param threads number of threads
+     * @return executor
+     */
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "metabase-http-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
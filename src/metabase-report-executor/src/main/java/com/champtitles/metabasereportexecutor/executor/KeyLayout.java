@@ -0,0 +1,56 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Layout of the S3 keys reports are uploaded to. Both layouts end with the same file name, with the time of
+ * the upload in UTC, so the notifier reads the card id and name prefix of a report the same way.
+ */
+public enum KeyLayout {
+    /**
+     * Date folders (ex: 2023/04/04/card12-2023-04-04T07-00-00.xlsx)
+     */
+    DATED("dated"),
+    /**
+     * Hive style partitions by report and date, which Athena and Glue can use without listing the bucket
+     * (ex: report=card12/dt=2023-04-04/card12-2023-04-04T07-00-00.xlsx)
+     */
+    HIVE("hive");
+
+    private static final DateTimeFormatter DATE_FOLDERS = DateTimeFormatter.ofPattern("yyyy/MM/dd").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH-mm-ss").withZone(ZoneOffset.UTC);
+    private final String value;
+
+    KeyLayout(String value) {
+        this.value = value;
+    }
+
+    /**
+     * @param namePrefix file name prefix
+     * @param extension  file extension (ex: csv.gz)
+     * @param time       time of the upload
+     * @return full s3 key of the report
+     */
+    public String getKey(String namePrefix, String extension, Instant time) {
+        String fileName = namePrefix + "-" + TIMESTAMP.format(time) + "." + extension;
+        return switch (this) {
+            case DATED -> DATE_FOLDERS.format(time) + "/" + fileName;
+            case HIVE -> "report=" + namePrefix + "/dt=" + DATE.format(time) + "/" + fileName;
+        };
+    }
+
+    /**
+     * @param value layout name (ex: hive)
+     * @return matching layout
+     */
+    public static KeyLayout fromString(String value) {
+        return Arrays.stream(values())
+                .filter(keyLayout -> keyLayout.value.equalsIgnoreCase(value.trim()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("unsupported key layout: " + value));
+    }
+}
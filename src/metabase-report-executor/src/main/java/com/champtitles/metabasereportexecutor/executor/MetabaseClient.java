@@ -8,51 +8,77 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-
-import static java.net.http.HttpClient.Version.HTTP_1_1;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class MetabaseClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(MetabaseClient.class.getName());
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final int MAX_ERROR_BODY_BYTES = 4096;
+    private static final Executor SESSION_STORE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "metabase-session-store");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final String baseUrl;
     private final String email;
-    private final String password;
+    private final Supplier<String> password;
     private final String deviceUuid;
     private final HttpClient httpClient;
-    private String sessionId;
+    private final Executor executor;
+    private final SessionStore sessionStore;
+    private final Duration sessionTtl;
+    private final Duration requestTimeout;
+    private final RetryPolicy retryPolicy;
+    private final ConnectionStats connectionStats = new ConnectionStats();
+    private volatile String sessionId;
+    private volatile Instant sessionExpiresAt = Instant.MIN;
+    private volatile Deadline deadline = Deadline.none();
+    private CompletableFuture<String> loginInProgress;
 
     /**
      * Create a MetabaseClient
      *
-     * @param baseUrl    URL of the Metabase server
-     * @param email      login email
-     * @param password   login password
-     * @param deviceUuid cookie to set on each request
+     * @param settings           server, login, session and retry settings
+     * @param httpClientSettings protocol version, timeouts and executor of the HttpClient
      */
-    public MetabaseClient(String baseUrl, String email, String password, String deviceUuid) {
-        this(baseUrl, email, password, deviceUuid, HttpClient.newBuilder().version(HTTP_1_1).build());
+    public MetabaseClient(MetabaseClientSettings settings, HttpClientSettings httpClientSettings) {
+        this(settings, httpClientSettings.createHttpClient(), httpClientSettings.requestTimeout());
     }
 
     /**
      * Create a MetabaseClient
      *
-     * @param baseUrl    URL of the Metabase server
-     * @param email      login email
-     * @param password   login password
-     * @param deviceUuid cookie to set on each request
-     * @param httpClient inject a HttpClient
-     */
-    MetabaseClient(String baseUrl, String email, String password, String deviceUuid, HttpClient httpClient) {
-        this.baseUrl = baseUrl;
-        this.email = email;
-        this.password = password;
-        this.deviceUuid = deviceUuid;
+     * @param settings       server, login, session and retry settings
+     * @param httpClient     inject a HttpClient
+     * @param requestTimeout maximum time to wait for each response (null for no limit)
+     */
+    MetabaseClient(MetabaseClientSettings settings, HttpClient httpClient, Duration requestTimeout) {
+        this.baseUrl = settings.baseUrl();
+        this.email = settings.email();
+        this.password = settings.password();
+        this.deviceUuid = settings.deviceUuid();
         this.httpClient = httpClient;
+        this.executor = httpClient.executor().orElse(SESSION_STORE_EXECUTOR);
+        this.sessionStore = settings.sessionStore();
+        this.sessionTtl = settings.sessionTtl();
+        this.requestTimeout = requestTimeout;
+        this.retryPolicy = settings.retryPolicy();
     }
 
     /**
@@ -64,19 +90,27 @@ public class MetabaseClient {
      * @return metabase session properties
      */
     public SessionPropertiesResponse getSessionProperties() {
-        HttpRequest httpRequest = HttpRequest
-                .newBuilder()
-                .uri(createUri("/api/session/properties"))
+        return join(getSessionPropertiesAsync());
+    }
+
+    /**
+     * Asynchronous version of {@link #getSessionProperties()}
+     *
+     * @return future of the metabase session properties
+     */
+    public CompletableFuture<SessionPropertiesResponse> getSessionPropertiesAsync() {
+        HttpRequest httpRequest = newRequest("/api/session/properties")
                 .GET()
                 .build();
-        String response = sendHttpRequestGetString(httpRequest, 200);
 
-        try {
-            return OBJECT_MAPPER.readValue(response, SessionPropertiesResponse.class);
-        } catch (JsonProcessingException e) {
-            LOGGER.error("failed to parse session properties response: {}", response);
-            throw new RuntimeException(e);
-        }
+        return retryPolicy.executeAsync("get session properties", () -> sendHttpRequestGetStringAsync(httpRequest, 200)).thenApply(response -> {
+            try {
+                return OBJECT_MAPPER.readValue(response, SessionPropertiesResponse.class);
+            } catch (JsonProcessingException e) {
+                LOGGER.error("failed to parse session properties response: {}", response);
+                throw new RuntimeException(e);
+            }
+        });
     }
 
     /**
@@ -87,19 +121,45 @@ public class MetabaseClient {
      * @param setupToken setup token obtained by querying the session properties API
      */
     public void completeInitialSetup(String setupToken) {
-        SetupRequest setupRequest = new SetupRequest(setupToken, email, password);
+        SetupRequest setupRequest = new SetupRequest(setupToken, email, password.get());
 
-        HttpRequest httpRequest = HttpRequest
-                .newBuilder()
-                .uri(createUri("/api/setup"))
+        HttpRequest httpRequest = newRequest("/api/setup")
                 .header("Content-Type", "application/json")
                 .header("Cookie", "metabase.DEVICE=" + deviceUuid)
                 .POST(createBody(setupRequest))
                 .build();
-        String response = sendHttpRequestGetString(httpRequest, 200);
+        String response = join(sendHttpRequestGetStringAsync(httpRequest, 200));
         LOGGER.info("setup response: {}", response);
     }
 
+    /**
+     * Return a session id, reusing the current session or one from the session store while it has not expired,
+     * and logging in only when no valid session is available
+     *
+     * @return session id (cookie) to be used for subsequent requests
+     */
+    public String getSession() {
+        return join(getSessionAsync());
+    }
+
+    /**
+     * Asynchronous version of {@link #getSession()}
+     *
+     * @return future of the session id
+     */
+    public CompletableFuture<String> getSessionAsync() {
+        if (hasValidSession()) {
+            LOGGER.info("reusing metabase session until {}", sessionExpiresAt);
+            return CompletableFuture.completedFuture(sessionId);
+        }
+
+        // the session store blocks on S3, so it runs on the client's executor instead of the common pool
+        return CompletableFuture.supplyAsync(this::loadStoredSession, executor)
+                .thenCompose(storedSessionId -> storedSessionId
+                        .map(CompletableFuture::completedFuture)
+                        .orElseGet(this::loginAndGetSessionAsync));
+    }
+
     /**
      * Log in to metabase with the configured email and password and store the session id
      * <p>
@@ -108,28 +168,57 @@ public class MetabaseClient {
      * @return session id (cookie) to be used for subsequent requests
      */
     public String loginAndGetSession() {
+        return join(loginAndGetSessionAsync());
+    }
+
+    /**
+     * Asynchronous version of {@link #loginAndGetSession()}. If a login is already in progress then its result
+     * is shared instead of logging in again.
+     *
+     * @return future of the session id
+     */
+    public CompletableFuture<String> loginAndGetSessionAsync() {
+        // the first call decrypts the password with KMS, which must not block other threads waiting for the lock
+        return startLogin(password.get());
+    }
+
+    /**
+     * Start logging in, unless a login is already in progress
+     *
+     * @param password login password
+     * @return future of the session id
+     */
+    private synchronized CompletableFuture<String> startLogin(String password) {
+        if (loginInProgress != null && !loginInProgress.isDone()) {
+            return loginInProgress;
+        }
+
         SessionRequest sessionRequest = new SessionRequest(email, password);
 
-        HttpRequest httpRequest = HttpRequest
-                .newBuilder()
-                .uri(createUri("/api/session"))
+        HttpRequest httpRequest = newRequest("/api/session")
                 .header("Content-Type", "application/json")
                 .header("Cookie", "metabase.DEVICE=" + deviceUuid)
                 .POST(createBody(sessionRequest))
                 .build();
-        String response = sendHttpRequestGetString(httpRequest, 200);
 
-        try {
-            SessionResponse sessionResponse = OBJECT_MAPPER.readValue(response, SessionResponse.class);
-            LOGGER.info("logged in successfully");
-            LOGGER.debug("session id: {}", sessionResponse.id());
-            sessionId = sessionResponse.id();
-            return sessionResponse.id();
-
-        } catch (JsonProcessingException e) {
-            LOGGER.error("failed to parse session properties response: {}", response);
-            throw new RuntimeException(e);
-        }
+        // saving the session blocks on the session store, so it runs on the client's executor instead of the
+        // HttpClient thread which completed the response
+        loginInProgress = retryPolicy.executeAsync("metabase login", () -> sendHttpRequestGetStringAsync(httpRequest, 200)).thenApplyAsync(response -> {
+            try {
+                SessionResponse sessionResponse = OBJECT_MAPPER.readValue(response, SessionResponse.class);
+                LOGGER.info("logged in successfully");
+                LOGGER.debug("session id: {}", sessionResponse.id());
+                sessionId = sessionResponse.id();
+                sessionExpiresAt = Instant.now().plus(sessionTtl);
+                sessionStore.save(new CachedSession(sessionId, sessionExpiresAt.toEpochMilli()));
+                return sessionResponse.id();
+
+            } catch (JsonProcessingException e) {
+                LOGGER.error("failed to parse session properties response: {}", response);
+                throw new RuntimeException(e);
+            }
+        }, executor);
+        return loginInProgress;
     }
 
     /**
@@ -142,31 +231,41 @@ public class MetabaseClient {
      * @return id of the created card
      */
     public String createCard(String name) {
+        return join(createCardAsync(name));
+    }
+
+    /**
+     * Asynchronous version of {@link #createCard(String)}
+     *
+     * @param name name of the card to create
+     * @return future of the id of the created card
+     */
+    public CompletableFuture<String> createCardAsync(String name) {
         if (StringUtils.isBlank(sessionId)) {
-            throw new RuntimeException("you must login before creating a card");
+            return CompletableFuture.failedFuture(new RuntimeException("you must login before creating a card"));
         }
 
         CreateCardRequest createCardRequest = new CreateCardRequest(name);
 
-        HttpRequest httpRequest = HttpRequest
-                .newBuilder()
-                .uri(createUri("/api/card"))
+        return sendHttpRequestWithSessionAsync(session -> newRequest("/api/card")
                 .header("Content-Type", "application/json")
                 .header("Cookie", "metabase.DEVICE=" + deviceUuid)
-                .header("X-Metabase-Session", sessionId)
+                .header("X-Metabase-Session", session)
                 .POST(createBody(createCardRequest))
-                .build();
-        String response = sendHttpRequestGetString(httpRequest, 202);
+                .build(), HttpResponse.BodyHandlers.ofString()).thenApply(httpResponse -> {
+            checkStatusCode(httpResponse, 202, httpResponse.body());
+            String response = httpResponse.body();
 
-        try {
-            CreateCardResponse createCardResponse = OBJECT_MAPPER.readValue(response, CreateCardResponse.class);
-            LOGGER.info("card created successfully: {}", createCardResponse.id());
-            return createCardResponse.id();
+            try {
+                CreateCardResponse createCardResponse = OBJECT_MAPPER.readValue(response, CreateCardResponse.class);
+                LOGGER.info("card created successfully: {}", createCardResponse.id());
+                return createCardResponse.id();
 
-        } catch (JsonProcessingException e) {
-            LOGGER.error("failed to parse create card response: {}", response);
-            throw new RuntimeException(e);
-        }
+            } catch (JsonProcessingException e) {
+                LOGGER.error("failed to parse create card response: {}", response);
+                throw new RuntimeException(e);
+            }
+        });
     }
 
     /**
@@ -178,20 +277,256 @@ public class MetabaseClient {
      * @return XLSX data
      */
     public byte[] queryCardGetXlsx(String cardId) {
+        return join(queryCardGetXlsxAsync(cardId));
+    }
+
+    /**
+     * Asynchronous version of {@link #queryCardGetXlsx(String)}
+     *
+     * @param cardId metabase card to query
+     * @return future of the XLSX data
+     */
+    public CompletableFuture<byte[]> queryCardGetXlsxAsync(String cardId) {
         if (StringUtils.isBlank(sessionId)) {
-            throw new RuntimeException("you must login before querying a card");
+            return CompletableFuture.failedFuture(new RuntimeException("you must login before querying a card"));
         }
 
-        HttpRequest httpRequest = HttpRequest
-                .newBuilder()
-                .uri(createUri("/api/card/" + cardId + "/query/xlsx"))
-                .header("X-Metabase-Session", sessionId)
-                .header("Cookie", "metabase.DEVICE=" + deviceUuid)
-                .POST(HttpRequest.BodyPublishers.noBody())
+        return retryPolicy.executeAsync("query card " + cardId, () -> sendHttpRequestWithSessionAsync(
+                session -> createQueryCardRequest(session, cardId, ExportFormat.XLSX, Map.of(), deadline), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(httpResponse -> {
+                    checkStatusCode(httpResponse, 200, httpResponse.body());
+                    LOGGER.info("query card response size in bytes={}", httpResponse.body().length);
+                    return httpResponse.body();
+                }));
+    }
+
+    /**
+     * Execute a query on a Metabase Card and return the results as a stream of XLSX data. The response body is
+     * read from the connection as the stream is consumed, so it is never held in memory all at once.
+     * The caller is responsible for closing the stream.
+     * <p>
+     * metabase.com/docs/latest/api/card#post-apicardcard-idqueryexport-format
+     *
+     * @param cardId metabase card to query
+     * @return stream of XLSX data
+     */
+    public InputStream queryCardGetXlsxStream(String cardId) {
+        return join(queryCardGetXlsxStreamAsync(cardId));
+    }
+
+    /**
+     * Asynchronous version of {@link #queryCardGetXlsxStream(String)}. The future completes as soon as the
+     * response headers have been received.
+     *
+     * @param cardId metabase card to query
+     * @return future of the stream of XLSX data
+     */
+    public CompletableFuture<InputStream> queryCardGetXlsxStreamAsync(String cardId) {
+        return queryCardExportStreamAsync(cardId, ExportFormat.XLSX);
+    }
+
+    /**
+     * Execute a query on a Metabase Card and return the results as a stream in the given export format.
+     * The caller is responsible for closing the stream.
+     * <p>
+     * metabase.com/docs/latest/api/card#post-apicardcard-idqueryexport-format
+     *
+     * @param cardId       metabase card to query
+     * @param exportFormat format of the exported data
+     * @return stream of exported data
+     */
+    public InputStream queryCardExportStream(String cardId, ExportFormat exportFormat) {
+        return join(queryCardExportStreamAsync(cardId, exportFormat));
+    }
+
+    /**
+     * Asynchronous version of {@link #queryCardExportStream(String, ExportFormat)}. The future completes as soon
+     * as the response headers have been received.
+     *
+     * @param cardId       metabase card to query
+     * @param exportFormat format of the exported data
+     * @return future of the stream of exported data
+     */
+    public CompletableFuture<InputStream> queryCardExportStreamAsync(String cardId, ExportFormat exportFormat) {
+        return queryCardExportStreamAsync(cardId, exportFormat, Map.of());
+    }
+
+    /**
+     * Execute a query on a Metabase Card with the given template tag values and return the results as a stream
+     * in the given export format. The caller is responsible for closing the stream.
+     * <p>
+     * metabase.com/docs/latest/api/card#post-apicardcard-idqueryexport-format
+     *
+     * @param cardId       metabase card to query
+     * @param exportFormat format of the exported data
+     * @param parameters   template tag names and values (ex: region=CA)
+     * @return stream of exported data
+     */
+    public InputStream queryCardExportStream(String cardId, ExportFormat exportFormat, Map<String, Object> parameters) {
+        return join(queryCardExportStreamAsync(cardId, exportFormat, parameters));
+    }
+
+    /**
+     * Asynchronous version of {@link #queryCardExportStream(String, ExportFormat, Map)}. The future completes as
+     * soon as the response headers have been received.
+     *
+     * @param cardId       metabase card to query
+     * @param exportFormat format of the exported data
+     * @param parameters   template tag names and values (ex: region=CA)
+     * @return future of the stream of exported data
+     */
+    public CompletableFuture<InputStream> queryCardExportStreamAsync(String cardId, ExportFormat exportFormat, Map<String, Object> parameters) {
+        return queryCardExportStreamAsync(cardId, exportFormat, parameters, deadline);
+    }
+
+    /**
+     * Execute a query on a Metabase Card with the given template tag values and return the results as a stream
+     * in the given export format, failing if Metabase has not started to respond before the deadline.
+     * The caller is responsible for closing the stream.
+     *
+     * @param cardId         metabase card to query
+     * @param exportFormat   format of the exported data
+     * @param parameters     template tag names and values (ex: region=CA)
+     * @param exportDeadline time by which the response headers must have been received
+     * @return stream of exported data
+     */
+    public InputStream queryCardExportStream(String cardId, ExportFormat exportFormat, Map<String, Object> parameters, Deadline exportDeadline) {
+        return join(queryCardExportStreamAsync(cardId, exportFormat, parameters, exportDeadline));
+    }
+
+    /**
+     * Asynchronous version of {@link #queryCardExportStream(String, ExportFormat, Map, Deadline)}. The future
+     * completes as soon as the response headers have been received.
+     *
+     * @param cardId         metabase card to query
+     * @param exportFormat   format of the exported data
+     * @param parameters     template tag names and values (ex: region=CA)
+     * @param exportDeadline time by which the response headers must have been received
+     * @return future of the stream of exported data
+     */
+    public CompletableFuture<InputStream> queryCardExportStreamAsync(String cardId, ExportFormat exportFormat, Map<String, Object> parameters, Deadline exportDeadline) {
+        if (StringUtils.isBlank(sessionId)) {
+            return CompletableFuture.failedFuture(new RuntimeException("you must login before querying a card"));
+        }
+
+        // only failures before the response body is returned are retried, a stream which fails while it is
+        // being read is not restarted
+        return retryPolicy.executeAsync("query card " + cardId, () -> sendHttpRequestWithSessionAsync(
+                session -> createQueryCardRequest(session, cardId, exportFormat, parameters, exportDeadline), HttpResponse.BodyHandlers.ofInputStream())
+                .thenApply(httpResponse -> {
+                    if (httpResponse.statusCode() != 200) {
+                        try (InputStream body = httpResponse.body()) {
+                            checkStatusCode(httpResponse, 200, new String(body.readNBytes(MAX_ERROR_BODY_BYTES)));
+                        } catch (IOException e) {
+                            LOGGER.error("failed to read error response body");
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    LOGGER.info("response content-length={}", httpResponse.headers().firstValueAsLong("Content-Length").orElse(-1));
+                    return httpResponse.body();
+                }));
+    }
+
+    /**
+     * Create the request used to export the results of a card
+     *
+     * @param session      session id
+     * @param cardId       metabase card to query
+     * @param exportFormat format of the exported data
+     * @param parameters   template tag names and values, sent as the request body when not empty
+     * @param deadline     deadline of the export
+     * @return HttpRequest
+     */
+    private HttpRequest createQueryCardRequest(String session, String cardId, ExportFormat exportFormat, Map<String, Object> parameters, Deadline deadline) {
+        HttpRequest.Builder builder = newRequest("/api/card/" + cardId + "/query/" + exportFormat.getExtension(), deadline)
+                .header("X-Metabase-Session", session)
+                .header("Cookie", "metabase.DEVICE=" + deviceUuid);
+
+        if (parameters.isEmpty()) {
+            return builder.POST(HttpRequest.BodyPublishers.noBody()).build();
+        }
+
+        CardQueryRequest cardQueryRequest = new CardQueryRequest(parameters.entrySet().stream()
+                .map(parameter -> CardQueryParameter.templateTag(parameter.getKey(), parameter.getValue()))
+                .toList());
+        return builder
+                .header("Content-Type", "application/json")
+                .POST(createBody(cardQueryRequest))
                 .build();
-        byte[] response = sendHttpRequestGetBytes(httpRequest, 200);
-        LOGGER.info("query card response size in bytes={}", response.length);
-        return response;
+    }
+
+    /**
+     * @return counts of requests and TLS handshakes made by this client
+     */
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
+    /**
+     * Limit every request made from now on to the given deadline. Each request times out when the deadline
+     * passes, and no request is started after it.
+     *
+     * @param deadline deadline of the current stage
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return true if there is a session which has not yet reached its TTL
+     */
+    private boolean hasValidSession() {
+        return StringUtils.isNotBlank(sessionId) && Instant.now().isBefore(sessionExpiresAt);
+    }
+
+    /**
+     * Use a session from the session store if it has not expired
+     *
+     * @return session id from the session store
+     */
+    private synchronized Optional<String> loadStoredSession() {
+        if (hasValidSession()) {
+            return Optional.of(sessionId);
+        }
+
+        Optional<CachedSession> cachedSession = sessionStore.load()
+                .filter(session -> StringUtils.isNotBlank(session.id()))
+                .filter(session -> Instant.now().isBefore(Instant.ofEpochMilli(session.expiresAtEpochMillis())));
+        cachedSession.ifPresent(session -> {
+            LOGGER.info("reusing metabase session from session store");
+            sessionId = session.id();
+            sessionExpiresAt = Instant.ofEpochMilli(session.expiresAtEpochMillis());
+        });
+        return cachedSession.map(CachedSession::id);
+    }
+
+    /**
+     * Start building a request to the given path, applying the request timeout if there is one
+     *
+     * @param path URL path relative to the Metabase server URL
+     * @return request builder
+     */
+    private HttpRequest.Builder newRequest(String path) {
+        return newRequest(path, deadline);
+    }
+
+    /**
+     * Start building a request to the given path which times out at the deadline, or after the request timeout
+     * if that is sooner
+     *
+     * @param path     URL path relative to the Metabase server URL
+     * @param deadline deadline of the current stage
+     * @return request builder
+     */
+    private HttpRequest.Builder newRequest(String path, Deadline deadline) {
+        deadline.check();
+        HttpRequest.Builder builder = HttpRequest.newBuilder().uri(createUri(path));
+        Duration timeout = deadline.limit(requestTimeout);
+        if (timeout != null) {
+            builder.timeout(timeout);
+        }
+        return builder;
     }
 
     /**
@@ -214,50 +549,118 @@ public class MetabaseClient {
      *
      * @param httpRequest        pre-created request to send
      * @param expectedStatusCode HTTP status code response expected
-     * @return HTTP response body as a string
+     * @return future of the HTTP response body as a string
      */
-    private String sendHttpRequestGetString(HttpRequest httpRequest, Integer expectedStatusCode) {
-        try {
-            LOGGER.info("sending HTTP {} request to {}", httpRequest.method(), httpRequest.uri());
-            HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+    private CompletableFuture<String> sendHttpRequestGetStringAsync(HttpRequest httpRequest, Integer expectedStatusCode) {
+        return sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            checkStatusCode(response, expectedStatusCode, response.body());
+            return response.body();
+        });
+    }
+
+    /**
+     * Send a request which requires a session. If Metabase rejects the session (for example because it expired
+     * or was reused from the session store after a restart) then log in again and retry the request once.
+     *
+     * @param httpRequest creates the request using the given session id
+     * @param bodyHandler handler for the response body
+     * @return future of the HTTP response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendHttpRequestWithSessionAsync(Function<String, HttpRequest> httpRequest, HttpResponse.BodyHandler<T> bodyHandler) {
+        String currentSessionId = sessionId;
 
-            if (response.statusCode() != expectedStatusCode) {
-                LOGGER.error("expected {} response but received {}", expectedStatusCode, response.statusCode());
-                LOGGER.error("response body: {}", response.body());
-                throw new RuntimeException("unexpected response status code from HTTP request");
+        return sendAsync(httpRequest.apply(currentSessionId), bodyHandler).thenCompose(response -> {
+            if (response.statusCode() != 401) {
+                return CompletableFuture.completedFuture(response);
             }
 
-            return response.body();
+            LOGGER.warn("metabase session was rejected, logging in again");
+            discardBody(response);
+            return refreshSessionAsync(currentSessionId).thenCompose(session -> sendAsync(httpRequest.apply(session), bodyHandler));
+        });
+    }
 
-        } catch (IOException | InterruptedException e) {
-            LOGGER.error("HTTP request failed");
-            throw new RuntimeException(e);
+    /**
+     * Replace a rejected session. If another request has already replaced it then that session is used instead.
+     *
+     * @param rejectedSessionId session id which Metabase rejected
+     * @return future of the new session id
+     */
+    private synchronized CompletableFuture<String> refreshSessionAsync(String rejectedSessionId) {
+        if (StringUtils.isNotBlank(sessionId) && !sessionId.equals(rejectedSessionId)) {
+            return CompletableFuture.completedFuture(sessionId);
         }
+
+        sessionId = null;
+        sessionExpiresAt = Instant.MIN;
+        sessionStore.clear();
+        return loginAndGetSessionAsync();
     }
 
     /**
-     * Send a HttpRequest, check the response status code, and return the response body as a byte array
+     * Send a HttpRequest without blocking the calling thread
      *
-     * @param httpRequest        pre-created request to send
-     * @param expectedStatusCode HTTP status code response expected
-     * @return HTTP response body as a byte array
+     * @param httpRequest pre-created request to send
+     * @param bodyHandler handler for the response body
+     * @return future of the HTTP response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest httpRequest, HttpResponse.BodyHandler<T> bodyHandler) {
+        LOGGER.info("sending HTTP {} request to {}", httpRequest.method(), httpRequest.uri());
+        long sentAtMillis = System.currentTimeMillis();
+        return httpClient.sendAsync(httpRequest, bodyHandler).whenComplete((response, e) -> {
+            if (e != null) {
+                LOGGER.error("HTTP request failed");
+            } else {
+                connectionStats.record(response, sentAtMillis);
+            }
+        });
+    }
+
+    /**
+     * Wait for a future to complete and return its result, rethrowing any failure as a RuntimeException
+     *
+     * @param future future to wait for
+     * @return result of the future
      */
-    private byte[] sendHttpRequestGetBytes(HttpRequest httpRequest, Integer expectedStatusCode) {
+    private static <T> T join(CompletableFuture<T> future) {
         try {
-            LOGGER.info("sending HTTP {} request to {}", httpRequest.method(), httpRequest.uri());
-            HttpResponse<byte[]> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofByteArray());
+            return future.join();
 
-            if (response.statusCode() != expectedStatusCode) {
-                LOGGER.error("expected {} response but received {}", expectedStatusCode, response.statusCode());
-                LOGGER.error("response body: {}", response.body());
-                throw new RuntimeException("unexpected response status code from HTTP request");
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
             }
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-            return response.body();
+    /**
+     * Throw an exception if the response status code was not what was expected
+     *
+     * @param response           HTTP response
+     * @param expectedStatusCode HTTP status code response expected
+     * @param body               response body to log on failure
+     */
+    private static void checkStatusCode(HttpResponse<?> response, Integer expectedStatusCode, Object body) {
+        if (response.statusCode() != expectedStatusCode) {
+            LOGGER.error("expected {} response but received {}", expectedStatusCode, response.statusCode());
+            LOGGER.error("response body: {}", body);
+            throw new MetabaseHttpException("unexpected response status code from HTTP request", response.statusCode());
+        }
+    }
 
-        } catch (IOException | InterruptedException e) {
-            LOGGER.error("HTTP request failed");
-            throw new RuntimeException(e);
+    /**
+     * Close the body of a response which is not going to be used so the connection can be reused
+     *
+     * @param response HTTP response
+     */
+    private static void discardBody(HttpResponse<?> response) {
+        if (response.body() instanceof InputStream body) {
+            try (body) {
+                body.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                LOGGER.debug("failed to discard response body", e);
+            }
         }
     }
 
@@ -0,0 +1,52 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Settings used to create a {@link MetabaseClient}, apart from the HttpClient which has its own
+ * {@link HttpClientSettings}.
+ *
+ * @param baseUrl      URL of the Metabase server
+ * @param email        login email
+ * @param password     supplies the login password when it is first needed
+ * @param deviceUuid   cookie to set on each request
+ * @param sessionStore shared store used to reuse a session between clients
+ * @param sessionTtl   how long a session is reused before logging in again
+ * @param retryPolicy  policy used to retry logging in and querying cards
+ */
+public record MetabaseClientSettings(String baseUrl, String email, Supplier<String> password, String deviceUuid, SessionStore sessionStore,
+                                     Duration sessionTtl, RetryPolicy retryPolicy) {
+
+    private static final Duration DEFAULT_SESSION_TTL = Duration.ofHours(12);
+
+    /**
+     * Create settings which do not share the session and never retry
+     *
+     * @param baseUrl    URL of the Metabase server
+     * @param email      login email
+     * @param password   supplies the login password when it is first needed
+     * @param deviceUuid cookie to set on each request
+     * @return settings
+     */
+    public static MetabaseClientSettings of(String baseUrl, String email, Supplier<String> password, String deviceUuid) {
+        return new MetabaseClientSettings(baseUrl, email, password, deviceUuid, SessionStore.none(), DEFAULT_SESSION_TTL, RetryPolicy.none());
+    }
+
+    /**
+     * @param sessionStore shared store used to reuse a session between clients
+     * @param sessionTtl   how long a session is reused before logging in again
+     * @return copy of these settings which caches the session
+     */
+    public MetabaseClientSettings withSessionStore(SessionStore sessionStore, Duration sessionTtl) {
+        return new MetabaseClientSettings(baseUrl, email, password, deviceUuid, sessionStore, sessionTtl, retryPolicy);
+    }
+
+    /**
+     * @param retryPolicy policy used to retry logging in and querying cards
+     * @return copy of these settings which retries transient failures
+     */
+    public MetabaseClientSettings withRetryPolicy(RetryPolicy retryPolicy) {
+        return new MetabaseClientSettings(baseUrl, email, password, deviceUuid, sessionStore, sessionTtl, retryPolicy);
+    }
+}
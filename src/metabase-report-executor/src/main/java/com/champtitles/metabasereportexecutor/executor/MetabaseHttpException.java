@@ -0,0 +1,25 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+/**
+ * Thrown when Metabase responds with a status code other than the one expected
+ */
+public class MetabaseHttpException extends RuntimeException {
+
+    private final int statusCode;
+
+    /**
+     * @param message    description of the failure
+     * @param statusCode HTTP status code of the response
+     */
+    public MetabaseHttpException(String message, int statusCode) {
+        super(message + ": " + statusCode);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return HTTP status code of the response
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,205 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes metrics as CloudWatch Embedded Metric Format (EMF) log lines. CloudWatch Logs turns each line into
+ * metrics without the Lambda making any calls to CloudWatch.
+ * <p>
+ * Lines are printed directly to stdout because EMF requires each log line to be a JSON object, which the
+ * SLF4J log format is not. Every metric is published per function, and per function and card when a card
+ * is given, so that alarms can use the totals and regressions can be traced to a card.
+ */
+public class MetricsLogger {
+
+    public static final String DEFAULT_NAMESPACE = "MetabaseReports";
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsLogger.class.getName());
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final AtomicBoolean COLD_START = new AtomicBoolean(true);
+    private static final String FUNCTION_DIMENSION = "FunctionName";
+    private static final String CARD_DIMENSION = "CardId";
+    private final String namespace;
+    private final String functionName;
+    private final PrintStream out;
+
+    /**
+     * @param namespace CloudWatch namespace of the metrics
+     */
+    public MetricsLogger(String namespace) {
+        this(namespace, System.getenv().getOrDefault("AWS_LAMBDA_FUNCTION_NAME", "local"), System.out);
+    }
+
+    /**
+     * @param namespace    CloudWatch namespace of the metrics (null to disable metrics)
+     * @param functionName value of the function dimension
+     * @param out          stream the metric lines are written to
+     */
+    public MetricsLogger(String namespace, String functionName, PrintStream out) {
+        this.namespace = namespace;
+        this.functionName = functionName;
+        this.out = out;
+    }
+
+    /**
+     * @return logger which drops all metrics
+     */
+    public static MetricsLogger disabled() {
+        return new MetricsLogger(null, null, null);
+    }
+
+    /**
+     * @return true the first time it is called in this JVM, which is during the first invocation of a new
+     * Lambda execution environment
+     */
+    public static boolean isColdStart() {
+        return COLD_START.getAndSet(false);
+    }
+
+    /**
+     * @return metrics of the whole invocation
+     */
+    public Metrics metrics() {
+        return new Metrics(null);
+    }
+
+    /**
+     * @param cardId metabase card the metrics are about
+     * @return metrics of one card
+     */
+    public Metrics metrics(String cardId) {
+        return new Metrics(cardId);
+    }
+
+    /**
+     * @return true if metrics are written
+     */
+    public boolean isEnabled() {
+        return namespace != null;
+    }
+
+    /**
+     * Throughput of a transfer, zero when it took no measurable time
+     *
+     * @param bytes      bytes transferred
+     * @param durationMs time taken
+     * @return megabytes per second
+     */
+    public static double megabytesPerSecond(long bytes, long durationMs) {
+        if (durationMs <= 0) {
+            return 0;
+        }
+        return bytes / (1024.0 * 1024.0) / (durationMs / 1000.0);
+    }
+
+    /**
+     * CloudWatch unit of a metric
+     */
+    public enum Unit {
+        MILLISECONDS("Milliseconds"),
+        BYTES("Bytes"),
+        COUNT("Count"),
+        MEGABYTES_PER_SECOND("Megabytes/Second"),
+        PERCENT("Percent");
+
+        private final String name;
+
+        Unit(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Values collected for one EMF log line
+     */
+    public class Metrics {
+
+        private final String cardId;
+        private final Map<String, Number> values = new LinkedHashMap<>();
+        private final Map<String, Unit> units = new LinkedHashMap<>();
+        private final Map<String, Object> properties = new LinkedHashMap<>();
+
+        private Metrics(String cardId) {
+            this.cardId = cardId;
+        }
+
+        /**
+         * @param name  metric name (ex: ExportDuration)
+         * @param value metric value
+         * @param unit  CloudWatch unit
+         * @return this
+         */
+        public Metrics put(String name, Number value, Unit unit) {
+            values.put(name, value);
+            units.put(name, unit);
+            return this;
+        }
+
+        /**
+         * Add a value which is searchable in CloudWatch Logs Insights but is not published as a metric
+         *
+         * @param name  property name
+         * @param value property value
+         * @return this
+         */
+        public Metrics property(String name, Object value) {
+            properties.put(name, value);
+            return this;
+        }
+
+        /**
+         * Write the metrics as one EMF log line
+         */
+        public void emit() {
+            if (!isEnabled() || values.isEmpty()) {
+                return;
+            }
+            try {
+                out.println(OBJECT_MAPPER.writeValueAsString(toJson(System.currentTimeMillis())));
+
+            } catch (JsonProcessingException e) {
+                LOGGER.error("failed to write metrics: {}", values.keySet(), e);
+            }
+        }
+
+        /**
+         * @param timestamp time of the metrics in epoch milliseconds
+         * @return EMF document
+         */
+        ObjectNode toJson(long timestamp) {
+            ObjectNode root = OBJECT_MAPPER.createObjectNode();
+            ObjectNode aws = root.putObject("_aws");
+            aws.put("Timestamp", timestamp);
+            ObjectNode directive = aws.putArray("CloudWatchMetrics").addObject();
+            directive.put("Namespace", namespace);
+            ArrayNode dimensions = directive.putArray("Dimensions");
+            dimensions.addArray().add(FUNCTION_DIMENSION);
+            if (cardId != null) {
+                dimensions.addArray().add(FUNCTION_DIMENSION).add(CARD_DIMENSION);
+            }
+            ArrayNode metrics = directive.putArray("Metrics");
+            units.forEach((name, unit) -> metrics.addObject().put("Name", name).put("Unit", unit.getName()));
+
+            root.put(FUNCTION_DIMENSION, functionName);
+            if (cardId != null) {
+                root.put(CARD_DIMENSION, cardId);
+            }
+            properties.forEach((name, value) -> root.set(name, OBJECT_MAPPER.valueToTree(value)));
+            values.forEach((name, value) -> root.set(name, OBJECT_MAPPER.valueToTree(value)));
+            return root;
+        }
+    }
+}
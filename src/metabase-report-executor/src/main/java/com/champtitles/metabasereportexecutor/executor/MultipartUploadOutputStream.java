@@ -0,0 +1,350 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OutputStream which uploads everything written to it to a single S3 object using fixed size parts.
+ * <p>
+ * Up to the configured number of parts are uploaded in parallel while the next part is being filled, so at most
+ * concurrency + 1 part buffers are held in memory and heap usage does not grow with the size of the object.
+ * A part which fails is retried on its own without restarting the upload.
+ * If the data fits in a single part it is uploaded with a plain PutObject request instead.
+ * Nothing is visible in the bucket until {@link #close()} is called, and {@link #abort()} discards
+ * any parts which have already been uploaded.
+ */
+class MultipartUploadOutputStream extends OutputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultipartUploadOutputStream.class.getName());
+    private static final Duration ABORT_WAIT = Duration.ofSeconds(60);
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+    private final String contentType;
+    private final String contentEncoding;
+    private final int partSizeBytes;
+    private final int concurrency;
+    private final RetryPolicy retryPolicy;
+    private final Deadline deadline;
+    private final BlockingQueue<byte[]> freeBuffers = new LinkedBlockingQueue<>();
+    private final List<Future<CompletedPart>> pendingParts = new ArrayList<>();
+    private ExecutorService executorService;
+    private int buffersAllocated;
+    private byte[] buffer;
+    private int position;
+    private long bytesWritten;
+    private String uploadId;
+    private boolean closed;
+
+    /**
+     * @param s3Client        client used to upload parts
+     * @param bucket          destination bucket
+     * @param key             destination key
+     * @param contentType     Content-Type of the object (null for the S3 default)
+     * @param contentEncoding Content-Encoding of the object (null if not compressed)
+     * @param partSizeBytes   size of each part (S3 requires at least 5 MB for all but the last part)
+     * @param concurrency     maximum number of parts uploaded at the same time
+     * @param retryPolicy     policy used to retry each request of the upload, so that a failed part is sent again on its own
+     * @param deadline        deadline of the upload, which limits the time each request may take
+     */
+    MultipartUploadOutputStream(S3Client s3Client, String bucket, String key, String contentType, String contentEncoding,
+                                int partSizeBytes, int concurrency, RetryPolicy retryPolicy, Deadline deadline) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.partSizeBytes = partSizeBytes;
+        this.concurrency = Math.max(1, concurrency);
+        this.retryPolicy = retryPolicy;
+        this.deadline = deadline;
+        this.buffer = new byte[partSizeBytes];
+        this.buffersAllocated = 1;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (position == buffer.length) {
+            submitBufferedPart();
+        }
+        buffer[position++] = (byte) b;
+        bytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (position == buffer.length) {
+                submitBufferedPart();
+            }
+            int count = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, count);
+            position += count;
+            bytesWritten += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Upload any remaining data, wait for all parts and complete the upload so the object becomes visible
+     * in the bucket. If the upload cannot be completed it is aborted.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        if (uploadId == null) {
+            closed = true;
+            LOGGER.info("uploading {} bytes to s3://{}/{} in a single request", position, bucket, key);
+            retryPolicy.execute("upload to s3://" + bucket + "/" + key, () -> s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .contentType(contentType)
+                            .contentEncoding(contentEncoding)
+                            .overrideConfiguration(createOverrideConfiguration())
+                            .build(),
+                    RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, position), position)));
+            return;
+        }
+
+        if (position > 0) {
+            submitBufferedPart();
+        }
+        List<CompletedPart> completedParts = new ArrayList<>();
+        for (Future<CompletedPart> pendingPart : pendingParts) {
+            completedParts.add(getPart(pendingPart));
+        }
+        executorService.shutdown();
+
+        try {
+            retryPolicy.execute("completing upload to s3://" + bucket + "/" + key, () -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .overrideConfiguration(createOverrideConfiguration())
+                    .build()));
+
+        } catch (RuntimeException e) {
+            // the parts are only discarded by an abort, otherwise they stay in the bucket and are billed
+            try {
+                abort();
+            } catch (RuntimeException abortException) {
+                e.addSuppressed(abortException);
+            }
+            throw e;
+        }
+        closed = true;
+        LOGGER.info("completed multipart upload of {} bytes in {} parts to s3://{}/{}", bytesWritten, completedParts.size(), bucket, key);
+    }
+
+    /**
+     * Discard the upload so that no object or orphaned parts are left in the bucket. Parts which are still
+     * uploading are cancelled first so that none of them complete after the upload has been aborted.
+     * <p>
+     * The upload may be aborted because its deadline has passed, so the abort uses the time the invocation keeps
+     * back instead: half of it to wait for cancelled parts and the rest to send, and retry, the abort. An upload
+     * which still cannot be aborted is removed by the bucket's lifecycle rule for incomplete uploads.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (uploadId != null) {
+            LOGGER.warn("aborting multipart upload to s3://{}/{}", bucket, key);
+            Deadline abortDeadline = deadline.reserve("abort upload to s3://" + bucket + "/" + key);
+            Duration wait = abortDeadline.isBounded() ? abortDeadline.remaining().dividedBy(2) : ABORT_WAIT;
+            executorService.shutdownNow();
+            try {
+                if (!executorService.awaitTermination(wait.toMillis(), TimeUnit.MILLISECONDS)) {
+                    LOGGER.warn("parts still uploading to s3://{}/{} after {} ms", bucket, key, wait.toMillis());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            retryPolicy.execute("abort of upload to s3://" + bucket + "/" + key, () -> s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .overrideConfiguration(AwsRequestOverrideConfiguration.builder()
+                            .apiCallTimeout(abortDeadline.limit(null))
+                            .putExecutionAttribute(RetryPolicy.RETRIED_BY_POLICY, true)
+                            .build())
+                    .build()));
+        }
+    }
+
+    /**
+     * @return total number of bytes written to the stream
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Hand the buffer to a background upload as the next part, starting the multipart upload if needed,
+     * then continue writing into a free buffer
+     */
+    private void submitBufferedPart() {
+        deadline.check();
+        if (uploadId == null) {
+            uploadId = retryPolicy.execute("start of upload to s3://" + bucket + "/" + key, () -> s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType(contentType)
+                    .contentEncoding(contentEncoding)
+                    .overrideConfiguration(createOverrideConfiguration())
+                    .build())).uploadId();
+            executorService = createExecutor(concurrency);
+            LOGGER.info("started multipart upload to s3://{}/{} with {} concurrent parts", bucket, key, concurrency);
+        }
+        throwIfAnyPartFailed();
+
+        int partNumber = pendingParts.size() + 1;
+        byte[] partBuffer = buffer;
+        int partLength = position;
+        pendingParts.add(executorService.submit(() -> {
+            try {
+                return uploadPart(partNumber, partBuffer, partLength);
+            } finally {
+                freeBuffers.add(partBuffer);
+            }
+        }));
+
+        buffer = nextBuffer();
+        position = 0;
+    }
+
+    /**
+     * Upload a single part, retrying it on failure. Only the failed part is sent again, the parts which have
+     * already been uploaded are kept.
+     *
+     * @param partNumber part number starting from 1
+     * @param data       part data
+     * @param length     number of bytes of data to upload
+     * @return completed part
+     */
+    private CompletedPart uploadPart(int partNumber, byte[] data, int length) {
+        UploadPartResponse uploadPartResponse = retryPolicy.execute("upload of part " + partNumber + " of s3://" + bucket + "/" + key,
+                () -> s3Client.uploadPart(UploadPartRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .overrideConfiguration(createOverrideConfiguration())
+                        .build(), RequestBody.fromInputStream(new ByteArrayInputStream(data, 0, length), length)));
+        LOGGER.debug("uploaded part {} ({} bytes) to s3://{}/{}", partNumber, length, bucket, key);
+        return CompletedPart.builder().partNumber(partNumber).eTag(uploadPartResponse.eTag()).build();
+    }
+
+    /**
+     * Limit a request to the time left before the deadline, so that a request which hangs fails while there is
+     * still time to abort the upload, and leave retrying it to the retry policy
+     *
+     * @return request configuration
+     */
+    private AwsRequestOverrideConfiguration createOverrideConfiguration() {
+        deadline.check();
+        return AwsRequestOverrideConfiguration.builder()
+                .apiCallTimeout(deadline.limit(null))
+                .putExecutionAttribute(RetryPolicy.RETRIED_BY_POLICY, true)
+                .build();
+    }
+
+    /**
+     * Allocate a new buffer until the limit is reached, then wait for an uploaded part to release one
+     *
+     * @return empty buffer
+     */
+    private byte[] nextBuffer() {
+        byte[] freeBuffer = freeBuffers.poll();
+        if (freeBuffer != null) {
+            return freeBuffer;
+        }
+        if (buffersAllocated <= concurrency) {
+            buffersAllocated++;
+            return new byte[partSizeBytes];
+        }
+
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stop writing as soon as a part has failed instead of waiting until the stream is closed
+     */
+    private void throwIfAnyPartFailed() {
+        for (Future<CompletedPart> pendingPart : pendingParts) {
+            if (pendingPart.isDone()) {
+                getPart(pendingPart);
+            }
+        }
+    }
+
+    /**
+     * Wait for a part to finish uploading
+     *
+     * @param pendingPart part being uploaded
+     * @return completed part
+     */
+    private static CompletedPart getPart(Future<CompletedPart> pendingPart) {
+        try {
+            return pendingPart.get();
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException(e.getCause());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Create a fixed size executor of daemon threads used to upload parts
+     *
+     * @param threads number of threads
+     * @return executor
+     */
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "s3-upload-part-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+    }
+}
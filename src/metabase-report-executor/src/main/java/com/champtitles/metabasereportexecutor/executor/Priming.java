@@ -0,0 +1,141 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.champtitles.metabasereportexecutor.executor.model.CardQueryRequest;
+import com.champtitles.metabasereportexecutor.executor.model.SessionResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Runs the request hot paths once on small in-memory data during initialization, so that their classes are
+ * loaded and initialized before the first invocation instead of during it. Nothing is sent over the network:
+ * uploads go to an S3 client which discards them and HTTP requests are only built.
+ * <p>
+ * Lambda runs initialization with a full CPU whatever the memory size, so the same work is cheaper there
+ * than in the first request.
+ */
+public final class Priming {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Priming.class.getName());
+    private static final String CSV = "id,customer,amount\n1,customer 1,10.5\n2,customer 2,20.25\n";
+    private static final String SHEET = "<worksheet><sheetData><row r=\"1\"><c r=\"A1\" t=\"s\"><v>0</v></c></row>"
+            + "<row r=\"2\"><c r=\"A2\"><v>1</v></c></row></sheetData></worksheet>";
+
+    private Priming() {
+    }
+
+    /**
+     * Prime the hot paths. A failure is only logged, as priming never changes what a request does.
+     *
+     * @return time spent priming in milliseconds
+     */
+    public static long prime() {
+        long start = System.currentTimeMillis();
+        try {
+            primePaths();
+
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("priming failed: {}", e.getMessage());
+        }
+        long durationMs = System.currentTimeMillis() - start;
+        LOGGER.info("primed request paths in {} ms", durationMs);
+        return durationMs;
+    }
+
+    /**
+     * Run each hot path once
+     *
+     * @throws IOException if a path failed on the priming data
+     */
+    static void primePaths() throws IOException {
+        primeJson();
+        primeUpload();
+        primeXlsx();
+    }
+
+    /**
+     * Metabase request and response bodies, HTTP request building and metric lines
+     */
+    private static void primeJson() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.readValue("{\"id\":\"priming\"}", SessionResponse.class);
+        objectMapper.writeValueAsString(new CardQueryRequest(List.of()));
+        HttpRequest.newBuilder(URI.create("http://localhost/api/card/0/query/xlsx"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{}"))
+                .build();
+
+        new MetricsLogger("Priming", "priming", new PrintStream(OutputStream.nullOutputStream()))
+                .metrics("0")
+                .property("Priming", true)
+                .put("ExportBytes", CSV.length(), MetricsLogger.Unit.BYTES)
+                .emit();
+    }
+
+    /**
+     * Streaming, hashing and compressing an export into S3 requests, for each compression
+     */
+    private static void primeUpload() {
+        S3Writer s3Writer = new S3Writer("priming", new DiscardingS3Client(), S3WriterSettings.defaults()
+                .withParts(5 * 1024 * 1024, 1)
+                .withRetryPolicy(RetryPolicy.none()));
+        for (Compression compression : Compression.values()) {
+            s3Writer.upload(new ByteArrayInputStream(CSV.getBytes(StandardCharsets.UTF_8)), "card0", ExportFormat.CSV, compression);
+        }
+    }
+
+    /**
+     * Reading a workbook as a stream, as the notifier does before sending a report
+     */
+    private static void primeXlsx() throws IOException {
+        ByteArrayOutputStream xlsxBody = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(xlsxBody)) {
+            zipOutputStream.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+            zipOutputStream.write(SHEET.getBytes(StandardCharsets.UTF_8));
+        }
+        XlsxInspector.inspect(xlsxBody.toByteArray());
+    }
+
+    /**
+     * S3 client which reads each request body, as the SDK would when sending it, and returns an empty response
+     */
+    private static class DiscardingS3Client implements S3Client {
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest putObjectRequest, RequestBody requestBody) {
+            try (InputStream inputStream = requestBody.contentStreamProvider().newStream()) {
+                inputStream.transferTo(OutputStream.nullOutputStream());
+
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return PutObjectResponse.builder().eTag("priming").build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Caches card exports in S3, keyed by card id and a hash of the query parameters, so that the same query
+ * requested again within the TTL is read back from S3 instead of being run again by Metabase.
+ * <p>
+ * A result which is not cached is copied into the cache while it is being read, so the query only runs once.
+ * The cached copy is only kept if the whole result was read. Cache failures are logged and otherwise ignored.
+ */
+public class ResultCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class.getName());
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+    private static final String CACHE_PREFIX = S3Writer.STATE_PREFIX + "cache/";
+    private static final int UPLOAD_CONCURRENCY = 1;
+    private final S3Client s3Client;
+    private final String bucket;
+    private final Duration ttl;
+    private final int partSizeBytes;
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * @param s3Client      client used to read and write cached results
+     * @param bucket        bucket to keep cached results in
+     * @param ttl           how long a cached result is used for (zero to disable the cache)
+     * @param partSizeBytes size of each part of a cached result, the same as the reports are uploaded with
+     * @param retryPolicy   policy used to retry each upload request, shared with the report uploads
+     */
+    public ResultCache(S3Client s3Client, String bucket, Duration ttl, int partSizeBytes, RetryPolicy retryPolicy) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.ttl = ttl;
+        this.partSizeBytes = partSizeBytes;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return cache which always runs the query
+     */
+    public static ResultCache disabled() {
+        return new ResultCache(null, null, Duration.ZERO, 0, RetryPolicy.none());
+    }
+
+    /**
+     * @return number of part buffers each card holds while its result is being cached, zero if the cache is disabled
+     */
+    public int getPartBuffers() {
+        return isEnabled() ? UPLOAD_CONCURRENCY + 1 : 0;
+    }
+
+    /**
+     * Return the cached result of a query if it is younger than the TTL, otherwise run the query and cache its
+     * result as it is read
+     *
+     * @param cardId       metabase card being queried
+     * @param parameters   query parameters
+     * @param exportFormat format of the export
+     * @param deadline     deadline of caching the result, which limits the time each upload request may take
+     * @param query        runs the query against Metabase
+     * @return stream of exported data
+     */
+    public InputStream getOrQuery(String cardId, Map<String, Object> parameters, ExportFormat exportFormat, Deadline deadline,
+                                  Supplier<InputStream> query) {
+        if (!isEnabled()) {
+            return query.get();
+        }
+
+        String key = getKey(cardId, parameters, exportFormat);
+        Optional<InputStream> cachedResult = getCachedResult(key);
+        if (cachedResult.isPresent()) {
+            LOGGER.info("using cached result for card {} from s3://{}/{}", cardId, bucket, key);
+            return cachedResult.get();
+        }
+
+        LOGGER.info("caching result for card {} to s3://{}/{}", cardId, bucket, key);
+        return new CachingInputStream(query.get(), new MultipartUploadOutputStream(s3Client, bucket, key,
+                exportFormat.getContentType(), null, partSizeBytes, UPLOAD_CONCURRENCY, retryPolicy, deadline), key);
+    }
+
+    private boolean isEnabled() {
+        return !ttl.isZero() && !ttl.isNegative();
+    }
+
+    /**
+     * @param key key of the cached result
+     * @return stream of the cached result, or empty if there is none or it is older than the TTL
+     */
+    private Optional<InputStream> getCachedResult(String key) {
+        try {
+            HeadObjectResponse headObjectResponse = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build());
+            if (headObjectResponse.lastModified().plus(ttl).isBefore(Instant.now())) {
+                LOGGER.info("cached result s3://{}/{} is older than {}", bucket, key, ttl);
+                return Optional.empty();
+            }
+
+            return Optional.of(s3Client.getObject(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build()));
+
+        } catch (NoSuchKeyException e) {
+            return Optional.empty();
+
+        } catch (SdkException e) {
+            // HEAD reports a missing object as a 404 without the NoSuchKey error code
+            LOGGER.info("no cached result at s3://{}/{}: {}", bucket, key, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @param cardId       metabase card being queried
+     * @param parameters   query parameters
+     * @param exportFormat format of the export
+     * @return key of the cached result (ex: _state/cache/card12/3a7bd3e2....csv)
+     */
+    static String getKey(String cardId, Map<String, Object> parameters, ExportFormat exportFormat) {
+        return CACHE_PREFIX + "card" + cardId + "/" + hashParameters(parameters) + "." + exportFormat.getExtension();
+    }
+
+    /**
+     * Hash the canonical JSON form of the parameters, with map keys sorted, so that the same parameters
+     * always give the same hash regardless of their order
+     *
+     * @param parameters query parameters
+     * @return hex encoded SHA-256 hash
+     */
+    public static String hashParameters(Map<String, Object> parameters) {
+        try {
+            byte[] canonicalJson = OBJECT_MAPPER.writeValueAsString(new TreeMap<>(parameters)).getBytes(StandardCharsets.UTF_8);
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(canonicalJson));
+
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            LOGGER.error("failed to hash parameters {}", parameters);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * InputStream which copies everything read from it into the cache. The cached copy is completed when the
+     * stream is closed after being read to the end, and discarded otherwise.
+     */
+    private class CachingInputStream extends FilterInputStream {
+
+        private final MultipartUploadOutputStream cacheStream;
+        private final String key;
+        private boolean caching = true;
+        private boolean endOfStream;
+
+        CachingInputStream(InputStream inputStream, MultipartUploadOutputStream cacheStream, String key) {
+            super(inputStream);
+            this.cacheStream = cacheStream;
+            this.key = key;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                endOfStream = true;
+            } else if (caching) {
+                try {
+                    cacheStream.write(b);
+                } catch (IOException | RuntimeException e) {
+                    discard(e);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count == -1) {
+                endOfStream = true;
+            } else if (caching && count > 0) {
+                try {
+                    cacheStream.write(b, off, count);
+                } catch (IOException | RuntimeException e) {
+                    discard(e);
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int count = read(buffer, 0, buffer.length);
+            return Math.max(count, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                finishCaching();
+            }
+        }
+
+        /**
+         * Complete the cached copy if the whole result was read, otherwise discard it
+         */
+        private void finishCaching() {
+            if (!caching) {
+                return;
+            }
+            caching = false;
+
+            try {
+                if (endOfStream) {
+                    cacheStream.close();
+                } else {
+                    LOGGER.info("result was not read to the end, not caching s3://{}/{}", bucket, key);
+                    cacheStream.abort();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("unable to cache result to s3://{}/{}: {}", bucket, key, e.getMessage());
+            }
+        }
+
+        private void discard(Exception e) {
+            LOGGER.warn("unable to cache result to s3://{}/{}: {}", bucket, key, e.getMessage());
+            caching = false;
+            try {
+                cacheStream.abort();
+            } catch (RuntimeException abortException) {
+                LOGGER.warn("unable to abort caching s3://{}/{}", bucket, key);
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.retry.AwsRetryPolicy;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.retry.RetryPolicyContext;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Retries transient failures with exponential backoff and full jitter: the delay before attempt n is a random
+ * time between zero and min(maxDelay, baseDelay * 2^(n-1)), so clients which failed together do not all retry
+ * at the same moment.
+ * <p>
+ * Only failures which are likely to succeed when repeated are retried: 429, 502, 503 and 504 responses from
+ * Metabase or S3, S3 throttling, and connections which were refused, reset or timed out. A request which ran out
+ * of its whole time budget is not retried.
+ * No retry is started which would not finish waiting before the deadline, which is set from the time the
+ * Lambda has left for each invocation.
+ * <p>
+ * A policy only retries work which can safely be repeated as a whole, so a streaming upload retries each
+ * of its parts rather than being restarted. S3 requests retried by a policy are marked with
+ * {@link #RETRIED_BY_POLICY}, and S3 clients created with {@link #sdkRetryPolicy()} leave them to the policy.
+ */
+public class RetryPolicy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class.getName());
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final Duration DEFAULT_BASE_DELAY = Duration.ofMillis(200);
+    private static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(10);
+    private static final Set<Integer> RETRYABLE_STATUS_CODES = Set.of(429, 502, 503, 504);
+    static final ExecutionAttribute<Boolean> RETRIED_BY_POLICY = new ExecutionAttribute<>("RetriedByPolicy");
+    private final int maxAttempts;
+    private final Duration baseDelay;
+    private final Duration maxDelay;
+    private final DoubleSupplier random;
+    private final AtomicLong retries = new AtomicLong();
+    private volatile Instant deadline = Instant.MAX;
+
+    /**
+     * @param maxAttempts number of times an action is attempted before its failure is returned
+     * @param baseDelay   upper bound of the delay before the first retry
+     * @param maxDelay    upper bound of the delay before any retry
+     */
+    public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay) {
+        this(maxAttempts, baseDelay, maxDelay, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, DoubleSupplier random) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * @return policy making 3 attempts starting with a delay of up to 200 ms
+     */
+    public static RetryPolicy defaults() {
+        return new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @return policy which never retries
+     */
+    public static RetryPolicy none() {
+        return new RetryPolicy(1, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * SDK retry policy of S3 clients used with this class. Requests marked with {@link #RETRIED_BY_POLICY} are
+     * never retried by the SDK, so that their attempts are not multiplied by the SDK's own retries, and all other
+     * requests are retried as by default.
+     *
+     * @return retry policy to set on an S3 client
+     */
+    public static software.amazon.awssdk.core.retry.RetryPolicy sdkRetryPolicy() {
+        software.amazon.awssdk.core.retry.RetryPolicy defaultPolicy = AwsRetryPolicy.defaultRetryPolicy();
+        RetryCondition defaultCondition = defaultPolicy.retryCondition();
+        return defaultPolicy.toBuilder()
+                .retryCondition(new RetryCondition() {
+                    @Override
+                    public boolean shouldRetry(RetryPolicyContext context) {
+                        return !Boolean.TRUE.equals(context.executionAttributes().getAttribute(RETRIED_BY_POLICY))
+                                && defaultCondition.shouldRetry(context);
+                    }
+
+                    @Override
+                    public void requestWillNotBeRetried(RetryPolicyContext context) {
+                        defaultCondition.requestWillNotBeRetried(context);
+                    }
+
+                    @Override
+                    public void requestSucceeded(RetryPolicyContext context) {
+                        defaultCondition.requestSucceeded(context);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Stop retrying once waiting for the next attempt would go past the given time
+     *
+     * @param deadline time by which all attempts must have started
+     */
+    public void setDeadline(Instant deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Stop retrying once waiting for the next attempt would take longer than the given time from now
+     *
+     * @param remaining time left for all attempts to start (ex: from Context.getRemainingTimeInMillis)
+     */
+    public void setDeadline(Duration remaining) {
+        setDeadline(Instant.now().plus(remaining));
+    }
+
+    /**
+     * @return number of retries started since the last reset
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Reset the retry count, for example at the start of each invocation
+     */
+    public void resetRetries() {
+        retries.set(0);
+    }
+
+    /**
+     * Run an action, retrying it while it fails with a retryable error
+     *
+     * @param description what the action does, for logging
+     * @param action      action to run
+     * @return result of the first successful attempt
+     */
+    public <T> T execute(String description, Supplier<T> action) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return action.get();
+
+            } catch (RuntimeException e) {
+                long delayMillis = getRetryDelayMillis(description, attempt, e);
+                if (delayMillis < 0) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #execute(String, Supplier)}. Retries are scheduled after the delay without
+     * blocking a thread while waiting.
+     *
+     * @param description what the action does, for logging
+     * @param action      starts the action
+     * @return future of the result of the first successful attempt
+     */
+    public <T> CompletableFuture<T> executeAsync(String description, Supplier<CompletableFuture<T>> action) {
+        return executeAsync(description, action, 1);
+    }
+
+    private <T> CompletableFuture<T> executeAsync(String description, Supplier<CompletableFuture<T>> action, int attempt) {
+        CompletableFuture<T> future;
+        try {
+            future = action.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        return future.handle((result, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            long delayMillis = getRetryDelayMillis(description, attempt, unwrap(e));
+            if (delayMillis < 0) {
+                return CompletableFuture.<T>failedFuture(e);
+            }
+            return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> executeAsync(description, action, attempt + 1));
+        }).thenCompose(result -> result);
+    }
+
+    /**
+     * @param description what the failed action does, for logging
+     * @param attempt     number of the attempt which failed, starting from 1
+     * @param e           failure of the attempt
+     * @return time to wait before the next attempt, or -1 if the failure should not be retried
+     */
+    private long getRetryDelayMillis(String description, int attempt, Throwable e) {
+        if (!isRetryable(e)) {
+            return -1;
+        }
+        if (attempt >= maxAttempts) {
+            LOGGER.error("{} failed after {} attempts", description, attempt);
+            return -1;
+        }
+
+        long delayMillis = getDelayMillis(attempt);
+        if (Instant.now().plusMillis(delayMillis).isAfter(deadline)) {
+            LOGGER.error("{} failed on attempt {}, not retrying as the deadline {} would be passed", description, attempt, deadline);
+            return -1;
+        }
+
+        LOGGER.warn("retrying {} in {} ms after attempt {} failed: {}", description, delayMillis, attempt, e.getMessage());
+        retries.incrementAndGet();
+        return delayMillis;
+    }
+
+    /**
+     * @param attempt number of the attempt which failed, starting from 1
+     * @return random delay between zero and the exponential backoff for the attempt
+     */
+    long getDelayMillis(int attempt) {
+        long backoffMillis = baseDelay.toMillis() << Math.min(attempt - 1, 30);
+        long cappedMillis = Math.min(maxDelay.toMillis(), backoffMillis < 0 ? Long.MAX_VALUE : backoffMillis);
+        return (long) (random.getAsDouble() * cappedMillis);
+    }
+
+    /**
+     * Decide whether a failure is transient. The cause chain is searched because failures are often wrapped in a
+     * RuntimeException, or in an SdkClientException when S3 could not be reached.
+     *
+     * @param e failure
+     * @return true if repeating the action may succeed
+     */
+    static boolean isRetryable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MetabaseHttpException metabaseHttpException) {
+                return isRetryableStatusCode(metabaseHttpException.getStatusCode());
+            }
+            if (cause instanceof SdkServiceException sdkServiceException) {
+                return sdkServiceException.isThrottlingException() || sdkServiceException.retryable()
+                        || isRetryableStatusCode(sdkServiceException.statusCode());
+            }
+            if (cause instanceof ApiCallTimeoutException || cause instanceof DeadlineExceededException) {
+                // the request used all of the time it was given, so another attempt would not have any
+                return false;
+            }
+            if (cause instanceof ConnectException || cause instanceof SocketTimeoutException || cause instanceof HttpTimeoutException) {
+                return true;
+            }
+            if (cause instanceof IOException && isConnectionReset(cause.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param message message of an IOException
+     * @return true if the connection was reset by the server or a proxy
+     */
+    private static boolean isConnectionReset(String message) {
+        return message != null && message.toLowerCase().contains("connection reset");
+    }
+
+    /**
+     * @param statusCode HTTP status code of a failed request
+     * @return true if the server is overloaded or a gateway failed, so the request may succeed later
+     */
+    static boolean isRetryableStatusCode(int statusCode) {
+        return RETRYABLE_STATUS_CODES.contains(statusCode);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        if ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            return e.getCause();
+        }
+        return e;
+    }
+}
@@ -0,0 +1,341 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Streams a CSV or JSON export and keeps only the rows which were not in the previous export.
+ * <p>
+ * Each row is reduced to a 64-bit hash while the rows themselves are streamed straight through. A changed row
+ * has a different hash and is treated as new. Hashes are collected in a fixed size buffer which is sorted and
+ * spilled to local storage as a run whenever it is full, and the runs are merged into the index file at the
+ * end, so heap usage does not grow with the number of rows. Local storage holds up to 16 bytes per row while
+ * the runs are merged.
+ *
+ * @param rows      number of data rows in the export
+ * @param added     number of rows written to the delta
+ * @param unchanged number of rows which were in the previous export
+ * @param removed   number of distinct rows in the previous export which are no longer present
+ * @param hashFile  temporary file of the sorted distinct row hashes of the export as big-endian longs, used as
+ *                  the index for the next run and deleted by {@link #close()}
+ * @param hashCount number of hashes in the file
+ */
+record RowDelta(long rows, long added, long unchanged, long removed, Path hashFile, long hashCount) implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RowDelta.class.getName());
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String HASH_ALGORITHM = "MD5";
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int RUN_BUFFER_BYTES = 8 * 1024;
+    private static final int RUN_HASHES = 1024 * 1024;
+
+    /**
+     * Write the rows of an export which are not in the previous index to the given stream. The header of a CSV
+     * export is always written. Neither stream is closed.
+     *
+     * @param inputStream   contents of the export
+     * @param outputStream  stream receiving the delta in the same format
+     * @param exportFormat  format of the export (CSV or JSON)
+     * @param previousIndex row hashes of the previous export
+     * @return counts and row hashes of the export
+     * @throws IOException if the export could not be read or written
+     */
+    static RowDelta filter(InputStream inputStream, OutputStream outputStream, ExportFormat exportFormat, RowHashIndex previousIndex) throws IOException {
+        return filter(inputStream, outputStream, exportFormat, previousIndex, RUN_HASHES);
+    }
+
+    /**
+     * @param runHashes number of hashes held in memory before they are spilled to a run file
+     */
+    static RowDelta filter(InputStream inputStream, OutputStream outputStream, ExportFormat exportFormat, RowHashIndex previousIndex,
+                           int runHashes) throws IOException {
+        try (Counter counter = new Counter(previousIndex, runHashes)) {
+            return switch (exportFormat) {
+                case CSV -> filterCsv(inputStream, outputStream, counter);
+                case JSON -> filterJson(inputStream, outputStream, counter);
+                default -> throw new IllegalArgumentException("row deltas are not supported for " + exportFormat.getExtension() + " exports");
+            };
+        }
+    }
+
+    /**
+     * Delete the hash file
+     */
+    @Override
+    public void close() {
+        deleteQuietly(hashFile);
+    }
+
+    /**
+     * Split CSV records on line breaks outside quoted fields, so a quoted value containing a new line stays
+     * part of its row
+     */
+    private static RowDelta filterCsv(InputStream inputStream, OutputStream outputStream, Counter counter) throws IOException {
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream, BUFFER_BYTES);
+        ByteArrayOutputStream row = new ByteArrayOutputStream();
+        boolean header = true;
+        boolean quoted = false;
+
+        int b;
+        while ((b = bufferedInputStream.read()) != -1) {
+            row.write(b);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == '\n' && !quoted) {
+                if (header) {
+                    row.writeTo(outputStream);
+                    header = false;
+                } else {
+                    writeCsvRow(row, counter, outputStream);
+                }
+                row.reset();
+            }
+        }
+        if (header) {
+            row.writeTo(outputStream);
+        } else {
+            writeCsvRow(row, counter, outputStream);
+        }
+        return counter.toRowDelta();
+    }
+
+    /**
+     * Write a CSV row if it is new. The line break is not part of the row hash, and blank lines are skipped.
+     */
+    private static void writeCsvRow(ByteArrayOutputStream row, Counter counter, OutputStream outputStream) throws IOException {
+        byte[] bytes = row.toByteArray();
+        int length = bytes.length;
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+            length--;
+        }
+
+        if (length > 0 && counter.add(bytes, length)) {
+            outputStream.write(bytes);
+        }
+    }
+
+    /**
+     * Read a JSON array of row objects one row at a time and write the new rows as a JSON array
+     */
+    private static RowDelta filterJson(InputStream inputStream, OutputStream outputStream, Counter counter) throws IOException {
+        JsonParser jsonParser = OBJECT_MAPPER.createParser(inputStream);
+        if (jsonParser.nextToken() != JsonToken.START_ARRAY) {
+            throw new IOException("expected a JSON array of rows");
+        }
+
+        JsonGenerator jsonGenerator = OBJECT_MAPPER.createGenerator(outputStream);
+        jsonGenerator.writeStartArray();
+        while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+            JsonNode row = jsonParser.readValueAsTree();
+            byte[] bytes = OBJECT_MAPPER.writeValueAsBytes(row);
+            if (counter.add(bytes, bytes.length)) {
+                jsonGenerator.writeTree(row);
+            }
+        }
+        jsonGenerator.writeEndArray();
+        jsonGenerator.flush();
+        // read past the end of the array so that the whole export has been consumed
+        inputStream.transferTo(OutputStream.nullOutputStream());
+        return counter.toRowDelta();
+    }
+
+    /**
+     * Delete a temporary file
+     *
+     * @param file file to delete (may be null)
+     */
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("unable to delete temporary file: {}", file);
+        }
+    }
+
+    /**
+     * Counts rows against the previous index and collects the hashes of the current export in sorted runs
+     */
+    private static class Counter implements AutoCloseable {
+
+        private final RowHashIndex previousIndex;
+        private final MessageDigest messageDigest;
+        private final long[] run;
+        private final List<Path> runFiles = new ArrayList<>();
+        private int runCount;
+        private long rows;
+        private long added;
+        private long unchanged;
+
+        Counter(RowHashIndex previousIndex, int runHashes) {
+            this.previousIndex = previousIndex;
+            this.run = new long[Math.max(1, runHashes)];
+            try {
+                this.messageDigest = MessageDigest.getInstance(HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @param row    row contents
+         * @param length number of bytes of the row to hash
+         * @return true if the row is new
+         */
+        boolean add(byte[] row, int length) throws IOException {
+            messageDigest.update(row, 0, length);
+            long hash = ByteBuffer.wrap(messageDigest.digest()).getLong();
+
+            run[runCount++] = hash;
+            if (runCount == run.length) {
+                spill();
+            }
+            rows++;
+
+            if (previousIndex.contains(hash)) {
+                unchanged++;
+                return false;
+            }
+            added++;
+            return true;
+        }
+
+        /**
+         * Merge the runs into one file of sorted distinct hashes, counting the previous rows which are still present
+         */
+        RowDelta toRowDelta() throws IOException {
+            if (runCount > 0 || runFiles.isEmpty()) {
+                spill();
+            }
+
+            Path hashFile = Files.createTempFile("row-hashes", ".idx");
+            List<RunReader> readers = new ArrayList<>();
+            try {
+                PriorityQueue<RunReader> queue = new PriorityQueue<>(Comparator.comparingLong(RunReader::current));
+                for (Path runFile : runFiles) {
+                    RunReader reader = new RunReader(runFile);
+                    readers.add(reader);
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+
+                long hashCount = 0;
+                long retained = 0;
+                long last = 0;
+                try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(hashFile), BUFFER_BYTES))) {
+                    while (!queue.isEmpty()) {
+                        RunReader reader = queue.poll();
+                        long hash = reader.current();
+                        if (hashCount == 0 || hash != last) {
+                            outputStream.writeLong(hash);
+                            hashCount++;
+                            last = hash;
+                            if (previousIndex.contains(hash)) {
+                                retained++;
+                            }
+                        }
+                        if (reader.next()) {
+                            queue.add(reader);
+                        }
+                    }
+                }
+                return new RowDelta(rows, added, unchanged, previousIndex.size() - retained, hashFile, hashCount);
+
+            } catch (IOException | RuntimeException e) {
+                deleteQuietly(hashFile);
+                throw e;
+
+            } finally {
+                for (RunReader reader : readers) {
+                    reader.close();
+                }
+            }
+        }
+
+        /**
+         * Sort the buffered hashes and write the distinct ones to a new run file
+         */
+        private void spill() throws IOException {
+            Arrays.sort(run, 0, runCount);
+            Path runFile = Files.createTempFile("row-hashes-run", ".bin");
+            runFiles.add(runFile);
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile), BUFFER_BYTES))) {
+                for (int i = 0; i < runCount; i++) {
+                    if (i == 0 || run[i] != run[i - 1]) {
+                        outputStream.writeLong(run[i]);
+                    }
+                }
+            }
+            runCount = 0;
+        }
+
+        /**
+         * Delete the run files
+         */
+        @Override
+        public void close() {
+            runFiles.forEach(RowDelta::deleteQuietly);
+        }
+    }
+
+    /**
+     * Reads the hashes of a run file in order
+     */
+    private static class RunReader {
+
+        private final DataInputStream inputStream;
+        private long current;
+
+        RunReader(Path runFile) throws IOException {
+            this.inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(runFile), RUN_BUFFER_BYTES));
+        }
+
+        /**
+         * @return true if the next hash was read, false at the end of the run
+         */
+        boolean next() throws IOException {
+            try {
+                current = inputStream.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        long current() {
+            return current;
+        }
+
+        void close() throws IOException {
+            inputStream.close();
+        }
+    }
+}
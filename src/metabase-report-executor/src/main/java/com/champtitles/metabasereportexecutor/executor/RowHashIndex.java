@@ -0,0 +1,164 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sorted set of 64-bit row hashes from a previous export, stored in S3 as a binary file of big-endian longs.
+ * <p>
+ * The file is downloaded to local storage and memory mapped, so looking rows up does not need heap space
+ * for the previous export.
+ */
+final class RowHashIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RowHashIndex.class.getName());
+    private static final RowHashIndex EMPTY = new RowHashIndex(LongBuffer.allocate(0));
+    private final LongBuffer hashes;
+
+    private RowHashIndex(LongBuffer hashes) {
+        this.hashes = hashes;
+    }
+
+    /**
+     * @return index which contains no rows, used for the first export
+     */
+    static RowHashIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Map an index file from local storage. The file can be deleted afterwards while the index is in use.
+     * A single mapping is limited to 2 GB, which is 268 million rows.
+     *
+     * @param file row hashes in ascending order without duplicates as big-endian longs
+     * @return index of the hashes in the file
+     * @throws IOException if the file could not be mapped
+     */
+    static RowHashIndex map(Path file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new RowHashIndex(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size()).asLongBuffer());
+        }
+    }
+
+    /**
+     * Download and map an index from S3
+     *
+     * @param s3Client client used to download the index
+     * @param bucket   bucket containing the index
+     * @param key      key of the index
+     * @return index, or an empty index if there is none yet
+     * @throws S3Exception if the index exists but cannot be read, such as when access or its KMS key is denied
+     */
+    static RowHashIndex load(S3Client s3Client, String bucket, String key) {
+        Path file = null;
+        try {
+            file = Files.createTempFile("row-hashes", ".idx");
+            try (ResponseInputStream<GetObjectResponse> inputStream = s3Client.getObject(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build())) {
+                Files.copy(inputStream, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            RowHashIndex index = map(file);
+            LOGGER.info("loaded {} row hashes from s3://{}/{}", index.size(), bucket, key);
+            return index;
+
+        } catch (NoSuchKeyException e) {
+            LOGGER.info("no row hashes found at s3://{}/{}, every row is new", bucket, key);
+            return EMPTY;
+
+        } catch (S3Exception e) {
+            // the role can list the bucket, so a 403 is a real access or KMS failure which must not reset the index
+            if (e.statusCode() != 404) {
+                throw e;
+            }
+            LOGGER.info("no row hashes found at s3://{}/{}, every row is new", bucket, key);
+            return EMPTY;
+
+        } catch (IOException e) {
+            LOGGER.error("unable to read row hashes from s3://{}/{}", bucket, key);
+            throw new RuntimeException(e);
+
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Upload an index to S3
+     *
+     * @param s3Client client used to upload the index
+     * @param bucket   destination bucket
+     * @param key      destination key
+     * @param file     row hashes in ascending order without duplicates as big-endian longs
+     */
+    static void save(S3Client s3Client, String bucket, String key, Path file) {
+        s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .contentType("application/octet-stream")
+                .build(), RequestBody.fromFile(file));
+        LOGGER.info("saved row hashes to s3://{}/{}", bucket, key);
+    }
+
+    /**
+     * @param hash row hash
+     * @return true if the row was in the previous export
+     */
+    boolean contains(long hash) {
+        int low = 0;
+        int high = hashes.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midHash = hashes.get(mid);
+            if (midHash < hash) {
+                low = mid + 1;
+            } else if (midHash > hash) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of distinct rows in the index
+     */
+    int size() {
+        return hashes.limit();
+    }
+
+    /**
+     * Delete a temporary file. A mapped file can be deleted while it is still mapped.
+     *
+     * @param file file to delete (may be null)
+     */
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("unable to delete temporary file: {}", file);
+        }
+    }
+}
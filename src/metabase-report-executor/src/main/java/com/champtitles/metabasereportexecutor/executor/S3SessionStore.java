@@ -0,0 +1,93 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.champtitles.metabasereportexecutor.executor.model.CachedSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.ServerSideEncryption;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Stores the Metabase session as a JSON object in S3 so that concurrent executors can share one login.
+ * Failures are logged and otherwise ignored since the client can always log in again.
+ * <p>
+ * The object holds a live session token, so it is encrypted with its own KMS key which only the executor is
+ * allowed to use. Other readers of the bucket, such as the notifier, cannot decrypt it.
+ */
+public class S3SessionStore implements SessionStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3SessionStore.class.getName());
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+    private final String kmsKeyId;
+
+    /**
+     * @param s3Client client used to read and write the session object
+     * @param bucket   bucket to store the session in
+     * @param key      key of the session object
+     * @param kmsKeyId KMS key the session object is encrypted with (key id, ARN or alias)
+     */
+    public S3SessionStore(S3Client s3Client, String bucket, String key, String kmsKeyId) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.kmsKeyId = kmsKeyId;
+    }
+
+    @Override
+    public Optional<CachedSession> load() {
+        try {
+            ResponseBytes<GetObjectResponse> response = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build());
+            return Optional.of(OBJECT_MAPPER.readValue(response.asByteArray(), CachedSession.class));
+
+        } catch (NoSuchKeyException e) {
+            return Optional.empty();
+
+        } catch (SdkException | IOException e) {
+            LOGGER.warn("unable to read session from s3://{}/{}", bucket, key);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void save(CachedSession session) {
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType("application/json")
+                    .serverSideEncryption(ServerSideEncryption.AWS_KMS)
+                    .ssekmsKeyId(kmsKeyId)
+                    .build(), RequestBody.fromBytes(OBJECT_MAPPER.writeValueAsBytes(session)));
+
+        } catch (SdkException | IOException e) {
+            LOGGER.warn("unable to write session to s3://{}/{}", bucket, key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        try {
+            s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(key).build());
+
+        } catch (SdkException e) {
+            LOGGER.warn("unable to delete session from s3://{}/{}", bucket, key);
+        }
+    }
+}
@@ -4,27 +4,52 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
 
 public class S3Writer {
 
+    /**
+     * Prefix for internal state objects kept in the report bucket. The notifier ignores objects under this prefix.
+     */
+    public static final String STATE_PREFIX = "_state/";
+    /**
+     * Prefix for CSV copies of XLSX reports, kept apart so they can be queried with Athena. The notifier ignores
+     * objects under this prefix.
+     */
+    public static final String TRANSCODED_PREFIX = "csv/";
     private static final Logger LOGGER = LoggerFactory.getLogger(S3Writer.class.getName());
     private final S3Client s3Client;
     private final String bucket;
+    private final int partSizeBytes;
+    private final int uploadConcurrency;
+    private final RetryPolicy retryPolicy;
+    private final KeyLayout keyLayout;
 
-    public S3Writer(String bucket) {
-        s3Client = S3Client.builder().build();
-        this.bucket = bucket;
-    }
-
-    S3Writer(String bucket, S3Client s3Client) {
+    /**
+     * @param bucket   destination bucket
+     * @param s3Client client used to upload reports
+     * @param settings part size, concurrency, retries and key layout of the uploads
+     */
+    public S3Writer(String bucket, S3Client s3Client, S3WriterSettings settings) {
         this.s3Client = s3Client;
         this.bucket = bucket;
+        this.partSizeBytes = settings.partSizeBytes();
+        this.uploadConcurrency = settings.uploadConcurrency();
+        this.retryPolicy = settings.retryPolicy();
+        this.keyLayout = settings.keyLayout();
     }
 
     /**
@@ -34,15 +59,17 @@ public class S3Writer {
      * @param namePrefix file name prefix
      */
     public void uploadXlsx(byte[] xlsxBody, String namePrefix) {
-        String key = getKey(namePrefix);
+        String key = getKey(namePrefix, ExportFormat.XLSX.getExtension());
         PutObjectRequest objectRequest = PutObjectRequest.builder()
                 .bucket(bucket)
                 .key(key)
+                .overrideConfiguration(config -> config.putExecutionAttribute(RetryPolicy.RETRIED_BY_POLICY, true))
                 .build();
 
         try {
             LOGGER.info("uploading {} to bucket {}", key, bucket);
-            s3Client.putObject(objectRequest, RequestBody.fromBytes(xlsxBody));
+            retryPolicy.execute("upload of " + key, () -> s3Client.putObject(objectRequest, RequestBody.fromBytes(xlsxBody)));
+            writeState(getLatestKey(namePrefix, ExportFormat.XLSX, Compression.NONE), key);
 
         } catch (AwsServiceException | SdkClientException e) {
             LOGGER.error("error uploading {} to bucket {}", key, bucket);
@@ -51,18 +78,384 @@ public class S3Writer {
     }
 
     /**
-     * Generate a full s3 key path using the current date and time
+     * Stream the given data as an XLSX document to S3 using a multipart upload, uploading parts in parallel.
+     * A failed part is retried on its own and the upload is aborted if it still fails. The stream is always closed.
+     *
+     * @param xlsxStream contents of the XLSX document
+     * @param namePrefix file name prefix
+     * @return s3 key of the uploaded document
+     */
+    public String uploadXlsx(InputStream xlsxStream, String namePrefix) {
+        return upload(xlsxStream, namePrefix, ExportFormat.XLSX, Compression.NONE);
+    }
+
+    /**
+     * Stream the given export to S3, compressing it on the way. The key extension, Content-Type and
+     * Content-Encoding are set to match the format and compression. The stream is always closed.
+     *
+     * @param exportStream contents of the export
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export
+     * @param compression  compression to apply while uploading
+     * @return s3 key of the uploaded document
+     */
+    public String upload(InputStream exportStream, String namePrefix, ExportFormat exportFormat, Compression compression) {
+        return upload(exportStream, namePrefix, exportFormat, compression, Deadline.none());
+    }
+
+    /**
+     * Stream the given export to S3 like {@link #upload(InputStream, String, ExportFormat, Compression)}, aborting
+     * the upload if it has not finished by the deadline. Each S3 request times out at the deadline.
+     *
+     * @param exportStream contents of the export
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export
+     * @param compression  compression to apply while uploading
+     * @param deadline     deadline of the upload
+     * @return s3 key of the uploaded document
+     */
+    public String upload(InputStream exportStream, String namePrefix, ExportFormat exportFormat, Compression compression, Deadline deadline) {
+        return upload(exportStream, namePrefix, exportFormat, compression, false, deadline).orElseThrow();
+    }
+
+    /**
+     * Stream the given export to S3 like {@link #upload(InputStream, String, ExportFormat, Compression)}, unless
+     * its normalized content is the same as the last export uploaded with this name prefix, format and compression.
+     * The export is hashed while it is streamed, and the upload of an unchanged export is aborted instead of
+     * completed, so no object is created and no S3 notification or email is sent.
+     * The hash of each uploaded export is kept in a small state object next to the reports.
+     *
+     * @param exportStream contents of the export
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export
+     * @param compression  compression to apply while uploading
+     * @return s3 key of the uploaded document, or empty if the content was unchanged
+     */
+    public Optional<String> uploadIfChanged(InputStream exportStream, String namePrefix, ExportFormat exportFormat, Compression compression) {
+        return uploadIfChanged(exportStream, namePrefix, exportFormat, compression, Deadline.none());
+    }
+
+    /**
+     * Stream the given export to S3 like {@link #uploadIfChanged(InputStream, String, ExportFormat, Compression)},
+     * aborting the upload if it has not finished by the deadline
+     *
+     * @param exportStream contents of the export
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export
+     * @param compression  compression to apply while uploading
+     * @param deadline     deadline of the upload
+     * @return s3 key of the uploaded document, or empty if the content was unchanged
+     */
+    public Optional<String> uploadIfChanged(InputStream exportStream, String namePrefix, ExportFormat exportFormat, Compression compression, Deadline deadline) {
+        return upload(exportStream, namePrefix, exportFormat, compression, true, deadline);
+    }
+
+    /**
+     * Stream the given export to S3 while it is hashed. The compressor writes through a stream which does not
+     * close the upload, so the hash can be compared before the upload is completed. An unchanged export is then
+     * aborted: the parts of an aborted upload never become an object, so no S3 notification or email is sent,
+     * and an export smaller than a part is discarded before any request is made.
+     *
+     * @param exportStream  contents of the export
+     * @param namePrefix    file name prefix
+     * @param exportFormat  format of the export
+     * @param compression   compression to apply while uploading
+     * @param skipUnchanged whether to compare the content with the last upload
+     * @param deadline      deadline of the upload
+     * @return s3 key of the uploaded document, or empty if the content was unchanged
+     */
+    private Optional<String> upload(InputStream exportStream, String namePrefix, ExportFormat exportFormat, Compression compression, boolean skipUnchanged,
+                                    Deadline deadline) {
+        String key = getKey(namePrefix, exportFormat.getExtension() + compression.getExtension());
+        String hashKey = getHashKey(namePrefix, exportFormat, compression);
+        MultipartUploadOutputStream outputStream = null;
+        OutputStream compressedStream = null;
+
+        // closing the wrapped stream also cancels its deadline timer, which otherwise holds the export until the deadline
+        try (InputStream inputStream = deadline.wrap(exportStream)) {
+            LOGGER.info("streaming {} to bucket {}", key, bucket);
+            outputStream = new MultipartUploadOutputStream(s3Client, bucket, key,
+                    exportFormat.getContentType(), compression.getContentEncoding(), partSizeBytes, uploadConcurrency, retryPolicy, deadline);
+            compressedStream = compression.wrap(new UncloseableOutputStream(outputStream));
+            String contentHash = ContentHash.copy(inputStream, compressedStream, exportFormat);
+            compressedStream.close();
+            if (skipUnchanged && contentHash != null && contentHash.equals(loadHash(hashKey))) {
+                LOGGER.info("content of {} is unchanged since the last upload, discarding the upload. sha256={}", key, contentHash);
+                outputStream.abort();
+                return Optional.empty();
+            }
+            outputStream.close();
+
+            LOGGER.info("uploaded {} bytes to {} sha256={}", outputStream.getBytesWritten(), key, contentHash);
+            if (skipUnchanged && contentHash != null) {
+                writeState(hashKey, contentHash);
+            }
+            writeState(getLatestKey(namePrefix, exportFormat, compression), key);
+            return Optional.of(key);
+
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("error uploading {} to bucket {}", key, bucket);
+            abort(outputStream, e);
+            throw new RuntimeException(e);
+
+        } finally {
+            closeCompressor(compressedStream);
+        }
+    }
+
+    /**
+     * Stream only the rows of a CSV or JSON export which were not in the previous export to S3. Row hashes of
+     * each export are kept in a state object next to the reports and compared with the next export. When no
+     * rows were added or changed nothing is uploaded, so no S3 notification or email is sent.
+     *
+     * @param exportStream contents of the export
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export (CSV or JSON)
+     * @param compression  compression to apply while uploading
+     * @return row counts and the s3 key of the uploaded delta
+     */
+    public DeltaSummary uploadDelta(InputStream exportStream, String namePrefix, ExportFormat exportFormat, Compression compression) {
+        return uploadDelta(exportStream, namePrefix, exportFormat, compression, Deadline.none());
+    }
+
+    /**
+     * Stream the new and changed rows of an export to S3 like
+     * {@link #uploadDelta(InputStream, String, ExportFormat, Compression)}, aborting the upload if it has not
+     * finished by the deadline
+     *
+     * @param exportStream contents of the export
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export (CSV or JSON)
+     * @param compression  compression to apply while uploading
+     * @param deadline     deadline of the upload
+     * @return row counts and the s3 key of the uploaded delta
+     */
+    public DeltaSummary uploadDelta(InputStream exportStream, String namePrefix, ExportFormat exportFormat, Compression compression, Deadline deadline) {
+        String key = getKey(namePrefix, exportFormat.getExtension() + compression.getExtension());
+        String indexKey = getRowIndexKey(namePrefix, exportFormat);
+        MultipartUploadOutputStream outputStream = new MultipartUploadOutputStream(s3Client, bucket, key,
+                exportFormat.getContentType(), compression.getContentEncoding(), partSizeBytes, uploadConcurrency, retryPolicy, deadline);
+
+        OutputStream compressedStream = null;
+
+        try (InputStream inputStream = deadline.wrap(exportStream)) {
+            RowHashIndex previousIndex = RowHashIndex.load(s3Client, bucket, indexKey);
+            LOGGER.info("streaming new and changed rows of {} to bucket {}", key, bucket);
+            compressedStream = compression.wrap(outputStream);
+            try (RowDelta rowDelta = RowDelta.filter(inputStream, compressedStream, exportFormat, previousIndex)) {
+                if (rowDelta.added() == 0) {
+                    LOGGER.info("no new or changed rows for {}, skipping", key);
+                    outputStream.abort();
+                    key = null;
+                } else {
+                    compressedStream.close();
+                    LOGGER.info("uploaded {} bytes to {}", outputStream.getBytesWritten(), key);
+                    writeState(getLatestKey(namePrefix, exportFormat, compression), key);
+                }
+                RowHashIndex.save(s3Client, bucket, indexKey, rowDelta.hashFile());
+
+                DeltaSummary deltaSummary = new DeltaSummary(key, rowDelta.rows(), rowDelta.added(), rowDelta.unchanged(), rowDelta.removed());
+                LOGGER.info("delta for {} rows={} added={} unchanged={} removed={}", namePrefix, deltaSummary.rows(), deltaSummary.added(),
+                        deltaSummary.unchanged(), deltaSummary.removed());
+                return deltaSummary;
+            }
+
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("error uploading delta {} to bucket {}", key, bucket);
+            abort(outputStream, e);
+            throw new RuntimeException(e);
+
+        } finally {
+            closeCompressor(compressedStream);
+        }
+    }
+
+    /**
+     * Convert an XLSX report to CSV and upload it under {@link #TRANSCODED_PREFIX} with the same date partitioned
+     * key as the report, aborting the upload if it has not finished by the deadline
+     *
+     * @param xlsxFile    local copy of the uploaded report
+     * @param xlsxKey     s3 key of the uploaded report
+     * @param compression compression of the report, which is also applied to the CSV
+     * @param deadline    deadline of the upload
+     * @return s3 key of the CSV (ex: csv/2023/04/04/card12-2023-04-04T07-00-00.csv.gz)
+     */
+    public String uploadCsvCopy(Path xlsxFile, String xlsxKey, Compression compression, Deadline deadline) {
+        String key = getTranscodedKey(xlsxKey, compression);
+        MultipartUploadOutputStream outputStream = new MultipartUploadOutputStream(s3Client, bucket, key,
+                ExportFormat.CSV.getContentType(), compression.getContentEncoding(), partSizeBytes, uploadConcurrency, retryPolicy, deadline);
+
+        OutputStream compressedStream = null;
+
+        try {
+            LOGGER.info("converting {} to csv and streaming to {}", xlsxKey, key);
+            compressedStream = compression.wrap(outputStream);
+            long rows = XlsxTranscoder.toCsv(xlsxFile, compressedStream);
+            compressedStream.close();
+            LOGGER.info("uploaded {} rows in {} bytes to {}", rows, outputStream.getBytesWritten(), key);
+            return key;
+
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("error uploading csv copy {} to bucket {}", key, bucket);
+            abort(outputStream, e);
+            throw new RuntimeException(e);
+
+        } finally {
+            closeCompressor(compressedStream);
+        }
+    }
+
+    /**
+     * Abort a failed upload, keeping any failure to abort with the original error
+     *
+     * @param outputStream upload to abort (may be null if it was never started)
+     * @param e            error which failed the upload
+     */
+    private static void abort(MultipartUploadOutputStream outputStream, Exception e) {
+        if (outputStream == null) {
+            return;
+        }
+        try {
+            outputStream.abort();
+        } catch (RuntimeException abortException) {
+            e.addSuppressed(abortException);
+        }
+    }
+
+    /**
+     * Release the Deflater or zstd context of a compressor once its upload has completed or been aborted. The
+     * native memory they hold is otherwise only freed by the garbage collector. Closing a compressor which is
+     * already closed does nothing, and the final block it writes to an aborted upload is discarded.
+     *
+     * @param compressedStream compressor to close (may be null)
+     */
+    private static void closeCompressor(OutputStream compressedStream) {
+        if (compressedStream == null) {
+            return;
+        }
+        try {
+            compressedStream.close();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("compressor of an aborted upload closed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Read the hash of the last uploaded export
+     *
+     * @param hashKey key of the hash state object
+     * @return hex encoded hash, or null if there is none
+     */
+    private String loadHash(String hashKey) {
+        try {
+            return s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(hashKey)
+                    .build()).asUtf8String().trim();
+
+        } catch (NoSuchKeyException e) {
+            return null;
+
+        } catch (SdkException e) {
+            LOGGER.warn("unable to read content hash from s3://{}/{}", bucket, hashKey);
+            return null;
+        }
+    }
+
+    /**
+     * Store a small state object, such as the hash of an uploaded export or the key of the newest report. A single
+     * PUT replaces the whole object, so readers see either the previous or the new value. A failure only means
+     * the next export is uploaded even if unchanged, or that readers find the previous report.
+     *
+     * @param stateKey key of the state object
+     * @param value    text to store
+     */
+    private void writeState(String stateKey, String value) {
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(stateKey)
+                    .contentType("text/plain")
+                    .build(), RequestBody.fromString(value));
+
+        } catch (SdkException e) {
+            LOGGER.warn("unable to write state object to s3://{}/{}", bucket, stateKey);
+        }
+    }
+
+    /**
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export
+     * @param compression  compression of the export
+     * @return key of the state object holding the hash of the last upload (ex: _state/card12/csv.gz.sha256)
+     */
+    static String getHashKey(String namePrefix, ExportFormat exportFormat, Compression compression) {
+        return STATE_PREFIX + namePrefix + "/" + exportFormat.getExtension() + compression.getExtension() + ".sha256";
+    }
+
+    /**
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export
+     * @return key of the state object holding the row hashes of the last export (ex: _state/card12/csv.rows)
+     */
+    static String getRowIndexKey(String namePrefix, ExportFormat exportFormat) {
+        return STATE_PREFIX + namePrefix + "/" + exportFormat.getExtension() + ".rows";
+    }
+
+    /**
+     * The object holds the key of the newest report uploaded with this name prefix, format and compression, so
+     * readers can find it with one GET instead of listing the bucket. It is only written once the report is
+     * complete. In delta mode it points at the newest delta.
+     *
+     * @param namePrefix   file name prefix
+     * @param exportFormat format of the export
+     * @param compression  compression of the export
+     * @return key of the state object pointing at the newest report (ex: _state/card12/xlsx.latest)
+     */
+    public static String getLatestKey(String namePrefix, ExportFormat exportFormat, Compression compression) {
+        return STATE_PREFIX + namePrefix + "/" + exportFormat.getExtension() + compression.getExtension() + ".latest";
+    }
+
+    /**
+     * @param xlsxKey     s3 key of an XLSX report
+     * @param compression compression of the report
+     * @return key of its CSV copy (ex: csv/2023/04/04/card12-2023-04-04T07-00-00.csv)
+     */
+    static String getTranscodedKey(String xlsxKey, Compression compression) {
+        String suffix = ExportFormat.XLSX.getExtension() + compression.getExtension();
+        String base = xlsxKey.endsWith(suffix) ? xlsxKey.substring(0, xlsxKey.length() - suffix.length()) : xlsxKey + ".";
+        return TRANSCODED_PREFIX + base + ExportFormat.CSV.getExtension() + compression.getExtension();
+    }
+
+    /**
+     * Generate a full s3 key path using the current time in UTC
      *
      * @param namePrefix file name prefix
+     * @param extension  file extension (ex: csv.gz)
      * @return full s3 path
      */
-    private String getKey(String namePrefix) {
-        LocalDateTime now = LocalDateTime.now();
-        return String.format("%s/%s/%s/%s-%s.xlsx",
-                now.format(DateTimeFormatter.ofPattern("yyyy")),
-                now.format(DateTimeFormatter.ofPattern("MM")),
-                now.format(DateTimeFormatter.ofPattern("dd")),
-                namePrefix,
-                now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH-mm-ss")));
+    private String getKey(String namePrefix, String extension) {
+        return keyLayout.getKey(namePrefix, extension, Instant.now());
+    }
+
+    /**
+     * Stream which passes writes through but leaves the underlying stream open when closed, so that closing a
+     * compressor writes its final block without completing the upload
+     */
+    private static class UncloseableOutputStream extends FilterOutputStream {
+
+        UncloseableOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
     }
 }
@@ -0,0 +1,50 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+/**
+ * Settings of how an {@link S3Writer} uploads each report.
+ *
+ * @param partSizeBytes     size of each multipart upload part
+ * @param uploadConcurrency maximum number of parts of a report uploaded at the same time (at least 1)
+ * @param retryPolicy       policy used to retry each upload request
+ * @param keyLayout         layout of the keys reports are uploaded to
+ */
+public record S3WriterSettings(int partSizeBytes, int uploadConcurrency, RetryPolicy retryPolicy, KeyLayout keyLayout) {
+
+    private static final int DEFAULT_PART_SIZE_BYTES = 8 * 1024 * 1024;
+
+    public S3WriterSettings {
+        uploadConcurrency = Math.max(1, uploadConcurrency);
+    }
+
+    /**
+     * @return settings which upload 8 MB parts one at a time to dated keys, with the default retries
+     */
+    public static S3WriterSettings defaults() {
+        return new S3WriterSettings(DEFAULT_PART_SIZE_BYTES, 1, RetryPolicy.defaults(), KeyLayout.DATED);
+    }
+
+    /**
+     * @param partSizeBytes     size of each multipart upload part
+     * @param uploadConcurrency maximum number of parts of a report uploaded at the same time
+     * @return copy of these settings with the given part size and concurrency
+     */
+    public S3WriterSettings withParts(int partSizeBytes, int uploadConcurrency) {
+        return new S3WriterSettings(partSizeBytes, uploadConcurrency, retryPolicy, keyLayout);
+    }
+
+    /**
+     * @param retryPolicy policy used to retry each upload request
+     * @return copy of these settings with the given retry policy
+     */
+    public S3WriterSettings withRetryPolicy(RetryPolicy retryPolicy) {
+        return new S3WriterSettings(partSizeBytes, uploadConcurrency, retryPolicy, keyLayout);
+    }
+
+    /**
+     * @param keyLayout layout of the keys reports are uploaded to
+     * @return copy of these settings with the given key layout
+     */
+    public S3WriterSettings withKeyLayout(KeyLayout keyLayout) {
+        return new S3WriterSettings(partSizeBytes, uploadConcurrency, retryPolicy, keyLayout);
+    }
+}
@@ -0,0 +1,126 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decrypts KMS encrypted secrets on first use and caches the plaintext in memory for a configurable time.
+ * The KMS client is only created when the first secret is actually needed.
+ */
+public class SecretsProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SecretsProvider.class.getName());
+    private final Supplier<KmsDecrypt> kmsDecryptFactory;
+    private final Duration ttl;
+    private final Map<String, CachedSecret> cache = new ConcurrentHashMap<>();
+    private final AtomicLong resolutionMillis = new AtomicLong();
+    private volatile KmsDecrypt kmsDecrypt;
+
+    /**
+     * @param region AWS region of the KMS key
+     * @param ttl    how long a decrypted secret is cached
+     */
+    public SecretsProvider(String region, Duration ttl) {
+        this(() -> new KmsDecrypt(region), ttl);
+    }
+
+    SecretsProvider(Supplier<KmsDecrypt> kmsDecryptFactory, Duration ttl) {
+        this.kmsDecryptFactory = kmsDecryptFactory;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Return the plaintext of a secret, decrypting it with KMS if it is not cached or the cached value has expired
+     *
+     * @param ciphertextBlob base64 encoded KMS ciphertext
+     * @return decrypted secret
+     */
+    public String get(String ciphertextBlob) {
+        CachedSecret cachedSecret = cache.get(ciphertextBlob);
+        if (cachedSecret != null && Instant.now().isBefore(cachedSecret.expiresAt())) {
+            return cachedSecret.plaintext();
+        }
+
+        long start = System.currentTimeMillis();
+        String plaintext = getKmsDecrypt().decrypt(ciphertextBlob);
+        cache.put(ciphertextBlob, new CachedSecret(plaintext, Instant.now().plus(ttl)));
+
+        long durationMs = System.currentTimeMillis() - start;
+        LOGGER.info("decrypted secret in {} ms (total secret resolution time {} ms)", durationMs, resolutionMillis.addAndGet(durationMs));
+        return plaintext;
+    }
+
+    /**
+     * Return a supplier which decrypts the secret the first time it is called (and whenever the cache expires)
+     *
+     * @param ciphertextBlob base64 encoded KMS ciphertext
+     * @return supplier of the decrypted secret
+     */
+    public Supplier<String> lazy(String ciphertextBlob) {
+        return () -> get(ciphertextBlob);
+    }
+
+    /**
+     * Decrypt several secrets at the same time
+     *
+     * @param ciphertextBlobs base64 encoded KMS ciphertexts
+     * @return decrypted secrets keyed by their ciphertext
+     */
+    public Map<String, String> getAll(Collection<String> ciphertextBlobs) {
+        long start = System.currentTimeMillis();
+        Map<String, CompletableFuture<String>> futures = new LinkedHashMap<>();
+        for (String ciphertextBlob : ciphertextBlobs) {
+            futures.put(ciphertextBlob, CompletableFuture.supplyAsync(() -> get(ciphertextBlob)));
+        }
+
+        Map<String, String> secrets = new LinkedHashMap<>();
+        futures.forEach((ciphertextBlob, future) -> secrets.put(ciphertextBlob, future.join()));
+        LOGGER.info("resolved {} secrets in {} ms", secrets.size(), System.currentTimeMillis() - start);
+        return secrets;
+    }
+
+    /**
+     * Remove all cached secrets so that they are decrypted again on next use
+     */
+    public void invalidate() {
+        cache.clear();
+    }
+
+    /**
+     * @return total time in milliseconds spent decrypting secrets with KMS
+     */
+    public long getResolutionMillis() {
+        return resolutionMillis.get();
+    }
+
+    /**
+     * Create the KMS client on first use so that cold starts which do not need a secret never pay for it
+     *
+     * @return shared KmsDecrypt instance
+     */
+    private KmsDecrypt getKmsDecrypt() {
+        if (kmsDecrypt == null) {
+            synchronized (this) {
+                if (kmsDecrypt == null) {
+                    long start = System.currentTimeMillis();
+                    kmsDecrypt = kmsDecryptFactory.get();
+                    LOGGER.info("created kms client in {} ms", System.currentTimeMillis() - start);
+                }
+            }
+        }
+        return kmsDecrypt;
+    }
+
+    private record CachedSecret(String plaintext, Instant expiresAt) {
+    }
+}
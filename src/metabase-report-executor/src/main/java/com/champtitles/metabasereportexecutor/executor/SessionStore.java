@@ -0,0 +1,47 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.champtitles.metabasereportexecutor.executor.model.CachedSession;
+
+import java.util.Optional;
+
+/**
+ * Shared storage for a Metabase session so that separate clients (for example concurrent Lambda executors)
+ * can reuse one login
+ */
+public interface SessionStore {
+
+    /**
+     * @return the stored session, if there is one
+     */
+    Optional<CachedSession> load();
+
+    /**
+     * @param session session to store, replacing any existing session
+     */
+    void save(CachedSession session);
+
+    /**
+     * Remove the stored session
+     */
+    void clear();
+
+    /**
+     * @return a store which never holds a session
+     */
+    static SessionStore none() {
+        return new SessionStore() {
+            @Override
+            public Optional<CachedSession> load() {
+                return Optional.empty();
+            }
+
+            @Override
+            public void save(CachedSession session) {
+            }
+
+            @Override
+            public void clear() {
+            }
+        };
+    }
+}
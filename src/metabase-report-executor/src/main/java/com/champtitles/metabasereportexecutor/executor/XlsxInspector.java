@@ -0,0 +1,125 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Counts the rows and columns of an XLSX report and how often each column is empty, reading the workbook
+ * once as a stream without loading it.
+ * <p>
+ * Only the first worksheet stored in the file is read, which for Metabase exports is the only one. A cell
+ * is empty when it has no value; string values are not looked up, so a cell holding an empty shared string
+ * counts as having a value.
+ */
+public final class XlsxInspector {
+
+    private static final String WORKSHEETS_PREFIX = "xl/worksheets/";
+    private static final XMLInputFactory XML_INPUT_FACTORY = XlsxTranscoder.createXmlInputFactory();
+
+    private XlsxInspector() {
+    }
+
+    /**
+     * @param xlsxBody contents of the workbook
+     * @return row and column counts of the first worksheet
+     * @throws IOException if the workbook could not be read or has no worksheet
+     */
+    public static XlsxStats inspect(byte[] xlsxBody) throws IOException {
+        return inspect(new ByteArrayInputStream(xlsxBody));
+    }
+
+    /**
+     * Read a workbook up to the end of its first worksheet. The stream is not closed.
+     *
+     * @param xlsxStream contents of the workbook
+     * @return row and column counts of the first worksheet
+     * @throws IOException if the workbook could not be read or has no worksheet
+     */
+    public static XlsxStats inspect(InputStream xlsxStream) throws IOException {
+        ZipInputStream zipInputStream = new ZipInputStream(xlsxStream);
+        ZipEntry zipEntry;
+        while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+            String name = zipEntry.getName();
+            if (name.startsWith(WORKSHEETS_PREFIX) && name.endsWith(".xml") && name.indexOf('/', WORKSHEETS_PREFIX.length()) < 0) {
+                try {
+                    return inspectSheet(zipInputStream);
+                } catch (XMLStreamException e) {
+                    throw new IOException("unable to parse worksheet " + name + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        throw new IOException("workbook has no worksheet");
+    }
+
+    private static XlsxStats inspectSheet(InputStream inputStream) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+        long rows = 0;
+        int columns = 0;
+        long[] valueCounts = new long[16];
+        int rowColumns = 0;
+        int column = 0;
+        boolean inValue = false;
+        boolean hasValue = false;
+
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "row" -> rowColumns = 0;
+                        case "c" -> {
+                            String ref = reader.getAttributeValue(null, "r");
+                            column = ref == null ? rowColumns : XlsxTranscoder.getColumnIndex(ref);
+                            hasValue = false;
+                        }
+                        case "v", "t" -> inValue = true;
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "v", "t" -> inValue = false;
+                        case "c" -> {
+                            rowColumns = column + 1;
+                            // the header row is not counted, so that ratios are over the data rows
+                            if (hasValue && rows > 0) {
+                                if (column >= valueCounts.length) {
+                                    valueCounts = Arrays.copyOf(valueCounts, Math.max(column + 1, valueCounts.length * 2));
+                                }
+                                valueCounts[column]++;
+                            }
+                        }
+                        case "row" -> {
+                            rows++;
+                            columns = Math.max(columns, rowColumns);
+                        }
+                        default -> {
+                        }
+                    }
+                } else if (inValue && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) && !reader.getText().isEmpty()) {
+                    hasValue = true;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        long dataRows = Math.max(0, rows - 1);
+        List<Double> nullRatios = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            long values = i < valueCounts.length ? valueCounts[i] : 0;
+            nullRatios.add(dataRows == 0 ? 0.0 : (double) (dataRows - values) / dataRows);
+        }
+        return new XlsxStats(rows, columns, nullRatios);
+    }
+}
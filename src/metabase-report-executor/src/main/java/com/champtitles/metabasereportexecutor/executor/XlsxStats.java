@@ -0,0 +1,20 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import java.util.List;
+
+/**
+ * Shape of the first worksheet of an XLSX report
+ *
+ * @param rows       number of rows, including the header
+ * @param columns    number of columns in the widest row
+ * @param nullRatios fraction of data rows with no value, for each column
+ */
+public record XlsxStats(long rows, int columns, List<Double> nullRatios) {
+
+    /**
+     * @return number of rows below the header
+     */
+    public long dataRows() {
+        return Math.max(0, rows - 1);
+    }
+}
@@ -0,0 +1,368 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Converts the first worksheet of an XLSX export to CSV, so that reports can be queried with Athena.
+ * <p>
+ * The worksheet is read one cell at a time with a StAX parser, the same event based approach as POI's
+ * XSSFReader, so only the shared strings table is held in memory rather than the whole workbook. Cells
+ * with a date number format are written as ISO dates and all other cells as the value stored in the workbook.
+ */
+final class XlsxTranscoder {
+
+    private static final String WORKBOOK = "xl/workbook.xml";
+    private static final String WORKBOOK_RELS = "xl/_rels/workbook.xml.rels";
+    private static final String SHARED_STRINGS = "xl/sharedStrings.xml";
+    private static final String STYLES = "xl/styles.xml";
+    private static final String DEFAULT_SHEET = "xl/worksheets/sheet1.xml";
+    private static final String RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final LocalDateTime EPOCH = LocalDateTime.of(1899, 12, 30, 0, 0);
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private XlsxTranscoder() {
+    }
+
+    /**
+     * Write the first worksheet of a workbook as CSV. The output stream is flushed but not closed.
+     *
+     * @param xlsxFile     workbook to read
+     * @param outputStream stream receiving the CSV
+     * @return number of rows written, including the header
+     * @throws IOException if the workbook could not be read or the CSV written
+     */
+    static long toCsv(Path xlsxFile, OutputStream outputStream) throws IOException {
+        try (ZipFile zipFile = new ZipFile(xlsxFile.toFile())) {
+            List<String> sharedStrings = readSharedStrings(zipFile);
+            boolean[] dateStyles = readDateStyles(zipFile);
+            ZipEntry sheet = zipFile.getEntry(getFirstSheetPath(zipFile));
+            if (sheet == null) {
+                throw new IOException("workbook has no worksheet");
+            }
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            long rows;
+            try (InputStream inputStream = zipFile.getInputStream(sheet)) {
+                rows = writeRows(inputStream, sharedStrings, dateStyles, writer);
+            }
+            writer.flush();
+            return rows;
+
+        } catch (XMLStreamException e) {
+            throw new IOException("unable to parse workbook: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stream the rows of a worksheet to CSV. Missing cells are written as empty fields.
+     */
+    private static long writeRows(InputStream inputStream, List<String> sharedStrings, boolean[] dateStyles, Writer writer)
+            throws XMLStreamException, IOException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+        List<String> fields = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        String cellType = null;
+        int cellStyle = 0;
+        boolean inValue = false;
+        long rows = 0;
+
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT -> {
+                        switch (reader.getLocalName()) {
+                            case "row" -> fields.clear();
+                            case "c" -> {
+                                String ref = reader.getAttributeValue(null, "r");
+                                int column = ref == null ? fields.size() : getColumnIndex(ref);
+                                while (fields.size() < column) {
+                                    fields.add("");
+                                }
+                                cellType = reader.getAttributeValue(null, "t");
+                                String style = reader.getAttributeValue(null, "s");
+                                cellStyle = style == null ? 0 : Integer.parseInt(style);
+                                value.setLength(0);
+                            }
+                            case "v", "t" -> inValue = true;
+                            default -> {
+                            }
+                        }
+                    }
+                    case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA -> {
+                        if (inValue) {
+                            value.append(reader.getText());
+                        }
+                    }
+                    case XMLStreamConstants.END_ELEMENT -> {
+                        switch (reader.getLocalName()) {
+                            case "v", "t" -> inValue = false;
+                            case "c" -> fields.add(formatCell(cellType, cellStyle, value.toString(), sharedStrings, dateStyles));
+                            case "row" -> {
+                                writeRow(fields, writer);
+                                rows++;
+                            }
+                            default -> {
+                            }
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    /**
+     * @param cellType      type attribute of the cell (ex: s for a shared string)
+     * @param cellStyle     index of the cell format
+     * @param value         text of the value element
+     * @param sharedStrings shared strings table of the workbook
+     * @param dateStyles    whether each cell format is a date
+     * @return value written to the CSV
+     */
+    static String formatCell(String cellType, int cellStyle, String value, List<String> sharedStrings, boolean[] dateStyles) {
+        if (cellType == null || "n".equals(cellType)) {
+            if (!value.isEmpty() && cellStyle < dateStyles.length && dateStyles[cellStyle]) {
+                return formatDate(Double.parseDouble(value));
+            }
+            return value;
+        }
+        return switch (cellType) {
+            case "s" -> sharedStrings.get(Integer.parseInt(value.trim()));
+            case "b" -> "1".equals(value) ? "TRUE" : "FALSE";
+            default -> value;
+        };
+    }
+
+    /**
+     * @param serial days since 1899-12-30 in the 1900 date system, with the time as the fraction
+     * @return ISO date, with the time when it is not midnight (ex: 2023-04-04 or 2023-04-04 07:30:00)
+     */
+    static String formatDate(double serial) {
+        long days = (long) Math.floor(serial);
+        long millis = Math.round((serial - days) * 86_400_000);
+        LocalDateTime dateTime = EPOCH.plusDays(days).plusNanos(millis * 1_000_000);
+        if (millis == 0) {
+            return LocalDate.from(dateTime).toString();
+        }
+        return dateTime.format(DATE_TIME_FORMAT);
+    }
+
+    /**
+     * @param ref cell reference (ex: AB12)
+     * @return zero based column index (ex: 27)
+     */
+    static int getColumnIndex(String ref) {
+        int column = 0;
+        for (int i = 0; i < ref.length() && Character.isLetter(ref.charAt(i)); i++) {
+            column = column * 26 + (Character.toUpperCase(ref.charAt(i)) - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+    private static void writeRow(List<String> fields, Writer writer) throws IOException {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(escape(fields.get(i)));
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * @param field CSV field
+     * @return field quoted if it contains a separator, quote or line break
+     */
+    static String escape(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Read the shared strings table, joining the text runs of each string and skipping phonetic hints
+     */
+    private static List<String> readSharedStrings(ZipFile zipFile) throws IOException, XMLStreamException {
+        List<String> sharedStrings = new ArrayList<>();
+        ZipEntry entry = zipFile.getEntry(SHARED_STRINGS);
+        if (entry == null) {
+            return sharedStrings;
+        }
+
+        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+            StringBuilder text = new StringBuilder();
+            boolean inText = false;
+            boolean inPhonetic = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "si" -> text.setLength(0);
+                        case "rPh" -> inPhonetic = true;
+                        case "t" -> inText = !inPhonetic;
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "si" -> sharedStrings.add(text.toString());
+                        case "rPh" -> inPhonetic = false;
+                        case "t" -> inText = false;
+                        default -> {
+                        }
+                    }
+                } else if (inText && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                    text.append(reader.getText());
+                }
+            }
+            reader.close();
+        }
+        return sharedStrings;
+    }
+
+    /**
+     * Find which cell formats display a date, from the number format of each format in the styles table
+     *
+     * @return flag for each cell format index
+     */
+    private static boolean[] readDateStyles(ZipFile zipFile) throws IOException, XMLStreamException {
+        ZipEntry entry = zipFile.getEntry(STYLES);
+        if (entry == null) {
+            return new boolean[0];
+        }
+
+        Map<Integer, String> customFormats = new HashMap<>();
+        List<Integer> cellFormats = new ArrayList<>();
+        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+            boolean inCellFormats = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "numFmt" -> customFormats.put(Integer.parseInt(reader.getAttributeValue(null, "numFmtId")),
+                                reader.getAttributeValue(null, "formatCode"));
+                        case "cellXfs" -> inCellFormats = true;
+                        case "xf" -> {
+                            if (inCellFormats) {
+                                String numFmtId = reader.getAttributeValue(null, "numFmtId");
+                                cellFormats.add(numFmtId == null ? 0 : Integer.parseInt(numFmtId));
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "cellXfs".equals(reader.getLocalName())) {
+                    inCellFormats = false;
+                }
+            }
+            reader.close();
+        }
+
+        boolean[] dateStyles = new boolean[cellFormats.size()];
+        for (int i = 0; i < dateStyles.length; i++) {
+            int formatId = cellFormats.get(i);
+            dateStyles[i] = isDateFormat(formatId, customFormats.get(formatId));
+        }
+        return dateStyles;
+    }
+
+    /**
+     * @param formatId   number format id
+     * @param formatCode format code of a custom number format, or null for a built-in format
+     * @return true if the format displays a date or time
+     */
+    static boolean isDateFormat(int formatId, String formatCode) {
+        if ((formatId >= 14 && formatId <= 22) || (formatId >= 45 && formatId <= 47)) {
+            return true;
+        }
+        if (formatCode == null) {
+            return false;
+        }
+        // ignore literal text and colors, which may contain date letters without being dates
+        String code = formatCode.replaceAll("\"[^\"]*\"|\\[[^]]*]|\\\\.", "").toLowerCase();
+        return !code.contains("general") && code.matches(".*[ymdhs].*");
+    }
+
+    /**
+     * Find the first worksheet in workbook order, falling back to sheet1 when the workbook does not say
+     *
+     * @return path of the worksheet in the package
+     */
+    private static String getFirstSheetPath(ZipFile zipFile) throws IOException, XMLStreamException {
+        String relationshipId = readFirstAttribute(zipFile, WORKBOOK, "sheet", RELATIONSHIPS_NAMESPACE, "id", null);
+        if (relationshipId == null) {
+            return DEFAULT_SHEET;
+        }
+        String target = readFirstAttribute(zipFile, WORKBOOK_RELS, "Relationship", null, "Target", relationshipId);
+        if (target == null) {
+            return DEFAULT_SHEET;
+        }
+        return target.startsWith("/") ? target.substring(1) : "xl/" + target;
+    }
+
+    /**
+     * @param entryName      package part to read
+     * @param element        name of the element
+     * @param namespace      namespace of the attribute, or null for none
+     * @param attribute      name of the attribute to return
+     * @param relationshipId only match elements with this Id attribute, or null to match the first element
+     * @return value of the attribute, or null if not found
+     */
+    private static String readFirstAttribute(ZipFile zipFile, String entryName, String element, String namespace, String attribute,
+                                             String relationshipId) throws IOException, XMLStreamException {
+        ZipEntry entry = zipFile.getEntry(entryName);
+        if (entry == null) {
+            return null;
+        }
+
+        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && element.equals(reader.getLocalName())
+                            && (relationshipId == null || relationshipId.equals(reader.getAttributeValue(null, "Id")))) {
+                        return reader.getAttributeValue(namespace, attribute);
+                    }
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
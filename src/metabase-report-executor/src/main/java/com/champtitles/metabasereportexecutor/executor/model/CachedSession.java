@@ -0,0 +1,4 @@
+package com.champtitles.metabasereportexecutor.executor.model;
+
+public record CachedSession(String id, long expiresAtEpochMillis) {
+}
@@ -0,0 +1,16 @@
+package com.champtitles.metabasereportexecutor.executor.model;
+
+import java.util.List;
+
+public record CardQueryParameter(String type, Object value, List<Object> target) {
+
+    /**
+     * Create a parameter which sets a template tag variable of a native query card
+     *
+     * @param name  name of the template tag (ex: region)
+     * @param value value of the variable
+     */
+    public static CardQueryParameter templateTag(String name, Object value) {
+        return new CardQueryParameter("category", value, List.of("variable", List.of("template-tag", name)));
+    }
+}
@@ -0,0 +1,6 @@
+package com.champtitles.metabasereportexecutor.executor.model;
+
+import java.util.List;
+
+public record CardQueryRequest(List<CardQueryParameter> parameters) {
+}
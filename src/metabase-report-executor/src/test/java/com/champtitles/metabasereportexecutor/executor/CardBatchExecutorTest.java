@@ -0,0 +1,177 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+
+public class CardBatchExecutorTest {
+
+    @Mock
+    private MetabaseClient metabaseClient;
+
+    @Mock
+    private S3Writer s3Writer;
+
+    private CardBatchExecutor cardBatchExecutor;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        cardBatchExecutor = new CardBatchExecutor(metabaseClient, s3Writer, ExportSettings.of(2), ResultCache.disabled(), MetricsLogger.disabled());
+    }
+
+    @Test
+    void execute_returnsResultForEachCard_inOrder() {
+        InputStream card1 = new ByteArrayInputStream("one".getBytes());
+        InputStream card2 = new ByteArrayInputStream("two".getBytes());
+        Mockito.when(metabaseClient.queryCardExportStream(eq("1"), eq(ExportFormat.XLSX), eq(Map.of()), any(Deadline.class))).thenReturn(card1);
+        Mockito.when(metabaseClient.queryCardExportStream(eq("2"), eq(ExportFormat.XLSX), eq(Map.of()), any(Deadline.class))).thenReturn(card2);
+        Mockito.when(s3Writer.upload(any(InputStream.class), eq("card1"), eq(ExportFormat.XLSX), eq(Compression.NONE), any(Deadline.class))).thenReturn("key1");
+        Mockito.when(s3Writer.upload(any(InputStream.class), eq("card2"), eq(ExportFormat.XLSX), eq(Compression.NONE), any(Deadline.class))).thenReturn("key2");
+
+        List<CardResult> results = cardBatchExecutor.execute(List.of("1", "2"));
+
+        assertEquals(2, results.size());
+        assertEquals("1", results.get(0).cardId());
+        assertEquals("key1", results.get(0).s3Key());
+        assertTrue(results.get(0).success());
+        assertEquals("2", results.get(1).cardId());
+        assertEquals("key2", results.get(1).s3Key());
+        assertTrue(results.get(1).success());
+    }
+
+    @Test
+    void execute_continuesWithRemainingCards_whenOneFails() {
+        InputStream card2 = new ByteArrayInputStream("two".getBytes());
+        Mockito.when(metabaseClient.queryCardExportStream(eq("1"), eq(ExportFormat.XLSX), eq(Map.of()), any(Deadline.class))).thenThrow(new RuntimeException("boom"));
+        Mockito.when(metabaseClient.queryCardExportStream(eq("2"), eq(ExportFormat.XLSX), eq(Map.of()), any(Deadline.class))).thenReturn(card2);
+        Mockito.when(s3Writer.upload(any(InputStream.class), eq("card2"), eq(ExportFormat.XLSX), eq(Compression.NONE), any(Deadline.class))).thenReturn("key2");
+
+        List<CardResult> results = cardBatchExecutor.execute(List.of("1", "2"));
+
+        assertFalse(results.get(0).success());
+        assertEquals("boom", results.get(0).error());
+        assertNull(results.get(0).s3Key());
+        assertTrue(results.get(1).success());
+        Mockito.verify(s3Writer, Mockito.times(1)).upload(any(InputStream.class), eq("card2"), eq(ExportFormat.XLSX), eq(Compression.NONE), any(Deadline.class));
+    }
+
+    @Test
+    void execute_returnsUnchangedResult_whenUploadIsSkipped() {
+        cardBatchExecutor = new CardBatchExecutor(metabaseClient, s3Writer,
+                ExportSettings.of(2).withFormat(ExportFormat.CSV, Compression.NONE).withMode(ExportMode.SKIP_UNCHANGED), ResultCache.disabled(), MetricsLogger.disabled());
+        InputStream card1 = new ByteArrayInputStream("one".getBytes());
+        Mockito.when(metabaseClient.queryCardExportStream(eq("1"), eq(ExportFormat.CSV), eq(Map.of()), any(Deadline.class))).thenReturn(card1);
+        Mockito.when(s3Writer.uploadIfChanged(any(InputStream.class), eq("card1"), eq(ExportFormat.CSV), eq(Compression.NONE), any(Deadline.class))).thenReturn(Optional.empty());
+
+        List<CardResult> results = cardBatchExecutor.execute(List.of("1"));
+
+        assertTrue(results.get(0).success());
+        assertTrue(results.get(0).unchanged());
+        assertNull(results.get(0).s3Key());
+        Mockito.verify(s3Writer, Mockito.never()).upload(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void execute_returnsDeltaResult_withDeltaMode() {
+        cardBatchExecutor = new CardBatchExecutor(metabaseClient, s3Writer,
+                ExportSettings.of(2).withFormat(ExportFormat.CSV, Compression.NONE).withMode(ExportMode.DELTA), ResultCache.disabled(), MetricsLogger.disabled());
+        InputStream card1 = new ByteArrayInputStream("one".getBytes());
+        Mockito.when(metabaseClient.queryCardExportStream(eq("1"), eq(ExportFormat.CSV), eq(Map.of()), any(Deadline.class))).thenReturn(card1);
+        Mockito.when(s3Writer.uploadDelta(any(InputStream.class), eq("card1"), eq(ExportFormat.CSV), eq(Compression.NONE), any(Deadline.class))).thenReturn(new DeltaSummary("key1", 10, 2, 8, 1));
+
+        CardResult result = cardBatchExecutor.execute(List.of("1")).get(0);
+
+        assertTrue(result.success());
+        assertFalse(result.unchanged());
+        assertEquals("key1", result.s3Key());
+        assertEquals(2, result.delta().added());
+    }
+
+    @Test
+    void constructor_throwsException_withXlsxDeltaMode() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new CardBatchExecutor(metabaseClient, s3Writer, ExportSettings.of(2).withMode(ExportMode.DELTA), ResultCache.disabled(), MetricsLogger.disabled()));
+    }
+
+    @Test
+    void getNamePrefix_addsParameterHash_withParameters() {
+        assertEquals("card1", CardBatchExecutor.getNamePrefix("1", Map.of()));
+        assertTrue(CardBatchExecutor.getNamePrefix("1", Map.of("region", "CA")).matches("card1-[0-9a-f]{8}"));
+    }
+
+    @Test
+    void execute_failsCardsWithoutQuerying_whenDeadlineHasPassed() {
+        List<CardResult> results = cardBatchExecutor.execute(List.of("1", "2"), Map.of(), Deadline.after("invocation", Duration.ZERO));
+
+        assertEquals(2, results.size());
+        assertFalse(results.get(0).success());
+        assertFalse(results.get(1).success());
+        assertTrue(results.get(0).error().contains("deadline exceeded"));
+        Mockito.verifyNoInteractions(metabaseClient, s3Writer);
+    }
+
+    @Test
+    void execute_emitsCardMetrics_withBytesRead() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cardBatchExecutor = new CardBatchExecutor(metabaseClient, s3Writer, ExportSettings.of(2), ResultCache.disabled(),
+                new MetricsLogger("Test", "executor", new PrintStream(out, true)));
+        Mockito.when(metabaseClient.queryCardExportStream(eq("1"), eq(ExportFormat.XLSX), eq(Map.of()), any(Deadline.class)))
+                .thenReturn(new ByteArrayInputStream("one".getBytes()));
+        Mockito.when(s3Writer.upload(any(InputStream.class), eq("card1"), eq(ExportFormat.XLSX), eq(Compression.NONE), any(Deadline.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<InputStream>getArgument(0).readAllBytes();
+                    return "key1";
+                });
+
+        cardBatchExecutor.execute(List.of("1"));
+
+        String metrics = out.toString();
+        assertTrue(metrics.contains("\"CardId\":\"1\""));
+        assertTrue(metrics.contains("\"ExportBytes\":3"));
+        assertTrue(metrics.contains("\"ExportFailures\":0"));
+        assertTrue(metrics.contains("\"QueryLatency\":"));
+    }
+
+    @Test
+    void execute_uploadsCsvCopy_withTranscoding() {
+        cardBatchExecutor = new CardBatchExecutor(metabaseClient, s3Writer, ExportSettings.of(2).withTranscodeToCsv(true), ResultCache.disabled(), MetricsLogger.disabled());
+        Mockito.when(metabaseClient.queryCardExportStream(eq("1"), eq(ExportFormat.XLSX), eq(Map.of()), any(Deadline.class)))
+                .thenReturn(new ByteArrayInputStream("one".getBytes()));
+        Mockito.when(s3Writer.upload(any(InputStream.class), eq("card1"), eq(ExportFormat.XLSX), eq(Compression.NONE), any(Deadline.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<InputStream>getArgument(0).readAllBytes();
+                    return "key1";
+                });
+        Mockito.when(s3Writer.uploadCsvCopy(any(Path.class), eq("key1"), eq(Compression.NONE), any(Deadline.class)))
+                .thenThrow(new RuntimeException("not a workbook"));
+
+        CardResult result = cardBatchExecutor.execute(List.of("1")).get(0);
+
+        assertTrue(result.success());
+        assertEquals("key1", result.s3Key());
+        Mockito.verify(s3Writer).uploadCsvCopy(any(Path.class), eq("key1"), eq(Compression.NONE), any(Deadline.class));
+    }
+
+    @Test
+    void execute_returnsEmptyList_withNoCards() {
+        assertTrue(cardBatchExecutor.execute(List.of()).isEmpty());
+        Mockito.verifyNoInteractions(metabaseClient, s3Writer);
+    }
+}
@@ -0,0 +1,68 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import javax.net.ssl.SSLSession;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ConnectionStatsTest {
+
+    @Mock
+    private HttpResponse<String> httpResponse;
+
+    @Mock
+    private SSLSession sslSession;
+
+    private final ConnectionStats connectionStats = new ConnectionStats();
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    void record_countsNewHandshake_whenSessionCreatedAfterRequestWasSent() {
+        Mockito.when(httpResponse.sslSession()).thenReturn(Optional.of(sslSession));
+        Mockito.when(sslSession.getCreationTime()).thenReturn(2000L);
+
+        connectionStats.record(httpResponse, 1000L);
+        assertEquals(1, connectionStats.getRequests());
+        assertEquals(1, connectionStats.getNewHandshakes());
+        assertEquals(0, connectionStats.getReusedSessions());
+    }
+
+    @Test
+    void record_countsReusedSession_whenSessionCreatedBeforeRequestWasSent() {
+        Mockito.when(httpResponse.sslSession()).thenReturn(Optional.of(sslSession));
+        Mockito.when(httpResponse.version()).thenReturn(HttpClient.Version.HTTP_2);
+        Mockito.when(sslSession.getCreationTime()).thenReturn(500L);
+
+        connectionStats.record(httpResponse, 1000L);
+        assertEquals(1, connectionStats.getRequests());
+        assertEquals(0, connectionStats.getNewHandshakes());
+        assertEquals(1, connectionStats.getReusedSessions());
+        assertEquals(1, connectionStats.getHttp2Responses());
+    }
+
+    @Test
+    void record_onlyCountsRequest_withPlainHttp() {
+        Mockito.when(httpResponse.sslSession()).thenReturn(Optional.empty());
+
+        connectionStats.record(httpResponse, 1000L);
+        connectionStats.record(httpResponse, 1000L);
+        assertEquals(2, connectionStats.getRequests());
+        assertEquals(0, connectionStats.getNewHandshakes());
+        assertEquals(0, connectionStats.getReusedSessions());
+
+        connectionStats.reset();
+        assertEquals(0, connectionStats.getRequests());
+    }
+}
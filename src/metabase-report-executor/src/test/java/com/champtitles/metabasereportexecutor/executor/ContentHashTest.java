@@ -0,0 +1,64 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContentHashTest {
+
+    @Test
+    void copy_hashesCsvContent() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        String hash = ContentHash.copy(new ByteArrayInputStream("abc".getBytes()), outputStream, ExportFormat.CSV);
+
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash);
+        assertEquals("abc", outputStream.toString());
+    }
+
+    @Test
+    void copy_ignoresXlsxDocumentProperties() throws IOException {
+        byte[] first = createXlsx("2023-04-04T07:00:00Z", "data");
+        byte[] second = createXlsx("2023-04-05T07:00:00Z", "data");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        String firstHash = ContentHash.copy(new ByteArrayInputStream(first), outputStream, ExportFormat.XLSX);
+        String secondHash = ContentHash.copy(new ByteArrayInputStream(second), new ByteArrayOutputStream(), ExportFormat.XLSX);
+
+        assertEquals(firstHash, secondHash);
+        assertArrayEquals(first, outputStream.toByteArray());
+    }
+
+    @Test
+    void copy_detectsChangedXlsxData() throws IOException {
+        String firstHash = ContentHash.copy(new ByteArrayInputStream(createXlsx("2023-04-04T07:00:00Z", "data")), new ByteArrayOutputStream(), ExportFormat.XLSX);
+        String secondHash = ContentHash.copy(new ByteArrayInputStream(createXlsx("2023-04-04T07:00:00Z", "other")), new ByteArrayOutputStream(), ExportFormat.XLSX);
+
+        assertNotEquals(firstHash, secondHash);
+    }
+
+    @Test
+    void copy_returnsNull_whenXlsxIsNotAZipFile() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        assertNull(ContentHash.copy(new ByteArrayInputStream("not a zip file".getBytes()), outputStream, ExportFormat.XLSX));
+        assertEquals("not a zip file", outputStream.toString());
+    }
+
+    private static byte[] createXlsx(String created, String data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            zipOutputStream.putNextEntry(new ZipEntry("docProps/core.xml"));
+            zipOutputStream.write(created.getBytes());
+            zipOutputStream.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+            zipOutputStream.write(data.getBytes());
+        }
+        return outputStream.toByteArray();
+    }
+}
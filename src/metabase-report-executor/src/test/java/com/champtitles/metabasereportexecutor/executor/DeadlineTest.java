@@ -0,0 +1,141 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadlineTest {
+
+    @Test
+    void none_neverExpires() {
+        Deadline deadline = Deadline.none();
+
+        assertFalse(deadline.isBounded());
+        assertFalse(deadline.isExpired());
+        assertNull(deadline.limit(null));
+        assertEquals(Duration.ofSeconds(5), deadline.limit(Duration.ofSeconds(5)));
+        assertDoesNotThrow(deadline::check);
+    }
+
+    @Test
+    void forInvocation_neverExpires_withoutContext() {
+        assertFalse(Deadline.forInvocation(null).isBounded());
+    }
+
+    @Test
+    void stage_isGivenShareOfRemainingTime() {
+        Deadline deadline = Deadline.after("invocation", Duration.ofSeconds(100));
+
+        Deadline stage = deadline.stage("login", 0.1);
+
+        assertEquals("login", stage.getStage());
+        assertTrue(stage.remaining().compareTo(Duration.ofSeconds(10)) <= 0);
+        assertTrue(stage.remaining().compareTo(Duration.ofSeconds(9)) > 0);
+    }
+
+    @Test
+    void reserve_endsWithInvocation_afterStageHasExpired() {
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getRemainingTimeInMillis()).thenReturn(100_000);
+        Deadline stage = Deadline.forInvocation(context).stage("upload", 0);
+
+        Deadline reserve = stage.reserve("abort");
+
+        assertTrue(stage.isExpired());
+        assertTrue(reserve.remaining().compareTo(Duration.ofSeconds(90)) > 0);
+        assertFalse(Deadline.none().reserve("abort").isBounded());
+    }
+
+    @Test
+    void limit_usesShorterOfTimeoutAndRemainingTime() {
+        Deadline deadline = Deadline.after("export", Duration.ofSeconds(60));
+
+        assertEquals(Duration.ofSeconds(5), deadline.limit(Duration.ofSeconds(5)));
+        assertTrue(deadline.limit(Duration.ofMinutes(5)).compareTo(Duration.ofSeconds(60)) <= 0);
+        assertTrue(deadline.limit(null).compareTo(Duration.ofSeconds(60)) <= 0);
+    }
+
+    @Test
+    void limit_isAtLeastOneMillisecond_afterDeadline() {
+        Deadline deadline = Deadline.after("export", Duration.ZERO);
+
+        assertEquals(Duration.ofMillis(1), deadline.limit(Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void check_throwsWithStage_afterDeadline() {
+        Deadline deadline = Deadline.after("upload", Duration.ZERO);
+
+        assertTrue(deadline.isExpired());
+        DeadlineExceededException exception = assertThrows(DeadlineExceededException.class, deadline::check);
+        assertEquals("upload", exception.getStage());
+    }
+
+    @Test
+    void wrap_stopsReading_afterDeadline() throws IOException {
+        InputStream inputStream = Deadline.after("upload", Duration.ZERO).wrap(new ByteArrayInputStream("data".getBytes()));
+
+        assertThrows(DeadlineExceededException.class, inputStream::read);
+    }
+
+    @Test
+    void wrap_stopsBlockedRead_atDeadline() {
+        CountDownLatch closed = new CountDownLatch(1);
+        InputStream blockingStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return -1;
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        InputStream inputStream = Deadline.after("export", Duration.ofMillis(100)).wrap(blockingStream);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            assertThrows(DeadlineExceededException.class, () -> inputStream.read(new byte[16]));
+            assertFalse(Thread.currentThread().isInterrupted());
+        });
+        assertEquals(0, closed.getCount());
+    }
+
+    @Test
+    void wrap_readsWholeStream_beforeDeadline() throws IOException {
+        try (InputStream inputStream = Deadline.after("export", Duration.ofSeconds(60)).wrap(new ByteArrayInputStream("data".getBytes()))) {
+            assertEquals("data", new String(inputStream.readAllBytes()));
+        }
+    }
+
+    @Test
+    void wrap_cancelsTimer_whenClosed() throws IOException, InterruptedException {
+        AtomicInteger closes = new AtomicInteger();
+        InputStream countingStream = new ByteArrayInputStream("data".getBytes()) {
+            @Override
+            public void close() {
+                closes.incrementAndGet();
+            }
+        };
+
+        Deadline.after("export", Duration.ofMillis(50)).wrap(countingStream).close();
+        Thread.sleep(200);
+
+        assertEquals(1, closes.get());
+    }
+}
@@ -0,0 +1,39 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.champtitles.metabasereportexecutor.executor.model.CachedSession;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileSessionStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void load_returnsEmpty_whenNoSessionSaved() {
+        FileSessionStore sessionStore = new FileSessionStore(tempDir.resolve("session.json"));
+        assertTrue(sessionStore.load().isEmpty());
+    }
+
+    @Test
+    void save_thenLoad_returnsSameSession() {
+        FileSessionStore sessionStore = new FileSessionStore(tempDir.resolve("session.json"));
+        sessionStore.save(new CachedSession("abc123", 1234L));
+
+        Optional<CachedSession> session = new FileSessionStore(tempDir.resolve("session.json")).load();
+        assertEquals(new CachedSession("abc123", 1234L), session.orElseThrow());
+    }
+
+    @Test
+    void clear_removesSavedSession() {
+        FileSessionStore sessionStore = new FileSessionStore(tempDir.resolve("session.json"));
+        sessionStore.save(new CachedSession("abc123", 1234L));
+        sessionStore.clear();
+        assertTrue(sessionStore.load().isEmpty());
+    }
+}
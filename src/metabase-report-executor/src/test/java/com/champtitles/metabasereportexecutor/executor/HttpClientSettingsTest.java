@@ -0,0 +1,42 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpClientSettingsTest {
+
+    @Test
+    void of_parsesVersionAndTimeouts() {
+        HttpClientSettings settings = HttpClientSettings.of(" http_2 ", 10, 60, 4);
+        assertEquals(HttpClient.Version.HTTP_2, settings.version());
+        assertEquals(Duration.ofSeconds(10), settings.connectTimeout());
+        assertEquals(Duration.ofSeconds(60), settings.requestTimeout());
+        assertEquals(4, settings.executorThreads());
+    }
+
+    @Test
+    void of_disablesTimeouts_withZero() {
+        HttpClientSettings settings = HttpClientSettings.of("HTTP_1_1", 0, 0, -1);
+        assertNull(settings.connectTimeout());
+        assertNull(settings.requestTimeout());
+        assertEquals(0, settings.executorThreads());
+    }
+
+    @Test
+    void createHttpClient_appliesSettings() {
+        HttpClient httpClient = HttpClientSettings.of("HTTP_2", 5, 0, 2).createHttpClient();
+        assertEquals(HttpClient.Version.HTTP_2, httpClient.version());
+        assertEquals(Optional.of(Duration.ofSeconds(5)), httpClient.connectTimeout());
+        assertTrue(httpClient.executor().isPresent());
+    }
+
+    @Test
+    void of_throwsException_withUnknownVersion() {
+        assertThrows(IllegalArgumentException.class, () -> HttpClientSettings.of("HTTP_3", 0, 0, 0));
+    }
+}
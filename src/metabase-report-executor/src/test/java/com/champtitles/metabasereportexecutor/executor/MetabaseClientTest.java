@@ -1,5 +1,6 @@
 package com.champtitles.metabasereportexecutor.executor;
 
+import com.champtitles.metabasereportexecutor.executor.model.CachedSession;
 import com.champtitles.metabasereportexecutor.executor.model.SessionPropertiesResponse;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -8,13 +9,23 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.eq;
@@ -32,15 +43,18 @@ class MetabaseClientTest {
     @Mock
     private HttpResponse<byte[]> httpResponseBytes;
 
+    @Mock
+    private HttpResponse<InputStream> httpResponseInputStream;
+
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
-        metabaseClient = new MetabaseClient("http://localhost:12345", "test@example.com", "test123", "abc123", httpClient);
+        metabaseClient = new MetabaseClient(MetabaseClientSettings.of("http://localhost:12345", "test@example.com", () -> "test123", "abc123"), httpClient, null);
     }
 
     @Test
-    void getSessionProperties_returnsSetupToken_with200Response() throws IOException, InterruptedException, URISyntaxException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void getSessionProperties_returnsSetupToken_with200Response() throws URISyntaxException {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("""
                 {"setup-token":"abc123"}
@@ -48,37 +62,37 @@ class MetabaseClientTest {
 
         SessionPropertiesResponse sessionPropertiesResponse = metabaseClient.getSessionProperties();
         HttpRequest expectedHttpRequest = HttpRequest.newBuilder().uri(new URI("http://localhost:12345/api/session/properties")).GET().build();
-        Mockito.verify(this.httpClient, Mockito.times(1)).send(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofString()));
         assertEquals("abc123", sessionPropertiesResponse.setupToken());
     }
 
     @Test
-    void getSessionProperties_throwsRuntimeException_withBadResponseBody() throws IOException, InterruptedException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void getSessionProperties_throwsRuntimeException_withBadResponseBody() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("foo");
 
         assertThrows(RuntimeException.class, () -> {
             metabaseClient.getSessionProperties();
         });
-        Mockito.verify(this.httpClient, Mockito.times(1)).send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
     }
 
     @Test
-    void getSessionProperties_throwsRuntimeException_withUnexpectedStatusCode() throws IOException, InterruptedException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void getSessionProperties_throwsRuntimeException_withUnexpectedStatusCode() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(400);
         Mockito.when(httpResponseString.body()).thenReturn("invalid request");
 
         assertThrows(RuntimeException.class, () -> {
             metabaseClient.getSessionProperties();
         });
-        Mockito.verify(this.httpClient, Mockito.times(1)).send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
     }
 
     @Test
-    void completeInitialSetup() throws IOException, InterruptedException, URISyntaxException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void completeInitialSetup() throws URISyntaxException {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("done");
 
@@ -108,12 +122,12 @@ class MetabaseClientTest {
                         }
                         """))
                 .build();
-        Mockito.verify(this.httpClient, Mockito.times(1)).send(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofString()));
     }
 
     @Test
-    void loginAndGetSession_returnsSessionId_with200Response() throws IOException, InterruptedException, URISyntaxException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void loginAndGetSession_returnsSessionId_with200Response() throws URISyntaxException {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("""
                 {"id":"abc123"}
@@ -133,77 +147,77 @@ class MetabaseClientTest {
                         }
                         """))
                 .build();
-        Mockito.verify(this.httpClient, Mockito.times(1)).send(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofString()));
     }
 
     @Test
-    void loginAndGetSession_throwsRuntimeException_withBadResponseBody() throws IOException, InterruptedException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void loginAndGetSession_throwsRuntimeException_withBadResponseBody() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("foo");
 
         assertThrows(RuntimeException.class, () -> {
             metabaseClient.loginAndGetSession();
         });
-        Mockito.verify(this.httpClient, Mockito.times(1)).send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
     }
 
     @Test
-    void createCard_returnsCardId_with202Response() throws IOException, InterruptedException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void createCard_returnsCardId_with202Response() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("""
                 {"id":"abc123"}
                 """);
         metabaseClient.loginAndGetSession();
 
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(202);
         Mockito.when(httpResponseString.body()).thenReturn("""
                 {"id":"1"}
                 """);
         String cardId = metabaseClient.createCard("test");
         assertEquals("1", cardId);
-        Mockito.verify(this.httpClient, Mockito.times(2)).send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(2)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
     }
 
     @Test
-    void createCard_throwsRuntimeException_withMissingSessionId() throws IOException, InterruptedException {
+    void createCard_throwsRuntimeException_withMissingSessionId() {
         assertThrows(RuntimeException.class, () -> {
             metabaseClient.createCard("test");
         });
-        Mockito.verify(this.httpClient, Mockito.times(0)).send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(0)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
     }
 
     @Test
-    void createCard_throwsRuntimeException_withBadResponseBody() throws IOException, InterruptedException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void createCard_throwsRuntimeException_withBadResponseBody() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("""
                 {"id":"abc123"}
                 """);
         metabaseClient.loginAndGetSession();
 
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("foo");
 
         assertThrows(RuntimeException.class, () -> {
             metabaseClient.createCard("test");
         });
-        Mockito.verify(this.httpClient, Mockito.times(2)).send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(2)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
     }
 
     @Test
-    void queryCardGetXlsx_returnsString_with200Response() throws IOException, InterruptedException, URISyntaxException {
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(httpResponseString);
+    void queryCardGetXlsx_returnsString_with200Response() throws URISyntaxException {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
         Mockito.when(httpResponseString.statusCode()).thenReturn(200);
         Mockito.when(httpResponseString.body()).thenReturn("""
                 {"id":"abc123"}
                 """);
         metabaseClient.loginAndGetSession();
 
-        Mockito.when(httpClient.send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofByteArray()))).thenReturn(httpResponseBytes);
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofByteArray()))).thenReturn(CompletableFuture.completedFuture(httpResponseBytes));
         Mockito.when(httpResponseBytes.statusCode()).thenReturn(200);
         Mockito.when(httpResponseBytes.body()).thenReturn("data".getBytes(StandardCharsets.US_ASCII));
 
@@ -216,14 +230,311 @@ class MetabaseClientTest {
                 .header("Cookie", "metabase.DEVICE=abc123")
                 .POST(HttpRequest.BodyPublishers.noBody())
                 .build();
-        Mockito.verify(this.httpClient, Mockito.times(1)).send(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofByteArray()));
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofByteArray()));
     }
 
     @Test
-    void queryCardGetXlsx_throwsRuntimeException_withMissingSessionId() throws IOException, InterruptedException {
+    void queryCardGetXlsx_throwsRuntimeException_withMissingSessionId() {
         assertThrows(RuntimeException.class, () -> {
             metabaseClient.queryCardGetXlsx("1");
         });
-        Mockito.verify(this.httpClient, Mockito.times(0)).send(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(0)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Test
+    void queryCardGetXlsxStream_returnsStream_with200Response() throws IOException, URISyntaxException {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()))).thenReturn(CompletableFuture.completedFuture(httpResponseInputStream));
+        Mockito.when(httpResponseInputStream.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseInputStream.headers()).thenReturn(HttpHeaders.of(Map.of(), (name, value) -> true));
+        Mockito.when(httpResponseInputStream.body()).thenReturn(new ByteArrayInputStream("data".getBytes(StandardCharsets.US_ASCII)));
+
+        try (InputStream data = metabaseClient.queryCardGetXlsxStream("1")) {
+            assertArrayEquals("data".getBytes(StandardCharsets.US_ASCII), data.readAllBytes());
+        }
+        HttpRequest expectedHttpRequest = HttpRequest
+                .newBuilder()
+                .uri(new URI("http://localhost:12345/api/card/1/query/xlsx"))
+                .header("X-Metabase-Session", "abc123")
+                .header("Cookie", "metabase.DEVICE=abc123")
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    @Test
+    void queryCardExportStream_usesFormatEndpoint_withCsv() throws IOException, URISyntaxException {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()))).thenReturn(CompletableFuture.completedFuture(httpResponseInputStream));
+        Mockito.when(httpResponseInputStream.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseInputStream.headers()).thenReturn(HttpHeaders.of(Map.of(), (name, value) -> true));
+        Mockito.when(httpResponseInputStream.body()).thenReturn(new ByteArrayInputStream("data".getBytes(StandardCharsets.US_ASCII)));
+
+        try (InputStream data = metabaseClient.queryCardExportStream("1", ExportFormat.CSV)) {
+            assertArrayEquals("data".getBytes(StandardCharsets.US_ASCII), data.readAllBytes());
+        }
+        HttpRequest expectedHttpRequest = HttpRequest
+                .newBuilder()
+                .uri(new URI("http://localhost:12345/api/card/1/query/csv"))
+                .header("X-Metabase-Session", "abc123")
+                .header("Cookie", "metabase.DEVICE=abc123")
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.eq(expectedHttpRequest), eq(HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    @Test
+    void queryCardExportStream_sendsParametersAsJsonBody() throws IOException {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()))).thenReturn(CompletableFuture.completedFuture(httpResponseInputStream));
+        Mockito.when(httpResponseInputStream.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseInputStream.headers()).thenReturn(HttpHeaders.of(Map.of(), (name, value) -> true));
+        Mockito.when(httpResponseInputStream.body()).thenReturn(new ByteArrayInputStream("data".getBytes(StandardCharsets.US_ASCII)));
+
+        try (InputStream data = metabaseClient.queryCardExportStream("1", ExportFormat.CSV, Map.of("region", "CA"))) {
+            assertArrayEquals("data".getBytes(StandardCharsets.US_ASCII), data.readAllBytes());
+        }
+        String expectedBody = """
+                {"parameters":[{"type":"category","value":"CA","target":["variable",["template-tag","region"]]}]}""";
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.argThat(request ->
+                request.uri().getPath().equals("/api/card/1/query/csv")
+                        && request.headers().firstValue("Content-Type").orElse("").equals("application/json")
+                        && request.bodyPublisher().orElseThrow().contentLength() == expectedBody.length()
+        ), eq(HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    @Test
+    void queryCardGetXlsxStream_throwsRuntimeException_withUnexpectedStatusCode() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()))).thenReturn(CompletableFuture.completedFuture(httpResponseInputStream));
+        Mockito.when(httpResponseInputStream.statusCode()).thenReturn(500);
+        Mockito.when(httpResponseInputStream.body()).thenReturn(new ByteArrayInputStream("error".getBytes(StandardCharsets.US_ASCII)));
+
+        assertThrows(RuntimeException.class, () -> {
+            metabaseClient.queryCardGetXlsxStream("1");
+        });
+    }
+
+    @Test
+    void queryCardGetXlsxStream_retriesBadGateway() throws IOException {
+        metabaseClient = new MetabaseClient(MetabaseClientSettings.of("http://localhost:12345", "test@example.com", () -> "test123", "abc123")
+                .withRetryPolicy(new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(1))), httpClient, null);
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()))).thenReturn(CompletableFuture.completedFuture(httpResponseInputStream));
+        Mockito.when(httpResponseInputStream.statusCode()).thenReturn(502, 200);
+        Mockito.when(httpResponseInputStream.headers()).thenReturn(HttpHeaders.of(Map.of(), (name, value) -> true));
+        Mockito.when(httpResponseInputStream.body()).thenReturn(new ByteArrayInputStream("bad gateway".getBytes(StandardCharsets.US_ASCII)),
+                new ByteArrayInputStream("xlsx".getBytes(StandardCharsets.US_ASCII)));
+
+        try (InputStream stream = metabaseClient.queryCardGetXlsxStream("1")) {
+            assertEquals("xlsx", new String(stream.readAllBytes(), StandardCharsets.US_ASCII));
+        }
+        Mockito.verify(httpClient, Mockito.times(2)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    @Test
+    void queryCardGetXlsxStream_doesNotRetryServerError() {
+        metabaseClient = new MetabaseClient(MetabaseClientSettings.of("http://localhost:12345", "test@example.com", () -> "test123", "abc123")
+                .withRetryPolicy(new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(1))), httpClient, null);
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()))).thenReturn(CompletableFuture.completedFuture(httpResponseInputStream));
+        Mockito.when(httpResponseInputStream.statusCode()).thenReturn(500);
+        Mockito.when(httpResponseInputStream.body()).thenReturn(new ByteArrayInputStream("error".getBytes(StandardCharsets.US_ASCII)));
+
+        MetabaseHttpException exception = assertThrows(MetabaseHttpException.class, () -> metabaseClient.queryCardGetXlsxStream("1"));
+        assertEquals(500, exception.getStatusCode());
+        Mockito.verify(httpClient, Mockito.times(1)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    @Test
+    void queryCardExportStream_limitsRequestTimeout_toDeadline() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()))).thenReturn(CompletableFuture.completedFuture(httpResponseInputStream));
+        Mockito.when(httpResponseInputStream.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseInputStream.headers()).thenReturn(HttpHeaders.of(Map.of(), (name, value) -> true));
+        Mockito.when(httpResponseInputStream.body()).thenReturn(new ByteArrayInputStream(new byte[0]));
+
+        metabaseClient.queryCardExportStream("1", ExportFormat.CSV, Map.of(), Deadline.after("export", Duration.ofSeconds(30)));
+
+        Mockito.verify(httpClient).sendAsync(Mockito.argThat(request -> request.timeout().isPresent()
+                && request.timeout().get().compareTo(Duration.ofSeconds(30)) <= 0), eq(HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    @Test
+    void queryCardExportStream_throwsDeadlineExceeded_withoutSending_afterDeadline() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        assertThrows(DeadlineExceededException.class,
+                () -> metabaseClient.queryCardExportStream("1", ExportFormat.CSV, Map.of(), Deadline.after("export", Duration.ZERO)));
+        Mockito.verify(httpClient, Mockito.never()).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    @Test
+    void queryCardGetXlsxStream_throwsRuntimeException_withMissingSessionId() {
+        assertThrows(RuntimeException.class, () -> {
+            metabaseClient.queryCardGetXlsxStream("1");
+        });
+        Mockito.verify(this.httpClient, Mockito.times(0)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    @Test
+    void getSession_logsInOnce_andReusesSessionUntilExpiry() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+
+        assertEquals("abc123", metabaseClient.getSession());
+        assertEquals("abc123", metabaseClient.getSession());
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Test
+    void getSession_usesSessionFromStore_withoutLoggingIn() {
+        SessionStore sessionStore = Mockito.mock(SessionStore.class);
+        Mockito.when(sessionStore.load()).thenReturn(Optional.of(new CachedSession("stored123", Instant.now().plusSeconds(60).toEpochMilli())));
+        metabaseClient = new MetabaseClient(MetabaseClientSettings.of("http://localhost:12345", "test@example.com", () -> "test123", "abc123")
+                .withSessionStore(sessionStore, Duration.ofHours(1)), httpClient, null);
+
+        assertEquals("stored123", metabaseClient.getSession());
+        Mockito.verify(this.httpClient, Mockito.times(0)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Test
+    void getSession_logsIn_whenStoredSessionHasExpired() {
+        SessionStore sessionStore = Mockito.mock(SessionStore.class);
+        Mockito.when(sessionStore.load()).thenReturn(Optional.of(new CachedSession("stored123", Instant.now().minusSeconds(60).toEpochMilli())));
+        metabaseClient = new MetabaseClient(MetabaseClientSettings.of("http://localhost:12345", "test@example.com", () -> "test123", "abc123")
+                .withSessionStore(sessionStore, Duration.ofHours(1)), httpClient, null);
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+
+        assertEquals("abc123", metabaseClient.getSession());
+        Mockito.verify(sessionStore, Mockito.times(1)).save(Mockito.argThat(session -> session.id().equals("abc123")));
+    }
+
+    @Test
+    void queryCardGetXlsx_logsInAgainAndRetries_with401Response() {
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(CompletableFuture.completedFuture(httpResponseString));
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+        metabaseClient.loginAndGetSession();
+
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofByteArray()))).thenReturn(CompletableFuture.completedFuture(httpResponseBytes));
+        Mockito.when(httpResponseBytes.statusCode()).thenReturn(401, 200);
+        Mockito.when(httpResponseBytes.body()).thenReturn("data".getBytes(StandardCharsets.US_ASCII));
+
+        byte[] data = metabaseClient.queryCardGetXlsx("1");
+        assertArrayEquals("data".getBytes(StandardCharsets.US_ASCII), data);
+        Mockito.verify(this.httpClient, Mockito.times(2)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        Mockito.verify(this.httpClient, Mockito.times(2)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofByteArray()));
+    }
+
+    @Test
+    void loginAndGetSessionAsync_sharesLoginInProgress() {
+        CompletableFuture<HttpResponse<String>> pendingResponse = new CompletableFuture<>();
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(pendingResponse);
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+
+        CompletableFuture<String> first = metabaseClient.loginAndGetSessionAsync();
+        CompletableFuture<String> second = metabaseClient.loginAndGetSessionAsync();
+        assertFalse(first.isDone());
+        pendingResponse.complete(httpResponseString);
+
+        assertSame(first, second);
+        assertEquals("abc123", first.join());
+        Mockito.verify(this.httpClient, Mockito.times(1)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Test
+    void loginAndGetSessionAsync_resolvesPasswordAndSavesSession_outsideResponseThread() {
+        SessionStore sessionStore = Mockito.mock(SessionStore.class);
+        AtomicReference<Thread> savingThread = new AtomicReference<>();
+        Mockito.doAnswer(invocation -> {
+            savingThread.set(Thread.currentThread());
+            return null;
+        }).when(sessionStore).save(Mockito.any());
+        MetabaseClient[] client = new MetabaseClient[1];
+        client[0] = new MetabaseClient(MetabaseClientSettings.of("http://localhost:12345", "test@example.com", () -> {
+            assertFalse(Thread.holdsLock(client[0]));
+            return "test123";
+        }, "abc123").withSessionStore(sessionStore, Duration.ofHours(1)), httpClient, null);
+        CompletableFuture<HttpResponse<String>> pendingResponse = new CompletableFuture<>();
+        Mockito.when(httpClient.sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(pendingResponse);
+        Mockito.when(httpResponseString.statusCode()).thenReturn(200);
+        Mockito.when(httpResponseString.body()).thenReturn("""
+                {"id":"abc123"}
+                """);
+
+        CompletableFuture<String> session = client[0].loginAndGetSessionAsync();
+        pendingResponse.complete(httpResponseString);
+
+        assertEquals("abc123", session.join());
+        assertNotSame(Thread.currentThread(), savingThread.get());
+    }
+
+    @Test
+    void queryCardGetXlsxAsync_completesExceptionally_withMissingSessionId() {
+        CompletableFuture<byte[]> future = metabaseClient.queryCardGetXlsxAsync("1");
+
+        CompletionException exception = assertThrows(CompletionException.class, future::join);
+        assertEquals("you must login before querying a card", exception.getCause().getMessage());
+        Mockito.verify(this.httpClient, Mockito.times(0)).sendAsync(Mockito.any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofByteArray()));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,64 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsLoggerTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final MetricsLogger metricsLogger = new MetricsLogger("MetabaseReports", "executor", new PrintStream(out, true));
+
+    @Test
+    void emit_writesEmbeddedMetricFormatLine() throws Exception {
+        metricsLogger.metrics("12")
+                .property("ColdStart", true)
+                .put("ExportDuration", 1500L, MetricsLogger.Unit.MILLISECONDS)
+                .put("ExportBytes", 2048L, MetricsLogger.Unit.BYTES)
+                .emit();
+
+        String line = out.toString().trim();
+        assertFalse(line.contains("\n"));
+        JsonNode root = new ObjectMapper().readTree(line);
+        JsonNode directive = root.at("/_aws/CloudWatchMetrics/0");
+        assertEquals("MetabaseReports", directive.get("Namespace").asText());
+        assertEquals("[[\"FunctionName\"],[\"FunctionName\",\"CardId\"]]", directive.get("Dimensions").toString());
+        assertEquals("ExportDuration", directive.at("/Metrics/0/Name").asText());
+        assertEquals("Milliseconds", directive.at("/Metrics/0/Unit").asText());
+        assertEquals("Bytes", directive.at("/Metrics/1/Unit").asText());
+        assertTrue(root.at("/_aws/Timestamp").isNumber());
+        assertEquals("executor", root.get("FunctionName").asText());
+        assertEquals("12", root.get("CardId").asText());
+        assertEquals(1500, root.get("ExportDuration").asLong());
+        assertEquals(2048, root.get("ExportBytes").asLong());
+        assertTrue(root.get("ColdStart").asBoolean());
+    }
+
+    @Test
+    void emit_usesFunctionDimensionOnly_withoutCard() throws Exception {
+        metricsLogger.metrics().put("LoginDuration", 20L, MetricsLogger.Unit.MILLISECONDS).emit();
+
+        JsonNode root = new ObjectMapper().readTree(out.toString());
+        assertEquals("[[\"FunctionName\"]]", root.at("/_aws/CloudWatchMetrics/0/Dimensions").toString());
+        assertNull(root.get("CardId"));
+    }
+
+    @Test
+    void emit_writesNothing_whenDisabledOrEmpty() {
+        MetricsLogger.disabled().metrics("12").put("ExportDuration", 1L, MetricsLogger.Unit.MILLISECONDS).emit();
+        metricsLogger.metrics("12").property("ColdStart", true).emit();
+
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    void megabytesPerSecond_returnsZero_withoutDuration() {
+        assertEquals(2.0, MetricsLogger.megabytesPerSecond(2 * 1024 * 1024, 1000), 0.0001);
+        assertEquals(0.0, MetricsLogger.megabytesPerSecond(1024, 0));
+    }
+}
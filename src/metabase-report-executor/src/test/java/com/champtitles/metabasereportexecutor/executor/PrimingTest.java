@@ -0,0 +1,18 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrimingTest {
+
+    @Test
+    void primePaths_runsEveryPath_withoutNetwork() {
+        assertDoesNotThrow(Priming::primePaths);
+    }
+
+    @Test
+    void prime_returnsDuration() {
+        assertTrue(Priming.prime() >= 0);
+    }
+}
@@ -0,0 +1,102 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+public class ResultCacheTest {
+
+    @Mock
+    private S3Client s3Client;
+
+    private ResultCache resultCache;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        resultCache = new ResultCache(s3Client, "test-bucket", Duration.ofMinutes(30), 8 * 1024 * 1024, RetryPolicy.none());
+    }
+
+    @Test
+    void hashParameters_ignoresParameterOrder() {
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("region", "CA");
+        first.put("customer", List.of(1, 2));
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("customer", List.of(1, 2));
+        second.put("region", "CA");
+
+        assertEquals(ResultCache.hashParameters(first), ResultCache.hashParameters(second));
+        assertNotEquals(ResultCache.hashParameters(first), ResultCache.hashParameters(Map.of("region", "NY")));
+    }
+
+    @Test
+    void getOrQuery_returnsCachedResult_whenYoungerThanTtl() throws IOException {
+        Mockito.when(s3Client.headObject(any(HeadObjectRequest.class)))
+                .thenReturn(HeadObjectResponse.builder().lastModified(Instant.now().minusSeconds(60)).build());
+        Mockito.when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(new ResponseInputStream<>(
+                GetObjectResponse.builder().build(), AbortableInputStream.create(new ByteArrayInputStream("cached".getBytes()))));
+
+        try (InputStream inputStream = resultCache.getOrQuery("1", Map.of(), ExportFormat.CSV, Deadline.none(), () -> fail("query should not run"))) {
+            assertEquals("cached", new String(inputStream.readAllBytes()));
+        }
+    }
+
+    @Test
+    void getOrQuery_cachesQueryResult_whenCachedResultHasExpired() throws IOException {
+        Mockito.when(s3Client.headObject(any(HeadObjectRequest.class)))
+                .thenReturn(HeadObjectResponse.builder().lastModified(Instant.now().minus(Duration.ofHours(1))).build());
+
+        try (InputStream inputStream = resultCache.getOrQuery("1", Map.of("region", "CA"), ExportFormat.CSV, Deadline.none(),
+                () -> new ByteArrayInputStream("fresh".getBytes()))) {
+            assertEquals("fresh", new String(inputStream.readAllBytes()));
+        }
+
+        Mockito.verify(s3Client).putObject(Mockito.argThat((PutObjectRequest request) ->
+                request.key().equals(ResultCache.getKey("1", Map.of("region", "CA"), ExportFormat.CSV))), any(RequestBody.class));
+    }
+
+    @Test
+    void getOrQuery_doesNotCache_whenResultIsNotReadToTheEnd() throws IOException {
+        Mockito.when(s3Client.headObject(any(HeadObjectRequest.class))).thenThrow(NoSuchKeyException.builder().build());
+
+        try (InputStream inputStream = resultCache.getOrQuery("1", Map.of(), ExportFormat.CSV, Deadline.none(), () -> new ByteArrayInputStream("fresh".getBytes()))) {
+            assertEquals('f', inputStream.read());
+        }
+
+        Mockito.verify(s3Client, Mockito.never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    void getOrQuery_runsQuery_whenDisabled() throws IOException {
+        try (InputStream inputStream = ResultCache.disabled().getOrQuery("1", Map.of(), ExportFormat.CSV, Deadline.none(), () -> new ByteArrayInputStream("fresh".getBytes()))) {
+            assertEquals("fresh", new String(inputStream.readAllBytes()));
+        }
+        Mockito.verifyNoInteractions(s3Client);
+    }
+
+    @Test
+    void getPartBuffers_countsCacheUploadBuffers_onlyWhenEnabled() {
+        assertEquals(2, resultCache.getPartBuffers());
+        assertEquals(0, ResultCache.disabled().getPartBuffers());
+    }
+}
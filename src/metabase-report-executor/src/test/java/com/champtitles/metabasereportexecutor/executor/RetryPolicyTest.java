@@ -0,0 +1,158 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.retry.RetryPolicyContext;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+
+    private final RetryPolicy retryPolicy = new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(5));
+
+    @Test
+    void execute_retriesRetryableStatus_untilSuccess() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = retryPolicy.execute("test", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new MetabaseHttpException("unexpected response status code from HTTP request", 502);
+            }
+            return "ok";
+        });
+
+        assertEquals("ok", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, retryPolicy.getRetries());
+        retryPolicy.resetRetries();
+        assertEquals(0, retryPolicy.getRetries());
+    }
+
+    @Test
+    void execute_throwsAfterMaxAttempts() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(MetabaseHttpException.class, () -> retryPolicy.execute("test", () -> {
+            attempts.incrementAndGet();
+            throw new MetabaseHttpException("unexpected response status code from HTTP request", 503);
+        }));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void execute_doesNotRetryFatalStatus() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(MetabaseHttpException.class, () -> retryPolicy.execute("test", () -> {
+            attempts.incrementAndGet();
+            throw new MetabaseHttpException("unexpected response status code from HTTP request", 400);
+        }));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void execute_doesNotRetryPastDeadline() {
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofSeconds(10), Duration.ofSeconds(10), () -> 1.0);
+        policy.setDeadline(Instant.now().plusSeconds(5));
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(MetabaseHttpException.class, () -> policy.execute("test", () -> {
+            attempts.incrementAndGet();
+            throw new MetabaseHttpException("unexpected response status code from HTTP request", 504);
+        }));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void executeAsync_retriesConnectionReset_untilSuccess() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletableFuture<String> future = retryPolicy.executeAsync("test", () -> attempts.incrementAndGet() < 2
+                ? CompletableFuture.failedFuture(new IOException("Connection reset"))
+                : CompletableFuture.completedFuture("ok"));
+
+        assertEquals("ok", future.join());
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void executeAsync_failsWithOriginalError_whenNotRetryable() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletableFuture<String> future = retryPolicy.executeAsync("test", () -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.failedFuture(new MetabaseHttpException("unexpected response status code from HTTP request", 401));
+        });
+
+        CompletionException exception = assertThrows(CompletionException.class, future::join);
+        assertTrue(exception.getCause() instanceof MetabaseHttpException);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void isRetryable_classifiesFailures() {
+        assertTrue(RetryPolicy.isRetryable(new MetabaseHttpException("throttled", 429)));
+        assertTrue(RetryPolicy.isRetryable(new RuntimeException(new ConnectException("Connection refused"))));
+        assertTrue(RetryPolicy.isRetryable(SdkClientException.create("Unable to execute HTTP request", new SocketException("Connection reset"))));
+        assertTrue(RetryPolicy.isRetryable(SdkClientException.create("Unable to execute HTTP request", new SocketTimeoutException("Read timed out"))));
+        assertTrue(RetryPolicy.isRetryable(new CompletionException(new HttpTimeoutException("request timed out"))));
+        assertTrue(RetryPolicy.isRetryable(S3Exception.builder().statusCode(503).build()));
+        assertFalse(RetryPolicy.isRetryable(S3Exception.builder().statusCode(403).build()));
+        assertFalse(RetryPolicy.isRetryable(new MetabaseHttpException("server error", 500)));
+        assertFalse(RetryPolicy.isRetryable(new IllegalArgumentException("bad input")));
+    }
+
+    @Test
+    void isRetryable_doesNotRetryFailuresWhichWouldRepeat() {
+        assertFalse(RetryPolicy.isRetryable(ApiCallTimeoutException.create(1000)));
+        assertFalse(RetryPolicy.isRetryable(SdkClientException.create("Unable to execute HTTP request", new SSLHandshakeException("certificate expired"))));
+        assertFalse(RetryPolicy.isRetryable(new RuntimeException(new JsonParseException(null, "unexpected character"))));
+        assertFalse(RetryPolicy.isRetryable(new DeadlineExceededException("export", 1000)));
+    }
+
+    @Test
+    void sdkRetryPolicy_leavesRequestsMarkedForThePolicy() {
+        RetryCondition retryCondition = RetryPolicy.sdkRetryPolicy().retryCondition();
+        SdkClientException exception = SdkClientException.create("Unable to execute HTTP request", new SocketException("Connection reset"));
+        ExecutionAttributes marked = new ExecutionAttributes();
+        marked.putAttribute(RetryPolicy.RETRIED_BY_POLICY, true);
+
+        assertTrue(retryCondition.shouldRetry(RetryPolicyContext.builder().exception(exception).executionAttributes(new ExecutionAttributes()).build()));
+        assertFalse(retryCondition.shouldRetry(RetryPolicyContext.builder().exception(exception).executionAttributes(marked).build()));
+    }
+
+    @Test
+    void getDelayMillis_growsExponentially_upToMaxDelay() {
+        RetryPolicy policy = new RetryPolicy(10, Duration.ofMillis(100), Duration.ofMillis(1000), () -> 1.0);
+
+        assertEquals(100, policy.getDelayMillis(1));
+        assertEquals(200, policy.getDelayMillis(2));
+        assertEquals(400, policy.getDelayMillis(3));
+        assertEquals(1000, policy.getDelayMillis(5));
+        assertEquals(1000, policy.getDelayMillis(40));
+    }
+
+    @Test
+    void getDelayMillis_appliesJitter() {
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(100), Duration.ofMillis(1000), () -> 0.5);
+
+        assertEquals(100, policy.getDelayMillis(2));
+    }
+}
@@ -0,0 +1,102 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RowDeltaTest {
+
+    @Test
+    void filter_writesAllRows_withEmptyIndex() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        RowDelta rowDelta = RowDelta.filter(csv("id,name\n1,a\n2,b\n"), outputStream, ExportFormat.CSV, RowHashIndex.empty());
+
+        assertEquals("id,name\n1,a\n2,b\n", outputStream.toString());
+        assertEquals(2, rowDelta.rows());
+        assertEquals(2, rowDelta.added());
+        assertEquals(2, rowDelta.hashCount());
+    }
+
+    @Test
+    void filter_writesOnlyNewAndChangedRows() throws IOException {
+        RowDelta previous = RowDelta.filter(csv("id,name\n1,a\n2,b\n3,c\n"), new ByteArrayOutputStream(), ExportFormat.CSV, RowHashIndex.empty());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        RowDelta rowDelta = RowDelta.filter(csv("id,name\r\n1,a\r\n2,x\r\n4,d"), outputStream, ExportFormat.CSV, RowHashIndex.map(previous.hashFile()));
+
+        assertEquals("id,name\r\n2,x\r\n4,d", outputStream.toString());
+        assertEquals(3, rowDelta.rows());
+        assertEquals(2, rowDelta.added());
+        assertEquals(1, rowDelta.unchanged());
+        assertEquals(2, rowDelta.removed());
+    }
+
+    @Test
+    void filter_keepsQuotedLineBreaksInRow() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        RowDelta rowDelta = RowDelta.filter(csv("id,note\n1,\"two\nlines\"\n"), outputStream, ExportFormat.CSV, RowHashIndex.empty());
+
+        assertEquals(1, rowDelta.rows());
+        assertEquals("id,note\n1,\"two\nlines\"\n", outputStream.toString());
+    }
+
+    @Test
+    void filter_writesNewJsonRows() throws IOException {
+        RowDelta previous = RowDelta.filter(json("[{\"id\":1},{\"id\":2}]"), new ByteArrayOutputStream(), ExportFormat.JSON, RowHashIndex.empty());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        RowDelta rowDelta = RowDelta.filter(json("[{\"id\":2},{\"id\":3}]"), outputStream, ExportFormat.JSON, RowHashIndex.map(previous.hashFile()));
+
+        assertEquals("[{\"id\":3}]", outputStream.toString());
+        assertEquals(1, rowDelta.added());
+        assertEquals(1, rowDelta.unchanged());
+        assertEquals(1, rowDelta.removed());
+    }
+
+    @Test
+    void filter_mergesSpilledRuns() throws IOException {
+        RowDelta previous = RowDelta.filter(csv("id\n1\n2\n3\n4\n5\n"), new ByteArrayOutputStream(), ExportFormat.CSV, RowHashIndex.empty(), 2);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        RowDelta rowDelta = RowDelta.filter(csv("id\n5\n6\n1\n6\n3\n7\n"), outputStream, ExportFormat.CSV, RowHashIndex.map(previous.hashFile()), 2);
+
+        assertEquals("id\n6\n6\n7\n", outputStream.toString());
+        assertEquals(6, rowDelta.rows());
+        assertEquals(3, rowDelta.unchanged());
+        assertEquals(2, rowDelta.removed());
+        assertEquals(5, rowDelta.hashCount());
+        assertEquals(5 * Long.BYTES, Files.size(rowDelta.hashFile()));
+        RowHashIndex index = RowHashIndex.map(rowDelta.hashFile());
+        assertEquals(5, index.size());
+    }
+
+    @Test
+    void close_deletesHashFile() throws IOException {
+        RowDelta rowDelta = RowDelta.filter(csv("id\n1\n"), new ByteArrayOutputStream(), ExportFormat.CSV, RowHashIndex.empty());
+
+        rowDelta.close();
+
+        assertFalse(Files.exists(rowDelta.hashFile()));
+    }
+
+    @Test
+    void filter_throwsException_withXlsx() {
+        assertThrows(IllegalArgumentException.class,
+                () -> RowDelta.filter(csv(""), new ByteArrayOutputStream(), ExportFormat.XLSX, RowHashIndex.empty()));
+    }
+
+    private static ByteArrayInputStream csv(String data) {
+        return new ByteArrayInputStream(data.getBytes());
+    }
+
+    private static ByteArrayInputStream json(String data) {
+        return new ByteArrayInputStream(data.getBytes());
+    }
+}
@@ -0,0 +1,37 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+public class RowHashIndexTest {
+
+    private final S3Client s3Client = Mockito.mock(S3Client.class);
+
+    @Test
+    void load_returnsEmptyIndex_whenIndexIsMissing() {
+        Mockito.when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(NoSuchKeyException.builder().statusCode(404).build());
+
+        assertSame(RowHashIndex.empty(), RowHashIndex.load(s3Client, "test-bucket", "_state/card1/csv.rows"));
+    }
+
+    @Test
+    void load_throwsException_whenAccessIsDenied() {
+        Mockito.when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(S3Exception.builder().statusCode(403).message("Access Denied").build());
+
+        assertThrows(S3Exception.class, () -> RowHashIndex.load(s3Client, "test-bucket", "_state/card1/csv.rows"));
+    }
+
+    @Test
+    void load_throwsException_withServerError() {
+        Mockito.when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(S3Exception.builder().statusCode(500).message("Internal Error").build());
+
+        assertThrows(S3Exception.class, () -> RowHashIndex.load(s3Client, "test-bucket", "_state/card1/csv.rows"));
+    }
+}
@@ -0,0 +1,31 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import com.champtitles.metabasereportexecutor.executor.model.CachedSession;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.ServerSideEncryption;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+public class S3SessionStoreTest {
+
+    private final S3Client s3Client = Mockito.mock(S3Client.class);
+
+    @Test
+    void save_encryptsSessionWithKmsKey() {
+        ArgumentCaptor<PutObjectRequest> putObjectRequest = ArgumentCaptor.forClass(PutObjectRequest.class);
+
+        new S3SessionStore(s3Client, "test-bucket", "_state/session/metabase-session.json", "alias/session")
+                .save(new CachedSession("abc123", 1234L));
+
+        Mockito.verify(s3Client).putObject(putObjectRequest.capture(), any(RequestBody.class));
+        assertEquals("_state/session/metabase-session.json", putObjectRequest.getValue().key());
+        assertEquals(ServerSideEncryption.AWS_KMS, putObjectRequest.getValue().serverSideEncryption());
+        assertEquals("alias/session", putObjectRequest.getValue().ssekmsKeyId());
+    }
+}
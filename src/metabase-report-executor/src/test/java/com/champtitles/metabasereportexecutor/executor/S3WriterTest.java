@@ -2,15 +2,28 @@ package com.champtitles.metabasereportexecutor.executor;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.*;
 
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 
 public class S3WriterTest {
@@ -24,7 +37,7 @@ public class S3WriterTest {
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
-        s3Writer = new S3Writer("test-bucket", s3Client);
+        s3Writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults());
     }
 
     @Test
@@ -32,11 +45,199 @@ public class S3WriterTest {
         byte[] data = "data".getBytes();
         s3Writer.uploadXlsx(data, "card1");
 
-        Mockito.verify(s3Client, Mockito.times(1)).putObject((PutObjectRequest) Mockito.argThat(putObjectRequest -> {
-            System.out.println(putObjectRequest.toString());
-            // Should match pattern like: PutObjectRequest(Bucket=test-bucket, Key=2023/03/24/card1-2023-03-24T11-59-11.xlsx)
-            assertTrue(putObjectRequest.toString().matches("PutObjectRequest\\(Bucket=test-bucket, Key=\\d\\d\\d\\d/\\d\\d/\\d\\d/card1-\\d\\d\\d\\d-\\d\\d-\\d\\dT\\d\\d-\\d\\d-\\d\\d.xlsx\\)"));
+        // Should match pattern like: PutObjectRequest(Bucket=test-bucket, Key=2023/03/24/card1-2023-03-24T11-59-11.xlsx)
+        Mockito.verify(s3Client, Mockito.times(1)).putObject((PutObjectRequest) Mockito.argThat(putObjectRequest ->
+                putObjectRequest.toString().matches("PutObjectRequest\\(Bucket=test-bucket, Key=\\d\\d\\d\\d/\\d\\d/\\d\\d/card1-\\d\\d\\d\\d-\\d\\d-\\d\\dT\\d\\d-\\d\\d-\\d\\d.xlsx\\)")), (RequestBody) any());
+        Mockito.verify(s3Client, Mockito.times(1)).putObject(Mockito.argThat((PutObjectRequest request) -> request.key().equals("_state/card1/xlsx.latest")), any(RequestBody.class));
+    }
+
+    @Test
+    void uploadXlsx_streamSmallerThanPart_usesSinglePutObject() {
+        s3Writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults().withParts(16, 1));
+        String key = s3Writer.uploadXlsx(new ByteArrayInputStream("data".getBytes()), "card1");
+
+        assertTrue(key.matches("\\d\\d\\d\\d/\\d\\d/\\d\\d/card1-\\d\\d\\d\\d-\\d\\d-\\d\\dT\\d\\d-\\d\\d-\\d\\d.xlsx"));
+        Mockito.verify(s3Client, Mockito.times(1)).putObject(Mockito.argThat((PutObjectRequest request) -> request.key().equals(key)), any(RequestBody.class));
+        Mockito.verify(s3Client, Mockito.never()).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    }
+
+    @Test
+    void uploadXlsx_streamLargerThanPart_usesMultipartUpload() {
+        Mockito.when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload1").build());
+        Mockito.when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenReturn(UploadPartResponse.builder().eTag("etag").build());
+
+        s3Writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults().withParts(4, 1));
+        s3Writer.uploadXlsx(new ByteArrayInputStream("0123456789".getBytes()), "card1");
+
+        Mockito.verify(s3Client, Mockito.times(3)).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+        Mockito.verify(s3Client, Mockito.times(1)).completeMultipartUpload(Mockito.argThat((CompleteMultipartUploadRequest request) -> {
+            assertEquals("upload1", request.uploadId());
+            assertEquals(3, request.multipartUpload().parts().size());
+            return true;
+        }));
+        Mockito.verify(s3Client, Mockito.never()).putObject(Mockito.argThat((PutObjectRequest request) -> !request.key().startsWith(S3Writer.STATE_PREFIX)),
+                any(RequestBody.class));
+    }
+
+    @Test
+    void uploadXlsx_abortsMultipartUpload_whenPartFails() {
+        Mockito.when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload1").build());
+        Mockito.when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenThrow(SdkClientException.create("Unable to execute HTTP request", new SocketException("Connection reset")));
+
+        S3Writer writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults().withParts(4, 1));
+        assertThrows(RuntimeException.class, () -> {
+            writer.uploadXlsx(new ByteArrayInputStream("0123456789".getBytes()), "card1");
+        });
+
+        Mockito.verify(s3Client, Mockito.times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        Mockito.verify(s3Client, Mockito.never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    void uploadXlsx_abortsMultipartUpload_whenCompletionFails() {
+        Mockito.when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload1").build());
+        Mockito.when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenReturn(UploadPartResponse.builder().eTag("etag").build());
+        Mockito.when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenThrow(S3Exception.builder().statusCode(400).message("invalid part").build());
+
+        S3Writer writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults().withParts(4, 1).withRetryPolicy(RetryPolicy.none()));
+        assertThrows(RuntimeException.class, () -> writer.uploadXlsx(new ByteArrayInputStream("0123456789".getBytes()), "card1"));
+
+        Mockito.verify(s3Client, Mockito.times(1)).abortMultipartUpload(Mockito.argThat((AbortMultipartUploadRequest request) -> request.uploadId().equals("upload1")));
+    }
+
+    @Test
+    void uploadXlsx_retriesAbort_whenAbortIsThrottled() {
+        Mockito.when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload1").build());
+        Mockito.when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenThrow(S3Exception.builder().statusCode(403).message("access denied").build());
+        Mockito.when(s3Client.abortMultipartUpload(any(AbortMultipartUploadRequest.class)))
+                .thenThrow(S3Exception.builder().statusCode(503).message("slow down").build())
+                .thenReturn(AbortMultipartUploadResponse.builder().build());
+
+        S3Writer writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults().withParts(4, 1)
+                .withRetryPolicy(new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(5))));
+        assertThrows(RuntimeException.class, () -> writer.uploadXlsx(new ByteArrayInputStream("0123456789".getBytes()), "card1"));
+
+        Mockito.verify(s3Client, Mockito.times(2)).abortMultipartUpload(Mockito.argThat((AbortMultipartUploadRequest request) -> request.uploadId().equals("upload1")));
+    }
+
+    @Test
+    void uploadXlsx_retriesOnlyFailedPart_withParallelUpload() {
+        Mockito.when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload1").build());
+        Mockito.when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenThrow(SdkClientException.create("Unable to execute HTTP request", new SocketException("Connection reset")))
+                .thenReturn(UploadPartResponse.builder().eTag("etag").build());
+
+        s3Writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults().withParts(4, 2));
+        s3Writer.uploadXlsx(new ByteArrayInputStream("0123456789".getBytes()), "card1");
+
+        Mockito.verify(s3Client, Mockito.times(4)).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+        Mockito.verify(s3Client, Mockito.times(1)).completeMultipartUpload(Mockito.argThat((CompleteMultipartUploadRequest request) -> {
+            assertEquals(List.of(1, 2, 3), request.multipartUpload().parts().stream().map(CompletedPart::partNumber).toList());
             return true;
-        }), (RequestBody) any());
+        }));
+        Mockito.verify(s3Client, Mockito.never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    void upload_gzipCsv_setsExtensionAndHeaders() throws IOException {
+        ArgumentCaptor<PutObjectRequest> putObjectRequest = ArgumentCaptor.forClass(PutObjectRequest.class);
+        ArgumentCaptor<RequestBody> requestBody = ArgumentCaptor.forClass(RequestBody.class);
+
+        String key = s3Writer.upload(new ByteArrayInputStream("a,b\n1,2\n".getBytes()), "card1", ExportFormat.CSV, Compression.GZIP);
+
+        assertTrue(key.matches("\\d\\d\\d\\d/\\d\\d/\\d\\d/card1-\\d\\d\\d\\d-\\d\\d-\\d\\dT\\d\\d-\\d\\d-\\d\\d.csv.gz"));
+        Mockito.verify(s3Client, Mockito.times(2)).putObject(putObjectRequest.capture(), requestBody.capture());
+        assertEquals(key, putObjectRequest.getAllValues().get(0).key());
+        assertEquals("text/csv", putObjectRequest.getAllValues().get(0).contentType());
+        assertEquals("gzip", putObjectRequest.getAllValues().get(0).contentEncoding());
+        try (InputStream compressed = requestBody.getAllValues().get(0).contentStreamProvider().newStream()) {
+            assertEquals("a,b\n1,2\n", new String(new GZIPInputStream(compressed).readAllBytes()));
+        }
+    }
+
+    @Test
+    void uploadIfChanged_skipsUpload_whenContentIsUnchanged() {
+        Mockito.when(s3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenThrow(NoSuchKeyException.builder().build());
+        ArgumentCaptor<RequestBody> hashBody = ArgumentCaptor.forClass(RequestBody.class);
+
+        Optional<String> firstKey = s3Writer.uploadIfChanged(new ByteArrayInputStream("a,b\n1,2\n".getBytes()), "card1", ExportFormat.CSV, Compression.GZIP);
+
+        assertTrue(firstKey.isPresent());
+        Mockito.verify(s3Client).putObject(Mockito.argThat((PutObjectRequest request) -> request.key().equals("_state/card1/csv.gz.sha256")), hashBody.capture());
+        ResponseBytes<GetObjectResponse> storedHash = ResponseBytes.fromInputStream(GetObjectResponse.builder().build(),
+                hashBody.getValue().contentStreamProvider().newStream());
+        Mockito.reset(s3Client);
+        Mockito.when(s3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenReturn(storedHash);
+
+        Optional<String> secondKey = s3Writer.uploadIfChanged(new ByteArrayInputStream("a,b\n1,2\n".getBytes()), "card1", ExportFormat.CSV, Compression.GZIP);
+
+        assertTrue(secondKey.isEmpty());
+        Mockito.verify(s3Client, Mockito.never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    void uploadIfChanged_abortsUpload_whenLargeContentIsUnchanged() throws IOException {
+        Mockito.when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload1").build());
+        Mockito.when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenReturn(UploadPartResponse.builder().eTag("etag").build());
+        s3Writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults().withParts(4, 1).withRetryPolicy(RetryPolicy.none()));
+        byte[] data = "a,b\n1,2\n3,4\n".getBytes();
+        Mockito.when(s3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenReturn(ResponseBytes.fromByteArray(GetObjectResponse.builder().build(),
+                ContentHash.copy(new ByteArrayInputStream(data), OutputStream.nullOutputStream(), ExportFormat.CSV).getBytes()));
+
+        Optional<String> key = s3Writer.uploadIfChanged(new ByteArrayInputStream(data), "card1", ExportFormat.CSV, Compression.GZIP);
+
+        assertTrue(key.isEmpty());
+        Mockito.verify(s3Client, Mockito.times(1)).abortMultipartUpload(Mockito.argThat((AbortMultipartUploadRequest request) -> request.uploadId().equals("upload1")));
+        Mockito.verify(s3Client, Mockito.never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        Mockito.verify(s3Client, Mockito.never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    void uploadIfChanged_uploads_whenContentHasChanged() {
+        Mockito.when(s3Client.getObjectAsBytes(any(GetObjectRequest.class)))
+                .thenReturn(ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), "0000".getBytes()));
+
+        Optional<String> key = s3Writer.uploadIfChanged(new ByteArrayInputStream("data".getBytes()), "card1", ExportFormat.CSV, Compression.NONE);
+
+        assertTrue(key.isPresent());
+        Mockito.verify(s3Client, Mockito.times(3)).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    void upload_pointsLatestObjectAtReport_withHiveLayout() throws IOException {
+        s3Writer = new S3Writer("test-bucket", s3Client, S3WriterSettings.defaults().withParts(16, 1)
+                .withRetryPolicy(RetryPolicy.none()).withKeyLayout(KeyLayout.HIVE));
+        ArgumentCaptor<RequestBody> latestBody = ArgumentCaptor.forClass(RequestBody.class);
+
+        String key = s3Writer.upload(new ByteArrayInputStream("a,b\n1,2\n".getBytes()), "card1", ExportFormat.CSV, Compression.NONE);
+
+        assertTrue(key.matches("report=card1/dt=\\d\\d\\d\\d-\\d\\d-\\d\\d/card1-\\d\\d\\d\\d-\\d\\d-\\d\\dT\\d\\d-\\d\\d-\\d\\d.csv"));
+        Mockito.verify(s3Client).putObject(Mockito.argThat((PutObjectRequest request) -> request.key().equals("_state/card1/csv.latest")), latestBody.capture());
+        try (InputStream latest = latestBody.getValue().contentStreamProvider().newStream()) {
+            assertEquals(key, new String(latest.readAllBytes()));
+        }
+    }
+
+    @Test
+    void getLatestKey_includesFormatAndCompression() {
+        assertEquals("_state/card12-1a2b3c4d/xlsx.gz.latest", S3Writer.getLatestKey("card12-1a2b3c4d", ExportFormat.XLSX, Compression.GZIP));
+    }
+
+    @Test
+    void getTranscodedKey_replacesExtensionUnderCsvPrefix() {
+        assertEquals("csv/2023/04/04/card12-2023-04-04T07-00-00.csv", S3Writer.getTranscodedKey("2023/04/04/card12-2023-04-04T07-00-00.xlsx", Compression.NONE));
+        assertEquals("csv/2023/04/04/card12-2023-04-04T07-00-00.csv.gz", S3Writer.getTranscodedKey("2023/04/04/card12-2023-04-04T07-00-00.xlsx.gz", Compression.GZIP));
     }
 }
@@ -0,0 +1,88 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SecretsProviderTest {
+
+    @Mock
+    private KmsDecrypt kmsDecrypt;
+
+    private AtomicInteger kmsClientsCreated;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        kmsClientsCreated = new AtomicInteger();
+        Mockito.when(kmsDecrypt.decrypt("cipher1")).thenReturn("secret1");
+        Mockito.when(kmsDecrypt.decrypt("cipher2")).thenReturn("secret2");
+    }
+
+    private SecretsProvider createSecretsProvider(Duration ttl) {
+        return new SecretsProvider(() -> {
+            kmsClientsCreated.incrementAndGet();
+            return kmsDecrypt;
+        }, ttl);
+    }
+
+    @Test
+    void get_decryptsOnce_andReturnsCachedValue() {
+        SecretsProvider secretsProvider = createSecretsProvider(Duration.ofMinutes(5));
+
+        assertEquals("secret1", secretsProvider.get("cipher1"));
+        assertEquals("secret1", secretsProvider.get("cipher1"));
+        Mockito.verify(kmsDecrypt, Mockito.times(1)).decrypt("cipher1");
+        assertEquals(1, kmsClientsCreated.get());
+    }
+
+    @Test
+    void get_decryptsAgain_afterTtlExpires() {
+        SecretsProvider secretsProvider = createSecretsProvider(Duration.ZERO);
+
+        secretsProvider.get("cipher1");
+        secretsProvider.get("cipher1");
+        Mockito.verify(kmsDecrypt, Mockito.times(2)).decrypt("cipher1");
+    }
+
+    @Test
+    void lazy_doesNotDecryptUntilUsed() {
+        SecretsProvider secretsProvider = createSecretsProvider(Duration.ofMinutes(5));
+
+        Supplier<String> secret = secretsProvider.lazy("cipher1");
+        assertEquals(0, kmsClientsCreated.get());
+        Mockito.verifyNoInteractions(kmsDecrypt);
+
+        assertEquals("secret1", secret.get());
+        assertEquals(1, kmsClientsCreated.get());
+    }
+
+    @Test
+    void getAll_returnsEachSecret() {
+        SecretsProvider secretsProvider = createSecretsProvider(Duration.ofMinutes(5));
+
+        Map<String, String> secrets = secretsProvider.getAll(List.of("cipher1", "cipher2"));
+        assertEquals(Map.of("cipher1", "secret1", "cipher2", "secret2"), secrets);
+        assertEquals(1, kmsClientsCreated.get());
+    }
+
+    @Test
+    void invalidate_forcesDecryptOnNextUse() {
+        SecretsProvider secretsProvider = createSecretsProvider(Duration.ofMinutes(5));
+
+        secretsProvider.get("cipher1");
+        secretsProvider.invalidate();
+        secretsProvider.get("cipher1");
+        Mockito.verify(kmsDecrypt, Mockito.times(2)).decrypt("cipher1");
+    }
+}
@@ -0,0 +1,63 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XlsxInspectorTest {
+
+    @Test
+    void inspect_countsRowsColumnsAndEmptyCells() throws IOException {
+        byte[] xlsx = createXlsx("""
+                <worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"><sheetData>
+                    <row r="1"><c r="A1" t="s"><v>0</v></c><c r="B1" t="s"><v>1</v></c><c r="C1" t="s"><v>2</v></c></row>
+                    <row r="2"><c r="A2"><v>1</v></c><c r="C2" t="inlineStr"><is><t>x</t></is></c></row>
+                    <row r="3"><c r="A3"><v>2</v></c><c r="B3" s="1"/></row>
+                    <row r="4"><c r="A4"><v>3</v></c><c r="B4"><v>4</v></c><c r="C4" t="inlineStr"><is><t>y</t></is></c></row>
+                    <row r="5"><c r="A5"><v>5</v></c></row>
+                </sheetData></worksheet>
+                """);
+
+        XlsxStats stats = XlsxInspector.inspect(xlsx);
+
+        assertEquals(5, stats.rows());
+        assertEquals(4, stats.dataRows());
+        assertEquals(3, stats.columns());
+        assertEquals(List.of(0.0, 0.75, 0.5), stats.nullRatios());
+    }
+
+    @Test
+    void inspect_returnsNoDataRows_withHeaderOnly() throws IOException {
+        XlsxStats stats = XlsxInspector.inspect(createXlsx("""
+                <worksheet><sheetData><row r="1"><c r="A1" t="s"><v>0</v></c></row></sheetData></worksheet>
+                """));
+
+        assertEquals(1, stats.rows());
+        assertEquals(0, stats.dataRows());
+        assertEquals(List.of(0.0), stats.nullRatios());
+    }
+
+    @Test
+    void inspect_throwsException_withoutWorksheet() {
+        assertThrows(IOException.class, () -> XlsxInspector.inspect("not a zip file".getBytes()));
+    }
+
+    private static byte[] createXlsx(String sheet) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            zipOutputStream.putNextEntry(new ZipEntry("xl/workbook.xml"));
+            zipOutputStream.write("<workbook/>".getBytes());
+            zipOutputStream.putNextEntry(new ZipEntry("xl/worksheets/_rels/sheet1.xml.rels"));
+            zipOutputStream.write("<Relationships/>".getBytes());
+            zipOutputStream.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+            zipOutputStream.write(sheet.getBytes());
+        }
+        return outputStream.toByteArray();
+    }
+}
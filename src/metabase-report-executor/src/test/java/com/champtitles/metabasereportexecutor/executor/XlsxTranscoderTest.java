@@ -0,0 +1,126 @@
+package com.champtitles.metabasereportexecutor.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XlsxTranscoderTest {
+
+    private static final String WORKBOOK = """
+            <workbook xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"
+                      xmlns:r="http://schemas.openxmlformats.org/officeDocument/2006/relationships">
+                <sheets><sheet name="Query result" sheetId="1" r:id="rId3"/></sheets>
+            </workbook>
+            """;
+    private static final String WORKBOOK_RELS = """
+            <Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">
+                <Relationship Id="rId1" Target="styles.xml"/>
+                <Relationship Id="rId3" Target="worksheets/data.xml"/>
+            </Relationships>
+            """;
+    private static final String SHARED_STRINGS = """
+            <sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+                <si><t>name</t></si>
+                <si><t>created</t></si>
+                <si><r><t>Smith, </t></r><r><t>"Jo"</t></r><rPh><t>skip</t></rPh></si>
+            </sst>
+            """;
+    private static final String STYLES = """
+            <styleSheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+                <numFmts><numFmt numFmtId="164" formatCode="yyyy-mm-dd hh:mm"/><numFmt numFmtId="165" formatCode="#,##0.00"/></numFmts>
+                <cellStyleXfs><xf numFmtId="14"/></cellStyleXfs>
+                <cellXfs><xf numFmtId="0"/><xf numFmtId="14"/><xf numFmtId="164"/><xf numFmtId="165"/></cellXfs>
+            </styleSheet>
+            """;
+    private static final String SHEET = """
+            <worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"><sheetData>
+                <row r="1"><c r="A1" t="s"><v>0</v></c><c r="B1" t="s"><v>1</v></c><c r="C1" t="inlineStr"><is><t>amount</t></is></c></row>
+                <row r="2"><c r="A2" t="s"><v>2</v></c><c r="B2" s="1"><v>45020</v></c><c r="C2" s="3"><v>1234.5</v></c></row>
+                <row r="3"><c r="B3" s="2"><v>45020.3125</v></c><c r="D3" t="b"><v>1</v></c></row>
+            </sheetData></worksheet>
+            """;
+
+    @Test
+    void toCsv_writesFirstSheetWithStringsAndDates() throws IOException {
+        Path xlsxFile = createXlsx(Map.of(
+                "xl/workbook.xml", WORKBOOK,
+                "xl/_rels/workbook.xml.rels", WORKBOOK_RELS,
+                "xl/sharedStrings.xml", SHARED_STRINGS,
+                "xl/styles.xml", STYLES,
+                "xl/worksheets/data.xml", SHEET));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        long rows = XlsxTranscoder.toCsv(xlsxFile, outputStream);
+
+        assertEquals(3, rows);
+        assertEquals("""
+                name,created,amount
+                "Smith, ""Jo\""\",2023-04-04,1234.5
+                ,2023-04-04 07:30:00,,TRUE
+                """, outputStream.toString());
+    }
+
+    @Test
+    void toCsv_readsSheet1_withoutWorkbook() throws IOException {
+        Path xlsxFile = createXlsx(Map.of("xl/worksheets/sheet1.xml", """
+                <worksheet><sheetData><row><c t="inlineStr"><is><t>a</t></is></c><c><v>1</v></c></row></sheetData></worksheet>
+                """));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        XlsxTranscoder.toCsv(xlsxFile, outputStream);
+
+        assertEquals("a,1\n", outputStream.toString());
+    }
+
+    @Test
+    void toCsv_throwsException_whenFileIsNotAWorkbook() throws IOException {
+        Path file = Files.createTempFile("xlsx-transcoder-test", ".xlsx");
+        Files.writeString(file, "not a zip file");
+        file.toFile().deleteOnExit();
+
+        assertThrows(IOException.class, () -> XlsxTranscoder.toCsv(file, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void getColumnIndex_parsesColumnLetters() {
+        assertEquals(0, XlsxTranscoder.getColumnIndex("A1"));
+        assertEquals(25, XlsxTranscoder.getColumnIndex("Z10"));
+        assertEquals(27, XlsxTranscoder.getColumnIndex("AB12"));
+    }
+
+    @Test
+    void isDateFormat_ignoresLiteralText() {
+        assertTrue(XlsxTranscoder.isDateFormat(14, null));
+        assertTrue(XlsxTranscoder.isDateFormat(164, "dd/mm/yyyy"));
+        assertFalse(XlsxTranscoder.isDateFormat(165, "#,##0.00\" days\""));
+        assertFalse(XlsxTranscoder.isDateFormat(166, "[Red]0.00"));
+        assertFalse(XlsxTranscoder.isDateFormat(0, null));
+    }
+
+    @Test
+    void formatCell_returnsRawValue_withoutDateStyle() {
+        assertEquals("45020", XlsxTranscoder.formatCell(null, 0, "45020", List.of(), new boolean[]{false}));
+        assertEquals("#N/A", XlsxTranscoder.formatCell("e", 0, "#N/A", List.of(), new boolean[0]));
+    }
+
+    private static Path createXlsx(Map<String, String> entries) throws IOException {
+        Path file = Files.createTempFile("xlsx-transcoder-test", ".xlsx");
+        file.toFile().deleteOnExit();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                zipOutputStream.putNextEntry(new ZipEntry(entry.getKey()));
+                zipOutputStream.write(entry.getValue().getBytes());
+            }
+        }
+        return file;
+    }
+}
@@ -3,18 +3,46 @@ package com.champtitles.metabasereportexecutor.notifier;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.SNSEvent;
-import com.champtitles.metabasereportexecutor.executor.KmsDecrypt;
+import com.champtitles.metabasereportexecutor.executor.Compression;
+import com.champtitles.metabasereportexecutor.executor.Deadline;
+import com.champtitles.metabasereportexecutor.executor.ExportFormat;
+import com.champtitles.metabasereportexecutor.executor.MetricsLogger;
+import com.champtitles.metabasereportexecutor.executor.Priming;
+import com.champtitles.metabasereportexecutor.executor.S3Writer;
+import com.champtitles.metabasereportexecutor.executor.SecretsProvider;
+import com.champtitles.metabasereportexecutor.executor.XlsxInspector;
+import com.champtitles.metabasereportexecutor.executor.XlsxStats;
 import com.fasterxml.jackson.core.JsonPointer;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class App implements RequestHandler<SNSEvent, Void> {
 
@@ -31,37 +59,333 @@ public class App implements RequestHandler<SNSEvent, Void> {
     private static final String NAME = System.getenv().getOrDefault("NAME", "Test");
     private static final boolean INCLUDE_CARD_IN_SUBJECT = Boolean.parseBoolean(System.getenv().getOrDefault("INCLUDE_CARD_IN_SUBJECT", "false"));
     private static final String SIZE_LIMIT_BYTES = System.getenv().getOrDefault("SIZE_LIMIT_BYTES", "26214400");
+    private static final String PRESIGNED_URL_EXPIRY_HOURS = System.getenv().getOrDefault("PRESIGNED_URL_EXPIRY_HOURS", "12");
+    private static final String PRESIGN_ACCESS_KEY_ID = System.getenv().getOrDefault("PRESIGN_ACCESS_KEY_ID", "");
+    private static final String PRESIGN_SECRET_ACCESS_KEY_KMS = System.getenv("PRESIGN_SECRET_ACCESS_KEY_KMS");
+    private static final boolean ZIP_ATTACHMENTS = Boolean.parseBoolean(System.getenv().getOrDefault("ZIP_ATTACHMENTS", "false"));
+    private static final String ZIP_COMPRESSION_LEVEL = System.getenv().getOrDefault("ZIP_COMPRESSION_LEVEL", "6");
     private static final String BODY = System.getenv().getOrDefault("BODY", "");
+    private static final String SECRETS_CACHE_TTL_MINUTES = System.getenv().getOrDefault("SECRETS_CACHE_TTL_MINUTES", "60");
+    private static final String RECIPIENT_GROUPS = System.getenv().getOrDefault("RECIPIENT_GROUPS", "");
+    private static final String NOTIFIER_CONCURRENCY = System.getenv().getOrDefault("NOTIFIER_CONCURRENCY", "4");
+    private static final String SMTP_CONNECTIONS = System.getenv().getOrDefault("SMTP_CONNECTIONS", "2");
+    private static final String METRICS_NAMESPACE = System.getenv().getOrDefault("METRICS_NAMESPACE", MetricsLogger.DEFAULT_NAMESPACE);
+    private static final String MIN_REPORT_ROWS = System.getenv().getOrDefault("MIN_REPORT_ROWS", "0");
+    private static final String MAX_ROW_DROP_PERCENT = System.getenv().getOrDefault("MAX_ROW_DROP_PERCENT", "0");
+    private static final boolean PRIME_ON_INIT = Boolean.parseBoolean(System.getenv().getOrDefault("PRIME_ON_INIT", "false"));
+    private static final double EMAIL_SHARE = 0.5;
     private static final String FILENAME_ELEMENT_SEPARATOR = "-";
     private static final String FILENAME_PREFIX = StringUtils.isNotBlank(System.getenv().getOrDefault("FILENAME_PREFIX", "")) ? System.getenv().get("FILENAME_PREFIX") + FILENAME_ELEMENT_SEPARATOR : "";
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
     private static final JsonPointer OBJECT_KEY_PTR = JsonPointer.compile("/Records/0/s3/object/key");
+    private static final Pattern CARD_ID_PATTERN = Pattern.compile("card(\\d+)-[^/]*$");
+    private static final DateTimeFormatter LINK_EXPIRY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm 'UTC'").withZone(ZoneOffset.UTC);
+    private static final Pattern NAME_PREFIX_PATTERN = Pattern.compile("([^/]+)-\\d{4}-\\d{2}-\\d{2}T\\d{2}-\\d{2}-\\d{2}\\.[^/]*$");
     private final S3Reader s3Reader;
     private final EmailSender emailSender;
+    private final List<RecipientGroup> recipientGroups;
+    private final int concurrency;
+    private final MetricsLogger metricsLogger;
+    private final ReportRules reportRules;
 
     public App() {
-        this(new S3Reader(BUCKET), new EmailSender(SMTP_HOST, SMTP_PORT, SMTP_USER, new KmsDecrypt((AWS_REGION)).decrypt(SMTP_PASSWORD_KMS), FROM_ADDRESS));
+        this(new SecretsProvider(AWS_REGION, Duration.ofMinutes(Long.parseLong(SECRETS_CACHE_TTL_MINUTES))));
+        if (PRIME_ON_INIT) {
+            Priming.prime();
+        }
+    }
+
+    private App(SecretsProvider secretsProvider) {
+        this(createS3Reader(secretsProvider), new EmailSender(SMTP_HOST, SMTP_PORT, SMTP_USER, secretsProvider.lazy(SMTP_PASSWORD_KMS), FROM_ADDRESS,
+                        new PooledEmailTransport(Integer.parseInt(SMTP_CONNECTIONS))),
+                NotifierSettings.of(parseRecipientGroups(RECIPIENT_GROUPS))
+                        .withConcurrency(Integer.parseInt(NOTIFIER_CONCURRENCY))
+                        .withMetricsLogger(StringUtils.isBlank(METRICS_NAMESPACE) ? MetricsLogger.disabled() : new MetricsLogger(METRICS_NAMESPACE))
+                        .withReportRules(new ReportRules(Long.parseLong(MIN_REPORT_ROWS), Integer.parseInt(MAX_ROW_DROP_PERCENT))));
     }
 
-    App(S3Reader s3Reader, EmailSender emailSender) {
+    /**
+     * Create a handler from already configured clients, used to run the notifier outside Lambda
+     *
+     * @param s3Reader    reader of the report bucket
+     * @param emailSender sender of the report emails
+     * @param settings    recipient groups, concurrency, metrics and report rules of the deliveries
+     */
+    public App(S3Reader s3Reader, EmailSender emailSender, NotifierSettings settings) {
         this.s3Reader = s3Reader;
         this.emailSender = emailSender;
+        this.recipientGroups = settings.recipientGroups();
+        this.concurrency = settings.concurrency();
+        this.metricsLogger = settings.metricsLogger();
+        this.reportRules = settings.reportRules();
     }
 
     @Override
     public Void handleRequest(SNSEvent snsEvent, Context context) {
+        boolean coldStart = MetricsLogger.isColdStart();
+        Deadline deadline = Deadline.forInvocation(context);
 
+        List<Report> reports = new ArrayList<>();
         for (SNSEvent.SNSRecord snsRecord : snsEvent.getRecords()) {
             String s3Key = parseS3Key(snsRecord.getSNS().getMessage());
-            byte[] data = s3Reader.downloadXlsx(s3Key);
-            LOGGER.info("downloaded {} bytes for s3 file: {}", data.length, s3Key);
-            checkFileSize(data.length);
-            emailSender.sendEmail(createSubject(METABASE_CARD_ID, NAME, INCLUDE_CARD_IN_SUBJECT), RECIPIENTS.split(","), createHtmlBody(BODY), getFileName(s3Key), data);
+            if (s3Key.startsWith(S3Writer.STATE_PREFIX)) {
+                LOGGER.info("ignoring internal state file: {}", s3Key);
+                continue;
+            }
+            if (s3Key.startsWith(S3Writer.TRANSCODED_PREFIX)) {
+                LOGGER.info("ignoring csv copy of a report: {}", s3Key);
+                continue;
+            }
+            String cardId = getCardId(s3Key);
+            List<RecipientGroup> groups = recipientGroups.stream()
+                    .filter(group -> group.accepts(cardId))
+                    .toList();
+            if (!groups.isEmpty()) {
+                reports.add(new Report(s3Key, cardId, groups));
+            }
+        }
+
+        List<NotificationResult> results = sendAll(reports, deadline);
+        long failures = results.stream().filter(result -> !result.success()).count();
+        for (NotificationResult result : results) {
+            LOGGER.info("key={} group={} success={} durationMs={} error={}", result.s3Key(), result.group(), result.success(), result.durationMs(), result.error());
         }
 
+        metricsLogger.metrics()
+                .put("ColdStart", coldStart ? 1 : 0, MetricsLogger.Unit.COUNT)
+                .put("NotificationFailures", failures, MetricsLogger.Unit.COUNT)
+                .emit();
+
+        // only fail the invocation (and have SNS redeliver it) when nothing could be sent, as a redelivery would
+        // send the successful deliveries again. Partial failures are alarmed on through the NotificationFailures metric
+        if (failures > 0 && failures == results.size()) {
+            throw new RuntimeException("all " + failures + " notification(s) failed");
+        }
+        LOGGER.info("sent {} of {} notification(s)", results.size() - failures, results.size());
         return null;
     }
 
+    /**
+     * Apply the report rules to an XLSX report, streaming it once from S3 to count its rows. The data row count
+     * is compared with the last report with the same name, and is only stored once the report has been sent.
+     * A report which cannot be inspected is sent anyway, and a report over the size limit is not inspected as it
+     * is only sent as a link.
+     *
+     * @param s3Key    key of the report
+     * @param cardId   metabase card of the report
+     * @param deadline deadline of the invocation
+     * @return whether the report should be sent, and the row count to store once it has been
+     */
+    private ReportCheck checkReport(String s3Key, String cardId, Deadline deadline) {
+        if (!reportRules.isEnabled() || !s3Key.endsWith("." + ExportFormat.XLSX.getExtension()) || deadline.isExpired()) {
+            return ReportCheck.UNCHECKED;
+        }
+
+        XlsxStats stats;
+        try {
+            if (s3Reader.getObjectSize(s3Key) > Long.parseLong(SIZE_LIMIT_BYTES)) {
+                LOGGER.info("not inspecting {} as it is sent as a download link", s3Key);
+                return ReportCheck.UNCHECKED;
+            }
+            try (InputStream inputStream = deadline.wrap(s3Reader.openStream(s3Key))) {
+                stats = XlsxInspector.inspect(inputStream);
+            }
+
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("unable to inspect {}, sending without checking it", s3Key, e);
+            return ReportCheck.UNCHECKED;
+        }
+
+        String stateKey = getRowCountKey(s3Key, cardId);
+        String previous = s3Reader.readState(stateKey);
+        long previousRows = StringUtils.isNumeric(previous) ? Long.parseLong(previous) : 0;
+        double rowDropPercent = ReportRules.getRowDropPercent(previousRows, stats.dataRows());
+        boolean rowDrop = reportRules.isRowDrop(previousRows, stats.dataRows());
+        String rejection = reportRules.reject(stats);
+        LOGGER.info("key={} rows={} previousRows={} columns={} nullRatios={}", s3Key, stats.dataRows(), previousRows, stats.columns(), stats.nullRatios());
+        if (rowDrop) {
+            LOGGER.warn("rows of {} dropped by {}% from {} to {}", s3Key, Math.round(rowDropPercent), previousRows, stats.dataRows());
+        }
+        if (rejection != null) {
+            LOGGER.warn("not sending {}: {}", s3Key, rejection);
+        }
+
+        metricsLogger.metrics(cardId)
+                .property("NullRatios", stats.nullRatios())
+                .put("ReportRows", stats.dataRows(), MetricsLogger.Unit.COUNT)
+                .put("ReportColumns", stats.columns(), MetricsLogger.Unit.COUNT)
+                .put("RowDropPercent", rowDropPercent, MetricsLogger.Unit.PERCENT)
+                .put("RowDropAlerts", rowDrop ? 1 : 0, MetricsLogger.Unit.COUNT)
+                .put("ReportsRejected", rejection != null ? 1 : 0, MetricsLogger.Unit.COUNT)
+                .emit();
+        return new ReportCheck(rejection == null, stateKey, stats.dataRows());
+    }
+
+    /**
+     * Check each report and send it to its recipient groups, running up to the configured number of checks
+     * and deliveries at the same time. The deliveries of a report start once its check has passed, and its row
+     * count is stored once at least one of them has succeeded. A failing delivery does not stop the remaining
+     * deliveries from being sent.
+     *
+     * @param reports  reports and the groups to send them to
+     * @param deadline deadline of the invocation
+     * @return result for each delivery of the reports which passed their check, in order
+     */
+    private List<NotificationResult> sendAll(List<Report> reports, Deadline deadline) {
+        int deliveryCount = reports.stream().mapToInt(report -> report.groups().size()).sum();
+        if (deliveryCount == 0) {
+            return List.of();
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(concurrency, deliveryCount));
+        try {
+            List<CompletableFuture<ReportCheck>> checks = new ArrayList<>();
+            List<Delivery> deliveries = new ArrayList<>();
+            List<Future<NotificationResult>> futures = new ArrayList<>();
+            for (Report report : reports) {
+                CompletableFuture<ReportCheck> checked = CompletableFuture.supplyAsync(
+                        () -> checkReport(report.s3Key(), report.cardId(), deadline), executorService);
+                checks.add(checked);
+                for (RecipientGroup group : report.groups()) {
+                    Delivery delivery = new Delivery(report.s3Key(), group);
+                    deliveries.add(delivery);
+                    futures.add(checked.thenApplyAsync(check -> check.send() ? send(delivery, deadline) : null, executorService));
+                }
+            }
+
+            List<NotificationResult> results = new ArrayList<>();
+            int next = 0;
+            for (int i = 0; i < reports.size(); i++) {
+                boolean delivered = false;
+                for (int j = 0; j < reports.get(i).groups().size(); j++, next++) {
+                    NotificationResult result = getResult(deliveries.get(next), futures.get(next));
+                    if (result != null) {
+                        results.add(result);
+                        delivered |= result.success();
+                    }
+                }
+                if (delivered) {
+                    // a successful delivery means the check completed and let the report through
+                    ReportCheck check = checks.get(i).join();
+                    if (check.rowCountKey() != null) {
+                        s3Reader.writeState(check.rowCountKey(), Long.toString(check.rows()));
+                    }
+                }
+            }
+            return results;
+
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Check the size of a report and email it to a recipient group. Reports up to the size limit are attached,
+     * zipped first when ZIP_ATTACHMENTS is enabled, and larger reports are sent as a presigned download link so
+     * that they are never downloaded by the notifier. A delivery which has not started by the deadline fails
+     * without connecting to the SMTP server, and each email may use half of the time left when it starts.
+     * <p>
+     * Attachments are streamed from S3 while the email is sent, so the email duration includes the download.
+     *
+     * @param delivery report and the group to send it to
+     * @param deadline deadline of the invocation
+     * @return result of the delivery
+     */
+    private NotificationResult send(Delivery delivery, Deadline deadline) {
+        long start = System.currentTimeMillis();
+        String s3Key = delivery.s3Key();
+        RecipientGroup group = delivery.group();
+        String cardId = getCardId(s3Key);
+        try {
+            deadline.check();
+            long size = s3Reader.getObjectSize(s3Key);
+            LOGGER.info("found {} bytes for s3 file: {}", size, s3Key);
+            checkFileSize(size);
+            String fileName = getFileName(s3Key);
+            String subject = createSubject(cardId, NAME, INCLUDE_CARD_IN_SUBJECT);
+            String[] recipients = group.recipients().toArray(String[]::new);
+            String body = group.body() != null ? group.body() : BODY;
+
+            long emailStart = System.currentTimeMillis();
+            EmailSender emailSender = this.emailSender.withDeadline(deadline.stage("email", EMAIL_SHARE));
+            String deliveryType;
+            if (size > Long.parseLong(SIZE_LIMIT_BYTES)) {
+                LOGGER.info("{} is larger than {} bytes, sending a download link", s3Key, SIZE_LIMIT_BYTES);
+                Duration expiry = getLinkExpiry(Long.parseLong(PRESIGNED_URL_EXPIRY_HOURS));
+                Instant expiresAt = Instant.now().plus(expiry);
+                String url = s3Reader.presignGetUrl(s3Key, fileName, expiry);
+                emailSender.sendEmail(subject, recipients, addDownloadLink(createHtmlBody(body), url, fileName, expiresAt));
+                deliveryType = "link";
+            } else if (ZIP_ATTACHMENTS) {
+                emailSender.sendEmail(subject, recipients, createHtmlBody(body), getZipFileName(fileName),
+                        List.of(s3Reader.openDataSource(s3Key, fileName, getContentType(fileName))), Integer.parseInt(ZIP_COMPRESSION_LEVEL));
+                deliveryType = "zip";
+            } else {
+                emailSender.sendEmail(subject, recipients, createHtmlBody(body), fileName, s3Reader.openDataSource(s3Key, fileName, getContentType(fileName)));
+                deliveryType = "attachment";
+            }
+            long emailMs = System.currentTimeMillis() - emailStart;
+            long durationMs = System.currentTimeMillis() - start;
+            MetricsLogger.Metrics metrics = metricsLogger.metrics(cardId)
+                    .property("Group", group.name())
+                    .property("Delivery", deliveryType)
+                    .put("EmailDuration", emailMs, MetricsLogger.Unit.MILLISECONDS)
+                    .put("NotificationDuration", durationMs, MetricsLogger.Unit.MILLISECONDS)
+                    .put("ReportBytes", size, MetricsLogger.Unit.BYTES);
+            if (!"link".equals(deliveryType)) {
+                metrics.put("EmailThroughput", MetricsLogger.megabytesPerSecond(size, emailMs), MetricsLogger.Unit.MEGABYTES_PER_SECOND);
+            }
+            metrics.emit();
+            return NotificationResult.success(s3Key, group.name(), durationMs);
+
+        } catch (RuntimeException e) {
+            LOGGER.error("failed to send {} to group {}", s3Key, group.name(), e);
+            return NotificationResult.failure(s3Key, group.name(), System.currentTimeMillis() - start, e);
+        }
+    }
+
+    /**
+     * Wait for a delivery to finish and return its result
+     *
+     * @param delivery report and the group it is being sent to
+     * @param future   pending delivery
+     * @return result of the delivery, or null if the report was not sent
+     */
+    private static NotificationResult getResult(Delivery delivery, Future<NotificationResult> future) {
+        try {
+            return future.get();
+
+        } catch (ExecutionException e) {
+            return NotificationResult.failure(delivery.s3Key(), delivery.group().name(), 0, e.getCause());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return NotificationResult.failure(delivery.s3Key(), delivery.group().name(), 0, e);
+        }
+    }
+
+    /**
+     * Parse the recipient groups from a JSON list. When no groups are configured every report is sent to
+     * RECIPIENTS with the default body.
+     *
+     * @param json JSON list of recipient groups (ex: [{"name":"finance","recipients":["a@example.com"],"cardIds":["12"]}])
+     * @return recipient groups
+     */
+    static List<RecipientGroup> parseRecipientGroups(String json) {
+        if (StringUtils.isBlank(json)) {
+            return List.of(new RecipientGroup("default", Arrays.asList(RECIPIENTS.split(",")), null, List.of()));
+        }
+
+        try {
+            return OBJECT_MAPPER.readValue(json, new TypeReference<>() {
+            });
+
+        } catch (JsonProcessingException e) {
+            LOGGER.error("failed to parse recipient groups: {}", json);
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Parse and return the S3 key from an SNS message body
      *
@@ -92,18 +416,130 @@ public class App implements RequestHandler<SNSEvent, Void> {
     }
 
     /**
-     * Validate the size of the file is not too large and not empty
+     * Replace the extension of a report file name with .zip
+     *
+     * @param fileName report file name (ex: card12-2023-04-04T07-00-00.csv.gz)
+     * @return ZIP file name (ex: card12-2023-04-04T07-00-00.zip)
+     */
+    static String getZipFileName(String fileName) {
+        String baseName = StringUtils.removeEnd(StringUtils.removeEnd(fileName, Compression.GZIP.getExtension()), Compression.ZSTD.getExtension());
+        int extensionStart = baseName.lastIndexOf('.');
+        return (extensionStart > 0 ? baseName.substring(0, extensionStart) : baseName) + ".zip";
+    }
+
+    /**
+     * Get the metabase card id from the report file name, falling back to the configured card id. The executor can
+     * export several cards into the same bucket so the file name is the source of truth.
+     *
+     * @param s3Key full S3 path (ex: 2023/04/04/card12-2023-04-04T07-00-00.xlsx)
+     * @return metabase card id (ex: 12)
+     */
+    static String getCardId(String s3Key) {
+        Matcher matcher = CARD_ID_PATTERN.matcher(s3Key);
+        return matcher.find() ? matcher.group(1) : METABASE_CARD_ID;
+    }
+
+    /**
+     * Get the key of the state object holding the data row count of the last report with the same name prefix
+     *
+     * @param s3Key  full S3 path (ex: 2023/04/04/card12-2023-04-04T07-00-00.xlsx)
+     * @param cardId metabase card of the report, used when the file name has no timestamp
+     * @return state key (ex: _state/card12/xlsx.rows)
+     */
+    static String getRowCountKey(String s3Key, String cardId) {
+        Matcher matcher = NAME_PREFIX_PATTERN.matcher(s3Key);
+        String namePrefix = matcher.find() ? matcher.group(1) : "card" + cardId;
+        return S3Writer.STATE_PREFIX + namePrefix + "/" + ExportFormat.XLSX.getExtension() + ".rows";
+    }
+
+    /**
+     * Get the MIME type of a report from its file extension. Compressed reports are sent as the compressed file.
+     *
+     * @param fileName report file name (ex: card12-2023-04-04T07-00-00.csv.gz)
+     * @return MIME type (ex: application/gzip)
+     */
+    static String getContentType(String fileName) {
+        if (fileName.endsWith(Compression.GZIP.getExtension())) {
+            return "application/gzip";
+        }
+        if (fileName.endsWith(Compression.ZSTD.getExtension())) {
+            return "application/zstd";
+        }
+        return Arrays.stream(ExportFormat.values())
+                .filter(format -> fileName.endsWith("." + format.getExtension()))
+                .map(ExportFormat::getContentType)
+                .findFirst()
+                .orElse("application/octet-stream");
+    }
+
+    /**
+     * Validate the file is not empty
      *
      * @param byteLength length of the file in bytes
      */
-    private static void checkFileSize(int byteLength) {
+    private static void checkFileSize(long byteLength) {
         if (byteLength <= 0) {
             throw new RuntimeException("not processing empty file");
-        } else if (byteLength > Integer.parseInt(SIZE_LIMIT_BYTES)) {
-            throw new RuntimeException("file is greater than max allowed size");
         }
     }
 
+    /**
+     * Create the S3 reader, signing download links with the access key in PRESIGN_ACCESS_KEY_ID when one is set.
+     * Links signed with the function's temporary credentials stop working when those credentials expire, which
+     * can be before PRESIGNED_URL_EXPIRY_HOURS.
+     *
+     * @param secretsProvider provider used to decrypt the secret access key
+     * @return S3 reader
+     */
+    private static S3Reader createS3Reader(SecretsProvider secretsProvider) {
+        if (StringUtils.isBlank(PRESIGN_ACCESS_KEY_ID)) {
+            LOGGER.warn("PRESIGN_ACCESS_KEY_ID is not set, download links can stop working before {} hours", PRESIGNED_URL_EXPIRY_HOURS);
+            return new S3Reader(BUCKET, S3Client.builder().build(), S3Presigner.create());
+        }
+
+        Supplier<String> secretAccessKey = secretsProvider.lazy(PRESIGN_SECRET_ACCESS_KEY_KMS);
+        return new S3Reader(BUCKET, S3Client.builder().build(), S3Presigner.builder()
+                .credentialsProvider(() -> AwsBasicCredentials.create(PRESIGN_ACCESS_KEY_ID, secretAccessKey.get()))
+                .build());
+    }
+
+    /**
+     * @param hours configured validity of a download link
+     * @return validity of a download link, capped at the longest validity S3 accepts
+     */
+    static Duration getLinkExpiry(long hours) {
+        Duration expiry = Duration.ofHours(hours);
+        return expiry.compareTo(S3Reader.MAX_PRESIGN_EXPIRY) > 0 ? S3Reader.MAX_PRESIGN_EXPIRY : expiry;
+    }
+
+    /**
+     * Add a link to download the report to the end of an HTML body
+     *
+     * @param htmlBody  body of the email formatted with HTML
+     * @param url       presigned URL of the report
+     * @param fileName  name of the report file
+     * @param expiresAt time the link stops working
+     * @return html body containing the link
+     */
+    static String addDownloadLink(String htmlBody, String url, String fileName, Instant expiresAt) {
+        String link = "<p>This report is too large to attach. <a href=\"" + escapeHtml(url) + "\">Download " + escapeHtml(fileName)
+                + "</a> (link expires at " + LINK_EXPIRY_FORMAT.format(expiresAt) + ").</p>";
+        return htmlBody.substring(0, htmlBody.length() - "</html>".length()) + link + "</html>";
+    }
+
+    /**
+     * Escape text so that it can be used inside HTML
+     *
+     * @param text text to escape
+     * @return escaped text
+     */
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+
     /**
      * Create an email subject line with the month and year included
      *
@@ -130,7 +566,7 @@ public class App implements RequestHandler<SNSEvent, Void> {
      * @param body content for the email body
      * @return html body
      */
-    private String createHtmlBody(String body) {
+    private static String createHtmlBody(String body) {
         String htmlBody = body;
 
         if (!htmlBody.startsWith("<html>")) {
@@ -142,4 +578,35 @@ public class App implements RequestHandler<SNSEvent, Void> {
 
         return htmlBody;
     }
-}
\ No newline at end of file
+
+    /**
+     * A report and the recipient groups it is sent to
+     *
+     * @param s3Key  key of the report
+     * @param cardId metabase card of the report
+     * @param groups groups accepting the report
+     */
+    private record Report(String s3Key, String cardId, List<RecipientGroup> groups) {
+    }
+
+    /**
+     * Outcome of applying the report rules to a report
+     *
+     * @param send        true if the report should be sent
+     * @param rowCountKey state key of the data row count, or null if the report was not inspected
+     * @param rows        data rows of the report
+     */
+    private record ReportCheck(boolean send, String rowCountKey, long rows) {
+
+        static final ReportCheck UNCHECKED = new ReportCheck(true, null, 0);
+    }
+
+    /**
+     * A report to be sent to one recipient group
+     *
+     * @param s3Key key of the report
+     * @param group recipients of the report
+     */
+    private record Delivery(String s3Key, RecipientGroup group) {
+    }
+}
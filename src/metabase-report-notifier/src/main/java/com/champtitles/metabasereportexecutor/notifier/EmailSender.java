@@ -1,5 +1,7 @@
 package com.champtitles.metabasereportexecutor.notifier;
 
+import com.champtitles.metabasereportexecutor.executor.Deadline;
+import com.champtitles.metabasereportexecutor.executor.ExportFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,14 +13,21 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.util.ByteArrayDataSource;
+import java.time.Duration;
+import java.util.List;
 import java.util.Properties;
+import java.util.function.Supplier;
 
 public class EmailSender {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(EmailSender.class.getName());
+    private static final Duration MAX_SMTP_TIMEOUT = Duration.ofSeconds(30);
+    private final Properties smtpProperties;
+    private final Authenticator smtpAuthenticator;
     private final Session session;
     private final String fromAddress;
     private final EmailTransport emailTransport;
+    private final Deadline deadline;
 
     /**
      * @param smtpHost     host of SMTP server
@@ -28,15 +37,64 @@ public class EmailSender {
      * @param fromAddress  email address to use as the sender
      */
     public EmailSender(String smtpHost, String smtpPort, String smtpUser, String smtpPassword, String fromAddress) {
+        this(smtpHost, smtpPort, smtpUser, () -> smtpPassword, fromAddress, new EmailTransport());
+    }
+
+    /**
+     * @param smtpHost     host of SMTP server
+     * @param smtpPort     port of SMTP server
+     * @param smtpUser     username to log in to SMTP server
+     * @param smtpPassword supplies the password to log in to SMTP server when it is first needed
+     * @param fromAddress  email address to use as the sender
+     */
+    public EmailSender(String smtpHost, String smtpPort, String smtpUser, Supplier<String> smtpPassword, String fromAddress) {
         this(smtpHost, smtpPort, smtpUser, smtpPassword, fromAddress, new EmailTransport());
     }
 
     EmailSender(String smtpHost, String smtpPort, String smtpUser, String smtpPassword, String fromAddress, EmailTransport emailTransport) {
-        Properties smtpProperties = createSmtpProperties(smtpHost, smtpPort, smtpUser, smtpPassword);
-        Authenticator smtpAuthenticator = createSmtpAuthenticator(smtpUser, smtpPassword);
-        session = Session.getInstance(smtpProperties, smtpAuthenticator);
+        this(smtpHost, smtpPort, smtpUser, () -> smtpPassword, fromAddress, emailTransport);
+    }
+
+    /**
+     * @param smtpHost       host of SMTP server
+     * @param smtpPort       port of SMTP server
+     * @param smtpUser       username to log in to SMTP server
+     * @param smtpPassword   supplies the password to log in to SMTP server when it is first needed
+     * @param fromAddress    email address to use as the sender
+     * @param emailTransport transport each message is sent through (ex: a {@link PooledEmailTransport})
+     */
+    public EmailSender(String smtpHost, String smtpPort, String smtpUser, Supplier<String> smtpPassword, String fromAddress, EmailTransport emailTransport) {
+        this(createSmtpProperties(smtpHost, smtpPort, smtpUser), createSmtpAuthenticator(smtpUser, smtpPassword), fromAddress, emailTransport, Deadline.none());
+    }
+
+    private EmailSender(Properties smtpProperties, Authenticator smtpAuthenticator, String fromAddress, EmailTransport emailTransport, Deadline deadline) {
+        this.smtpProperties = smtpProperties;
+        this.smtpAuthenticator = smtpAuthenticator;
+        this.session = Session.getInstance(smtpProperties, smtpAuthenticator);
         this.fromAddress = fromAddress;
         this.emailTransport = emailTransport;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Create a sender for one delivery which shares the SMTP connections of this sender. Connecting, reading and
+     * writing time out after at most 30 seconds, or earlier when the deadline is closer, and an open connection
+     * which was given a longer timeout is replaced rather than reused. Nothing is sent once the deadline has passed.
+     *
+     * @param deadline deadline of the delivery
+     * @return sender bound by the deadline
+     */
+    public EmailSender withDeadline(Deadline deadline) {
+        if (!deadline.isBounded()) {
+            return this;
+        }
+        String timeoutMillis = String.valueOf(deadline.limit(MAX_SMTP_TIMEOUT).toMillis());
+        Properties properties = new Properties();
+        properties.putAll(smtpProperties);
+        properties.put("mail.smtp.connectiontimeout", timeoutMillis);
+        properties.put("mail.smtp.timeout", timeoutMillis);
+        properties.put("mail.smtp.writetimeout", timeoutMillis);
+        return new EmailSender(properties, smtpAuthenticator, fromAddress, emailTransport, deadline);
     }
 
     /**
@@ -48,25 +106,90 @@ public class EmailSender {
      * @param xlsxData   contents of the xlsx file attachment
      */
     public void sendEmail(String subject, String[] recipients, String htmlBody, String fileName, byte[] xlsxData) {
+        sendEmail(subject, recipients, htmlBody, fileName, ExportFormat.XLSX.getContentType(), xlsxData);
+    }
+
+    /**
+     * Create an email with an attachment of the given content type and send it
+     *
+     * @param subject     subject line of the email
+     * @param recipients  list of recipient addresses
+     * @param fileName    name of the file attachment
+     * @param contentType MIME type of the file attachment
+     * @param data        contents of the file attachment
+     */
+    public void sendEmail(String subject, String[] recipients, String htmlBody, String fileName, String contentType, byte[] data) {
+        sendEmail(subject, recipients, htmlBody, fileName, new ByteArrayDataSource(data, contentType));
+    }
+
+    /**
+     * Create an email with an attachment read from the given DataSource and send it. The attachment is read
+     * and encoded while the message is being sent, so a streaming DataSource is never held in memory.
+     *
+     * @param subject    subject line of the email
+     * @param recipients list of recipient addresses
+     * @param fileName   name of the file attachment
+     * @param dataSource contents and MIME type of the file attachment
+     */
+    public void sendEmail(String subject, String[] recipients, String htmlBody, String fileName, DataSource dataSource) {
         Message message = new MimeMessage(session);
         setFromAddress(message);
         setRecipients(message, recipients);
         setSubject(message, subject);
-        setContent(message, htmlBody, fileName, xlsxData);
+        setContent(message, htmlBody, fileName, new DataHandler(dataSource));
         send(message);
     }
 
     /**
-     * Sends the email message using the transport
+     * Create an email with the given files bundled into a single ZIP attachment and send it. The files are
+     * compressed while the message is being sent, so the archive is never held in memory.
+     *
+     * @param subject          subject line of the email
+     * @param recipients       list of recipient addresses
+     * @param htmlBody         body of the email formatted with HTML
+     * @param zipFileName      name of the ZIP file attachment
+     * @param dataSources      files to add to the ZIP file
+     * @param compressionLevel deflate level from 0 (fastest) to 9 (smallest), or -1 for the default
+     */
+    public void sendEmail(String subject, String[] recipients, String htmlBody, String zipFileName, List<DataSource> dataSources, int compressionLevel) {
+        Message message = new MimeMessage(session);
+        setFromAddress(message);
+        setRecipients(message, recipients);
+        setSubject(message, subject);
+        setContent(message, htmlBody, zipFileName, new ZipDataSource(zipFileName, dataSources, compressionLevel).createDataHandler());
+        send(message);
+    }
+
+    /**
+     * Create an email without an attachment and send it
+     *
+     * @param subject    subject line of the email
+     * @param recipients list of recipient addresses
+     * @param htmlBody   body of the email formatted with HTML
+     */
+    public void sendEmail(String subject, String[] recipients, String htmlBody) {
+        Message message = new MimeMessage(session);
+        setFromAddress(message);
+        setRecipients(message, recipients);
+        setSubject(message, subject);
+        setContent(message, htmlBody);
+        send(message);
+    }
+
+    /**
+     * Sends the email message using the transport, unless the deadline has passed
      *
      * @param message email message to send
      */
     private void send(Message message) {
+        deadline.check();
         try {
             LOGGER.info("sending email");
             emailTransport.send(message);
 
         } catch (MessagingException e) {
+            // a send which timed out at the deadline is reported as the deadline being exceeded
+            deadline.check();
             LOGGER.error("failed to send email message");
             throw new RuntimeException(e);
         }
@@ -125,14 +248,14 @@ public class EmailSender {
     }
 
     /**
-     * Set the body of the email and add the xlsx file attachment to the message
+     * Set the body of the email and add the file attachment to the message
      *
-     * @param message  email message
-     * @param htmlBody body of the email formatted with HTML
-     * @param fileName name of the xlsx file
-     * @param xlsxData data contents of the xlsx file
+     * @param message     email message
+     * @param htmlBody    body of the email formatted with HTML
+     * @param fileName    name of the file
+     * @param dataHandler contents and MIME type of the file
      */
-    private static void setContent(Message message, String htmlBody, String fileName, byte[] xlsxData) {
+    private static void setContent(Message message, String htmlBody, String fileName, DataHandler dataHandler) {
         LOGGER.info("creating email attachment for file: {}", fileName);
 
         try {
@@ -150,10 +273,9 @@ public class EmailSender {
             MimeMultipart mimeMultipartMixed = new MimeMultipart("mixed");
             mimeMultipartMixed.addBodyPart(mimeBodyPartWrapper);
 
-            // Create the attachment as an XLSX document
+            // Create the attachment
             MimeBodyPart mimeBodyPartAttachment = new MimeBodyPart();
-            DataSource dataSource = new ByteArrayDataSource(xlsxData, "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
-            mimeBodyPartAttachment.setDataHandler(new DataHandler(dataSource));
+            mimeBodyPartAttachment.setDataHandler(dataHandler);
             mimeBodyPartAttachment.setFileName(fileName);
             mimeMultipartMixed.addBodyPart(mimeBodyPartAttachment);
 
@@ -166,16 +288,31 @@ public class EmailSender {
 
     }
 
+    /**
+     * Set the HTML body of the email
+     *
+     * @param message  email message
+     * @param htmlBody body of the email formatted with HTML
+     */
+    private static void setContent(Message message, String htmlBody) {
+        try {
+            message.setContent(htmlBody, "text/html; charset=UTF-8");
+
+        } catch (MessagingException e) {
+            LOGGER.error("failed to set email body");
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Set SMTP settings in a Properties object
      *
      * @param smtpHost     host of SMTP server
      * @param smtpPort     port of SMTP server
      * @param smtpUser     username to log in to SMTP server
-     * @param smtpPassword password to log in to SMTP server
      * @return Properties object
      */
-    private static Properties createSmtpProperties(String smtpHost, String smtpPort, String smtpUser, String smtpPassword) {
+    private static Properties createSmtpProperties(String smtpHost, String smtpPort, String smtpUser) {
         LOGGER.info("configuring smtp server properties. host={} port={}", smtpHost, smtpPort);
         Properties properties = new Properties();
         properties.put("mail.smtp.host", smtpHost);
@@ -183,21 +320,20 @@ public class EmailSender {
         properties.put("mail.smtp.auth", "true");
         properties.put("mail.smtp.starttls.enable", "true");
         properties.put("mail.user", smtpUser);
-        properties.put("mail.password", smtpPassword);
         return properties;
     }
 
     /**
-     * Create an SMTP Authenticator
+     * Create an SMTP Authenticator. The password is only resolved when the SMTP server asks for it.
      *
      * @param smtpUser     username to log in to SMTP server
-     * @param smtpPassword password to log in to SMTP server
+     * @param smtpPassword supplies the password to log in to SMTP server
      * @return SMTP Authenticator
      */
-    private static Authenticator createSmtpAuthenticator(String smtpUser, String smtpPassword) {
+    private static Authenticator createSmtpAuthenticator(String smtpUser, Supplier<String> smtpPassword) {
         return new Authenticator() {
             public PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(smtpUser, smtpPassword);
+                return new PasswordAuthentication(smtpUser, smtpPassword.get());
             }
         };
     }
@@ -1,11 +1,141 @@
 package com.champtitles.metabasereportexecutor.notifier;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
 import javax.mail.Transport;
 
+/**
+ * Sends messages over a single SMTP connection which is kept open between messages and warm invocations,
+ * so the connection, STARTTLS and AUTH handshake is only paid once.
+ * <p>
+ * Before each message the connection is checked (SMTP NOOP) and re-established if the server has closed it, or if
+ * it was opened with a longer timeout than the message's session allows.
+ */
 public class EmailTransport {
-    public void send(Message message) throws MessagingException {
-        Transport.send(message);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmailTransport.class.getName());
+    private final TransportFactory transportFactory;
+    private Transport transport;
+    private long timeoutMillis;
+
+    public EmailTransport() {
+        this(session -> session.getTransport("smtp"));
+    }
+
+    EmailTransport(TransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * Send a message using the open connection, connecting first if needed. If the connection turns out to have
+     * been dropped while sending then the message is sent once more on a new connection.
+     *
+     * @param message email message to send
+     * @throws MessagingException if the message could not be sent
+     */
+    public synchronized void send(Message message) throws MessagingException {
+        message.saveChanges();
+
+        try {
+            sendMessage(message);
+
+        } catch (SendFailedException e) {
+            throw e;
+
+        } catch (MessagingException e) {
+            if (transport != null && transport.isConnected()) {
+                throw e;
+            }
+            LOGGER.warn("smtp connection failed while sending, reconnecting: {}", e.getMessage());
+            close();
+            sendMessage(message);
+        }
+    }
+
+    /**
+     * Close the SMTP connection. A new connection is opened by the next call to {@link #send(Message)}.
+     */
+    public synchronized void close() {
+        if (transport == null) {
+            return;
+        }
+
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            LOGGER.warn("failed to close smtp connection: {}", e.getMessage());
+        }
+        transport = null;
+    }
+
+    /**
+     * Send a message and log how long the connection and the DATA transfer took
+     *
+     * @param message email message to send
+     */
+    private void sendMessage(Message message) throws MessagingException {
+        long start = System.currentTimeMillis();
+        boolean reused = ensureConnected(message.getSession());
+        long connectMs = System.currentTimeMillis() - start;
+
+        long dataStart = System.currentTimeMillis();
+        transport.sendMessage(message, message.getAllRecipients());
+        long dataMs = System.currentTimeMillis() - dataStart;
+
+        LOGGER.info("smtp send reused={} connectMs={} dataMs={}", reused, connectMs, dataMs);
+    }
+
+    /**
+     * Check the current connection is still usable, otherwise open a new one. Connecting includes STARTTLS
+     * and AUTH.
+     *
+     * @param session mail session to create a new connection from
+     * @return true if the existing connection was reused
+     */
+    private boolean ensureConnected(Session session) throws MessagingException {
+        long sessionTimeoutMillis = getTimeoutMillis(session);
+        if (transport != null) {
+            if (sessionTimeoutMillis < timeoutMillis) {
+                LOGGER.info("smtp connection timeout of {}ms is longer than the {}ms allowed, reconnecting", timeoutMillis, sessionTimeoutMillis);
+                close();
+            } else if (transport.isConnected()) {
+                return true;
+            } else {
+                LOGGER.info("smtp connection is no longer open, reconnecting");
+                close();
+            }
+        }
+
+        Transport newTransport = transportFactory.create(session);
+        newTransport.connect();
+        transport = newTransport;
+        timeoutMillis = sessionTimeoutMillis;
+        LOGGER.info("opened smtp connection");
+        return false;
+    }
+
+    /**
+     * The timeouts of a connection are read from the session when it is opened, so they are fixed for as long as
+     * the connection is reused
+     *
+     * @param session mail session
+     * @return read timeout of connections opened from the session, or Long.MAX_VALUE if they never time out
+     */
+    private static long getTimeoutMillis(Session session) {
+        String timeout = session.getProperty("mail.smtp.timeout");
+        long millis = timeout == null ? 0 : Long.parseLong(timeout);
+        return millis > 0 ? millis : Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates an unconnected SMTP transport
+     */
+    interface TransportFactory {
+        Transport create(Session session) throws MessagingException;
     }
 }
@@ -0,0 +1,21 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+/**
+ * Outcome of sending one report to one recipient group
+ *
+ * @param s3Key      key of the report
+ * @param group      name of the recipient group
+ * @param success    whether the email was sent
+ * @param durationMs time taken to check and send the report
+ * @param error      failure message (null on success)
+ */
+public record NotificationResult(String s3Key, String group, boolean success, long durationMs, String error) {
+
+    public static NotificationResult success(String s3Key, String group, long durationMs) {
+        return new NotificationResult(s3Key, group, true, durationMs, null);
+    }
+
+    public static NotificationResult failure(String s3Key, String group, long durationMs, Throwable error) {
+        return new NotificationResult(s3Key, group, false, durationMs, String.valueOf(error.getMessage()));
+    }
+}
@@ -0,0 +1,52 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import com.champtitles.metabasereportexecutor.executor.MetricsLogger;
+
+import java.util.List;
+
+/**
+ * Settings of how an {@link App} delivers each report.
+ *
+ * @param recipientGroups groups each report is sent to
+ * @param concurrency     maximum number of emails sent at the same time (at least 1)
+ * @param metricsLogger   logger of the invocation metrics
+ * @param reportRules     thresholds an XLSX report is checked against before it is sent
+ */
+public record NotifierSettings(List<RecipientGroup> recipientGroups, int concurrency, MetricsLogger metricsLogger, ReportRules reportRules) {
+
+    public NotifierSettings {
+        concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * @param recipientGroups groups each report is sent to
+     * @return settings which send one email at a time, emit no metrics and send every report
+     */
+    public static NotifierSettings of(List<RecipientGroup> recipientGroups) {
+        return new NotifierSettings(recipientGroups, 1, MetricsLogger.disabled(), ReportRules.disabled());
+    }
+
+    /**
+     * @param concurrency maximum number of emails sent at the same time
+     * @return copy of these settings with the given concurrency
+     */
+    public NotifierSettings withConcurrency(int concurrency) {
+        return new NotifierSettings(recipientGroups, concurrency, metricsLogger, reportRules);
+    }
+
+    /**
+     * @param metricsLogger logger of the invocation metrics
+     * @return copy of these settings with the given metrics logger
+     */
+    public NotifierSettings withMetricsLogger(MetricsLogger metricsLogger) {
+        return new NotifierSettings(recipientGroups, concurrency, metricsLogger, reportRules);
+    }
+
+    /**
+     * @param reportRules thresholds an XLSX report is checked against before it is sent
+     * @return copy of these settings with the given report rules
+     */
+    public NotifierSettings withReportRules(ReportRules reportRules) {
+        return new NotifierSettings(recipientGroups, concurrency, metricsLogger, reportRules);
+    }
+}
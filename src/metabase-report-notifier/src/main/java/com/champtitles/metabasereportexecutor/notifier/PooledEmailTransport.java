@@ -0,0 +1,60 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * EmailTransport which spreads concurrent messages over a fixed number of SMTP connections. Each connection
+ * is only used by one message at a time and is kept open between messages.
+ */
+class PooledEmailTransport extends EmailTransport {
+
+    private final BlockingQueue<EmailTransport> idleTransports = new LinkedBlockingQueue<>();
+
+    /**
+     * @param connections maximum number of SMTP connections
+     */
+    PooledEmailTransport(int connections) {
+        this(connections, EmailTransport::new);
+    }
+
+    PooledEmailTransport(int connections, Supplier<EmailTransport> emailTransportFactory) {
+        for (int i = 0; i < Math.max(1, connections); i++) {
+            idleTransports.add(emailTransportFactory.get());
+        }
+    }
+
+    /**
+     * Send a message on the next free connection, waiting for one if they are all busy
+     *
+     * @param message email message to send
+     * @throws MessagingException if the message could not be sent
+     */
+    @Override
+    public void send(Message message) throws MessagingException {
+        EmailTransport emailTransport;
+        try {
+            emailTransport = idleTransports.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("interrupted while waiting for an smtp connection", e);
+        }
+
+        try {
+            emailTransport.send(message);
+        } finally {
+            idleTransports.add(emailTransport);
+        }
+    }
+
+    /**
+     * Close all idle connections
+     */
+    @Override
+    public void close() {
+        idleTransports.forEach(EmailTransport::close);
+    }
+}
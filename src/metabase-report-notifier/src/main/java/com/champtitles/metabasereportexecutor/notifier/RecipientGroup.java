@@ -0,0 +1,22 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import java.util.List;
+
+/**
+ * A set of recipients who receive their own copy of each report
+ *
+ * @param name       name used in logs and results
+ * @param recipients email addresses of the recipients
+ * @param body       email body for this group (null to use the default body)
+ * @param cardIds    only send reports for these cards (null or empty for all cards)
+ */
+public record RecipientGroup(String name, List<String> recipients, String body, List<String> cardIds) {
+
+    /**
+     * @param cardId metabase card of the report
+     * @return true if this group should receive reports for the card
+     */
+    public boolean accepts(String cardId) {
+        return cardIds == null || cardIds.isEmpty() || cardIds.contains(cardId);
+    }
+}
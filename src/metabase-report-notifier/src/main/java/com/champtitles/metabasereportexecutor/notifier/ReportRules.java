@@ -0,0 +1,59 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import com.champtitles.metabasereportexecutor.executor.XlsxStats;
+
+/**
+ * Thresholds an XLSX report is checked against before it is emailed. A value of 0 turns a rule off.
+ *
+ * @param minRows           minimum number of data rows below the header, otherwise the report is not sent
+ * @param maxRowDropPercent largest allowed drop in data rows from the previous report of the card, otherwise
+ *                          an alert is raised (the report is still sent)
+ */
+public record ReportRules(long minRows, int maxRowDropPercent) {
+
+    /**
+     * @return rules which let every report through without inspecting it
+     */
+    public static ReportRules disabled() {
+        return new ReportRules(0, 0);
+    }
+
+    /**
+     * @return true if any rule is turned on
+     */
+    boolean isEnabled() {
+        return minRows > 0 || maxRowDropPercent > 0;
+    }
+
+    /**
+     * @param stats shape of the report
+     * @return reason the report must not be sent, or null if it can be sent
+     */
+    String reject(XlsxStats stats) {
+        if (minRows > 0 && stats.dataRows() < minRows) {
+            return "report has " + stats.dataRows() + " data row(s), fewer than the minimum of " + minRows;
+        }
+        return null;
+    }
+
+    /**
+     * @param previousRows data rows of the previous report
+     * @param rows         data rows of this report
+     * @return true if the rows dropped by more than allowed
+     */
+    boolean isRowDrop(long previousRows, long rows) {
+        return maxRowDropPercent > 0 && getRowDropPercent(previousRows, rows) > maxRowDropPercent;
+    }
+
+    /**
+     * @param previousRows data rows of the previous report (0 or less when there is none)
+     * @param rows         data rows of this report
+     * @return percentage of rows lost, 0 when the rows did not drop
+     */
+    static double getRowDropPercent(long previousRows, long rows) {
+        if (previousRows <= 0 || rows >= previousRows) {
+            return 0;
+        }
+        return (previousRows - rows) * 100.0 / previousRows;
+    }
+}
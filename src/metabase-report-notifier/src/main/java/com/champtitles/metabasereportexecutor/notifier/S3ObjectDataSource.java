@@ -0,0 +1,78 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+import javax.activation.DataSource;
+import javax.mail.EncodingAware;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * DataSource which streams an S3 object straight into an email attachment.
+ * <p>
+ * The object is only downloaded when JavaMail writes the message to the SMTP connection, and it is base64
+ * encoded on the fly as it is written, so the attachment is never held in memory. Declaring the encoding up
+ * front stops JavaMail from reading the whole object to choose one.
+ */
+class S3ObjectDataSource implements DataSource, EncodingAware {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3ObjectDataSource.class.getName());
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String s3Key;
+    private final String name;
+    private final String contentType;
+
+    /**
+     * @param s3Client    client used to download the object
+     * @param bucket      bucket containing the object
+     * @param s3Key       key of the object
+     * @param name        file name of the attachment
+     * @param contentType MIME type of the attachment
+     */
+    S3ObjectDataSource(S3Client s3Client, String bucket, String s3Key, String name, String contentType) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.s3Key = s3Key;
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Start a new download of the object each time it is called
+     *
+     * @return stream of the object contents
+     */
+    @Override
+    public InputStream getInputStream() {
+        LOGGER.info("streaming file: s3://{}/{}", bucket, s3Key);
+        return s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(s3Key)
+                .build());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("S3 object data source is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getEncoding() {
+        return "base64";
+    }
+}
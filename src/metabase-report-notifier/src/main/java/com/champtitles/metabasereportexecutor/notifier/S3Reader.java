@@ -3,24 +3,40 @@ package com.champtitles.metabasereportexecutor.notifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 
+import javax.activation.DataSource;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
 
 public class S3Reader {
+    /**
+     * Longest time a presigned URL can be valid for with Signature Version 4
+     */
+    public static final Duration MAX_PRESIGN_EXPIRY = Duration.ofDays(7);
     private static final Logger LOGGER = LoggerFactory.getLogger(S3Reader.class.getName());
     private final S3Client s3Client;
+    private final S3Presigner s3Presigner;
     private final String bucket;
 
-    public S3Reader(String bucket) {
-        s3Client = S3Client.builder().build();
-        this.bucket = bucket;
-    }
-
-    S3Reader(String bucket, S3Client s3Client) {
+    /**
+     * @param bucket      bucket containing the reports
+     * @param s3Client    client used to read the reports
+     * @param s3Presigner presigner used to sign download links
+     */
+    public S3Reader(String bucket, S3Client s3Client, S3Presigner s3Presigner) {
         this.s3Client = s3Client;
+        this.s3Presigner = s3Presigner;
         this.bucket = bucket;
     }
 
@@ -46,4 +62,110 @@ public class S3Reader {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Open the given document as a stream, which must be closed by the caller
+     *
+     * @param s3Key S3 key of the document
+     * @return contents of the document
+     */
+    public InputStream openStream(String s3Key) {
+        LOGGER.info("streaming file: s3://{}/{}", bucket, s3Key);
+        return s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(s3Key)
+                .build());
+    }
+
+    /**
+     * Read a small state object kept next to the reports
+     *
+     * @param s3Key S3 key of the state object
+     * @return contents of the object, or null if there is none or it could not be read
+     */
+    public String readState(String s3Key) {
+        try {
+            return s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(s3Key)
+                    .build()).asUtf8String().trim();
+
+        } catch (NoSuchKeyException e) {
+            return null;
+
+        } catch (SdkException e) {
+            LOGGER.warn("unable to read state from s3://{}/{}", bucket, s3Key);
+            return null;
+        }
+    }
+
+    /**
+     * Store a small state object next to the reports. A failure is logged and otherwise ignored.
+     *
+     * @param s3Key S3 key of the state object
+     * @param value contents of the object
+     */
+    public void writeState(String s3Key, String value) {
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(s3Key)
+                    .contentType("text/plain")
+                    .build(), RequestBody.fromString(value));
+
+        } catch (SdkException e) {
+            LOGGER.warn("unable to write state to s3://{}/{}", bucket, s3Key);
+        }
+    }
+
+    /**
+     * Get the size of the given document without downloading it
+     *
+     * @param s3Key S3 key of the document
+     * @return size in bytes
+     */
+    public long getObjectSize(String s3Key) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucket)
+                .key(s3Key)
+                .build();
+
+        return s3Client.headObject(headObjectRequest).contentLength();
+    }
+
+    /**
+     * Create a DataSource which downloads the given document only when it is read
+     *
+     * @param s3Key       S3 key of the document
+     * @param fileName    file name of the attachment
+     * @param contentType MIME type of the document
+     * @return streaming data source
+     */
+    public DataSource openDataSource(String s3Key, String fileName, String contentType) {
+        return new S3ObjectDataSource(s3Client, bucket, s3Key, fileName, contentType);
+    }
+
+    /**
+     * Create a presigned URL which lets the holder download the given document without AWS credentials.
+     * The URL stops working when the credentials used to sign it expire, which for a Lambda role can be
+     * sooner than the requested expiry, unless the reader was created with long-lived signing credentials.
+     *
+     * @param s3Key    S3 key of the document
+     * @param fileName file name used when the document is downloaded
+     * @param expiry   how long the URL is valid for
+     * @return presigned URL
+     */
+    public String presignGetUrl(String s3Key, String fileName, Duration expiry) {
+        GetObjectPresignRequest getObjectPresignRequest = GetObjectPresignRequest.builder()
+                .signatureDuration(expiry)
+                .getObjectRequest(GetObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(s3Key)
+                        .responseContentDisposition("attachment; filename=\"" + fileName + "\"")
+                        .build())
+                .build();
+
+        LOGGER.info("creating presigned url for s3://{}/{} valid for {}", bucket, s3Key, expiry);
+        return s3Presigner.presignGetObject(getObjectPresignRequest).url().toString();
+    }
 }
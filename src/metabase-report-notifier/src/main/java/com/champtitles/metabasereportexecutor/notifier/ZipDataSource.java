@@ -0,0 +1,113 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.EncodingAware;
+import java.io.*;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * DataSource which bundles one or more attachments into a single ZIP file.
+ * <p>
+ * When sent through the DataHandler from {@link #createDataHandler()} the archive is compressed while JavaMail
+ * base64 encodes it onto the SMTP connection, so neither the attachments nor the archive are held in memory.
+ */
+class ZipDataSource implements DataSource, EncodingAware {
+
+    static final String CONTENT_TYPE = "application/zip";
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZipDataSource.class.getName());
+    private final String name;
+    private final List<DataSource> dataSources;
+    private final int compressionLevel;
+
+    /**
+     * @param name             file name of the ZIP attachment
+     * @param dataSources      files to add to the archive, each using its own name
+     * @param compressionLevel deflate level from 0 (store only, least CPU) to 9 (smallest), or -1 for the default
+     */
+    ZipDataSource(String name, List<DataSource> dataSources, int compressionLevel) {
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("invalid zip compression level: " + compressionLevel);
+        }
+        this.name = name;
+        this.dataSources = dataSources;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return DataHandler which writes the archive straight to the message as it is sent
+     */
+    DataHandler createDataHandler() {
+        return new DataHandler(this) {
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException {
+                ZipDataSource.this.writeTo(outputStream);
+            }
+        };
+    }
+
+    /**
+     * Compress every file into the given stream. The stream is not closed.
+     *
+     * @param outputStream stream receiving the ZIP archive
+     * @throws IOException if a file could not be read or written
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FilterOutputStream(outputStream) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        })) {
+            zipOutputStream.setLevel(compressionLevel);
+
+            for (DataSource dataSource : dataSources) {
+                ZipEntry zipEntry = new ZipEntry(dataSource.getName());
+                zipOutputStream.putNextEntry(zipEntry);
+                try (InputStream inputStream = dataSource.getInputStream()) {
+                    inputStream.transferTo(zipOutputStream);
+                }
+                zipOutputStream.closeEntry();
+                LOGGER.info("zipped file={} bytes={} compressedBytes={} level={}", zipEntry.getName(), zipEntry.getSize(), zipEntry.getCompressedSize(), compressionLevel);
+            }
+        }
+    }
+
+    /**
+     * Build the whole archive in memory. Sending a message does not use this, it is only here for callers
+     * which read the DataSource directly.
+     *
+     * @return stream of the ZIP archive
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeTo(outputStream);
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("zip data source is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getEncoding() {
+        return "base64";
+    }
+}
@@ -1,6 +1,8 @@
 package com.champtitles.metabasereportexecutor.notifier;
 
+import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.champtitles.metabasereportexecutor.executor.MetricsLogger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
@@ -8,7 +10,19 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import javax.activation.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class AppTest {
 
@@ -24,12 +38,15 @@ public class AppTest {
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
-        app = new App(s3Reader, emailSender);
+        Mockito.when(emailSender.withDeadline(Mockito.any())).thenReturn(emailSender);
+        app = new App(s3Reader, emailSender, NotifierSettings.of(App.parseRecipientGroups("")));
     }
 
     @Test
     void handleRequest_returns_successfully() {
-        Mockito.when(s3Reader.downloadXlsx(Mockito.any())).thenReturn("data".getBytes());
+        DataSource dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(s3Reader.getObjectSize(Mockito.any())).thenReturn(4L);
+        Mockito.when(s3Reader.openDataSource(Mockito.any(), Mockito.any(), Mockito.any())).thenReturn(dataSource);
 
         SNSEvent snsEvent = new SNSEvent().withRecords(new ArrayList<>() {{
             SNSEvent.SNS sns = new SNSEvent.SNS();
@@ -52,13 +69,249 @@ public class AppTest {
         }});
         app.handleRequest(snsEvent, null);
 
-        Mockito.verify(s3Reader).downloadXlsx("2023/04/04/12/card-1_2011-12-03T10_15_30.xlsx");
+        Mockito.verify(s3Reader).getObjectSize("2023/04/04/12/card-1_2011-12-03T10_15_30.xlsx");
+        Mockito.verify(s3Reader).openDataSource("2023/04/04/12/card-1_2011-12-03T10_15_30.xlsx", "card-1_2011-12-03T10_15_30.xlsx",
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+        Mockito.verify(s3Reader, Mockito.never()).downloadXlsx(Mockito.any());
 
         Mockito.verify(emailSender).sendEmail(
                 Mockito.contains("Test For "),
                 Mockito.eq(new String[]{"test@example.com"}),
                 Mockito.eq("<html></html>"),
                 Mockito.eq("card-1_2011-12-03T10_15_30.xlsx"),
-                Mockito.eq("data".getBytes()));
+                Mockito.eq(dataSource));
+    }
+
+    @Test
+    void getCardId_parsesCardIdFromFileName() {
+        assertEquals("12", App.getCardId("2023/04/04/card12-2023-04-04T07-00-00.xlsx"));
+    }
+
+    @Test
+    void getCardId_fallsBackToConfiguredCardId() {
+        assertEquals("1", App.getCardId("2023/04/04/12/card-1_2011-12-03T10_15_30.xlsx"));
+    }
+
+    @Test
+    void getContentType_usesFileExtension() {
+        assertEquals("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", App.getContentType("card12-2023-04-04T07-00-00.xlsx"));
+        assertEquals("text/csv", App.getContentType("card12-2023-04-04T07-00-00.csv"));
+        assertEquals("application/json", App.getContentType("card12-2023-04-04T07-00-00.json"));
+        assertEquals("application/gzip", App.getContentType("card12-2023-04-04T07-00-00.csv.gz"));
+        assertEquals("application/zstd", App.getContentType("card12-2023-04-04T07-00-00.json.zst"));
+        assertEquals("application/octet-stream", App.getContentType("card12"));
+    }
+
+    @Test
+    void handleRequest_sendsRemainingRecords_whenOneRecordFails() {
+        DataSource dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(s3Reader.getObjectSize("2023/04/04/card1-2023-04-04T07-00-00.xlsx")).thenReturn(0L);
+        Mockito.when(s3Reader.getObjectSize("2023/04/04/card2-2023-04-04T07-00-00.xlsx")).thenReturn(4L);
+        Mockito.when(s3Reader.openDataSource(Mockito.any(), Mockito.any(), Mockito.any())).thenReturn(dataSource);
+
+        app.handleRequest(createSnsEvent("2023/04/04/card1-2023-04-04T07-00-00.xlsx", "2023/04/04/card2-2023-04-04T07-00-00.xlsx"), null);
+
+        Mockito.verify(emailSender, Mockito.times(1)).sendEmail(Mockito.any(), Mockito.any(), Mockito.any(),
+                Mockito.eq("card2-2023-04-04T07-00-00.xlsx"), Mockito.any(DataSource.class));
+    }
+
+    @Test
+    void handleRequest_failsWithoutSending_whenDeadlineHasPassed() {
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getRemainingTimeInMillis()).thenReturn(0);
+
+        assertThrows(RuntimeException.class, () -> app.handleRequest(createSnsEvent("2023/04/04/card1-2023-04-04T07-00-00.xlsx"), context));
+        Mockito.verifyNoInteractions(s3Reader);
+        Mockito.verify(emailSender, Mockito.never()).sendEmail(Mockito.any(), Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    void handleRequest_throwsException_whenEveryRecordFails() {
+        Mockito.when(s3Reader.getObjectSize(Mockito.any())).thenReturn(0L);
+
+        assertThrows(RuntimeException.class, () -> app.handleRequest(createSnsEvent("2023/04/04/card1-2023-04-04T07-00-00.xlsx"), null));
+    }
+
+    @Test
+    void handleRequest_ignoresCsvCopies() {
+        app.handleRequest(createSnsEvent("csv/2023/04/04/card1-2023-04-04T07-00-00.csv"), null);
+
+        Mockito.verifyNoInteractions(s3Reader, emailSender);
+    }
+
+    @Test
+    void handleRequest_skipsReport_withFewerRowsThanMinimum() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        app = new App(s3Reader, emailSender, NotifierSettings.of(App.parseRecipientGroups(""))
+                .withMetricsLogger(new MetricsLogger("Test", "notifier", new PrintStream(out, true)))
+                .withReportRules(new ReportRules(1, 50)));
+        Mockito.when(s3Reader.openStream("2023/04/04/card1-2023-04-04T07-00-00.xlsx")).thenReturn(new ByteArrayInputStream(createXlsx(1)));
+        Mockito.when(s3Reader.readState("_state/card1/xlsx.rows")).thenReturn("10");
+
+        app.handleRequest(createSnsEvent("2023/04/04/card1-2023-04-04T07-00-00.xlsx"), null);
+
+        Mockito.verify(s3Reader, Mockito.never()).writeState(Mockito.any(), Mockito.any());
+        Mockito.verifyNoInteractions(emailSender);
+        assertTrue(out.toString().contains("\"ReportsRejected\":1"));
+        assertTrue(out.toString().contains("\"RowDropAlerts\":1"));
+    }
+
+    @Test
+    void handleRequest_sendsReport_whenRowsMeetMinimum() throws IOException {
+        app = new App(s3Reader, emailSender, NotifierSettings.of(App.parseRecipientGroups("")).withReportRules(new ReportRules(1, 0)));
+        Mockito.when(s3Reader.openStream(Mockito.any())).thenReturn(new ByteArrayInputStream(createXlsx(3)));
+        Mockito.when(s3Reader.getObjectSize(Mockito.any())).thenReturn(4L);
+        Mockito.when(s3Reader.openDataSource(Mockito.any(), Mockito.any(), Mockito.any())).thenReturn(Mockito.mock(DataSource.class));
+
+        app.handleRequest(createSnsEvent("2023/04/04/card1-2023-04-04T07-00-00.xlsx"), null);
+
+        Mockito.verify(s3Reader).writeState("_state/card1/xlsx.rows", "2");
+        Mockito.verify(emailSender).sendEmail(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(DataSource.class));
+    }
+
+    @Test
+    void handleRequest_keepsRowCount_whenReportIsNotDelivered() throws IOException {
+        app = new App(s3Reader, emailSender, NotifierSettings.of(App.parseRecipientGroups("")).withReportRules(new ReportRules(1, 0)));
+        Mockito.when(s3Reader.openStream(Mockito.any())).thenReturn(new ByteArrayInputStream(createXlsx(3)));
+        Mockito.when(s3Reader.getObjectSize(Mockito.any())).thenReturn(4L);
+        Mockito.doThrow(new RuntimeException("smtp unavailable")).when(emailSender)
+                .sendEmail(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(DataSource.class));
+
+        assertThrows(RuntimeException.class, () -> app.handleRequest(createSnsEvent("2023/04/04/card1-2023-04-04T07-00-00.xlsx"), null));
+        Mockito.verify(s3Reader, Mockito.never()).writeState(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    void handleRequest_doesNotInspectReport_sentAsLink() {
+        app = new App(s3Reader, emailSender, NotifierSettings.of(App.parseRecipientGroups("")).withReportRules(new ReportRules(1, 0)));
+        Mockito.when(s3Reader.getObjectSize(Mockito.any())).thenReturn(26214401L);
+        Mockito.when(s3Reader.presignGetUrl(Mockito.any(), Mockito.any(), Mockito.any())).thenReturn("https://example.com/report.xlsx");
+
+        app.handleRequest(createSnsEvent("2023/04/04/card1-2023-04-04T07-00-00.xlsx"), null);
+
+        Mockito.verify(s3Reader, Mockito.never()).openStream(Mockito.any());
+        Mockito.verify(emailSender).sendEmail(Mockito.any(), Mockito.any(), Mockito.contains("https://example.com/report.xlsx"));
+    }
+
+    @Test
+    void getRowCountKey_usesNamePrefixOfReport() {
+        assertEquals("_state/card12/xlsx.rows", App.getRowCountKey("2023/04/04/card12-2023-04-04T07-00-00.xlsx", "12"));
+        assertEquals("_state/card12-3a7bd3e2/xlsx.rows", App.getRowCountKey("2023/04/04/card12-3a7bd3e2-2023-04-04T07-00-00.xlsx", "12"));
+        assertEquals("_state/card1/xlsx.rows", App.getRowCountKey("report.xlsx", "1"));
+    }
+
+    @Test
+    void getRowDropPercent_ignoresMissingPreviousCount() {
+        assertEquals(0.0, ReportRules.getRowDropPercent(0, 10));
+        assertEquals(0.0, ReportRules.getRowDropPercent(10, 12));
+        assertEquals(60.0, ReportRules.getRowDropPercent(10, 4));
+        assertTrue(new ReportRules(0, 50).isRowDrop(10, 4));
+        assertFalse(new ReportRules(0, 50).isRowDrop(10, 5));
+    }
+
+    @Test
+    void handleRequest_sendsToEachMatchingRecipientGroup() {
+        DataSource dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(s3Reader.getObjectSize(Mockito.any())).thenReturn(4L);
+        Mockito.when(s3Reader.openDataSource(Mockito.any(), Mockito.any(), Mockito.any())).thenReturn(dataSource);
+        app = new App(s3Reader, emailSender, NotifierSettings.of(App.parseRecipientGroups("""
+                [
+                    {"name": "all", "recipients": ["all@example.com"]},
+                    {"name": "finance", "recipients": ["finance@example.com"], "body": "<p>finance</p>", "cardIds": ["2"]},
+                    {"name": "sales", "recipients": ["sales@example.com"], "cardIds": ["3"]}
+                ]
+                """)).withConcurrency(2));
+
+        app.handleRequest(createSnsEvent("2023/04/04/card2-2023-04-04T07-00-00.xlsx"), null);
+
+        Mockito.verify(emailSender).sendEmail(Mockito.any(), Mockito.eq(new String[]{"all@example.com"}), Mockito.eq("<html></html>"), Mockito.any(), Mockito.any(DataSource.class));
+        Mockito.verify(emailSender).sendEmail(Mockito.any(), Mockito.eq(new String[]{"finance@example.com"}), Mockito.eq("<html><p>finance</p></html>"), Mockito.any(), Mockito.any(DataSource.class));
+        Mockito.verify(emailSender, Mockito.never()).sendEmail(Mockito.any(), Mockito.eq(new String[]{"sales@example.com"}), Mockito.any(), Mockito.any(), Mockito.any(DataSource.class));
+    }
+
+    @Test
+    void handleRequest_sendsDownloadLink_whenFileIsLargerThanLimit() {
+        Mockito.when(s3Reader.getObjectSize(Mockito.any())).thenReturn(30_000_000L);
+        Mockito.when(s3Reader.presignGetUrl(Mockito.any(), Mockito.any(), Mockito.any())).thenReturn("https://example.com/card1.xlsx?a=1&b=2");
+
+        app.handleRequest(createSnsEvent("2023/04/04/card1-2023-04-04T07-00-00.xlsx"), null);
+
+        Mockito.verify(s3Reader, Mockito.never()).openDataSource(Mockito.any(), Mockito.any(), Mockito.any());
+        Mockito.verify(emailSender).sendEmail(Mockito.any(), Mockito.eq(new String[]{"test@example.com"}),
+                Mockito.contains("<a href=\"https://example.com/card1.xlsx?a=1&amp;b=2\">"));
+    }
+
+    @Test
+    void handleRequest_emitsDeliveryMetrics_perCard() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        app = new App(s3Reader, emailSender, NotifierSettings.of(App.parseRecipientGroups(""))
+                .withMetricsLogger(new MetricsLogger("Test", "notifier", new PrintStream(out, true))));
+        Mockito.when(s3Reader.getObjectSize(Mockito.any())).thenReturn(4L);
+        Mockito.when(s3Reader.openDataSource(Mockito.any(), Mockito.any(), Mockito.any())).thenReturn(Mockito.mock(DataSource.class));
+
+        app.handleRequest(createSnsEvent("2023/04/04/card7-2023-04-04T07-00-00.xlsx"), null);
+
+        String metrics = out.toString();
+        assertTrue(metrics.contains("\"CardId\":\"7\""));
+        assertTrue(metrics.contains("\"ReportBytes\":4"));
+        assertTrue(metrics.contains("\"Delivery\":\"attachment\""));
+        assertTrue(metrics.contains("\"NotificationFailures\":0"));
+    }
+
+    @Test
+    void getZipFileName_replacesExtension() {
+        assertEquals("card1-2023-04-04T07-00-00.zip", App.getZipFileName("card1-2023-04-04T07-00-00.xlsx"));
+        assertEquals("card1-2023-04-04T07-00-00.zip", App.getZipFileName("card1-2023-04-04T07-00-00.csv.gz"));
+        assertEquals("report.zip", App.getZipFileName("report"));
+    }
+
+    @Test
+    void addDownloadLink_insertsLinkBeforeClosingTag() {
+        assertEquals("<html><p>hi</p><p>This report is too large to attach. <a href=\"https://example.com\">Download card1.xlsx</a> (link expires at 2023-04-05 07:00 UTC).</p></html>",
+                App.addDownloadLink("<html><p>hi</p></html>", "https://example.com", "card1.xlsx", Instant.parse("2023-04-05T07:00:00Z")));
+    }
+
+    @Test
+    void getLinkExpiry_capsAtLongestPresignedUrlValidity() {
+        assertEquals(Duration.ofHours(12), App.getLinkExpiry(12));
+        assertEquals(Duration.ofDays(7), App.getLinkExpiry(24 * 30));
+    }
+
+    @Test
+    void parseRecipientGroups_usesRecipients_whenNotConfigured() {
+        List<RecipientGroup> groups = App.parseRecipientGroups("");
+
+        assertEquals(1, groups.size());
+        assertEquals(List.of("test@example.com"), groups.get(0).recipients());
+        assertTrue(groups.get(0).accepts("12"));
+    }
+
+    private static SNSEvent createSnsEvent(String... s3Keys) {
+        List<SNSEvent.SNSRecord> records = new ArrayList<>();
+        for (String s3Key : s3Keys) {
+            SNSEvent.SNS sns = new SNSEvent.SNS();
+            sns.setMessage("""
+                    {"Records": [{"s3": {"object": {"key": "%s"}}}]}
+                    """.formatted(s3Key));
+            SNSEvent.SNSRecord record = new SNSEvent.SNSRecord();
+            record.setSns(sns);
+            records.add(record);
+        }
+        return new SNSEvent().withRecords(records);
+    }
+
+    private static byte[] createXlsx(int rows) throws IOException {
+        StringBuilder sheet = new StringBuilder("<worksheet><sheetData>");
+        for (int i = 1; i <= rows; i++) {
+            sheet.append("<row r=\"").append(i).append("\"><c r=\"A").append(i).append("\"><v>").append(i).append("</v></c></row>");
+        }
+        sheet.append("</sheetData></worksheet>");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            zipOutputStream.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+            zipOutputStream.write(sheet.toString().getBytes());
+        }
+        return outputStream.toByteArray();
     }
 }
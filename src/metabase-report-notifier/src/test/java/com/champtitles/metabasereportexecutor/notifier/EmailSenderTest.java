@@ -1,12 +1,25 @@
 package com.champtitles.metabasereportexecutor.notifier;
 
+import com.champtitles.metabasereportexecutor.executor.Deadline;
+import com.champtitles.metabasereportexecutor.executor.DeadlineExceededException;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import javax.mail.BodyPart;
+import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.IOException;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class EmailSenderTest {
 
@@ -43,4 +56,49 @@ public class EmailSenderTest {
         }));
     }
 
+    @Test
+    void sendEmail_attachesZipFile() throws MessagingException, IOException {
+        EmailTransport emailTransport = Mockito.mock(EmailTransport.class);
+        EmailSender emailSender = new EmailSender("localhost", "25", "testuser",
+                "testpassword", "from@example.com", emailTransport);
+
+        ByteArrayDataSource dataSource = new ByteArrayDataSource("data".getBytes(), "text/csv");
+        dataSource.setName("card1.csv");
+        emailSender.sendEmail("test subject", new String[]{"test@example.com"}, "<html></html>", "card1.zip", List.of(dataSource), 6);
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        Mockito.verify(emailTransport).send(captor.capture());
+        MimeMultipart mimeMultipart = (MimeMultipart) captor.getValue().getContent();
+        BodyPart attachment = mimeMultipart.getBodyPart(1);
+        assertEquals("card1.zip", attachment.getFileName());
+        assertEquals("application/zip", attachment.getDataHandler().getContentType());
+    }
+
+    @Test
+    void withDeadline_limitsSmtpTimeoutsToDeadline() throws MessagingException {
+        EmailTransport emailTransport = Mockito.mock(EmailTransport.class);
+        EmailSender emailSender = new EmailSender("localhost", "25", "testuser",
+                "testpassword", "from@example.com", emailTransport);
+
+        emailSender.withDeadline(Deadline.after("email", Duration.ofSeconds(5))).sendEmail("test subject", new String[]{"test@example.com"}, "<html></html>");
+        emailSender.withDeadline(Deadline.after("email", Duration.ofMinutes(5))).sendEmail("test subject", new String[]{"test@example.com"}, "<html></html>");
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        Mockito.verify(emailTransport, Mockito.times(2)).send(captor.capture());
+        Session session = captor.getAllValues().get(0).getSession();
+        assertTrue(Long.parseLong(session.getProperty("mail.smtp.connectiontimeout")) <= 5000);
+        assertTrue(Long.parseLong(session.getProperty("mail.smtp.timeout")) <= 5000);
+        assertTrue(Long.parseLong(session.getProperty("mail.smtp.writetimeout")) <= 5000);
+        assertEquals("30000", captor.getAllValues().get(1).getSession().getProperty("mail.smtp.timeout"));
+    }
+
+    @Test
+    void withDeadline_failsWithoutSending_whenDeadlineHasPassed() {
+        EmailTransport emailTransport = Mockito.mock(EmailTransport.class);
+        EmailSender emailSender = new EmailSender("localhost", "25", "testuser",
+                "testpassword", "from@example.com", emailTransport).withDeadline(Deadline.after("email", Duration.ZERO));
+
+        assertThrows(DeadlineExceededException.class, () -> emailSender.sendEmail("test subject", new String[]{"test@example.com"}, "<html></html>"));
+        Mockito.verifyNoInteractions(emailTransport);
+    }
 }
@@ -0,0 +1,106 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EmailTransportTest {
+
+    @Mock
+    private Transport firstTransport;
+
+    @Mock
+    private Transport secondTransport;
+
+    @Mock
+    private Message message;
+
+    private EmailTransport emailTransport;
+
+    @BeforeEach
+    void setUp() throws MessagingException {
+        MockitoAnnotations.openMocks(this);
+        Mockito.when(message.getAllRecipients()).thenReturn(new Address[0]);
+        Mockito.when(message.getSession()).thenReturn(createSession(30000));
+        Transport[] transports = {firstTransport, secondTransport};
+        int[] created = {0};
+        emailTransport = new EmailTransport(session -> transports[created[0]++]);
+    }
+
+    @Test
+    void send_reusesOpenConnection() throws MessagingException {
+        Mockito.when(firstTransport.isConnected()).thenReturn(true);
+
+        emailTransport.send(message);
+        emailTransport.send(message);
+
+        Mockito.verify(firstTransport, Mockito.times(1)).connect();
+        Mockito.verify(firstTransport, Mockito.times(2)).sendMessage(Mockito.eq(message), Mockito.any());
+        Mockito.verifyNoInteractions(secondTransport);
+    }
+
+    @Test
+    void send_reconnects_whenHealthCheckFails() throws MessagingException {
+        Mockito.when(firstTransport.isConnected()).thenReturn(false);
+
+        emailTransport.send(message);
+        emailTransport.send(message);
+
+        Mockito.verify(firstTransport, Mockito.times(1)).close();
+        Mockito.verify(secondTransport, Mockito.times(1)).connect();
+        Mockito.verify(secondTransport, Mockito.times(1)).sendMessage(Mockito.eq(message), Mockito.any());
+    }
+
+    @Test
+    void send_retriesOnNewConnection_whenConnectionDropsWhileSending() throws MessagingException {
+        Mockito.doThrow(new MessagingException("connection reset")).when(firstTransport).sendMessage(Mockito.eq(message), Mockito.any());
+        Mockito.when(firstTransport.isConnected()).thenReturn(false);
+
+        emailTransport.send(message);
+
+        Mockito.verify(secondTransport, Mockito.times(1)).connect();
+        Mockito.verify(secondTransport, Mockito.times(1)).sendMessage(Mockito.eq(message), Mockito.any());
+    }
+
+    @Test
+    void send_doesNotRetry_whenRecipientsAreRejected() throws MessagingException {
+        Mockito.doThrow(new SendFailedException("invalid address")).when(firstTransport).sendMessage(Mockito.eq(message), Mockito.any());
+
+        assertThrows(SendFailedException.class, () -> emailTransport.send(message));
+
+        Mockito.verifyNoInteractions(secondTransport);
+    }
+
+    @Test
+    void send_reconnects_whenMessageAllowsShorterTimeout() throws MessagingException {
+        Mockito.when(firstTransport.isConnected()).thenReturn(true);
+        Message shortMessage = Mockito.mock(Message.class);
+        Mockito.when(shortMessage.getAllRecipients()).thenReturn(new Address[0]);
+        Mockito.when(shortMessage.getSession()).thenReturn(createSession(1000));
+
+        emailTransport.send(message);
+        emailTransport.send(shortMessage);
+
+        Mockito.verify(firstTransport, Mockito.times(1)).close();
+        Mockito.verify(secondTransport, Mockito.times(1)).connect();
+        Mockito.verify(secondTransport, Mockito.times(1)).sendMessage(Mockito.eq(shortMessage), Mockito.any());
+    }
+
+    private static Session createSession(long timeoutMillis) {
+        Properties properties = new Properties();
+        properties.put("mail.smtp.timeout", String.valueOf(timeoutMillis));
+        return Session.getInstance(properties);
+    }
+}
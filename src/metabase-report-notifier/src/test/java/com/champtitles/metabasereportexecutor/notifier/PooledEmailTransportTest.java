@@ -0,0 +1,33 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PooledEmailTransportTest {
+
+    @Test
+    void send_reusesPooledConnection_afterFailure() throws MessagingException {
+        List<EmailTransport> created = new ArrayList<>();
+        PooledEmailTransport pooledEmailTransport = new PooledEmailTransport(1, () -> {
+            EmailTransport emailTransport = Mockito.mock(EmailTransport.class);
+            created.add(emailTransport);
+            return emailTransport;
+        });
+        Message message = Mockito.mock(Message.class);
+        Mockito.doThrow(new MessagingException("boom")).doNothing().when(created.get(0)).send(message);
+
+        assertThrows(MessagingException.class, () -> pooledEmailTransport.send(message));
+        pooledEmailTransport.send(message);
+
+        assertEquals(1, created.size());
+        Mockito.verify(created.get(0), Mockito.times(2)).send(message);
+    }
+}
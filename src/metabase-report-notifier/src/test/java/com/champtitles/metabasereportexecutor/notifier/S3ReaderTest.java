@@ -6,16 +6,28 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
+import javax.activation.DataSource;
+import javax.mail.EncodingAware;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class S3ReaderTest {
 
@@ -28,7 +40,7 @@ public class S3ReaderTest {
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
-        s3Reader = new S3Reader("test-bucket", s3Client);
+        s3Reader = new S3Reader("test-bucket", s3Client, null);
     }
 
     @Test
@@ -43,4 +55,44 @@ public class S3ReaderTest {
         byte[] result = s3Reader.downloadXlsx("test-file.xlsx");
         assertArrayEquals(expected, result);
     }
+
+    @Test
+    void getObjectSize_returnsContentLength() {
+        Mockito.when(s3Client.headObject(Mockito.any(HeadObjectRequest.class))).thenReturn(HeadObjectResponse.builder().contentLength(1234L).build());
+
+        assertEquals(1234L, s3Reader.getObjectSize("test-file.xlsx"));
+    }
+
+    @Test
+    void openDataSource_downloadsOnlyWhenRead() throws IOException {
+        byte[] expected = "data".getBytes();
+        ResponseInputStream<GetObjectResponse> getObjectResponse = new ResponseInputStream<>(
+                GetObjectResponse.builder().build(), AbortableInputStream.create(new ByteArrayInputStream(expected)));
+        Mockito.when(s3Client.getObject(Mockito.any(GetObjectRequest.class))).thenReturn(getObjectResponse);
+
+        DataSource dataSource = s3Reader.openDataSource("test-file.csv.gz", "test.csv.gz", "application/gzip");
+        Mockito.verify(s3Client, Mockito.never()).getObject(Mockito.any(GetObjectRequest.class));
+        assertEquals("application/gzip", dataSource.getContentType());
+        assertEquals("base64", ((EncodingAware) dataSource).getEncoding());
+
+        try (InputStream inputStream = dataSource.getInputStream()) {
+            assertArrayEquals(expected, inputStream.readAllBytes());
+        }
+        Mockito.verify(s3Client, Mockito.times(1)).getObject(Mockito.any(GetObjectRequest.class));
+    }
+
+    @Test
+    void presignGetUrl_signsUrlForKey() {
+        S3Presigner s3Presigner = S3Presigner.builder()
+                .region(Region.US_EAST_1)
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("access", "secret")))
+                .build();
+        s3Reader = new S3Reader("test-bucket", s3Client, s3Presigner);
+
+        String url = s3Reader.presignGetUrl("2023/04/04/card1.xlsx", "card1.xlsx", Duration.ofHours(1));
+
+        assertTrue(url.startsWith("https://test-bucket.s3.amazonaws.com/2023/04/04/card1.xlsx?"));
+        assertTrue(url.contains("X-Amz-Expires=3600"));
+        assertTrue(url.contains("response-content-disposition="));
+    }
 }
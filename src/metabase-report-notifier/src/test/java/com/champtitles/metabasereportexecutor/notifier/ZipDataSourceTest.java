@@ -0,0 +1,71 @@
+package com.champtitles.metabasereportexecutor.notifier;
+
+import org.junit.jupiter.api.Test;
+
+import javax.activation.DataSource;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ZipDataSourceTest {
+
+    @Test
+    void writeTo_addsEveryFileToArchive() throws IOException {
+        ZipDataSource zipDataSource = new ZipDataSource("report.zip", List.of(
+                createDataSource("card1.csv", "a,b\n1,2\n"),
+                createDataSource("card2.csv", "c,d\n3,4\n")), 9);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        zipDataSource.writeTo(outputStream);
+
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            ZipEntry first = zipInputStream.getNextEntry();
+            assertEquals("card1.csv", first.getName());
+            assertEquals("a,b\n1,2\n", new String(zipInputStream.readAllBytes()));
+
+            ZipEntry second = zipInputStream.getNextEntry();
+            assertEquals("card2.csv", second.getName());
+            assertEquals("c,d\n3,4\n", new String(zipInputStream.readAllBytes()));
+
+            assertNull(zipInputStream.getNextEntry());
+        }
+    }
+
+    @Test
+    void writeTo_doesNotCloseStream() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                fail("stream should not be closed");
+            }
+        };
+
+        new ZipDataSource("report.zip", List.of(createDataSource("card1.csv", "a")), 0).writeTo(outputStream);
+        assertTrue(outputStream.size() > 0);
+    }
+
+    @Test
+    void getEncoding_isBase64() {
+        ZipDataSource zipDataSource = new ZipDataSource("report.zip", List.of(), -1);
+        assertEquals("base64", zipDataSource.getEncoding());
+        assertEquals("application/zip", zipDataSource.getContentType());
+        assertEquals("report.zip", zipDataSource.getName());
+    }
+
+    @Test
+    void constructor_throwsException_withInvalidLevel() {
+        assertThrows(IllegalArgumentException.class, () -> new ZipDataSource("report.zip", List.of(), 10));
+    }
+
+    private static DataSource createDataSource(String name, String data) {
+        ByteArrayDataSource dataSource = new ByteArrayDataSource(data.getBytes(), "text/csv");
+        dataSource.setName(name);
+        return dataSource;
+    }
+}
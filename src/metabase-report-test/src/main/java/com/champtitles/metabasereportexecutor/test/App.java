@@ -1,7 +1,13 @@
 package com.champtitles.metabasereportexecutor.test;
 
+import com.champtitles.metabasereportexecutor.executor.Compression;
+import com.champtitles.metabasereportexecutor.executor.ExportFormat;
+import com.champtitles.metabasereportexecutor.executor.HttpClientSettings;
 import com.champtitles.metabasereportexecutor.executor.KmsDecrypt;
 import com.champtitles.metabasereportexecutor.executor.MetabaseClient;
+import com.champtitles.metabasereportexecutor.executor.MetabaseClientSettings;
+import com.champtitles.metabasereportexecutor.executor.S3Writer;
+import com.champtitles.metabasereportexecutor.executor.XlsxInspector;
 import com.champtitles.metabasereportexecutor.executor.model.SessionPropertiesResponse;
 import com.evanlennick.retry4j.CallExecutorBuilder;
 import com.evanlennick.retry4j.Status;
@@ -10,9 +16,6 @@ import com.evanlennick.retry4j.config.RetryConfigBuilder;
 import com.evanlennick.retry4j.exception.RetriesExhaustedException;
 import com.evanlennick.retry4j.exception.UnexpectedException;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
@@ -28,8 +31,6 @@ import software.amazon.awssdk.services.s3.model.*;
 
 import java.io.IOException;
 import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.Callable;
 
 import static org.junit.jupiter.api.Assertions.assertNotNull;
@@ -58,8 +59,16 @@ public class App {
             .build();
 
     public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && "local".equals(args[0])) {
+            LOGGER.info("running against local stand-ins for metabase, s3 and smtp");
+            LocalHarness.run();
+            return;
+        }
+
         KmsDecrypt kmsDecrypt = new KmsDecrypt(AWS_REGION);
-        MetabaseClient metabaseClient = new MetabaseClient(METABASE_URL, METABASE_USERNAME, kmsDecrypt.decrypt(METABASE_PASSWORD_KMS), METABASE_DEVICE_UUID);
+        String password = kmsDecrypt.decrypt(METABASE_PASSWORD_KMS);
+        MetabaseClient metabaseClient = new MetabaseClient(MetabaseClientSettings.of(METABASE_URL, METABASE_USERNAME, () -> password, METABASE_DEVICE_UUID),
+                HttpClientSettings.defaults());
 
         SessionPropertiesResponse sessionPropertiesResponse = waitForSessionProperties(metabaseClient);
         assertNotNull(sessionPropertiesResponse);
@@ -75,7 +84,7 @@ public class App {
         metabaseClient.loginAndGetSession();
 
         LOGGER.info("creating a card in metabase for testing");
-        metabaseClient.createCard("test");
+        String cardId = metabaseClient.createCard("test");
 
         LOGGER.info("invoking executor lambda");
         invokeExecutorLambda();
@@ -83,13 +92,10 @@ public class App {
         LOGGER.info("waiting 30 seconds for executor to run");
         Thread.sleep(30 * 1000);
 
-        LOGGER.info("checking xlsx files in s3 bucket: {}", BUCKET);
-        List<String> objects = listS3Objects();
-        assertTrue(objects.size() > 0);
-
-        for (String s3Key : objects) {
-            assertTrue(getXlsxRowCount(s3Key) >= 200);
-        }
+        LOGGER.info("checking latest xlsx file in s3 bucket: {}", BUCKET);
+        String s3Key = getLatestS3Key("card" + cardId);
+        assertNotNull(s3Key);
+        assertTrue(getXlsxRowCount(s3Key) >= 200);
 
         LOGGER.info("getting executor lambda logs");
         boolean executorSuccess = false;
@@ -146,41 +152,44 @@ public class App {
     }
 
     /**
-     * List and return the object keys in the report output S3 bucket
+     * Read the key of the newest XLSX report of a card from the pointer the executor writes next to its state,
+     * rather than listing the whole report output S3 bucket
+     *
+     * @param namePrefix file name prefix of the report (ex: card1)
+     * @return s3 key of the newest report, or null if there is none
      */
-    private static List<String> listS3Objects() {
+    private static String getLatestS3Key(String namePrefix) {
         S3Client s3Client = S3Client.builder().build();
-        ListObjectsV2Request listObjectsV2Request = ListObjectsV2Request.builder().bucket(BUCKET).build();
-        ListObjectsV2Response listObjectsV2Response = s3Client.listObjectsV2(listObjectsV2Request);
+        String latestKey = S3Writer.getLatestKey(namePrefix, ExportFormat.XLSX, Compression.NONE);
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder().bucket(BUCKET).key(latestKey).build();
+
+        try {
+            String s3Key = s3Client.getObjectAsBytes(getObjectRequest).asUtf8String().trim();
+            LOGGER.info("latest report of {}: {}", namePrefix, s3Key);
+            return s3Key;
 
-        List<String> objects = new ArrayList<String>();
-        for (S3Object s3Object : listObjectsV2Response.contents()) {
-            LOGGER.info("s3 object: key={} bytes={}", s3Object.key(), s3Object.size());
-            objects.add(s3Object.key());
+        } catch (NoSuchKeyException e) {
+            LOGGER.error("no latest report pointer at s3://{}/{}", BUCKET, latestKey);
+            return null;
         }
-        LOGGER.info("found {} files in s3 bucket: {}", objects.size(), BUCKET);
-        return objects;
     }
 
     /**
-     * Download and open the XLSX file from S3 and return the number of rows
+     * Stream the XLSX file from S3 and return the number of rows, including the header
      */
-    private static int getXlsxRowCount(String s3Key) {
+    private static long getXlsxRowCount(String s3Key) {
         LOGGER.info("downloading file s3://{}/{}", BUCKET, s3Key);
         S3Client s3Client = S3Client.builder().build();
         GetObjectRequest getObjectRequest = GetObjectRequest.builder().bucket(BUCKET).key(s3Key).build();
-        ResponseInputStream<GetObjectResponse> getObjectResponse = s3Client.getObject(getObjectRequest);
 
-        try {
-            LOGGER.info("opening xlsx file");
-            Workbook workbook = new XSSFWorkbook(getObjectResponse);
-            Sheet sheet = workbook.getSheetAt(0);
-            int rows = sheet.getPhysicalNumberOfRows();
+        try (ResponseInputStream<GetObjectResponse> getObjectResponse = s3Client.getObject(getObjectRequest)) {
+            LOGGER.info("reading xlsx file");
+            long rows = XlsxInspector.inspect(getObjectResponse).rows();
             LOGGER.info("xlsx file has {} rows", rows);
             return rows;
 
         } catch (IOException e) {
-            LOGGER.error("unable to open xlsx file: {}", s3Key);
+            LOGGER.error("unable to read xlsx file: {}", s3Key);
             throw new RuntimeException(e);
         }
     }
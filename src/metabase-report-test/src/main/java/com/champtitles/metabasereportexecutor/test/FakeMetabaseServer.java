@@ -0,0 +1,219 @@
+package com.champtitles.metabasereportexecutor.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the Metabase API calls made by the executor. Card exports are generated while they
+ * are sent, so exports of any size can be served without holding them in memory.
+ * <p>
+ * CSV and JSON exports are made of rows of generated data. XLSX exports are not valid workbooks, as the
+ * executor and notifier pass them through without reading them.
+ * Latency before the response to each export and error responses can be injected to test retries and timeouts.
+ */
+public class FakeMetabaseServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FakeMetabaseServer.class.getName());
+    private static final byte[] SESSION_RESPONSE = "{\"id\":\"local-session\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SESSION_PROPERTIES_RESPONSE = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CSV_HEADER = "id,customer,amount,created_at\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CSV_BLOCK = createCsvBlock(64 * 1024);
+    private static final byte[] JSON_BLOCK = createJsonBlock(64 * 1024);
+    private final HttpServer server;
+    private final ExecutorService executorService;
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final AtomicLong exports = new AtomicLong();
+    private volatile long exportSize = 1024;
+    private volatile Duration latency = Duration.ZERO;
+    private volatile int failureStatusCode = 502;
+
+    /**
+     * Start the server on a free local port
+     */
+    public FakeMetabaseServer() {
+        try {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        executorService = Executors.newCachedThreadPool();
+        server.setExecutor(executorService);
+        server.createContext("/api/session/properties", exchange -> respond(exchange, SESSION_PROPERTIES_RESPONSE));
+        server.createContext("/api/session", exchange -> respond(exchange, SESSION_RESPONSE));
+        server.createContext("/api/card/", this::export);
+        server.start();
+        LOGGER.info("fake metabase listening on {}", getUrl());
+    }
+
+    /**
+     * @return base URL of the server
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param exportSize number of bytes in each card export
+     */
+    public void setExportSize(long exportSize) {
+        this.exportSize = exportSize;
+    }
+
+    /**
+     * @param latency time each export waits before responding, like a slow query
+     */
+    public void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Respond to the next exports with an error
+     *
+     * @param count      number of exports to fail
+     * @param statusCode HTTP status of the failures (ex: 502)
+     */
+    public void failNext(int count, int statusCode) {
+        failureStatusCode = statusCode;
+        failuresLeft.set(count);
+    }
+
+    /**
+     * @return number of exports requested, including failed ones
+     */
+    public long getExports() {
+        return exports.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executorService.shutdownNow();
+    }
+
+    private void export(HttpExchange exchange) throws IOException {
+        exports.incrementAndGet();
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        sleep(latency);
+
+        if (failuresLeft.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            exchange.sendResponseHeaders(failureStatusCode, -1);
+            exchange.close();
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        String format = path.substring(path.lastIndexOf('/') + 1);
+        long size = exportSize;
+        exchange.sendResponseHeaders(200, size);
+        try (OutputStream outputStream = exchange.getResponseBody(); InputStream export = openExport(format, size)) {
+            export.transferTo(outputStream);
+        }
+    }
+
+    private static InputStream openExport(String format, long size) {
+        return switch (format) {
+            case "csv" -> new GeneratedInputStream(CSV_HEADER, CSV_BLOCK, size);
+            case "json" -> new GeneratedInputStream("[".getBytes(StandardCharsets.UTF_8), JSON_BLOCK, size);
+            default -> new GeneratedInputStream(new byte[]{'P', 'K', 3, 4}, CSV_BLOCK, size);
+        };
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private static void sleep(Duration duration) {
+        if (duration.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(duration.toMillis());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] createCsvBlock(int size) {
+        Random random = new Random(42);
+        StringBuilder rows = new StringBuilder(size + 64);
+        while (rows.length() < size) {
+            rows.append(random.nextInt(1_000_000)).append(",customer ").append(random.nextInt(1000)).append(',')
+                    .append(random.nextInt(100_000) / 100.0).append(",2023-04-0").append(1 + random.nextInt(9)).append('\n');
+        }
+        return rows.substring(0, rows.lastIndexOf("\n") + 1).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] createJsonBlock(int size) {
+        Random random = new Random(42);
+        StringBuilder rows = new StringBuilder(size + 128);
+        while (rows.length() < size) {
+            rows.append("{\"id\":").append(random.nextInt(1_000_000)).append(",\"customer\":\"customer ").append(random.nextInt(1000))
+                    .append("\",\"amount\":").append(random.nextInt(100_000) / 100.0).append("},\n");
+        }
+        return rows.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stream of a header followed by a block repeated up to the requested size
+     */
+    private static class GeneratedInputStream extends InputStream {
+
+        private final byte[] header;
+        private final byte[] block;
+        private final long size;
+        private long position;
+
+        GeneratedInputStream(byte[] header, byte[] block, long size) {
+            this.header = header;
+            this.block = block;
+            this.size = size;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= size) {
+                return -1;
+            }
+            byte[] source;
+            int offset;
+            if (position < header.length) {
+                source = header;
+                offset = (int) position;
+            } else {
+                source = block;
+                offset = (int) ((position - header.length) % block.length);
+            }
+            int count = (int) Math.min(Math.min(len, source.length - offset), size - position);
+            System.arraycopy(source, offset, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.champtitles.metabasereportexecutor.test;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * S3 client which keeps objects in memory, implementing the requests made by the executor and notifier.
+ * <p>
+ * The parts of a multipart upload are kept as they were uploaded rather than being copied into one array,
+ * so an object only takes its own size in memory. Runs with reports of a gigabyte or more need a heap to match.
+ */
+public class InMemoryS3Client implements S3Client {
+
+    private final Map<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, PendingUpload> uploads = new ConcurrentHashMap<>();
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest putObjectRequest, RequestBody requestBody) {
+        StoredObject storedObject = new StoredObject(List.of(readBody(requestBody)), putObjectRequest.contentType(),
+                putObjectRequest.metadata(), Instant.now());
+        objects.put(getPath(putObjectRequest.bucket(), putObjectRequest.key()), storedObject);
+        return PutObjectResponse.builder().eTag(storedObject.eTag()).build();
+    }
+
+    @Override
+    public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest createMultipartUploadRequest) {
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new PendingUpload(getPath(createMultipartUploadRequest.bucket(), createMultipartUploadRequest.key()),
+                createMultipartUploadRequest.contentType(), createMultipartUploadRequest.metadata(), new ConcurrentHashMap<>()));
+        return CreateMultipartUploadResponse.builder().uploadId(uploadId).build();
+    }
+
+    @Override
+    public UploadPartResponse uploadPart(UploadPartRequest uploadPartRequest, RequestBody requestBody) {
+        getUpload(uploadPartRequest.uploadId()).parts().put(uploadPartRequest.partNumber(), readBody(requestBody));
+        return UploadPartResponse.builder().eTag(Integer.toString(uploadPartRequest.partNumber())).build();
+    }
+
+    @Override
+    public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest completeMultipartUploadRequest) {
+        PendingUpload upload = getUpload(completeMultipartUploadRequest.uploadId());
+        List<byte[]> chunks = new ArrayList<>();
+        for (CompletedPart part : completeMultipartUploadRequest.multipartUpload().parts()) {
+            byte[] chunk = upload.parts().get(part.partNumber());
+            if (chunk == null) {
+                throw (S3Exception) S3Exception.builder().statusCode(400).message("invalid part " + part.partNumber()).build();
+            }
+            chunks.add(chunk);
+        }
+        StoredObject storedObject = new StoredObject(chunks, upload.contentType(), upload.metadata(), Instant.now());
+        objects.put(upload.path(), storedObject);
+        uploads.remove(completeMultipartUploadRequest.uploadId());
+        return CompleteMultipartUploadResponse.builder().eTag(storedObject.eTag()).build();
+    }
+
+    @Override
+    public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest abortMultipartUploadRequest) {
+        uploads.remove(abortMultipartUploadRequest.uploadId());
+        return AbortMultipartUploadResponse.builder().build();
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest getObjectRequest, ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+        StoredObject storedObject = objects.get(getPath(getObjectRequest.bucket(), getObjectRequest.key()));
+        if (storedObject == null) {
+            throw NoSuchKeyException.builder().statusCode(404).message("no such key: " + getObjectRequest.key()).build();
+        }
+
+        GetObjectResponse getObjectResponse = GetObjectResponse.builder()
+                .contentLength(storedObject.size())
+                .contentType(storedObject.contentType())
+                .metadata(storedObject.metadata())
+                .eTag(storedObject.eTag())
+                .lastModified(storedObject.lastModified())
+                .build();
+        try {
+            return responseTransformer.transform(getObjectResponse, AbortableInputStream.create(storedObject.openStream()));
+
+        } catch (RuntimeException e) {
+            throw e;
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest getObjectRequest) {
+        return getObject(getObjectRequest, ResponseTransformer.toInputStream());
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest headObjectRequest) {
+        StoredObject storedObject = objects.get(getPath(headObjectRequest.bucket(), headObjectRequest.key()));
+        if (storedObject == null) {
+            // like S3, HEAD reports a missing object as a 404 without the NoSuchKey error code
+            throw (S3Exception) S3Exception.builder().statusCode(404).message("Not Found").build();
+        }
+        return HeadObjectResponse.builder()
+                .contentLength(storedObject.size())
+                .contentType(storedObject.contentType())
+                .metadata(storedObject.metadata())
+                .eTag(storedObject.eTag())
+                .lastModified(storedObject.lastModified())
+                .build();
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(DeleteObjectRequest deleteObjectRequest) {
+        objects.remove(getPath(deleteObjectRequest.bucket(), deleteObjectRequest.key()));
+        return DeleteObjectResponse.builder().build();
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request listObjectsV2Request) {
+        String prefix = getPath(listObjectsV2Request.bucket(), listObjectsV2Request.prefix() == null ? "" : listObjectsV2Request.prefix());
+        String bucketPrefix = listObjectsV2Request.bucket() + "/";
+        List<S3Object> contents = objects.entrySet().stream()
+                .filter(entry -> entry.getKey().startsWith(prefix))
+                .map(entry -> S3Object.builder()
+                        .key(entry.getKey().substring(bucketPrefix.length()))
+                        .size(entry.getValue().size())
+                        .eTag(entry.getValue().eTag())
+                        .lastModified(entry.getValue().lastModified())
+                        .build())
+                .toList();
+        return ListObjectsV2Response.builder().contents(contents).keyCount(contents.size()).isTruncated(false).build();
+    }
+
+    @Override
+    public String serviceName() {
+        return "s3";
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * Remove every object and pending upload, for example between runs
+     */
+    public void clear() {
+        objects.clear();
+        uploads.clear();
+    }
+
+    private PendingUpload getUpload(String uploadId) {
+        PendingUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw NoSuchUploadException.builder().statusCode(404).message("no such upload: " + uploadId).build();
+        }
+        return upload;
+    }
+
+    private static String getPath(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+
+    private static byte[] readBody(RequestBody requestBody) {
+        try (InputStream inputStream = requestBody.contentStreamProvider().newStream()) {
+            return inputStream.readAllBytes();
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Object kept in memory as the parts it was uploaded in
+     */
+    private record StoredObject(List<byte[]> chunks, String contentType, Map<String, String> metadata, Instant lastModified) {
+
+        long size() {
+            return chunks.stream().mapToLong(chunk -> chunk.length).sum();
+        }
+
+        String eTag() {
+            return "\"" + Integer.toHexString(System.identityHashCode(this)) + "\"";
+        }
+
+        InputStream openStream() {
+            return new SequenceInputStream(Collections.enumeration(chunks.stream().<InputStream>map(ByteArrayInputStream::new).toList()));
+        }
+    }
+
+    /**
+     * Multipart upload which has not been completed yet
+     */
+    private record PendingUpload(String path, String contentType, Map<String, String> metadata, Map<Integer, byte[]> parts) {
+    }
+}
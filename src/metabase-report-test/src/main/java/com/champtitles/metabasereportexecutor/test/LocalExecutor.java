@@ -0,0 +1,52 @@
+package com.champtitles.metabasereportexecutor.test;
+
+import com.champtitles.metabasereportexecutor.executor.App;
+import com.champtitles.metabasereportexecutor.executor.CardBatchExecutor;
+import com.champtitles.metabasereportexecutor.executor.Compression;
+import com.champtitles.metabasereportexecutor.executor.ExportFormat;
+import com.champtitles.metabasereportexecutor.executor.ExportSettings;
+import com.champtitles.metabasereportexecutor.executor.HttpClientSettings;
+import com.champtitles.metabasereportexecutor.executor.MetabaseClient;
+import com.champtitles.metabasereportexecutor.executor.MetabaseClientSettings;
+import com.champtitles.metabasereportexecutor.executor.MetricsLogger;
+import com.champtitles.metabasereportexecutor.executor.ResultCache;
+import com.champtitles.metabasereportexecutor.executor.RetryPolicy;
+import com.champtitles.metabasereportexecutor.executor.S3Writer;
+import com.champtitles.metabasereportexecutor.executor.S3WriterSettings;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.util.UUID;
+
+/**
+ * Creates an executor which runs in-process against local stand-ins for Metabase and S3, wired the same way as
+ * the Lambda apart from the clients
+ */
+public final class LocalExecutor {
+
+    private static final int PART_SIZE_BYTES = 8 * 1024 * 1024;
+
+    private LocalExecutor() {
+    }
+
+    /**
+     * @param metabaseUrl   URL of the Metabase server
+     * @param s3Client      client of the report bucket
+     * @param bucket        report bucket
+     * @param exportFormat  format each card is exported in
+     * @param compression   compression applied to each export
+     * @param metricsLogger logger of the executor metrics
+     * @return executor lambda handler
+     */
+    public static App create(String metabaseUrl, S3Client s3Client, String bucket, ExportFormat exportFormat, Compression compression,
+                             MetricsLogger metricsLogger) {
+        RetryPolicy retryPolicy = RetryPolicy.defaults();
+        MetabaseClient metabaseClient = new MetabaseClient(MetabaseClientSettings.of(metabaseUrl, "local@example.com", () -> "local", UUID.randomUUID().toString())
+                .withRetryPolicy(retryPolicy), HttpClientSettings.of("HTTP_1_1", 10, 0, 4));
+        S3Writer s3Writer = new S3Writer(bucket, s3Client, S3WriterSettings.defaults()
+                .withParts(PART_SIZE_BYTES, 2)
+                .withRetryPolicy(retryPolicy));
+        CardBatchExecutor cardBatchExecutor = new CardBatchExecutor(metabaseClient, s3Writer, ExportSettings.of(4).withFormat(exportFormat, compression),
+                ResultCache.disabled(), metricsLogger);
+        return new App(metabaseClient, cardBatchExecutor, retryPolicy, metricsLogger);
+    }
+}
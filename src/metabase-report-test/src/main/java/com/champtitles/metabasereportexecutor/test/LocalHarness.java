@@ -0,0 +1,209 @@
+package com.champtitles.metabasereportexecutor.test;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.champtitles.metabasereportexecutor.executor.CardResult;
+import com.champtitles.metabasereportexecutor.executor.Compression;
+import com.champtitles.metabasereportexecutor.executor.ExportFormat;
+import com.champtitles.metabasereportexecutor.executor.MetricsLogger;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs the executor and notifier end to end in one JVM against a fake Metabase server, an in-memory S3 bucket
+ * and a local SMTP sink, then reports the latency and throughput of each report size. Nothing is sent to AWS,
+ * so the run measures the code of the lambdas rather than the network.
+ * <p>
+ * Configured through LOCAL_REPORT_SIZES (ex: 64KB,1MB,1GB), LOCAL_ITERATIONS, LOCAL_EXPORT_FORMAT,
+ * LOCAL_EXPORT_COMPRESSION, LOCAL_METABASE_LATENCY_MILLIS and LOCAL_METABASE_FAILURES (errors returned before
+ * each export). Reports are held in memory, so the heap must be larger than the biggest report size.
+ */
+public class LocalHarness {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalHarness.class.getName());
+    private static final String REPORT_SIZES = System.getenv().getOrDefault("LOCAL_REPORT_SIZES", "64KB,1MB,16MB,128MB");
+    private static final String ITERATIONS = System.getenv().getOrDefault("LOCAL_ITERATIONS", "3");
+    private static final String EXPORT_FORMAT = System.getenv().getOrDefault("LOCAL_EXPORT_FORMAT", "xlsx");
+    private static final String EXPORT_COMPRESSION = System.getenv().getOrDefault("LOCAL_EXPORT_COMPRESSION", "none");
+    private static final String METABASE_LATENCY_MILLIS = System.getenv().getOrDefault("LOCAL_METABASE_LATENCY_MILLIS", "0");
+    private static final String METABASE_FAILURES = System.getenv().getOrDefault("LOCAL_METABASE_FAILURES", "0");
+    private static final String BUCKET = "local-reports";
+    private static final String CARD_ID = "1";
+    private static final String RECIPIENT = "reports@example.com";
+    private static final Duration TIMEOUT = Duration.ofMinutes(15);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private LocalHarness() {
+    }
+
+    /**
+     * Run every configured report size and log a summary line for each
+     */
+    public static void run() {
+        List<Long> sizes = Arrays.stream(REPORT_SIZES.split(",")).map(String::trim).map(LocalHarness::parseSize).toList();
+        int iterations = Integer.parseInt(ITERATIONS);
+        ByteArrayOutputStream executorOutput = new ByteArrayOutputStream();
+        ByteArrayOutputStream notifierOutput = new ByteArrayOutputStream();
+
+        try (FakeMetabaseServer metabaseServer = new FakeMetabaseServer();
+             InMemoryS3Client s3Client = new InMemoryS3Client();
+             SmtpSink smtpSink = new SmtpSink()) {
+            metabaseServer.setLatency(Duration.ofMillis(Long.parseLong(METABASE_LATENCY_MILLIS)));
+            com.champtitles.metabasereportexecutor.executor.App executor = LocalExecutor.create(metabaseServer.getUrl(), s3Client, BUCKET,
+                    ExportFormat.fromString(EXPORT_FORMAT), Compression.fromString(EXPORT_COMPRESSION),
+                    new MetricsLogger("Local", "executor", new PrintStream(executorOutput, true, StandardCharsets.UTF_8)));
+            com.champtitles.metabasereportexecutor.notifier.App notifier = LocalNotifier.create(s3Client, BUCKET, smtpSink.getPort(), List.of(RECIPIENT),
+                    new MetricsLogger("Local", "notifier", new PrintStream(notifierOutput, true, StandardCharsets.UTF_8)));
+
+            List<String> summaries = new ArrayList<>();
+            for (long size : sizes) {
+                metabaseServer.setExportSize(size);
+                List<Sample> samples = new ArrayList<>();
+                for (int i = 0; i < iterations; i++) {
+                    metabaseServer.failNext(Integer.parseInt(METABASE_FAILURES), 502);
+                    samples.add(runOnce(executor, notifier, executorOutput, notifierOutput));
+                    s3Client.clear();
+                }
+                summaries.add(summarize(size, samples, smtpSink.getMessages().size()));
+                smtpSink.clear();
+            }
+
+            LOGGER.info("local run of {} iteration(s), format={} compression={} latencyMs={} failures={}", iterations, EXPORT_FORMAT,
+                    EXPORT_COMPRESSION, METABASE_LATENCY_MILLIS, METABASE_FAILURES);
+            LOGGER.info(String.format(Locale.ROOT, "%10s %12s %12s %10s %12s %12s %12s %12s %8s", "size", "executorP50", "executorMax",
+                    "exportMBs", "queryP50", "uploadP50", "notifierP50", "emailP50", "emails"));
+            summaries.forEach(LOGGER::info);
+        }
+    }
+
+    /**
+     * Export and upload the card, then send the resulting report
+     */
+    private static Sample runOnce(com.champtitles.metabasereportexecutor.executor.App executor, com.champtitles.metabasereportexecutor.notifier.App notifier,
+                                  ByteArrayOutputStream executorOutput, ByteArrayOutputStream notifierOutput) {
+        executorOutput.reset();
+        notifierOutput.reset();
+
+        long executorStart = System.nanoTime();
+        List<CardResult> results = executor.handleRequest(Map.of("cardIds", List.of(CARD_ID)), new LocalContext("executor", TIMEOUT));
+        long executorMs = (System.nanoTime() - executorStart) / 1_000_000;
+
+        long notifierStart = System.nanoTime();
+        notifier.handleRequest(createEvent(results.get(0).s3Key()), new LocalContext("notifier", TIMEOUT));
+        long notifierMs = (System.nanoTime() - notifierStart) / 1_000_000;
+
+        Map<String, Double> metrics = readMetrics(executorOutput);
+        metrics.putAll(readMetrics(notifierOutput));
+        return new Sample(executorMs, notifierMs, metrics);
+    }
+
+    /**
+     * @param s3Key key of the uploaded report
+     * @return SNS event in the format S3 publishes for a created object
+     */
+    private static SNSEvent createEvent(String s3Key) {
+        ObjectNode message = OBJECT_MAPPER.createObjectNode();
+        message.putArray("Records").addObject().putObject("s3").putObject("object").put("key", s3Key);
+        SNSEvent.SNSRecord snsRecord = new SNSEvent.SNSRecord().withSns(new SNSEvent.SNS().withMessage(message.toString()));
+        return new SNSEvent().withRecords(List.of(snsRecord));
+    }
+
+    /**
+     * @param output EMF lines written by a metrics logger
+     * @return last value of each numeric field
+     */
+    private static Map<String, Double> readMetrics(ByteArrayOutputStream output) {
+        Map<String, Double> metrics = new HashMap<>();
+        for (String line : output.toString(StandardCharsets.UTF_8).split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                JsonNode root = OBJECT_MAPPER.readTree(line);
+                root.fields().forEachRemaining(field -> {
+                    if (field.getValue().isNumber()) {
+                        metrics.put(field.getKey(), field.getValue().asDouble());
+                    }
+                });
+
+            } catch (IOException e) {
+                LOGGER.warn("failed to parse metrics line: {}", line);
+            }
+        }
+        return metrics;
+    }
+
+    private static String summarize(long size, List<Sample> samples, int emails) {
+        List<Double> executorMs = samples.stream().map(sample -> (double) sample.executorMs()).toList();
+        return String.format(Locale.ROOT, "%10s %12.0f %12.0f %10.1f %12.0f %12.0f %12.0f %12.0f %8d", formatSize(size), median(executorMs),
+                executorMs.stream().mapToDouble(Double::doubleValue).max().orElse(0), median(samples, "ExportThroughput"),
+                median(samples, "QueryLatency"), median(samples, "UploadDuration"),
+                median(samples.stream().map(sample -> (double) sample.notifierMs()).toList()), median(samples, "EmailDuration"), emails);
+    }
+
+    private static double median(List<Sample> samples, String metric) {
+        return median(samples.stream().map(sample -> sample.metrics().getOrDefault(metric, 0.0)).toList());
+    }
+
+    private static double median(List<Double> values) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        List<Double> sorted = values.stream().sorted().toList();
+        int middle = sorted.size() / 2;
+        return sorted.size() % 2 == 1 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+    }
+
+    /**
+     * @param value size with an optional unit (ex: 512KB, 2GB)
+     * @return size in bytes
+     */
+    static long parseSize(String value) {
+        String upper = value.toUpperCase(Locale.ROOT);
+        for (String unit : List.of("GB", "MB", "KB")) {
+            if (upper.endsWith(unit)) {
+                long multiplier = switch (unit) {
+                    case "GB" -> 1024L * 1024 * 1024;
+                    case "MB" -> 1024L * 1024;
+                    default -> 1024L;
+                };
+                return Long.parseLong(upper.substring(0, upper.length() - unit.length()).trim()) * multiplier;
+            }
+        }
+        return Long.parseLong(upper.endsWith("B") ? upper.substring(0, upper.length() - 1) : upper);
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes >= 1024L * 1024 * 1024) {
+            return bytes / (1024L * 1024 * 1024) + "GB";
+        }
+        if (bytes >= 1024L * 1024) {
+            return bytes / (1024L * 1024) + "MB";
+        }
+        return bytes >= 1024 ? bytes / 1024 + "KB" : bytes + "B";
+    }
+
+    /**
+     * Measurements of one executor and notifier run
+     *
+     * @param executorMs time taken by the executor invocation
+     * @param notifierMs time taken by the notifier invocation
+     * @param metrics    metrics emitted by both invocations
+     */
+    private record Sample(long executorMs, long notifierMs, Map<String, Double> metrics) {
+    }
+}
@@ -0,0 +1,46 @@
+package com.champtitles.metabasereportexecutor.test;
+
+import com.champtitles.metabasereportexecutor.executor.MetricsLogger;
+import com.champtitles.metabasereportexecutor.notifier.App;
+import com.champtitles.metabasereportexecutor.notifier.EmailSender;
+import com.champtitles.metabasereportexecutor.notifier.NotifierSettings;
+import com.champtitles.metabasereportexecutor.notifier.RecipientGroup;
+import com.champtitles.metabasereportexecutor.notifier.S3Reader;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+import java.util.List;
+
+/**
+ * Creates a notifier which runs in-process against local stand-ins for S3 and the SMTP server, wired the same
+ * way as the Lambda apart from the clients and the SMTP connection pool. Download links are signed with placeholder
+ * credentials.
+ */
+public final class LocalNotifier {
+
+    private LocalNotifier() {
+    }
+
+    /**
+     * @param s3Client      client of the report bucket
+     * @param bucket        report bucket
+     * @param smtpPort      port of the local SMTP server
+     * @param recipients    addresses every report is sent to
+     * @param metricsLogger logger of the notifier metrics
+     * @return notifier lambda handler
+     */
+    public static App create(S3Client s3Client, String bucket, int smtpPort, List<String> recipients, MetricsLogger metricsLogger) {
+        S3Presigner s3Presigner = S3Presigner.builder()
+                .region(Region.US_EAST_1)
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("local", "local")))
+                .build();
+        EmailSender emailSender = new EmailSender("localhost", String.valueOf(smtpPort), "local", () -> "local", "reports@example.com");
+        return new App(new S3Reader(bucket, s3Client, s3Presigner), emailSender,
+                NotifierSettings.of(List.of(new RecipientGroup("local", recipients, null, List.of())))
+                        .withConcurrency(4)
+                        .withMetricsLogger(metricsLogger));
+    }
+}
@@ -0,0 +1,176 @@
+package com.champtitles.metabasereportexecutor.test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local SMTP server which accepts every message and keeps only its recipients and size. It does not offer
+ * STARTTLS or AUTH, so JavaMail sends without encrypting or logging in.
+ */
+public class SmtpSink implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SmtpSink.class.getName());
+    private final ServerSocket serverSocket;
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final List<Received> messages = new CopyOnWriteArrayList<>();
+
+    /**
+     * Start the server on a free local port
+     */
+    public SmtpSink() {
+        try {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        executorService.submit(this::accept);
+        LOGGER.info("smtp sink listening on port {}", getPort());
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return messages received since the last clear
+     */
+    public List<Received> getMessages() {
+        return List.copyOf(messages);
+    }
+
+    /**
+     * Forget the messages received so far
+     */
+    public void clear() {
+        messages.clear();
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+
+        } catch (IOException e) {
+            LOGGER.warn("failed to close smtp sink: {}", e.getMessage());
+        }
+        executorService.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executorService.submit(() -> handle(socket));
+
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.error("failed to accept smtp connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer the commands of one connection until the client quits
+     *
+     * @param socket client connection
+     */
+    private void handle(Socket socket) {
+        try (socket; InputStream inputStream = new BufferedInputStream(socket.getInputStream()); OutputStream outputStream = socket.getOutputStream()) {
+            reply(outputStream, "220 localhost ESMTP sink");
+            List<String> recipients = new ArrayList<>();
+            String line;
+            while ((line = readLine(inputStream)) != null) {
+                String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+                switch (command) {
+                    case "EHLO" -> reply(outputStream, "250-localhost\r\n250-8BITMIME\r\n250 SIZE");
+                    case "HELO", "NOOP", "MAIL" -> reply(outputStream, "250 OK");
+                    case "RSET" -> {
+                        recipients.clear();
+                        reply(outputStream, "250 OK");
+                    }
+                    case "RCPT" -> {
+                        recipients.add(line.substring(line.indexOf(':') + 1).trim().replaceAll("[<>]", ""));
+                        reply(outputStream, "250 OK");
+                    }
+                    case "DATA" -> {
+                        reply(outputStream, "354 end data with <CR><LF>.<CR><LF>");
+                        messages.add(new Received(List.copyOf(recipients), readData(inputStream)));
+                        recipients.clear();
+                        reply(outputStream, "250 OK");
+                    }
+                    case "QUIT" -> {
+                        reply(outputStream, "221 bye");
+                        return;
+                    }
+                    default -> reply(outputStream, "502 command not implemented");
+                }
+            }
+
+        } catch (IOException e) {
+            LOGGER.warn("smtp connection failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Read a message up to the line containing only a dot
+     *
+     * @param inputStream client connection
+     * @return size of the message in bytes
+     */
+    private static long readData(InputStream inputStream) throws IOException {
+        long size = 0;
+        String line;
+        while ((line = readLine(inputStream)) != null && !".".equals(line)) {
+            size += line.length() + 2;
+        }
+        return size;
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = inputStream.read()) >= 0) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? line.toString(StandardCharsets.US_ASCII) : null;
+    }
+
+    private static void reply(OutputStream outputStream, String reply) throws IOException {
+        outputStream.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+    }
+
+    /**
+     * A message accepted by the sink
+     *
+     * @param recipients addresses the message was sent to
+     * @param bytes      size of the message as sent, including headers and encoded attachments
+     */
+    public record Received(List<String> recipients, long bytes) {
+    }
+}
@@ -37,3 +37,84 @@ resource "aws_cloudwatch_metric_alarm" "notifier" {
     FunctionName = module.lambda_notifier.function_name
   }
 }
+
+resource "aws_cloudwatch_metric_alarm" "card_failures" {
+  count               = var.enable_alarms && var.metrics_namespace != "" ? 1 : 0
+  alarm_name          = "${module.lambda_executor.function_name}-CardFailures"
+  comparison_operator = "GreaterThanOrEqualToThreshold"
+  evaluation_periods  = var.metric_evaluation_periods
+  metric_name         = "CardFailures"
+  namespace           = var.metrics_namespace
+  period              = var.metric_period
+  statistic           = "Sum"
+  threshold           = 1
+  alarm_actions       = [aws_sns_topic.this.arn]
+  ok_actions          = [aws_sns_topic.this.arn]
+  treat_missing_data  = var.treat_missing_data
+  tags                = merge(local.tags, var.tags)
+
+  dimensions = {
+    FunctionName = module.lambda_executor.function_name
+  }
+}
+
+# the notifier only fails an invocation when every delivery failed, so partial failures are only seen here
+resource "aws_cloudwatch_metric_alarm" "notification_failures" {
+  count               = var.enable_alarms && var.metrics_namespace != "" ? 1 : 0
+  alarm_name          = "${module.lambda_notifier.function_name}-NotificationFailures"
+  comparison_operator = "GreaterThanOrEqualToThreshold"
+  evaluation_periods  = var.metric_evaluation_periods
+  metric_name         = "NotificationFailures"
+  namespace           = var.metrics_namespace
+  period              = var.metric_period
+  statistic           = "Sum"
+  threshold           = 1
+  alarm_actions       = [aws_sns_topic.this.arn]
+  ok_actions          = [aws_sns_topic.this.arn]
+  treat_missing_data  = var.treat_missing_data
+  tags                = merge(local.tags, var.tags)
+
+  dimensions = {
+    FunctionName = module.lambda_notifier.function_name
+  }
+}
+
+resource "aws_cloudwatch_metric_alarm" "export_duration" {
+  count               = var.enable_alarms && var.metrics_namespace != "" && var.export_duration_p95_threshold_ms > 0 ? 1 : 0
+  alarm_name          = "${module.lambda_executor.function_name}-ExportDuration-p95"
+  comparison_operator = "GreaterThanThreshold"
+  evaluation_periods  = var.metric_evaluation_periods
+  metric_name         = "ExportDuration"
+  namespace           = var.metrics_namespace
+  period              = var.metric_period
+  extended_statistic  = "p95"
+  threshold           = var.export_duration_p95_threshold_ms
+  alarm_actions       = [aws_sns_topic.this.arn]
+  ok_actions          = [aws_sns_topic.this.arn]
+  treat_missing_data  = var.treat_missing_data
+  tags                = merge(local.tags, var.tags)
+
+  dimensions = {
+    FunctionName = module.lambda_executor.function_name
+  }
+}
+
+resource "aws_cloudwatch_metric_alarm" "row_drop" {
+  count               = var.enable_alarms && var.metrics_namespace != "" && var.max_row_drop_percent > 0 ? 1 : 0
+  alarm_name          = "${module.lambda_notifier.function_name}-RowDrop"
+  comparison_operator = "GreaterThanThreshold"
+  evaluation_periods  = var.metric_evaluation_periods
+  metric_name         = "RowDropAlerts"
+  namespace           = var.metrics_namespace
+  period              = var.metric_period
+  statistic           = "Maximum"
+  threshold           = 0
+  alarm_actions       = [aws_sns_topic.this.arn]
+  ok_actions          = [aws_sns_topic.this.arn]
+  treat_missing_data  = var.treat_missing_data
+  tags                = merge(local.tags, var.tags)
+
+  dimensions = {
+    FunctionName = module.lambda_notifier.function_name
+  }
+}
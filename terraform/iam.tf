@@ -8,6 +8,16 @@ data "aws_iam_policy_document" "this" {
     ]
   }
 
+  # lets S3 report a missing state object as 404 instead of 403, so real access failures are not mistaken for it
+  statement {
+    actions = [
+      "s3:ListBucket",
+    ]
+    resources = [
+      "arn:aws:s3:::${module.s3.bucket}"
+    ]
+  }
+
   statement {
     actions = [
       "kms:DescribeKey",
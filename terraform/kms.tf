@@ -0,0 +1,62 @@
+locals {
+  session_kms_alias = "alias/${var.git}-card-${var.metabase_card_id}-session-${random_string.this.result}"
+}
+
+# Encrypts the Metabase session shared between executors. Only the executor role may use the key, so other
+# readers of the report bucket cannot decrypt the session token.
+resource "aws_kms_key" "session" {
+  count                   = var.metabase_session_store == "s3" ? 1 : 0
+  description             = "Metabase session of card ${var.metabase_card_id}"
+  deletion_window_in_days = 7
+  enable_key_rotation     = true
+  policy                  = data.aws_iam_policy_document.session_key[0].json
+  tags                    = merge(local.tags, var.tags)
+}
+
+resource "aws_kms_alias" "session" {
+  count         = var.metabase_session_store == "s3" ? 1 : 0
+  name          = local.session_kms_alias
+  target_key_id = aws_kms_key.session[0].key_id
+}
+
+data "aws_iam_policy_document" "session_key" {
+  count = var.metabase_session_store == "s3" ? 1 : 0
+
+  statement {
+    sid = "Administration"
+    principals {
+      identifiers = ["arn:aws:iam::${data.aws_caller_identity.this.account_id}:root"]
+      type        = "AWS"
+    }
+    actions = [
+      "kms:CancelKeyDeletion",
+      "kms:Create*",
+      "kms:Delete*",
+      "kms:Describe*",
+      "kms:Disable*",
+      "kms:Enable*",
+      "kms:Get*",
+      "kms:List*",
+      "kms:Put*",
+      "kms:Revoke*",
+      "kms:ScheduleKeyDeletion",
+      "kms:TagResource",
+      "kms:UntagResource",
+      "kms:Update*"
+    ]
+    resources = ["*"]
+  }
+
+  statement {
+    sid = "Executor"
+    principals {
+      identifiers = ["arn:aws:iam::${data.aws_caller_identity.this.account_id}:role/${module.lambda_executor.role_name}"]
+      type        = "AWS"
+    }
+    actions = [
+      "kms:Decrypt",
+      "kms:GenerateDataKey"
+    ]
+    resources = ["*"]
+  }
+}
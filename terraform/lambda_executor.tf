@@ -15,13 +15,37 @@ module "lambda_executor" {
   schedule_expression = var.schedule_expression
   timeout             = var.timeout
   environment = {
-    BUCKET                = module.s3.bucket
-    METABASE_URL          = var.metabase_url
-    METABASE_USERNAME     = var.metabase_username
-    METABASE_PASSWORD_KMS = var.metabase_password_kms
-    METABASE_CARD_ID      = var.metabase_card_id
-    METABASE_DEVICE_UUID  = random_uuid.this.result
-    JAVA_TOOL_OPTIONS     = "-Djdk.httpclient.keepalive.timeout=5"
+    BUCKET                           = module.s3.bucket
+    METABASE_URL                     = var.metabase_url
+    METABASE_USERNAME                = var.metabase_username
+    METABASE_PASSWORD_KMS            = var.metabase_password_kms
+    METABASE_CARD_ID                 = var.metabase_card_id
+    METABASE_CARD_IDS                = join(",", var.metabase_card_ids)
+    METABASE_CARD_PARAMETERS         = length(var.metabase_card_parameters) > 0 ? jsonencode(var.metabase_card_parameters) : ""
+    METABASE_PARALLELISM             = var.metabase_parallelism
+    METABASE_DEVICE_UUID             = random_uuid.this.result
+    METABASE_SESSION_STORE           = var.metabase_session_store
+    METABASE_SESSION_KMS_KEY         = var.metabase_session_store == "s3" ? local.session_kms_alias : ""
+    METABASE_SESSION_TTL_MINUTES     = var.metabase_session_ttl_minutes
+    METABASE_HTTP_VERSION            = var.metabase_http_version
+    METABASE_HTTP_THREADS            = var.metabase_http_threads
+    METABASE_CONNECT_TIMEOUT_SECONDS = var.metabase_connect_timeout_seconds
+    METABASE_REQUEST_TIMEOUT_SECONDS = var.metabase_request_timeout_seconds
+    JAVA_TOOL_OPTIONS                = "-Djdk.httpclient.keepalive.timeout=${var.metabase_http_keepalive_seconds}"
+    EXPORT_FORMAT                    = var.export_format
+    EXPORT_COMPRESSION               = var.export_compression
+    EXPORT_MODE                      = var.export_mode
+    S3_PART_SIZE_MB                  = var.s3_part_size_mb
+    S3_UPLOAD_CONCURRENCY            = var.s3_upload_concurrency
+    S3_KEY_LAYOUT                    = var.s3_key_layout
+    SKIP_UNCHANGED_REPORTS           = var.skip_unchanged_reports
+    TRANSCODE_XLSX_TO_CSV            = var.transcode_xlsx_to_csv
+    RESULT_CACHE_TTL_MINUTES         = var.result_cache_ttl_minutes
+    RETRY_MAX_ATTEMPTS               = var.retry_max_attempts
+    RETRY_BASE_DELAY_MILLIS          = var.retry_base_delay_millis
+    SECRETS_CACHE_TTL_MINUTES        = var.secrets_cache_ttl_minutes
+    METRICS_NAMESPACE                = var.metrics_namespace
+    PRIME_ON_INIT                    = var.prime_on_init
   }
 }
 
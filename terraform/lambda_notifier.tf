@@ -13,19 +13,32 @@ module "lambda_notifier" {
   private_subnet_ids = var.private_subnet_ids
   timeout            = var.timeout
   environment = {
-    BUCKET                  = module.s3.bucket
-    SMTP_HOST               = var.smtp_host
-    SMTP_PORT               = var.smtp_port
-    SMTP_USER               = var.smtp_user
-    SMTP_PASSWORD_KMS       = var.smtp_password_kms
-    FROM_ADDRESS            = var.from_address
-    RECIPIENTS              = join(",", var.recipients)
-    METABASE_CARD_ID        = var.metabase_card_id
-    NAME                    = var.name
-    SIZE_LIMIT_BYTES        = var.size_limit_bytes
-    BODY                    = var.body
-    INCLUDE_CARD_IN_SUBJECT = var.include_card_in_subject
-    FILENAME_PREFIX         = var.filename_prefix
+    BUCKET                        = module.s3.bucket
+    SMTP_HOST                     = var.smtp_host
+    SMTP_PORT                     = var.smtp_port
+    SMTP_USER                     = var.smtp_user
+    SMTP_PASSWORD_KMS             = var.smtp_password_kms
+    FROM_ADDRESS                  = var.from_address
+    RECIPIENTS                    = join(",", var.recipients)
+    METABASE_CARD_ID              = var.metabase_card_id
+    NAME                          = var.name
+    SIZE_LIMIT_BYTES              = var.size_limit_bytes
+    BODY                          = var.body
+    INCLUDE_CARD_IN_SUBJECT       = var.include_card_in_subject
+    FILENAME_PREFIX               = var.filename_prefix
+    SECRETS_CACHE_TTL_MINUTES     = var.secrets_cache_ttl_minutes
+    RECIPIENT_GROUPS              = length(var.recipient_groups) > 0 ? jsonencode(var.recipient_groups) : ""
+    NOTIFIER_CONCURRENCY          = var.notifier_concurrency
+    SMTP_CONNECTIONS              = var.smtp_connections
+    PRESIGNED_URL_EXPIRY_HOURS    = var.presigned_url_expiry_hours
+    PRESIGN_ACCESS_KEY_ID         = var.presign_access_key_id
+    PRESIGN_SECRET_ACCESS_KEY_KMS = var.presign_secret_access_key_kms
+    ZIP_ATTACHMENTS               = var.zip_attachments
+    ZIP_COMPRESSION_LEVEL         = var.zip_compression_level
+    METRICS_NAMESPACE             = var.metrics_namespace
+    MIN_REPORT_ROWS               = var.min_report_rows
+    MAX_ROW_DROP_PERCENT          = var.max_row_drop_percent
+    PRIME_ON_INIT                 = var.prime_on_init
   }
 }
 
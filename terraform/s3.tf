@@ -6,11 +6,37 @@ module "s3" {
   tags    = merge(local.tags, var.tags)
 }
 
+# The executor aborts uploads it cannot complete, but an invocation killed before the abort leaves parts behind
+# which are billed and never visible as an object
+resource "aws_s3_bucket_lifecycle_configuration" "this" {
+  bucket = module.s3.bucket
+
+  rule {
+    id     = "abort-incomplete-multipart-uploads"
+    status = "Enabled"
+
+    filter {}
+
+    abort_incomplete_multipart_upload {
+      days_after_initiation = var.abort_incomplete_upload_days
+    }
+  }
+}
+
+locals {
+  # Only reports notify the notifier. State objects (_state/) and CSV copies (csv/) are outside these prefixes:
+  # dated report keys start with the year (2023/04/04/...) and hive report keys with report=
+  report_key_prefix = lower(var.s3_key_layout) == "hive" ? "report=" : "2"
+  report_key_suffix = ".${lower(var.export_format)}${lookup({ gzip = ".gz", zstd = ".zst" }, lower(var.export_compression), "")}"
+}
+
 resource "aws_s3_bucket_notification" "this" {
   bucket = module.s3.bucket
 
   topic {
-    topic_arn = aws_sns_topic.this.arn
-    events    = ["s3:ObjectCreated:*"]
+    topic_arn     = aws_sns_topic.this.arn
+    events        = ["s3:ObjectCreated:*"]
+    filter_prefix = local.report_key_prefix
+    filter_suffix = local.report_key_suffix
   }
 }
@@ -1,3 +1,9 @@
+variable "abort_incomplete_upload_days" {
+  description = "Days after which parts of a multipart upload that was never completed or aborted are deleted"
+  type        = number
+  default     = 1
+}
+
 variable "alarms_email" {
   description = "https://registry.terraform.io/providers/hashicorp/aws/latest/docs/resources/sns_topic_subscription#endpoint"
   type        = string
@@ -28,6 +34,30 @@ variable "enable_schedule" {
   default     = true
 }
 
+variable "export_compression" {
+  description = "Compression applied to exports while they are uploaded to S3 (none, gzip or zstd)"
+  type        = string
+  default     = "none"
+}
+
+variable "export_format" {
+  description = "Format Metabase exports each card in (xlsx, csv or json)"
+  type        = string
+  default     = "xlsx"
+}
+
+variable "export_mode" {
+  description = "full uploads the whole card result every run, delta uploads only rows which are new or changed since the last run (requires csv or json export_format)"
+  type        = string
+  default     = "full"
+}
+
+variable "export_duration_p95_threshold_ms" {
+  description = "Alarm when the p95 time to export and upload a card is above this many milliseconds (0 to disable)"
+  type        = number
+  default     = 0
+}
+
 variable "filename_prefix" {
   description = "Prefix for report attachment filename"
   type        = string
@@ -64,6 +94,12 @@ variable "kms_key_arn" {
   default     = "*"
 }
 
+variable "max_row_drop_percent" {
+  description = "Alert when the rows of a report drop by more than this percentage from the previous run (0 to disable)"
+  type        = number
+  default     = 0
+}
+
 variable "metabase_url" {
   description = "Metabase server URL"
   type        = string
@@ -85,6 +121,66 @@ variable "metabase_card_id" {
   type        = string
 }
 
+variable "metabase_card_ids" {
+  description = "Optional list of Metabase cards to export in a single executor run (overrides metabase_card_id)"
+  type        = list(string)
+  default     = []
+}
+
+variable "metabase_card_parameters" {
+  description = "Template tag values to run the cards with (ex: { region = \"CA\" }). Overridden by a parameters object in the invocation event"
+  type        = map(any)
+  default     = {}
+}
+
+variable "metabase_connect_timeout_seconds" {
+  description = "Maximum time to establish a connection to Metabase (0 for no limit)"
+  type        = number
+  default     = 10
+}
+
+variable "metabase_http_keepalive_seconds" {
+  description = "How long idle connections to Metabase are kept open for reuse (keep below the load balancer idle timeout)"
+  type        = number
+  default     = 30
+}
+
+variable "metabase_http_threads" {
+  description = "Number of threads in the executor used by the Metabase HTTP client (0 for the JDK default)"
+  type        = number
+  default     = 4
+}
+
+variable "metabase_http_version" {
+  description = "Preferred HTTP version for Metabase requests (HTTP_1_1 or HTTP_2)"
+  type        = string
+  default     = "HTTP_1_1"
+}
+
+variable "metabase_parallelism" {
+  description = "Maximum number of cards the executor exports at the same time"
+  type        = number
+  default     = 4
+}
+
+variable "metabase_request_timeout_seconds" {
+  description = "Maximum time to wait for the response to each Metabase request (0 for no limit)"
+  type        = number
+  default     = 0
+}
+
+variable "metabase_session_store" {
+  description = "Where to share the Metabase session between executors (none or s3). In s3 the session is encrypted with a KMS key only the executor can use"
+  type        = string
+  default     = "none"
+}
+
+variable "metabase_session_ttl_minutes" {
+  description = "How long a Metabase session is reused before logging in again"
+  type        = number
+  default     = 720
+}
+
 variable "metric_evaluation_periods" {
   description = "https://registry.terraform.io/providers/hashicorp/aws/latest/docs/resources/cloudwatch_metric_alarm#evaluation_periods"
   type        = number
@@ -97,40 +193,143 @@ variable "metric_period" {
   default     = 300 # in seconds
 }
 
+variable "metrics_namespace" {
+  description = "CloudWatch namespace of the embedded metrics logged by the lambdas (empty to disable)"
+  type        = string
+  default     = "MetabaseReports"
+}
+
+variable "min_report_rows" {
+  description = "Do not email reports with fewer data rows than this (0 to disable)"
+  type        = number
+  default     = 0
+}
+
 variable "name" {
   description = "name of the report"
   type        = string
 }
 
+variable "notifier_concurrency" {
+  description = "Maximum number of emails the notifier sends at the same time"
+  type        = number
+  default     = 4
+}
+
+variable "prime_on_init" {
+  description = "Run the request code paths once on in-memory data while the lambdas initialize, moving class loading out of the first invocation"
+  type        = bool
+  default     = false
+}
+
 variable "private_subnet_ids" {
   description = "https://registry.terraform.io/providers/hashicorp/aws/latest/docs/resources/db_subnet_group#subnet_ids"
   type        = list(string)
 }
 
+variable "presign_access_key_id" {
+  description = "Access key of an IAM user allowed to read the report bucket, used to sign download links so they stay valid for presigned_url_expiry_hours. When empty links are signed with the Lambda's temporary credentials"
+  type        = string
+  default     = ""
+}
+
+variable "presign_secret_access_key_kms" {
+  description = "Secret access key of presign_access_key_id (KMS encrypted)"
+  type        = string
+  sensitive   = true
+  default     = ""
+}
+
+variable "presigned_url_expiry_hours" {
+  description = "How long the download link sent for reports larger than size_limit_bytes is valid, at most 168 hours. Without presign_access_key_id the link can stop working sooner when the Lambda's temporary credentials expire"
+  type        = number
+  default     = 12
+}
+
 variable "protect" {
   description = "Enables deletion protection on eligible resources"
   type        = bool
   default     = true
 }
 
+variable "recipient_groups" {
+  description = "Optional list of recipient groups which each receive their own email (objects with name, recipients, and optional body and cardIds)"
+  type        = any
+  default     = []
+}
+
 variable "recipients" {
   description = "List of email address recipients"
   type        = list(string)
   default     = []
 }
 
+variable "result_cache_ttl_minutes" {
+  description = "Reuse a card result cached in S3 for the same card and parameters for this many minutes instead of querying Metabase again (0 to disable)"
+  type        = number
+  default     = 0
+}
+
+variable "retry_base_delay_millis" {
+  description = "Upper bound of the random delay before the first retry of a failed Metabase or S3 request, doubled for each further retry"
+  type        = number
+  default     = 200
+}
+
+variable "retry_max_attempts" {
+  description = "Number of times a Metabase or S3 request failing with a transient error (429, 502, 503, 504 or a network error) is attempted"
+  type        = number
+  default     = 3
+}
+
+variable "s3_key_layout" {
+  description = "Layout of the report keys in the bucket: dated (yyyy/MM/dd/) or hive (report=card12/dt=yyyy-MM-dd/)"
+  type        = string
+  default     = "dated"
+}
+
+variable "s3_part_size_mb" {
+  description = "Size of each part when the executor uploads a report to S3 (minimum 5)"
+  type        = number
+  default     = 8
+}
+
+variable "s3_upload_concurrency" {
+  description = "Number of parts of each report the executor uploads to S3 at the same time"
+  type        = number
+  default     = 2
+}
+
 variable "schedule_expression" {
   description = "schedule expression using cron"
   type        = string
   default     = "cron(0 7 * * ? *)"
 }
 
+variable "secrets_cache_ttl_minutes" {
+  description = "How long decrypted KMS secrets are cached in memory by the lambdas"
+  type        = number
+  default     = 60
+}
+
 variable "size_limit_bytes" {
-  description = "The maximum allowed size of the file attachment"
+  description = "The maximum allowed size of the file attachment. Larger files are sent as a download link instead"
   type        = number
   default     = 26214400 # 25 MB
 }
 
+variable "skip_unchanged_reports" {
+  description = "Skip uploading (and emailing) a report when its data is the same as the last run"
+  type        = bool
+  default     = false
+}
+
+variable "smtp_connections" {
+  description = "Number of SMTP connections the notifier keeps open"
+  type        = number
+  default     = 2
+}
+
 variable "smtp_host" {
   description = "SMTP server hostname"
   type        = string
@@ -169,6 +368,12 @@ variable "timeout" {
   default     = 900
 }
 
+variable "transcode_xlsx_to_csv" {
+  description = "Also upload a CSV copy of each XLSX report under the csv/ prefix of the bucket, for querying with Athena"
+  type        = bool
+  default     = false
+}
+
 variable "treat_missing_data" {
   description = "https://registry.terraform.io/providers/hashicorp/aws/latest/docs/resources/cloudwatch_metric_alarm#treat_missing_data"
   type        = string
@@ -179,3 +384,15 @@ variable "vpc_id" {
   description = "https://registry.terraform.io/providers/hashicorp/aws/latest/docs/resources/security_group#vpc_id"
   type        = string
 }
+
+variable "zip_attachments" {
+  description = "Send attachments bundled in a ZIP file, compressed while the email is being sent"
+  type        = bool
+  default     = false
+}
+
+variable "zip_compression_level" {
+  description = "Deflate level used for ZIP attachments, from 0 (least notifier CPU) to 9 (smallest email)"
+  type        = number
+  default     = 6
+}